@@ -0,0 +1,119 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+
+/**
+ * Compares decoding response entities and serializing request entities
+ * with Jersey's providers alone against doing so with a
+ * {@link BufferPool}, with no network I/O. Run with the
+ * {@link BenchmarkMain} defaults to see {@code gc.alloc.rate.norm}, the
+ * bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+
+    @Param({ "1024", "65536" })
+    public int bodyLength;
+
+    private MessageBodyWorkers workers;
+    private BufferPool pool;
+    private PooledResponses pooledResponses;
+    private byte[] body;
+    private String entity;
+    private InBoundHeaders headers;
+
+
+    @Setup
+    public void setup() {
+        this.workers = Client.create().getMessageBodyWorkers();
+        this.pool = BufferPool.newBuilder()
+                .leakDetection(false)
+                .build();
+        this.pooledResponses = new PooledResponses(this.pool, this.workers);
+        this.body = new byte[this.bodyLength];
+        Arrays.fill(this.body, (byte) 'x');
+        this.entity = new String(this.body, 0, this.bodyLength);
+        this.headers = new InBoundHeaders();
+        this.headers.putSingle("Content-Type", MediaType.TEXT_PLAIN);
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return newResponse().getEntity(String.class);
+    }
+
+    @Benchmark
+    public String decodeStringPooled() {
+        return this.pooledResponses.call(newResponse()).getEntity(String.class);
+    }
+
+    @Benchmark
+    public int serializeString() throws IOException {
+        return RequestEncoder.serialize(
+                this.workers,
+                this.entity,
+                Optional.of(MediaType.TEXT_PLAIN_TYPE)).length;
+    }
+
+    @Benchmark
+    public int serializeStringPooled() throws IOException {
+        final BufferPool.PooledOutputStream out = RequestEncoder.serialize(
+                this.workers,
+                this.entity,
+                Optional.of(MediaType.TEXT_PLAIN_TYPE),
+                this.pool);
+        try {
+            return out.size();
+        } finally {
+            out.release();
+        }
+    }
+
+    private ClientResponse newResponse() {
+        return new ClientResponse(200, this.headers, new ByteArrayInputStream(this.body), this.workers);
+    }
+
+}
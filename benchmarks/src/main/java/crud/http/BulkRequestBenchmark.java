@@ -0,0 +1,97 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jersey.api.client.Client;
+
+import rx.Observable;
+
+
+/**
+ * Measures {@link HttpResourceProvider#getAll(Observable, int, BulkResponse.Order)}
+ * fetching a batch of resources from a {@link StubHttpServer}, to show how
+ * throughput scales with the limit on requests in flight, and what
+ * delivering responses in request order costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkRequestBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    @Param({ "1", "8", "64" })
+    public int maxInFlight;
+
+    @Param({ "COMPLETION", "REQUEST" })
+    public BulkResponse.Order order;
+
+    private StubHttpServer server;
+    private Client client;
+    private HttpResourceProvider provider;
+    private List<URI> uris;
+
+
+    @Setup
+    public void setup() throws IOException {
+        this.server = StubHttpServer.start(1024, 64);
+        this.client = Client.create();
+        this.provider = HttpResourceProvider.forClient(this.client);
+        this.uris = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            this.uris.add(this.server.getBaseUri().resolve("resource/" + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.destroy();
+        this.server.close();
+    }
+
+    /**
+     * @return  The number of responses, which is always
+     *          {@value #BATCH_SIZE}. The score is batches per second.
+     */
+    @Benchmark
+    public int getAll() {
+        return this.provider.getAll(Observable.from(this.uris), this.maxInFlight, this.order)
+                .count()
+                .toBlocking().single();
+    }
+
+}
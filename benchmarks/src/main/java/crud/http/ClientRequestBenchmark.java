@@ -0,0 +1,111 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
+
+
+/**
+ * Measures the cost of copying a {@link ClientRequest} into a Jersey request
+ * builder, as every {@link HttpResource} action does once for the provider's
+ * template and once more for the per-call request. No request is sent.
+ * {@link #newRequestBuilder()} is the baseline to subtract.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientRequestBenchmark {
+
+    private Client client;
+    private AsyncWebResource resource;
+    private ClientRequest template;
+    private ClientRequest request;
+
+
+    @Setup
+    public void setup() {
+        this.client = Client.create();
+        this.resource = this.client.asyncResource(URI.create("http://localhost/resource"));
+        this.template = ClientRequest.newBuilder()
+                .acceptedMediaType(MediaType.APPLICATION_JSON_TYPE)
+                .acceptedMediaType(MediaType.APPLICATION_XML_TYPE)
+                .acceptedLanguage(Locale.US)
+                .contentType(MediaType.APPLICATION_JSON_TYPE)
+                .cookie(new Cookie("session", "0123456789abcdef"))
+                .header("X-Client", "crud-http")
+                .build();
+        this.request = ClientRequest.newBuilder()
+                .entity("{\"id\":42}")
+                .header("X-Request-Id", "abc123")
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.destroy();
+    }
+
+    @Benchmark
+    public AsyncWebResource.Builder newRequestBuilder() {
+        return this.resource.getRequestBuilder();
+    }
+
+    @Benchmark
+    public AsyncWebResource.Builder templateOnly() {
+        final AsyncWebResource.Builder builder = this.resource.getRequestBuilder();
+        this.template.updateResource(builder);
+        return builder;
+    }
+
+    @Benchmark
+    public AsyncWebResource.Builder templateAndRequest() {
+        final AsyncWebResource.Builder builder = this.resource.getRequestBuilder();
+        this.template.updateResource(builder);
+        this.request.updateResource(builder);
+        return builder;
+    }
+
+    @Benchmark
+    public AsyncWebResource.Builder templateAndEmptyRequest() {
+        final AsyncWebResource.Builder builder = this.resource.getRequestBuilder();
+        this.template.updateResource(builder);
+        ClientRequest.empty().updateResource(builder);
+        return builder;
+    }
+
+}
@@ -0,0 +1,122 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Throwables;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.functions.Func1;
+
+
+/**
+ * Compares {@link HttpResource#getInto(Path)} with the usual way of saving
+ * a download: decoding the body of {@link HttpResource#get()} as an
+ * {@link InputStream} and copying it to the file. Run with the
+ * {@link BenchmarkMain} defaults to see {@code gc.alloc.rate.norm}, the
+ * bytes allocated per download.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({ "jersey", "netty" })
+    public String transport;
+
+    @Param({ "16777216" })
+    public int bodyLength;
+
+    private StubHttpServer server;
+    private Client client;
+    private NettyTransport nettyTransport;
+    private HttpResource resource;
+    private Path file;
+
+
+    @Setup
+    public void setup() throws IOException {
+        this.server = StubHttpServer.start(this.bodyLength, 4);
+        final HttpResourceProvider provider;
+        if ("netty".equals(this.transport)) {
+            this.nettyTransport = NettyTransport.newBuilder()
+                    .maxContentLength(this.bodyLength)
+                    .build();
+            provider = HttpResourceProvider.newBuilder(this.nettyTransport).build();
+        } else {
+            this.client = Client.create();
+            provider = HttpResourceProvider.forClient(this.client);
+        }
+        this.resource = provider.get(this.server.getBaseUri().resolve("blob"));
+        this.file = Files.createTempFile("download", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.client != null) {
+            this.client.destroy();
+        }
+        if (this.nettyTransport != null) {
+            this.nettyTransport.close();
+        }
+        this.server.close();
+        Files.delete(this.file);
+    }
+
+    @Benchmark
+    public long copyEntityStream() {
+        return this.resource.get()
+                .map(new Func1<ClientResponse, Long>() {
+                    @Override
+                    public Long call(final ClientResponse response) {
+                        try (InputStream body = response.getEntity(InputStream.class)) {
+                            return Files.copy(body, DownloadBenchmark.this.file, StandardCopyOption.REPLACE_EXISTING);
+                        } catch (final IOException ex) {
+                            throw Throwables.propagate(ex);
+                        }
+                    }
+                })
+                .toBlocking().single();
+    }
+
+    @Benchmark
+    public long getInto() {
+        return this.resource.getInto(this.file).toBlocking().last();
+    }
+
+}
@@ -0,0 +1,112 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+
+/**
+ * Measures one round trip through each of the four CRUD actions of
+ * {@link HttpResource}, against a {@link StubHttpServer} on the loopback
+ * interface. Run with {@code -prof gc} (the default in
+ * {@link BenchmarkMain}) to see {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResourceBenchmark {
+
+    @Param({ "128", "16384" })
+    public int bodyLength;
+
+    private StubHttpServer server;
+    private Client client;
+    private HttpResource resource;
+    private ClientRequest entityRequest;
+
+
+    @Setup
+    public void setup() throws IOException {
+        this.server = StubHttpServer.start(this.bodyLength, 4);
+        this.client = Client.create();
+        final HttpResourceProvider provider = HttpResourceProvider.forClientWithTemplate(
+                this.client,
+                ClientRequest.newBuilder()
+                    .acceptedMediaType(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                    .build());
+        this.resource = provider.get(this.server.getBaseUri().resolve("resource"));
+        this.entityRequest = ClientRequest.newBuilder()
+                .entity(new byte[this.bodyLength], MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.destroy();
+        this.server.close();
+    }
+
+    @Benchmark
+    public int get() {
+        return status(this.resource.get().toBlocking().single());
+    }
+
+    @Benchmark
+    public int write() {
+        return status(this.resource.write(this.entityRequest).toBlocking().single());
+    }
+
+    @Benchmark
+    public int update() {
+        return status(this.resource.update(this.entityRequest).toBlocking().single());
+    }
+
+    @Benchmark
+    public int delete() {
+        return status(this.resource.delete().toBlocking().single());
+    }
+
+    /**
+     * By the time {@code toBlocking().single()} returns, the response has
+     * already been closed by {@link ClientResponseCloser}, so the body is
+     * gone; only the status is left to consume.
+     */
+    private static int status(final ClientResponse response) {
+        return response.getStatus();
+    }
+
+}
@@ -0,0 +1,99 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jersey.api.client.Client;
+
+
+/**
+ * Measures the cost of {@link HttpResourceProvider#get(URI)}, both for a
+ * stream of distinct {@link URI}s, as when looking up millions of assets by
+ * UUID, and for a small set of hot {@code URI}s, with and without
+ * interning. No requests are sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderLookupBenchmark {
+
+    private static final int URI_COUNT = 1 << 16;
+    private static final int HOT_URI_COUNT = 64;
+
+    private Client client;
+    private HttpResourceProvider provider;
+    private HttpResourceProvider internedProvider;
+    private URI[] uris;
+    private int next = 0;
+
+
+    @Setup
+    public void setup() {
+        this.client = Client.create();
+        this.provider = HttpResourceProvider.forClient(this.client);
+        this.internedProvider = HttpResourceProvider.newBuilder(this.client)
+                .internResources(HOT_URI_COUNT * 2)
+                .build();
+        this.uris = new URI[URI_COUNT];
+        for (int i = 0; i < URI_COUNT; ++i) {
+            this.uris[i] = URI.create("http://localhost/asset/" + UUID.randomUUID());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.destroy();
+    }
+
+    @Benchmark
+    public HttpResource distinctUris() {
+        return this.provider.get(nextUri(URI_COUNT));
+    }
+
+    @Benchmark
+    public HttpResource hotUris() {
+        return this.provider.get(nextUri(HOT_URI_COUNT));
+    }
+
+    @Benchmark
+    public HttpResource hotUrisInterned() {
+        return this.internedProvider.get(nextUri(HOT_URI_COUNT));
+    }
+
+    private URI nextUri(final int limit) {
+        final int index = this.next;
+        this.next = (index + 1) % limit;
+        return this.uris[index];
+    }
+
+}
@@ -0,0 +1,142 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * Measures the cost of {@link RequestMetrics} on the path of a request:
+ * the same {@code GET}, through a transport that responds at once, with
+ * and without metrics. The difference between the two is the cost of
+ * recording: two clock reads, a handful of atomic increments, and the
+ * subscriber that observes the request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestMetricsBenchmark {
+
+    private static final URI uri = URI.create("http://example.com/resource");
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private HttpResource plainResource;
+    private HttpResource measuredResource;
+
+
+    @Setup
+    public void setup() {
+        final ImmediateTransport transport = new ImmediateTransport();
+        this.plainResource = HttpResourceProvider.newBuilder(transport)
+                .build()
+                .get(uri);
+        this.measuredResource = HttpResourceProvider.newBuilder(transport)
+                .metrics(RequestMetrics.perHost())
+                .build()
+                .get(uri);
+    }
+
+    @Benchmark
+    public void withoutMetrics(final Blackhole blackhole) {
+        this.plainResource.get().subscribe(new ConsumingSubscriber(blackhole));
+    }
+
+    @Benchmark
+    public void withMetrics(final Blackhole blackhole) {
+        this.measuredResource.get().subscribe(new ConsumingSubscriber(blackhole));
+    }
+
+
+    /**
+     * Responds as soon as a request is sent, without I/O, so that the
+     * cost of the pipeline around the request isn't lost in the noise.
+     */
+    private static final class ImmediateTransport implements HttpTransport {
+        @Override
+        public Endpoint endpoint(final URI endpointUri) {
+            return new Endpoint() {
+                @Override
+                public void send(
+                        final RequestMethod method,
+                        final ClientRequest template,
+                        final ClientRequest request,
+                        final Subscriber<? super ClientResponse> subscriber) {
+                    // Real transports register a way to cancel the request:
+                    subscriber.add(Subscriptions.empty());
+                    subscriber.onNext(new ClientResponse(
+                            200,
+                            new InBoundHeaders(),
+                            new ByteArrayInputStream(EMPTY_BODY),
+                            null));
+                    subscriber.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public MessageBodyWorkers getMessageBodyWorkers() {
+            return null;
+        }
+    }
+
+
+    private static final class ConsumingSubscriber extends Subscriber<ClientResponse> {
+        private final Blackhole blackhole;
+
+        public ConsumingSubscriber(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            this.blackhole.consume(response.getStatus());
+        }
+
+        @Override
+        public void onCompleted() {
+            this.blackhole.consume(true);
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.blackhole.consume(error);
+        }
+    }
+
+}
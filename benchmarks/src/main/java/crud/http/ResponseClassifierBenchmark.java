@@ -0,0 +1,99 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import crud.http.util.ResponseClassifier;
+
+
+/**
+ * Compares classifying responses with a {@link ResponseClassifier} to
+ * looking their statuses up in a set of boxed {@link Integer}s, as
+ * {@code FailedResponseOperator} once did. The {@code gc.alloc.rate.norm}
+ * that {@link BenchmarkMain} reports shows that the classifier allocates
+ * nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseClassifierBenchmark {
+
+    private static final int[] STATUSES = { 200, 201, 204, 304, 404, 429, 500, 503 };
+
+    private final ImmutableSet<Integer> serverErrors = ContiguousSet.create(
+            Range.closed(500, 599),
+            DiscreteDomain.integers());
+    private final ResponseClassifier classifier = ResponseClassifier.standard();
+    private ClientResponse[] responses;
+
+
+    @Setup
+    public void setup() {
+        this.responses = new ClientResponse[STATUSES.length];
+        for (int i = 0; i < STATUSES.length; ++i) {
+            this.responses[i] = new ClientResponse(
+                    STATUSES[i],
+                    new InBoundHeaders(),
+                    new ByteArrayInputStream(new byte[0]),
+                    null);
+        }
+    }
+
+    /**
+     * The old approach: {@code getStatus()} is boxed for each lookup, and
+     * statuses above 127 aren't in the {@link Integer} cache.
+     */
+    @Benchmark
+    public void boxedSetContains(final Blackhole blackhole) {
+        for (final ClientResponse response : this.responses) {
+            blackhole.consume(this.serverErrors.contains(response.getStatus()));
+        }
+    }
+
+    /**
+     * Find all categories of each response in a single table lookup.
+     */
+    @Benchmark
+    public void classify(final Blackhole blackhole) {
+        for (final ClientResponse response : this.responses) {
+            blackhole.consume(this.classifier.classify(response));
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.util.concurrent.Futures;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import crud.http.util.FailedResponseOperator;
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Measures the Observable plumbing around a response, with no network I/O:
+ * {@link ResponseListener} completion, the {@link ClientResponseCloser}
+ * lift that every {@link HttpResource} action applies, and the optional
+ * {@link FailedResponseOperator} lift that applications add on top.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponsePipelineBenchmark {
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    @Param({ "200", "503" })
+    public int status;
+
+
+    @Benchmark
+    public void listenerOnly(final Blackhole blackhole) {
+        ResponseListener.adapt(new ConsumingSubscriber(blackhole)).onComplete(completedFuture());
+    }
+
+    @Benchmark
+    public void closer(final Blackhole blackhole) {
+        respond()
+            .lift(ClientResponseCloser.instance())
+            .subscribe(new ConsumingSubscriber(blackhole));
+    }
+
+    @Benchmark
+    public void closerAndServerErrors(final Blackhole blackhole) {
+        respond()
+            .lift(ClientResponseCloser.instance())
+            .lift(FailedResponseOperator.serverErrors())
+            .subscribe(new ConsumingSubscriber(blackhole));
+    }
+
+    /**
+     * Emit a response in the same way that {@link HttpResource} does: by
+     * completing a {@link ResponseListener}.
+     */
+    private Observable<ClientResponse> respond() {
+        return Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> subscriber) {
+                ResponseListener.adapt(subscriber).onComplete(completedFuture());
+            }
+        });
+    }
+
+    private Future<ClientResponse> completedFuture() {
+        return Futures.immediateFuture(new ClientResponse(
+                this.status,
+                new InBoundHeaders(),
+                new ByteArrayInputStream(EMPTY_BODY),
+                null));
+    }
+
+
+    private static final class ConsumingSubscriber extends Subscriber<ClientResponse> {
+        private final Blackhole blackhole;
+
+        public ConsumingSubscriber(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            this.blackhole.consume(response.getStatus());
+        }
+
+        @Override
+        public void onCompleted() {
+            this.blackhole.consume(true);
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.blackhole.consume(error);
+        }
+    }
+
+}
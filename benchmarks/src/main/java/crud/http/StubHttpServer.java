@@ -0,0 +1,125 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A minimal in-process HTTP server, bound to the loopback interface, that
+ * answers every request with a canned response. {@code GET} returns a fixed
+ * body; {@code PUT} and {@code POST} drain the request entity and return it
+ * unchanged; {@code DELETE} returns {@code 204 No Content}. It exists so that
+ * benchmarks measure the client, not the network or a real service.
+ */
+public final class StubHttpServer implements AutoCloseable {
+
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_NO_CONTENT = 204;
+    private static final int NO_RESPONSE_BODY = -1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] responseBody;
+
+
+    /**
+     * Start a new server on an ephemeral port, which will respond to
+     * {@code GET} requests with a body of the given length.
+     */
+    public static StubHttpServer start(final int responseBodyLength, final int threads)
+    throws IOException {
+        final byte[] body = new byte[responseBodyLength];
+        Arrays.fill(body, (byte) 'x');
+        return new StubHttpServer(body, threads);
+    }
+
+    public URI getBaseUri() {
+        final InetSocketAddress address = this.server.getAddress();
+        return URI.create("http://" + address.getHostString() + ':' + address.getPort() + '/');
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private StubHttpServer(final byte[] responseBody, final int threads) throws IOException {
+        this.responseBody = responseBody;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new CannedResponseHandler());
+        this.server.start();
+    }
+
+
+    private final class CannedResponseHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                final String method = exchange.getRequestMethod();
+                if ("GET".equals(method)) {
+                    respond(exchange, StubHttpServer.this.responseBody);
+                } else if ("DELETE".equals(method)) {
+                    drain(exchange.getRequestBody());
+                    exchange.sendResponseHeaders(STATUS_NO_CONTENT, NO_RESPONSE_BODY);
+                } else {
+                    respond(exchange, drain(exchange.getRequestBody()));
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void respond(final HttpExchange exchange, final byte[] body) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if (body.length == 0) {
+                exchange.sendResponseHeaders(STATUS_OK, NO_RESPONSE_BODY);
+                return;
+            }
+            exchange.sendResponseHeaders(STATUS_OK, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private byte[] drain(final InputStream in) throws IOException {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                result.write(buffer, 0, n);
+            }
+            return result.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+
+/**
+ * A counterpart to {@link StubHttpServer} that speaks cleartext HTTP/2
+ * ("h2c") as well as HTTP/1.1 on the same port, so that HTTP/1.1 and HTTP/2
+ * clients can be compared against the same server. It responds the same
+ * way: {@code GET} returns a fixed body, {@code PUT} and {@code POST} echo
+ * the request entity, and {@code DELETE} returns {@code 204 No Content}.
+ * It also counts the connections that clients open, which is the resource
+ * that HTTP/2 multiplexing saves.
+ */
+public final class StubH2cServer implements AutoCloseable {
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final ConnectionStatistics connectionStats = new ConnectionStatistics();
+    private final byte[] responseBody;
+
+
+    /**
+     * Start a new server on an ephemeral port, which will respond to
+     * {@code GET} requests with a body of the given length.
+     */
+    public static StubH2cServer start(final int responseBodyLength) throws Exception {
+        final byte[] body = new byte[responseBodyLength];
+        Arrays.fill(body, (byte) 'x');
+        final StubH2cServer server = new StubH2cServer(body);
+        server.server.start();
+        return server;
+    }
+
+    public URI getBaseUri() {
+        return URI.create("http://127.0.0.1:" + this.connector.getLocalPort() + '/');
+    }
+
+    /**
+     * The number of connections that clients have opened to this server
+     * since it started.
+     */
+    public long getConnectionsOpened() {
+        return this.connectionStats.getConnectionsTotal();
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.server.stop();
+    }
+
+    private StubH2cServer(final byte[] responseBody) {
+        this.responseBody = responseBody;
+        this.server = new Server();
+        final HttpConfiguration config = new HttpConfiguration();
+        this.connector = new ServerConnector(
+                this.server,
+                new HttpConnectionFactory(config),
+                new HTTP2CServerConnectionFactory(config));
+        this.connector.setHost("127.0.0.1");
+        this.connector.setPort(0);
+        this.connector.addBean(this.connectionStats);
+        this.server.addConnector(this.connector);
+        this.server.setHandler(new StubHandler());
+    }
+
+
+    private final class StubHandler extends AbstractHandler {
+        @Override
+        public void handle(
+                final String target,
+                final Request baseRequest,
+                final HttpServletRequest request,
+                final HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            switch (request.getMethod()) {
+                case "GET":
+                    respond(response, StubH2cServer.this.responseBody, StubH2cServer.this.responseBody.length);
+                    break;
+                case "PUT":
+                case "POST":
+                    final byte[] buffer = new byte[Math.max(request.getContentLength(), 0)];
+                    int length = 0;
+                    try (InputStream in = request.getInputStream()) {
+                        int n;
+                        while (length < buffer.length
+                                && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                            length += n;
+                        }
+                    }
+                    respond(response, buffer, length);
+                    break;
+                default:
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    break;
+            }
+        }
+
+        private void respond(final HttpServletResponse response, final byte[] body, final int length)
+        throws IOException {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/octet-stream");
+            response.setContentLength(length);
+            try (OutputStream out = response.getOutputStream()) {
+                out.write(body, 0, length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+
+/**
+ * Compares {@link JerseyTransport}, {@link JdkHttpTransport}, and
+ * {@link NettyTransport} on fan-out reads and updates: each operation
+ * issues {@code fanOut} concurrent requests against a {@link StubH2cServer}
+ * and waits for all of them. The Jersey and Netty transports speak
+ * HTTP/1.1, so they need a connection per request in flight, though Netty
+ * keeps them open and needs no thread for each; the JDK client upgrades to
+ * HTTP/2 and multiplexes them. The number of connections opened during
+ * each trial is printed at tear-down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final Func1<ClientResponse, Integer> toStatus = new Func1<ClientResponse, Integer>() {
+        @Override
+        public Integer call(final ClientResponse response) {
+            return response.getStatus();
+        }
+    };
+
+    @Param({ "jersey", "jdk", "netty" })
+    public String transport;
+
+    @Param({ "1", "64" })
+    public int fanOut;
+
+    private StubH2cServer server;
+    private Client client;
+    private HttpTransport httpTransport;
+    private List<HttpResource> resources;
+    private ClientRequest entityRequest;
+
+
+    @Setup
+    public void setup() throws Exception {
+        this.server = StubH2cServer.start(1024);
+        this.client = Client.create();
+        switch (this.transport) {
+            case "jdk":
+                this.httpTransport = JdkHttpTransport.create(
+                        java.net.http.HttpClient.newBuilder()
+                            .version(java.net.http.HttpClient.Version.HTTP_2)
+                            .build(),
+                        this.client.getMessageBodyWorkers());
+                break;
+            case "netty":
+                this.httpTransport = NettyTransport.newBuilder()
+                        .messageBodyWorkers(this.client.getMessageBodyWorkers())
+                        .build();
+                break;
+            default:
+                this.httpTransport = JerseyTransport.forClient(this.client);
+                break;
+        }
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.httpTransport)
+                .requestTemplate(ClientRequest.newBuilder()
+                        .acceptedMediaType(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                        .build())
+                .build();
+        this.resources = new ArrayList<>(this.fanOut);
+        for (int i = 0; i < this.fanOut; ++i) {
+            this.resources.add(provider.get(this.server.getBaseUri().resolve("resource/" + i)));
+        }
+        this.entityRequest = ClientRequest.newBuilder()
+                .entity(new byte[1024], MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.println();
+        System.out.println("Connections opened (" + this.transport + ", fanOut=" + this.fanOut + "): "
+                + this.server.getConnectionsOpened());
+        if (this.httpTransport instanceof NettyTransport) {
+            ((NettyTransport) this.httpTransport).close();
+        }
+        this.client.destroy();
+        this.server.close();
+    }
+
+    @Benchmark
+    public int fanOutGet() {
+        final List<Observable<Integer>> responses = new ArrayList<>(this.fanOut);
+        for (final HttpResource resource : this.resources) {
+            responses.add(resource.get().map(toStatus));
+        }
+        return Observable.merge(responses).count().toBlocking().single();
+    }
+
+    @Benchmark
+    public int fanOutUpdate() {
+        final List<Observable<Integer>> responses = new ArrayList<>(this.fanOut);
+        for (final HttpResource resource : this.resources) {
+            responses.add(resource.update(this.entityRequest).map(toStatus));
+        }
+        return Observable.merge(responses).count().toBlocking().single();
+    }
+
+}
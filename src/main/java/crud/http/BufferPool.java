@@ -0,0 +1,462 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+
+/**
+ * Lends out byte arrays for reading response bodies and serializing
+ * request entities, and takes them back when they are no longer needed, so
+ * that a busy client doesn't allocate new arrays for every request.
+ *
+ * Arrays come in power-of-two size classes, from a minimum to a maximum
+ * size. Each thread keeps a few arrays of each class up to 64 KB for
+ * itself, so that most requests take and return them without contention;
+ * beyond that, and for larger classes, arrays overflow to a bounded pool
+ * shared by all threads, and beyond that, they are left to the garbage
+ * collector. Requests for more than the
+ * maximum size get new arrays, which are never pooled.
+ *
+ * With leak detection on, the pool remembers where each array was taken,
+ * and reports any that are collected without having been returned. This
+ * costs a stack trace per array, so it is on by default only when
+ * assertions are enabled, as they usually are in tests.
+ *
+ * @see HttpResourceProvider.Builder#bufferPool(BufferPool)
+ * @see NettyTransport.Builder#bufferPool(BufferPool)
+ */
+public final class BufferPool {
+
+    /**
+     * Larger arrays are only kept in the shared pool, to bound the memory
+     * held by idle threads.
+     */
+    private static final int MAX_THREAD_LOCAL_SIZE = 64 * 1024;
+
+    private final int minSize;
+    private final int classCount;
+    private final int threadLocalClassCount;
+    private final int threadLocalCapacity;
+    private final ArrayBlockingQueue<byte[]>[] shared;
+    private final ThreadLocal<byte[][][]> local = new ThreadLocal<byte[][][]>() {
+        @Override
+        protected byte[][][] initialValue() {
+            final byte[][][] stacks = new byte[BufferPool.this.threadLocalClassCount][][];
+            for (int i = 0; i < stacks.length; ++i) {
+                stacks[i] = new byte[BufferPool.this.threadLocalCapacity][];
+            }
+            return stacks;
+        }
+    };
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    /** Null if leak detection is off. */
+    private final LeakDetector leakDetector;
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * The number of arrays that the pool has had to allocate, because none
+     * of the right size was free, including those too large to pool.
+     */
+    public long getAllocatedCount() {
+        return this.allocated.get();
+    }
+
+    /**
+     * The number of arrays that have been collected without being returned
+     * to the pool. Always zero if leak detection is off.
+     */
+    public long getLeakCount() {
+        return (this.leakDetector != null) ? this.leakDetector.getLeakCount() : 0L;
+    }
+
+    /**
+     * Where the most recently detected leaked array was taken from the
+     * pool, if any leak has been detected.
+     */
+    public Optional<Throwable> getLastLeak() {
+        return (this.leakDetector != null)
+                ? this.leakDetector.getLastLeak()
+                : Optional.<Throwable>absent();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [minSize=" + this.minSize
+                + ", maxSize=" + maxSize()
+                + ", allocated=" + getAllocatedCount()
+                + ", leaks=" + getLeakCount()
+                + ']';
+    }
+
+    /**
+     * Borrow an array of at least the given length. It may be longer.
+     */
+    /*package*/ byte[] acquire(final int length) {
+        final int index = classIndex(length);
+        byte[] array = null;
+        if (index < this.classCount) {
+            if (index < this.threadLocalClassCount) {
+                array = pop(this.local.get()[index]);
+            }
+            if (array == null) {
+                array = this.shared[index].poll();
+            }
+        }
+        if (array == null) {
+            this.allocated.incrementAndGet();
+            array = new byte[(index < this.classCount) ? classSize(index) : length];
+        }
+        if (this.leakDetector != null && index < this.classCount) {
+            this.leakDetector.track(array);
+        }
+        return array;
+    }
+
+    /**
+     * Return an array obtained from {@link #acquire(int)}. It must not be
+     * used again by the caller. Arrays too large to pool are ignored.
+     *
+     * @throws IllegalStateException    If leak detection is on, and the
+     *              array is not currently on loan from this pool.
+     */
+    /*package*/ void release(final byte[] array) {
+        final int index = classIndex(array.length);
+        if (index >= this.classCount || classSize(index) != array.length) {
+            return;
+        }
+        if (this.leakDetector != null) {
+            this.leakDetector.untrack(array);
+        }
+        if (index >= this.threadLocalClassCount || !push(this.local.get()[index], array)) {
+            this.shared[index].offer(array);
+        }
+    }
+
+    /**
+     * @return  The index of the smallest class at least as large as the
+     *          given length; {@link #classCount} or more if there is none.
+     */
+    private int classIndex(final int length) {
+        if (length <= this.minSize) {
+            return 0;
+        }
+        final int units = (length - 1) / this.minSize;
+        return Integer.SIZE - Integer.numberOfLeadingZeros(units);
+    }
+
+    private int classSize(final int index) {
+        return this.minSize << index;
+    }
+
+    private int maxSize() {
+        return classSize(this.classCount - 1);
+    }
+
+    private static byte[] pop(final byte[][] stack) {
+        for (int i = stack.length - 1; i >= 0; --i) {
+            final byte[] array = stack[i];
+            if (array != null) {
+                stack[i] = null;
+                return array;
+            }
+        }
+        return null;
+    }
+
+    private static boolean push(final byte[][] stack, final byte[] array) {
+        for (int i = 0; i < stack.length; ++i) {
+            if (stack[i] == null) {
+                stack[i] = array;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private BufferPool(final Builder builder) {
+        this.minSize = builder.minSize;
+        this.classCount = Integer.numberOfTrailingZeros(builder.maxSize / builder.minSize) + 1;
+        this.threadLocalClassCount = Math.min(this.classCount, classIndex(MAX_THREAD_LOCAL_SIZE) + 1);
+        this.threadLocalCapacity = builder.threadLocalCapacity;
+        this.shared = new ArrayBlockingQueue[this.classCount];
+        for (int i = 0; i < this.classCount; ++i) {
+            this.shared[i] = new ArrayBlockingQueue<>(builder.sharedCapacity);
+        }
+        this.leakDetector = builder.leakDetection ? new LeakDetector() : null;
+    }
+
+
+    public static final class Builder {
+        private int minSize = 4 * 1024;
+        private int maxSize = 1024 * 1024;
+        private int threadLocalCapacity = 4;
+        private int sharedCapacity = 64;
+        private boolean leakDetection = BufferPool.class.desiredAssertionStatus();
+
+        /**
+         * The smallest size class, which must be a power of two. The
+         * default is 4 KB.
+         *
+         * @throws IllegalArgumentException If the size is not a positive
+         *              power of two.
+         */
+        public Builder minSize(final int size) {
+            if (size <= 0 || Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("min size " + size + " is not a power of two");
+            }
+            this.minSize = size;
+            return this;
+        }
+
+        /**
+         * The largest size class, which must be a power of two. Larger
+         * arrays are not pooled. The default is 1 MB.
+         *
+         * @throws IllegalArgumentException If the size is not a positive
+         *              power of two.
+         */
+        public Builder maxSize(final int size) {
+            if (size <= 0 || Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("max size " + size + " is not a power of two");
+            }
+            this.maxSize = size;
+            return this;
+        }
+
+        /**
+         * The number of arrays of each size that each thread keeps for
+         * itself. The default is 4.
+         *
+         * @throws IllegalArgumentException If the number is negative.
+         */
+        public Builder threadLocalCapacity(final int capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("negative capacity " + capacity);
+            }
+            this.threadLocalCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * The number of arrays of each size kept in the pool that all
+         * threads share. The default is 64.
+         *
+         * @throws IllegalArgumentException If the number is not positive.
+         */
+        public Builder sharedCapacity(final int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("non-positive capacity " + capacity);
+            }
+            this.sharedCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Whether to report arrays that are never returned. By default,
+         * only if assertions are enabled for this class.
+         */
+        public Builder leakDetection(final boolean detect) {
+            this.leakDetection = detect;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException    If the maximum size is smaller
+         *              than the minimum.
+         */
+        public BufferPool build() {
+            if (this.maxSize < this.minSize) {
+                throw new IllegalStateException(
+                        "max size " + this.maxSize + " < min size " + this.minSize);
+            }
+            return new BufferPool(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    /**
+     * An {@link OutputStream} that writes into borrowed arrays, trading
+     * each for one of the next size class as it fills. The caller must
+     * {@link #release()} the last one.
+     */
+    /*package*/ static final class PooledOutputStream extends OutputStream {
+        private final BufferPool pool;
+        private byte[] array;
+        private int size = 0;
+
+        public PooledOutputStream(final BufferPool pool) {
+            this.pool = pool;
+            this.array = pool.acquire(1);
+        }
+
+        /**
+         * The array holding the bytes written so far, from index zero up
+         * to {@link #size()}.
+         */
+        public byte[] array() {
+            return this.array;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public void write(final int b) {
+            ensureCapacity(this.size + 1);
+            this.array[this.size++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) {
+            ensureCapacity(this.size + length);
+            System.arraycopy(bytes, offset, this.array, this.size, length);
+            this.size += length;
+        }
+
+        /**
+         * Read the rest of the given stream into this one, directly into
+         * the borrowed arrays.
+         */
+        public void readFrom(final InputStream in) throws IOException {
+            while (true) {
+                if (this.size == this.array.length) {
+                    ensureCapacity(this.size + 1);
+                }
+                final int count = in.read(this.array, this.size, this.array.length - this.size);
+                if (count < 0) {
+                    return;
+                }
+                this.size += count;
+            }
+        }
+
+        /**
+         * Return the array to the pool. The stream must not be used
+         * afterward.
+         */
+        public void release() {
+            if (this.array != null) {
+                this.pool.release(this.array);
+                this.array = null;
+            }
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity < 0) {
+                throw new OutOfMemoryError("entity larger than 2 GB");
+            }
+            if (capacity > this.array.length) {
+                final int newLength = Math.max(capacity, (int) Math.min(2L * this.array.length, Integer.MAX_VALUE));
+                final byte[] larger = this.pool.acquire(newLength);
+                System.arraycopy(this.array, 0, larger, 0, this.size);
+                this.pool.release(this.array);
+                this.array = larger;
+            }
+        }
+    }
+
+
+    /**
+     * Tracks each array on loan with a weak reference, which the garbage
+     * collector enqueues if the array is collected before it is returned.
+     * The references themselves are held until then, since one that is
+     * no longer reachable is never enqueued.
+     */
+    private static final class LeakDetector {
+        private final ReferenceQueue<byte[]> collected = new ReferenceQueue<>();
+        /** Identity-keyed, since the keys are weak. */
+        private final ConcurrentMap<byte[], Loan> loans = new MapMaker().weakKeys().makeMap();
+        private final Set<Loan> outstanding = Sets.newConcurrentHashSet();
+        private final AtomicLong leaks = new AtomicLong();
+        private final AtomicReference<Throwable> lastLeak = new AtomicReference<>();
+
+        public void track(final byte[] array) {
+            expunge();
+            final Loan loan = new Loan(array, this.collected);
+            this.outstanding.add(loan);
+            this.loans.put(array, loan);
+        }
+
+        public void untrack(final byte[] array) {
+            final Loan loan = this.loans.remove(array);
+            if (loan == null) {
+                throw new IllegalStateException(
+                        "array of length " + array.length + " is not on loan from this pool");
+            }
+            this.outstanding.remove(loan);
+            loan.clear();
+            // Make any use after return show up in tests:
+            Arrays.fill(array, (byte) 0);
+        }
+
+        public long getLeakCount() {
+            expunge();
+            return this.leaks.get();
+        }
+
+        public Optional<Throwable> getLastLeak() {
+            expunge();
+            return Optional.fromNullable(this.lastLeak.get());
+        }
+
+        private void expunge() {
+            for (Loan loan = (Loan) this.collected.poll(); loan != null; loan = (Loan) this.collected.poll()) {
+                this.outstanding.remove(loan);
+                this.leaks.incrementAndGet();
+                this.lastLeak.set(loan.acquisition);
+            }
+        }
+    }
+
+
+    private static final class Loan extends WeakReference<byte[]> {
+        public final Throwable acquisition;
+
+        public Loan(final byte[] array, final ReferenceQueue<byte[]> queue) {
+            super(array, queue);
+            this.acquisition = new Throwable(
+                    "buffer of length " + array.length + " was taken here and never returned");
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.google.common.io.ByteStreams;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+
+/**
+ * An immutable, in-memory copy of a {@link ClientResponse}: its status, its
+ * headers, and its entire entity body. Unlike a {@code ClientResponse},
+ * which can be read only once and must be closed, a buffered response can
+ * produce any number of independent {@code ClientResponse}s, each of which
+ * reads the same bytes.
+ */
+/*package*/ final class BufferedResponse {
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final int status;
+    private final InBoundHeaders headers;
+    private final byte[] body;
+    private final MessageBodyWorkers workers;
+
+
+    /**
+     * Read the whole entity body of the given response into memory. The
+     * response itself is not closed; that is the responsibility of the
+     * caller, as usual.
+     *
+     * @param workers   The Jersey entity providers that will be used to
+     *          decode the bodies of the responses returned by
+     *          {@link #newResponse()}. May be null, in which case only
+     *          {@link ClientResponse#getEntityInputStream()} will work.
+     */
+    public static BufferedResponse buffer(
+            final ClientResponse response,
+            final MessageBodyWorkers workers) throws IOException {
+        final byte[] body;
+        if (response.hasEntity()) {
+            try (InputStream entity = response.getEntityInputStream()) {
+                body = ByteStreams.toByteArray(entity);
+            }
+        } else {
+            body = EMPTY_BODY;
+        }
+        return new BufferedResponse(
+                response.getStatus(),
+                copyOf(response.getHeaders()),
+                body,
+                workers);
+    }
+
+    /**
+     * Create a new {@link ClientResponse} with the status, headers, and
+     * body of this buffered response. It holds no network resources, so
+     * closing it is harmless but unnecessary.
+     */
+    public ClientResponse newResponse() {
+        return new ClientResponse(
+                this.status,
+                copyOf(this.headers),
+                new ByteArrayInputStream(this.body),
+                this.workers);
+    }
+
+    /**
+     * @return  A new buffered response with the same status and body as
+     *          this one, and with the same headers, except that those named
+     *          in the given headers are replaced. This is the update required
+     *          of a cache by a {@code 304 Not Modified} response.
+     */
+    public BufferedResponse withHeadersReplaced(final MultivaluedMap<String, String> updates) {
+        final InBoundHeaders newHeaders = copyOf(this.headers);
+        for (final Map.Entry<String, List<String>> entry : updates.entrySet()) {
+            newHeaders.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return new BufferedResponse(this.status, newHeaders, this.body, this.workers);
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return  The first value of the named header, or null if there is
+     *          none. Header names are not case-sensitive.
+     */
+    public String getFirstHeader(final String name) {
+        return this.headers.getFirst(name);
+    }
+
+    public int getBodyLength() {
+        return this.body.length;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [status=" + this.status
+                + ", headers=" + this.headers
+                + ", bodyLength=" + this.body.length
+                + ']';
+    }
+
+    private static InBoundHeaders copyOf(final MultivaluedMap<String, String> headers) {
+        final InBoundHeaders copy = new InBoundHeaders();
+        for (final Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private BufferedResponse(
+            final int status,
+            final InBoundHeaders headers,
+            final byte[] body,
+            final MessageBodyWorkers workers) {
+        this.status = status;
+        this.headers = Objects.requireNonNull(headers);
+        this.body = Objects.requireNonNull(body);
+        this.workers = workers;
+    }
+
+}
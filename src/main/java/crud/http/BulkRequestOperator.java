@@ -0,0 +1,328 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+import rx.functions.Func1;
+import rx.subscriptions.CompositeSubscription;
+
+
+/**
+ * Sends a request for each element of a source {@link Observable}, with at
+ * most a fixed number outstanding at once, and emits a
+ * {@link BulkResponse} for each.
+ *
+ * A request occupies one of the {@code maxInFlight} slots from the time
+ * its element is requested from the source until its response has been
+ * delivered downstream, so that the source, the requests in flight, and the
+ * responses waiting for downstream demand or, in
+ * {@link BulkResponse.Order#REQUEST request order}, for earlier responses,
+ * are all bounded together. The source must respect backpressure; if it
+ * emits more elements than were requested, the result fails with a
+ * {@link MissingBackpressureException}.
+ */
+/*package*/ final class BulkRequestOperator<T> implements Observable.Operator<BulkResponse, T> {
+
+    private final Func1<? super T, URI> uriOf;
+    private final Func1<? super T, ? extends Observable<ClientResponse>> sender;
+    private final MessageBodyWorkers workers;
+    private final int maxInFlight;
+    private final BulkResponse.Order order;
+
+
+    /**
+     * @param uriOf     Gets the {@link URI} to which each source element
+     *                  is sent.
+     * @param sender    Sends the request for each source element.
+     * @param workers   Decode the entities of the in-memory responses.
+     *                  May be null.
+     *
+     * @throws IllegalArgumentException If {@code maxInFlight} is not
+     *              positive.
+     */
+    public BulkRequestOperator(
+            final Func1<? super T, URI> uriOf,
+            final Func1<? super T, ? extends Observable<ClientResponse>> sender,
+            final MessageBodyWorkers workers,
+            final int maxInFlight,
+            final BulkResponse.Order order) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("non-positive max in flight " + maxInFlight);
+        }
+        this.uriOf = uriOf;
+        this.sender = sender;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        this.order = order;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super BulkResponse> child) {
+        final Bulk bulk = new Bulk(child);
+        child.add(bulk.source);
+        child.add(bulk.requests);
+        child.setProducer(bulk);
+        return bulk.source;
+    }
+
+
+    /**
+     * The state of a single subscription. Responses are delivered to the
+     * child by whichever thread finds the others not doing so already.
+     */
+    private final class Bulk implements Producer {
+        private final Subscriber<? super BulkResponse> child;
+        private final SourceSubscriber source = new SourceSubscriber(this);
+        private final CompositeSubscription requests = new CompositeSubscription();
+
+        /** For {@link BulkResponse.Order#COMPLETION}. */
+        private final Queue<BulkResponse> completed;
+        /** For {@link BulkResponse.Order#REQUEST}, indexed modulo {@code maxInFlight}. */
+        private final AtomicReferenceArray<BulkResponse> reorderBuffer;
+
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger drainers = new AtomicInteger();
+        /** The number of elements received from the source. */
+        private volatile long received = 0L;
+        /** The number of responses emitted to the child. */
+        private volatile long emitted = 0L;
+        private volatile boolean sourceDone = false;
+        private volatile Throwable sourceError = null;
+        private boolean terminated = false;
+
+        public Bulk(final Subscriber<? super BulkResponse> child) {
+            this.child = child;
+            if (order == BulkResponse.Order.REQUEST) {
+                this.completed = null;
+                this.reorderBuffer = new AtomicReferenceArray<>(maxInFlight);
+            } else {
+                this.completed = new ConcurrentLinkedQueue<>();
+                this.reorderBuffer = null;
+            }
+            this.source.requestMore(maxInFlight);
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0L) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = this.requested.get();
+                next = current + n;
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!this.requested.compareAndSet(current, next));
+            drain();
+        }
+
+        public void onSourceNext(final T element) {
+            final long index = this.received;
+            if (index - this.emitted >= maxInFlight) {
+                onSourceError(new MissingBackpressureException(
+                        "source emitted more than " + maxInFlight + " unanswered elements"));
+                return;
+            }
+            this.received = index + 1;
+
+            final URI uri = uriOf.call(element);
+            final ResponseSubscriber response = new ResponseSubscriber(this, uri, index);
+            this.requests.add(response);
+            final Observable<ClientResponse> request;
+            try {
+                request = sender.call(element);
+            } catch (final RuntimeException ex) {
+                response.onError(ex);
+                return;
+            }
+            request.unsafeSubscribe(response);
+        }
+
+        public void onSourceCompleted() {
+            this.sourceDone = true;
+            drain();
+        }
+
+        public void onSourceError(final Throwable error) {
+            this.sourceError = error;
+            drain();
+        }
+
+        public void deliver(final ResponseSubscriber from, final BulkResponse response) {
+            this.requests.remove(from);
+            if (this.completed != null) {
+                this.completed.offer(response);
+            } else {
+                this.reorderBuffer.set(slotOf(response.getIndex()), response);
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (this.drainers.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (this.terminated) {
+                    return;
+                }
+                final Throwable error = this.sourceError;
+                if (error != null) {
+                    this.terminated = true;
+                    this.requests.unsubscribe();
+                    this.child.onError(error);
+                    return;
+                }
+
+                final long demand = this.requested.get();
+                final long first = this.emitted;
+                long next = first;
+                while (next - first < demand) {
+                    final BulkResponse response = poll(next);
+                    if (response == null) {
+                        break;
+                    }
+                    this.child.onNext(response);
+                    ++next;
+                }
+                final long count = next - first;
+                if (count > 0L) {
+                    if (demand != Long.MAX_VALUE) {
+                        this.requested.addAndGet(-count);
+                    }
+                    this.emitted = next;
+                    this.source.requestMore(count);
+                }
+
+                if (this.sourceDone && this.emitted == this.received) {
+                    this.terminated = true;
+                    this.child.onCompleted();
+                    return;
+                }
+                missed = this.drainers.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private BulkResponse poll(final long index) {
+            if (this.completed != null) {
+                return this.completed.poll();
+            }
+            final int slot = slotOf(index);
+            final BulkResponse response = this.reorderBuffer.get(slot);
+            if (response == null || response.getIndex() != index) {
+                return null;
+            }
+            this.reorderBuffer.set(slot, null);
+            return response;
+        }
+
+        private int slotOf(final long index) {
+            return (int) (index % maxInFlight);
+        }
+    }
+
+
+    private final class SourceSubscriber extends Subscriber<T> {
+        private final Bulk bulk;
+
+        public SourceSubscriber(final Bulk bulk) {
+            this.bulk = bulk;
+        }
+
+        @Override
+        public void onNext(final T element) {
+            this.bulk.onSourceNext(element);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.bulk.onSourceCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.bulk.onSourceError(error);
+        }
+
+        public void requestMore(final long n) {
+            request(n);
+        }
+    }
+
+
+    /**
+     * Reads the response to a single request into memory, before the
+     * request's {@link Observable} closes it.
+     */
+    private final class ResponseSubscriber extends Subscriber<ClientResponse> {
+        private final Bulk bulk;
+        private final URI uri;
+        private final long index;
+        private BulkResponse result = null;
+
+        public ResponseSubscriber(final Bulk bulk, final URI uri, final long index) {
+            this.bulk = bulk;
+            this.uri = uri;
+            this.index = index;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            if (this.result != null) {
+                return;
+            }
+            try {
+                final BufferedResponse buffered = BufferedResponse.buffer(response, workers);
+                this.result = BulkResponse.success(this.uri, this.index, buffered.newResponse());
+            } catch (final IOException ex) {
+                this.result = BulkResponse.failure(this.uri, this.index, ex);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            this.bulk.deliver(this, (this.result != null)
+                    ? this.result
+                    : BulkResponse.failure(this.uri, this.index, new NoSuchElementException("no response")));
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.bulk.deliver(this, (this.result != null)
+                    ? this.result
+                    : BulkResponse.failure(this.uri, this.index, error));
+        }
+    }
+
+}
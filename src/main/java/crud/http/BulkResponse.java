@@ -0,0 +1,125 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Objects;
+
+import com.google.common.base.Optional;
+import com.sun.jersey.api.client.ClientResponse;
+
+
+/**
+ * The outcome of one request among many sent by the bulk methods of
+ * {@link HttpResourceProvider}, such as
+ * {@link HttpResourceProvider#getAll(rx.Observable, int, Order)}. Each has
+ * either a response or an error: the failure of one request doesn't
+ * terminate the others.
+ *
+ * Responses have been read into memory, so that they can be delivered in
+ * any order, and on any thread, after the requests that produced them have
+ * completed. They need not be closed.
+ */
+public final class BulkResponse {
+
+    private final URI uri;
+    private final long index;
+    private final Optional<ClientResponse> response;
+    private final Optional<Throwable> error;
+
+
+    /**
+     * The order in which bulk methods deliver their responses.
+     */
+    public static enum Order {
+        /**
+         * Deliver each response as soon as it arrives.
+         */
+        COMPLETION,
+        /**
+         * Deliver responses in the order in which their requests were
+         * emitted by the source, holding early responses until all of
+         * those before them have been delivered.
+         */
+        REQUEST,
+    }
+
+
+    /*package*/ static BulkResponse success(
+            final URI uri,
+            final long index,
+            final ClientResponse response) {
+        return new BulkResponse(uri, index, Optional.of(response), Optional.<Throwable>absent());
+    }
+
+    /*package*/ static BulkResponse failure(
+            final URI uri,
+            final long index,
+            final Throwable error) {
+        return new BulkResponse(uri, index, Optional.<ClientResponse>absent(), Optional.of(error));
+    }
+
+    /**
+     * The {@link URI} to which the request was sent.
+     */
+    public URI getUri() {
+        return this.uri;
+    }
+
+    /**
+     * The zero-based position of the request in the source sequence.
+     */
+    public long getIndex() {
+        return this.index;
+    }
+
+    /**
+     * The response, if one was received. Note that it may nevertheless
+     * have an error status.
+     */
+    public Optional<ClientResponse> getResponse() {
+        return this.response;
+    }
+
+    /**
+     * The reason that no response was received, if it wasn't.
+     */
+    public Optional<Throwable> getError() {
+        return this.error;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [uri=" + this.uri
+                + ", index=" + this.index
+                + (this.response.isPresent()
+                        ? ", status=" + this.response.get().getStatus()
+                        : ", error=" + this.error.get())
+                + ']';
+    }
+
+    private BulkResponse(
+            final URI uri,
+            final long index,
+            final Optional<ClientResponse> response,
+            final Optional<Throwable> error) {
+        this.uri = Objects.requireNonNull(uri);
+        this.index = index;
+        this.response = response;
+        this.error = error;
+    }
+
+}
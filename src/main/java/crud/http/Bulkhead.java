@@ -0,0 +1,395 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableSet;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Func1;
+
+
+/**
+ * Limits the number of requests in flight to each host, or to each other
+ * partition of the {@link URI} space, so that a slow host can't occupy all
+ * of the threads and connections that requests to other hosts need.
+ * Requests beyond a partition's limit wait in a bounded queue, and start as
+ * earlier requests finish; if the queue is full, they fail immediately with
+ * a {@link RejectedExecutionException}.
+ *
+ * A request holds its slot from the time its {@link Observable} is
+ * subscribed until it completes, fails, or is unsubscribed. A request that
+ * is unsubscribed while it's waiting leaves the queue.
+ *
+ * @see HttpResourceProvider.Builder#bulkhead(Bulkhead)
+ */
+public final class Bulkhead {
+
+    /*package*/ static final Func1<URI, String> byHost = new Func1<URI, String>() {
+        @Override
+        public String call(final URI uri) {
+            final String scheme = uri.getScheme();
+            final int port = uri.getPort();
+            return (port < 0)
+                    ? scheme + "://" + uri.getHost()
+                    : scheme + "://" + uri.getHost() + ':' + port;
+        }
+    };
+
+    private final Func1<? super URI, String> partitioner;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+
+    /**
+     * Limit requests to each host, identified by the scheme, host, and
+     * port of their {@link URI}s.
+     *
+     * @param maxInFlight   The number of requests to each host that may be
+     *                      in flight at once.
+     * @param maxQueued     The number of further requests to each host
+     *                      that may wait for a slot. If zero, requests
+     *                      beyond the limit fail immediately.
+     *
+     * @throws IllegalArgumentException If {@code maxInFlight} is not
+     *              positive, or {@code maxQueued} is negative.
+     */
+    public static Bulkhead perHost(final int maxInFlight, final int maxQueued) {
+        return partitionedBy(byHost, maxInFlight, maxQueued);
+    }
+
+    /**
+     * Limit requests to each partition of the {@link URI} space, as
+     * identified by the given function; for example, a function that
+     * returns a prefix of the path would limit each service sharing a host
+     * separately.
+     *
+     * @see #perHost(int, int)
+     */
+    public static Bulkhead partitionedBy(
+            final Func1<? super URI, String> partitioner,
+            final int maxInFlight,
+            final int maxQueued) {
+        return new Bulkhead(partitioner, maxInFlight, maxQueued);
+    }
+
+    /**
+     * The partition to which requests to the given {@link URI} belong.
+     */
+    public String partitionOf(final URI uri) {
+        return this.partitioner.call(uri);
+    }
+
+    /**
+     * The partitions to which requests have been sent so far.
+     */
+    public Set<String> getPartitions() {
+        return ImmutableSet.copyOf(this.partitions.keySet());
+    }
+
+    /**
+     * The number of requests in flight now in the given partition.
+     */
+    public int getInFlight(final String partition) {
+        final Partition part = this.partitions.get(partition);
+        return (part == null) ? 0 : part.inFlight.get();
+    }
+
+    /**
+     * The number of requests now waiting for a slot in the given partition.
+     */
+    public int getQueueDepth(final String partition) {
+        final Partition part = this.partitions.get(partition);
+        return (part == null) ? 0 : part.queued.get();
+    }
+
+    /**
+     * The number of requests to the given partition that have failed
+     * because its queue was full.
+     */
+    public long getRejectedCount(final String partition) {
+        final Partition part = this.partitions.get(partition);
+        return (part == null) ? 0L : part.rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [maxInFlight=" + this.maxInFlight
+                + ", maxQueued=" + this.maxQueued
+                + ", partitions=" + this.partitions.keySet()
+                + ']';
+    }
+
+    /**
+     * Wrap the given action, which sends a request to the given
+     * {@link URI}, so that it only runs when its partition has a free
+     * slot.
+     */
+    /*package*/ <T> Observable.OnSubscribe<T> limit(
+            final URI uri,
+            final Observable.OnSubscribe<T> action) {
+        return new LimitedAction<>(partition(partitionOf(uri)), action);
+    }
+
+    private Partition partition(final String key) {
+        final Partition existing = this.partitions.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final Partition created = new Partition();
+        final Partition raced = this.partitions.putIfAbsent(key, created);
+        return (raced != null) ? raced : created;
+    }
+
+    private Bulkhead(
+            final Func1<? super URI, String> partitioner,
+            final int maxInFlight,
+            final int maxQueued) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("non-positive max in flight " + maxInFlight);
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("negative max queued " + maxQueued);
+        }
+        this.partitioner = Objects.requireNonNull(partitioner);
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+
+    private final class Partition {
+        public final AtomicInteger inFlight = new AtomicInteger();
+        public final AtomicInteger queued = new AtomicInteger();
+        public final AtomicLong rejected = new AtomicLong();
+        private final Queue<Slot<?>> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger draining = new AtomicInteger();
+
+        public boolean tryAcquire() {
+            int current;
+            do {
+                current = this.inFlight.get();
+                if (current >= maxInFlight) {
+                    return false;
+                }
+            } while (!this.inFlight.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        public boolean tryEnqueue(final Slot<?> slot) {
+            int current;
+            do {
+                current = this.queued.get();
+                if (current >= maxQueued) {
+                    this.rejected.incrementAndGet();
+                    return false;
+                }
+            } while (!this.queued.compareAndSet(current, current + 1));
+            if (!slot.enqueued()) {
+                // Unsubscribed before it could join the queue:
+                this.queued.decrementAndGet();
+                return true;
+            }
+            this.waiting.offer(slot);
+            // A slot may have been released before we were in the queue:
+            drain();
+            return true;
+        }
+
+        public void release() {
+            this.inFlight.decrementAndGet();
+            drain();
+        }
+
+        /**
+         * Start waiting requests while there are free slots. Only one
+         * thread drains at a time, so that a chain of requests that fail
+         * immediately doesn't recurse.
+         */
+        private void drain() {
+            if (this.draining.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!this.waiting.isEmpty() && tryAcquire()) {
+                    final Slot<?> next = this.waiting.poll();
+                    if (next == null || !next.start()) {
+                        // Cancelled, or another drainer took it:
+                        this.inFlight.decrementAndGet();
+                    }
+                }
+                missed = this.draining.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+
+    private static final class LimitedAction<T> implements Observable.OnSubscribe<T> {
+        private final Partition partition;
+        private final Observable.OnSubscribe<T> action;
+
+        public LimitedAction(final Partition partition, final Observable.OnSubscribe<T> action) {
+            this.partition = partition;
+            this.action = action;
+        }
+
+        @Override
+        public void call(final Subscriber<? super T> subscriber) {
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+            final Slot<T> slot = new Slot<>(this.partition, this.action, subscriber);
+            subscriber.add(slot);
+            if (this.partition.tryAcquire()) {
+                slot.startAcquired();
+            } else if (!this.partition.tryEnqueue(slot)) {
+                slot.reject();
+            }
+        }
+    }
+
+
+    /**
+     * A single request's claim on its partition. It moves from new to
+     * running, if a slot is free, or else to waiting, and then to running;
+     * and finally to released. Unsubscribing moves it directly to released
+     * from any state, undoing only what the state before it claimed.
+     */
+    private static final class Slot<T> extends AtomicInteger implements Subscription {
+        private static final long serialVersionUID = 1L;
+
+        private static final int NEW = 0;
+        private static final int WAITING = 1;
+        private static final int RUNNING = 2;
+        private static final int RELEASED = 3;
+
+        private final Partition partition;
+        private final Observable.OnSubscribe<T> action;
+        private final Subscriber<? super T> subscriber;
+
+        public Slot(
+                final Partition partition,
+                final Observable.OnSubscribe<T> action,
+                final Subscriber<? super T> subscriber) {
+            super(NEW);
+            this.partition = partition;
+            this.action = action;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Called by the queue's drainer, which has already acquired a slot
+         * on this request's behalf.
+         *
+         * @return  false if this request was unsubscribed while waiting.
+         */
+        public boolean start() {
+            if (!compareAndSet(WAITING, RUNNING)) {
+                return false;
+            }
+            this.partition.queued.decrementAndGet();
+            run();
+            return true;
+        }
+
+        /**
+         * Called when a slot was free as soon as this request was
+         * subscribed.
+         */
+        public void startAcquired() {
+            if (!compareAndSet(NEW, RUNNING)) {
+                // Unsubscribed meanwhile; give the slot back:
+                this.partition.release();
+                return;
+            }
+            run();
+        }
+
+        /**
+         * Called by {@link Partition#tryEnqueue(Slot)}, which has already
+         * counted this request as queued.
+         *
+         * @return  false if this request was unsubscribed first.
+         */
+        public boolean enqueued() {
+            return compareAndSet(NEW, WAITING);
+        }
+
+        /**
+         * Called when there was neither a free slot nor room in the queue.
+         */
+        public void reject() {
+            if (compareAndSet(NEW, RELEASED)) {
+                this.subscriber.onError(new RejectedExecutionException("bulkhead full"));
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            final int previous = getAndSet(RELEASED);
+            if (previous == RUNNING) {
+                this.partition.release();
+            } else if (previous == WAITING) {
+                this.partition.queued.decrementAndGet();
+                this.partition.waiting.remove(this);
+            }
+        }
+
+        @Override
+        public boolean isUnsubscribed() {
+            return get() == RELEASED;
+        }
+
+        private void run() {
+            if (this.subscriber.isUnsubscribed()) {
+                unsubscribe();
+                return;
+            }
+            this.action.call(new Subscriber<T>(this.subscriber) {
+                @Override
+                public void onNext(final T response) {
+                    Slot.this.subscriber.onNext(response);
+                }
+
+                @Override
+                public void onCompleted() {
+                    Slot.this.unsubscribe();
+                    Slot.this.subscriber.onCompleted();
+                }
+
+                @Override
+                public void onError(final Throwable error) {
+                    Slot.this.unsubscribe();
+                    Slot.this.subscriber.onError(error);
+                }
+            });
+        }
+    }
+
+}
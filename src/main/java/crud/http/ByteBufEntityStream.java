@@ -0,0 +1,114 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+
+
+/**
+ * A response entity that is still in the {@link ByteBuf} in which Netty
+ * received it, usually pooled direct memory. Reading it copies bytes out of
+ * the buffer; closing it releases the buffer back to its pool. Closing is
+ * idempotent, so that it is safe for both the entity decoder and
+ * {@link ClientResponseCloser} to do it.
+ *
+ * A direct buffer is written to a file without any copy on the heap.
+ */
+/*package*/ final class ByteBufEntityStream extends InputStream implements FileTransferable {
+
+    private final ByteBuf buffer;
+    private boolean released = false;
+
+
+    public ByteBufEntityStream(final ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * The buffer itself, for decoders that can read it without copying.
+     * It must not be used after this stream is closed.
+     */
+    public ByteBuf getBuffer() {
+        return this.buffer;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        checkOpen();
+        if (!this.buffer.isReadable()) {
+            return -1;
+        }
+        return this.buffer.readByte() & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(final byte[] bytes, final int offset, final int length)
+    throws IOException {
+        checkOpen();
+        if (length == 0) {
+            return 0;
+        }
+        final int readable = this.buffer.readableBytes();
+        if (readable == 0) {
+            return -1;
+        }
+        final int count = Math.min(length, readable);
+        this.buffer.readBytes(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(final long count) throws IOException {
+        checkOpen();
+        final int skipped = (int) Math.min(Math.max(count, 0L), this.buffer.readableBytes());
+        this.buffer.skipBytes(skipped);
+        return skipped;
+    }
+
+    @Override
+    public synchronized long transferTo(final FileChannel target) throws IOException {
+        checkOpen();
+        long total = 0L;
+        while (this.buffer.isReadable()) {
+            total += this.buffer.readBytes(target, this.buffer.readableBytes());
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        checkOpen();
+        return this.buffer.readableBytes();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!this.released) {
+            this.released = true;
+            this.buffer.release();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.released) {
+            throw new IOException("entity stream closed");
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.Collections;
+import java.util.Locale;
+
+
+/**
+ * The subset of the {@code Cache-Control} response directives, from
+ * RFC 7234 section 5.2.2, that matter to a private client-side cache.
+ */
+/*package*/ final class CacheDirectives {
+
+    public static final String CACHE_CONTROL = "Cache-Control";
+
+    private static final CacheDirectives none = new CacheDirectives(false, false, -1L);
+
+    private final boolean noStore;
+    private final boolean noCache;
+    private final long maxAgeSeconds;
+
+
+    /**
+     * @param headerValue   The value of a {@code Cache-Control} header,
+     *          or null if the header is absent.
+     */
+    public static CacheDirectives parse(final String headerValue) {
+        if (headerValue == null) {
+            return none;
+        }
+        return parse(Collections.singletonList(headerValue));
+    }
+
+    /**
+     * @param headerValues  All of the values of the {@code Cache-Control}
+     *          headers in a message, or null if there are none.
+     */
+    public static CacheDirectives parse(final Iterable<String> headerValues) {
+        if (headerValues == null) {
+            return none;
+        }
+        boolean noStore = false;
+        boolean noCache = false;
+        long maxAgeSeconds = -1L;
+        for (final String headerValue : headerValues) {
+            for (final String directive : headerValue.split(",")) {
+                final int equals = directive.indexOf('=');
+                final String name = (equals < 0 ? directive : directive.substring(0, equals))
+                        .trim()
+                        .toLowerCase(Locale.ROOT);
+                switch (name) {
+                    case "no-store":
+                        noStore = true;
+                        break;
+                    case "no-cache":
+                        noCache = true;
+                        break;
+                    case "max-age":
+                        if (equals >= 0) {
+                            maxAgeSeconds = parseSeconds(directive.substring(equals + 1));
+                        }
+                        break;
+                    default:
+                        // not relevant to a private cache
+                        break;
+                }
+            }
+        }
+        return new CacheDirectives(noStore, noCache, maxAgeSeconds);
+    }
+
+    public boolean isNoStore() {
+        return this.noStore;
+    }
+
+    public boolean isNoCache() {
+        return this.noCache;
+    }
+
+    /**
+     * @return  The value of the {@code max-age} directive, or a negative
+     *          number if there is none.
+     */
+    public long getMaxAgeSeconds() {
+        return this.maxAgeSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [noStore=" + this.noStore
+                + ", noCache=" + this.noCache
+                + ", maxAgeSeconds=" + this.maxAgeSeconds
+                + ']';
+    }
+
+    /**
+     * An invalid delta-seconds value is treated as zero, meaning stale, per
+     * RFC 7234 section 4.2.1.
+     */
+    private static long parseSeconds(final String value) {
+        String trimmed = value.trim();
+        if (trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+            trimmed = trimmed.substring(1, trimmed.length() - 1);
+        }
+        try {
+            return Math.max(0L, Long.parseLong(trimmed));
+        } catch (final NumberFormatException ex) {
+            return 0L;
+        }
+    }
+
+    private CacheDirectives(final boolean noStore, final boolean noCache, final long maxAgeSeconds) {
+        this.noStore = noStore;
+        this.noCache = noCache;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+}
@@ -0,0 +1,185 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Objects;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import crud.Resource;
+import crud.UpdatableResource;
+import crud.WritableResource;
+import rx.Observable;
+import rx.Observer;
+import rx.Subscriber;
+import rx.functions.Func1;
+
+
+/**
+ * A {@link Resource} that reads through the cache of a
+ * {@link CachingHttpResourceProvider}, and that invalidates the cache
+ * entry for its {@link URI} whenever it's written, updated, or deleted.
+ *
+ * @see CachingHttpResourceProvider
+ */
+public final class CachingHttpResource
+implements ReadableResource<ClientResponse>,
+           DeletableResource<ClientResponse>,
+           WritableResource<ClientRequest, ClientResponse>,
+           UpdatableResource<ClientRequest, ClientResponse> {
+
+    private final HttpResource delegate;
+    private final URI uri;
+    private final CachingHttpResourceProvider cache;
+
+
+    /**
+     * Emit a stored response, if a fresh one is available. Otherwise,
+     * request the resource from the origin server, conditionally if there's
+     * a stale response that can be revalidated, and store the result if
+     * possible.
+     */
+    @Override
+    public Observable<ClientResponse> get() {
+        return Observable.create(new CachingGetAction());
+    }
+
+    @Override
+    public Observable<ClientResponse> delete() {
+        return invalidating(this.delegate.delete());
+    }
+
+    @Override
+    public Observable<ClientResponse> write(final ClientRequest resourceState) {
+        return invalidating(this.delegate.write(resourceState));
+    }
+
+    @Override
+    public Observable<ClientResponse> update(final ClientRequest update) {
+        return invalidating(this.delegate.update(update));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [delegate=" + this.delegate
+                + ']';
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final CachingHttpResource other = (CachingHttpResource) obj;
+        if (!this.delegate.equals(other.delegate)) {
+            return false;
+        }
+        if (this.cache != other.cache) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + this.delegate.hashCode();
+        result = prime * result + System.identityHashCode(this.cache);
+        return result;
+    }
+
+    /*package*/ CachingHttpResource(
+            final HttpResource delegate,
+            final URI uri,
+            final CachingHttpResourceProvider cache) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.uri = Objects.requireNonNull(uri);
+        this.cache = Objects.requireNonNull(cache);
+    }
+
+    /**
+     * Invalidate the cache entry for this resource both before the request
+     * is sent, and again when the response arrives, in case a concurrent
+     * {@code GET} stored a response in between.
+     */
+    private Observable<ClientResponse> invalidating(final Observable<ClientResponse> response) {
+        final Observer<ClientResponse> invalidator = new Observer<ClientResponse>() {
+            @Override
+            public void onNext(final ClientResponse ignored) {
+                invalidate();
+            }
+
+            @Override
+            public void onCompleted() {
+                // already invalidated in onNext()
+            }
+
+            @Override
+            public void onError(final Throwable ignored) {
+                invalidate();
+            }
+        };
+        return Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> subscriber) {
+                invalidate();
+                response.doOnEach(invalidator).unsafeSubscribe(subscriber);
+            }
+        });
+    }
+
+    private void invalidate() {
+        this.cache.invalidate(this.uri);
+    }
+
+
+    private final class CachingGetAction implements Observable.OnSubscribe<ClientResponse> {
+        @Override
+        public void call(final Subscriber<? super ClientResponse> subscriber) {
+            final CachingHttpResourceProvider provider = CachingHttpResource.this.cache;
+            final URI key = CachingHttpResource.this.uri;
+            final CachingHttpResourceProvider.CachedResponse cached = provider.lookup(key);
+            if (cached != null && cached.isFresh(provider.now())) {
+                subscriber.onNext(cached.getResponse().newResponse());
+                subscriber.onCompleted();
+                return;
+            }
+
+            final Observable<ClientResponse> fromOrigin = (cached == null)
+                    ? CachingHttpResource.this.delegate.get()
+                    : CachingHttpResource.this.delegate.getConditionally(cached.getConditions());
+            fromOrigin
+                .map(new Func1<ClientResponse, ClientResponse>() {
+                    @Override
+                    public ClientResponse call(final ClientResponse response) {
+                        return provider.store(key, response, cached);
+                    }
+                })
+                .unsafeSubscribe(subscriber);
+        }
+    }
+
+}
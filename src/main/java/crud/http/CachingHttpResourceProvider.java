@@ -0,0 +1,339 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.reader.HttpHeaderReader;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+import crud.ResourceProvider;
+import crud.UpdatableResourceProvider;
+import crud.WritableResourceProvider;
+
+
+/**
+ * A {@link ResourceProvider} that decorates an {@link HttpResourceProvider}
+ * with a private HTTP cache, as described by RFC 7234. The bodies of
+ * cacheable {@code GET} responses are kept in memory, in a cache bounded by
+ * their total size in bytes, and evicted least-recently-used first.
+ * <ul>
+ *  <li>A fresh entry, as determined by the {@code Cache-Control: max-age}
+ *      or {@code Expires} response headers, is served without any network
+ *      I/O.</li>
+ *  <li>A stale entry with a validator (an {@code ETag} or
+ *      {@code Last-Modified} header) is revalidated with a conditional
+ *      {@code GET}, using {@code If-None-Match} or
+ *      {@code If-Modified-Since}. If the origin responds
+ *      {@code 304 Not Modified}, the stored body is served.</li>
+ *  <li>A {@code PUT}, {@code POST}, or {@code DELETE} through a resource
+ *      from this provider invalidates any entry for the same {@link URI}.</li>
+ * </ul>
+ *
+ * Responses served from the cache are backed by memory, not by a
+ * connection, so callers may read them in any way they like.
+ */
+public final class CachingHttpResourceProvider
+implements ReadableResourceProvider<URI, ClientResponse>,
+           DeletableResourceProvider<URI, ClientResponse>,
+           WritableResourceProvider<URI, ClientRequest, ClientResponse>,
+           UpdatableResourceProvider<URI, ClientRequest, ClientResponse> {
+
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_NOT_MODIFIED = 304;
+    private static final int MIN_SERVER_ERROR_STATUS_CODE = 500;
+
+    /**
+     * A rough estimate of the memory used by an entry apart from its body,
+     * so that many tiny responses cannot exceed the bound by much.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private final HttpResourceProvider delegate;
+    private final Cache<URI, CachedResponse> cache;
+    private final Ticker ticker;
+    private final MessageBodyWorkers workers;
+
+
+    /**
+     * Decorate the given provider with a cache that will hold no more than
+     * approximately the given number of bytes of response bodies.
+     */
+    public static CachingHttpResourceProvider wrap(
+            final HttpResourceProvider delegate,
+            final long maxCacheBytes) {
+        return new CachingHttpResourceProvider(delegate, maxCacheBytes, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    /*package*/ static CachingHttpResourceProvider wrap(
+            final HttpResourceProvider delegate,
+            final long maxCacheBytes,
+            final Ticker ticker) {
+        return new CachingHttpResourceProvider(delegate, maxCacheBytes, ticker);
+    }
+
+    @Override
+    public CachingHttpResource get(final URI uri) {
+        return new CachingHttpResource(this.delegate.get(uri), uri, this);
+    }
+
+    /**
+     * Discard any stored response for the given {@link URI}.
+     */
+    public void invalidate(final URI uri) {
+        this.cache.invalidate(uri);
+    }
+
+    /**
+     * Discard all stored responses.
+     */
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * @return  Hit, miss, and eviction counts for this cache. Requests that
+     *          are answered by a revalidation count as hits.
+     */
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [delegate=" + this.delegate
+                + ", size=" + this.cache.size()
+                + ']';
+    }
+
+    /**
+     * @return  The stored response for the given {@link URI}, or null if
+     *          there is none. The response may or may not be fresh.
+     */
+    /*package*/ CachedResponse lookup(final URI uri) {
+        return this.cache.getIfPresent(uri);
+    }
+
+    /*package*/ long now() {
+        return this.ticker.read();
+    }
+
+    /**
+     * Update the cache with the given response from the origin, and return
+     * the response that should be passed on to the application in its
+     * place.
+     *
+     * @param previous  The entry that was revalidated in order to obtain
+     *          the response, or null if the request was not conditional.
+     */
+    /*package*/ ClientResponse store(
+            final URI uri,
+            final ClientResponse response,
+            final CachedResponse previous) {
+        final long now = now();
+        final int status = response.getStatus();
+        if (status == STATUS_NOT_MODIFIED && previous != null) {
+            final CachedResponse refreshed = previous.revalidated(response, now);
+            this.cache.put(uri, refreshed);
+            return refreshed.getResponse().newResponse();
+        }
+        if (CachedResponse.isStorable(response)) {
+            final BufferedResponse buffered;
+            try {
+                buffered = BufferedResponse.buffer(response, this.workers);
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+            this.cache.put(uri, CachedResponse.create(buffered, now));
+            return buffered.newResponse();
+        }
+        if (status < MIN_SERVER_ERROR_STATUS_CODE) {
+            /* The origin has given a definitive answer that we can't store.
+             * On the other hand, a server error says nothing about whether
+             * the old entry is still good, so leave it for next time.
+             */
+            this.cache.invalidate(uri);
+        }
+        return response;
+    }
+
+    private CachingHttpResourceProvider(
+            final HttpResourceProvider delegate,
+            final long maxCacheBytes,
+            final Ticker ticker) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.ticker = Objects.requireNonNull(ticker);
+        this.workers = delegate.getMessageBodyWorkers();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheBytes)
+                .weigher(new Weigher<URI, CachedResponse>() {
+                    @Override
+                    public int weigh(final URI uri, final CachedResponse value) {
+                        return value.getResponse().getBodyLength() + ENTRY_OVERHEAD_BYTES;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+
+    /**
+     * A {@link BufferedResponse}, along with the information needed to
+     * determine whether it's fresh and to revalidate it if not.
+     */
+    /*package*/ static final class CachedResponse {
+        private final BufferedResponse response;
+        /** The {@link Ticker} time at which the response was received. */
+        private final long responseTimeNanos;
+        /** The age of the response when received, from the Age header. */
+        private final long initialAgeNanos;
+        private final long freshnessLifetimeNanos;
+
+        /**
+         * A response is storable if it's a {@code 200 OK} that the origin
+         * hasn't forbidden us to store, and that either will be fresh for
+         * some time or that can be revalidated.
+         */
+        public static boolean isStorable(final ClientResponse response) {
+            if (response.getStatus() != STATUS_OK) {
+                return false;
+            }
+            final CacheDirectives directives = CacheDirectives.parse(
+                    response.getHeaders().get(CacheDirectives.CACHE_CONTROL));
+            if (directives.isNoStore()) {
+                return false;
+            }
+            if ("*".equals(response.getHeaders().getFirst("Vary"))) {
+                return false;
+            }
+            return freshnessLifetimeNanos(directives, response.getHeaders().getFirst("Expires"),
+                        response.getHeaders().getFirst("Date")) > 0L
+                || response.getHeaders().getFirst("ETag") != null
+                || response.getHeaders().getFirst("Last-Modified") != null;
+        }
+
+        public static CachedResponse create(final BufferedResponse response, final long now) {
+            final CacheDirectives directives = CacheDirectives.parse(
+                    response.getFirstHeader(CacheDirectives.CACHE_CONTROL));
+            return new CachedResponse(
+                    response,
+                    now,
+                    parseAge(response.getFirstHeader("Age")),
+                    freshnessLifetimeNanos(
+                            directives,
+                            response.getFirstHeader("Expires"),
+                            response.getFirstHeader("Date")));
+        }
+
+        public BufferedResponse getResponse() {
+            return this.response;
+        }
+
+        public boolean isFresh(final long now) {
+            final long currentAge = this.initialAgeNanos + (now - this.responseTimeNanos);
+            return this.freshnessLifetimeNanos > currentAge;
+        }
+
+        /**
+         * @return  The headers to add to a {@code GET} to make it
+         *          conditional on this response being out of date.
+         */
+        public ClientRequest getConditions() {
+            final ClientRequest.Builder conditions = ClientRequest.newBuilder();
+            final String etag = this.response.getFirstHeader("ETag");
+            if (etag != null) {
+                conditions.header("If-None-Match", etag);
+            }
+            final String lastModified = this.response.getFirstHeader("Last-Modified");
+            if (lastModified != null) {
+                conditions.header("If-Modified-Since", lastModified);
+            }
+            return conditions.build();
+        }
+
+        /**
+         * @return  A new entry, with this entry's body, updated with the
+         *          headers of the given {@code 304 Not Modified} response.
+         */
+        public CachedResponse revalidated(final ClientResponse notModified, final long now) {
+            return create(this.response.withHeadersReplaced(notModified.getHeaders()), now);
+        }
+
+        private static long freshnessLifetimeNanos(
+                final CacheDirectives directives,
+                final String expires,
+                final String date) {
+            if (directives.isNoCache()) {
+                return 0L;
+            }
+            if (directives.getMaxAgeSeconds() >= 0L) {
+                return TimeUnit.SECONDS.toNanos(directives.getMaxAgeSeconds());
+            }
+            if (expires == null) {
+                return 0L;
+            }
+            try {
+                final Date expiresDate = HttpHeaderReader.readDate(expires);
+                final long dateMillis = (date != null)
+                        ? HttpHeaderReader.readDate(date).getTime()
+                        : System.currentTimeMillis();
+                return Math.max(0L, TimeUnit.MILLISECONDS.toNanos(expiresDate.getTime() - dateMillis));
+            } catch (final ParseException ex) {
+                // An invalid Expires date means "already expired".
+                return 0L;
+            }
+        }
+
+        private static long parseAge(final String age) {
+            if (age == null) {
+                return 0L;
+            }
+            try {
+                return TimeUnit.SECONDS.toNanos(Math.max(0L, Long.parseLong(age.trim())));
+            } catch (final NumberFormatException ex) {
+                return 0L;
+            }
+        }
+
+        private CachedResponse(
+                final BufferedResponse response,
+                final long responseTimeNanos,
+                final long initialAgeNanos,
+                final long freshnessLifetimeNanos) {
+            this.response = response;
+            this.responseTimeNanos = responseTimeNanos;
+            this.initialAgeNanos = initialAgeNanos;
+            this.freshnessLifetimeNanos = freshnessLifetimeNanos;
+        }
+    }
+
+}
@@ -49,6 +49,7 @@ public class ClientRequest {
     private final ImmutableSet<Locale> acceptedLanguages;
     private final ImmutableSet<Cookie> cookies;
     private final ImmutableMap<String, Object> headers;
+    private final CompiledRequest compiled;
 
 
     public static Builder newBuilder() {
@@ -70,6 +71,14 @@ public class ClientRequest {
         return emptyRequest;
     }
 
+    /**
+     * Get the entity body of the request, if it has one. Its type must agree
+     * with the {@link #getContentType() content type}.
+     */
+    public Optional<Object> getEntity() {
+        return this.entityBody;
+    }
+
     /**
      * Get the {@link MediaType} that will be used to set the Content-Type
      * header, when a message has an entity body.
@@ -100,7 +109,7 @@ public class ClientRequest {
     }
 
     public Map<String, Object> getHeaders() {
-        return ImmutableMap.copyOf(this.headers);
+        return this.headers;
     }
 
     @Override
@@ -197,31 +206,12 @@ public class ClientRequest {
     }
 
     /**
-     * Update the given resource request with the contents of this request
-     * and return it back again.
+     * Update the given resource request with the contents of this request.
+     * The contents were compiled into a form suited to this purpose when
+     * this request was built, so this method doesn't allocate anything.
      */
     /*package*/ void updateResource(final PartialRequestBuilder<?> resource) {
-        if (!this.acceptedTypes.isEmpty()) {
-            final MediaType[] typesArray = this.acceptedTypes.toArray(
-                    new MediaType[this.acceptedTypes.size()]);
-            resource.accept(typesArray);
-        }
-        if (!this.acceptedLanguages.isEmpty()) {
-            final Locale[] languageArray = new Locale[this.acceptedLanguages.size()];
-            resource.acceptLanguage(this.acceptedLanguages.toArray(languageArray));
-        }
-        if (this.contentType.isPresent()) {
-            resource.type(this.contentType.get());
-        }
-        for (final Cookie cookie : this.cookies) {
-            resource.cookie(cookie);
-        }
-        for (final Map.Entry<String, Object> entry : this.headers.entrySet()) {
-            resource.header(entry.getKey(), entry.getValue());
-        }
-        if (this.entityBody.isPresent()) {
-            resource.entity(this.entityBody.get());
-        }
+        this.compiled.applyTo(resource);
     }
 
     @VisibleForTesting
@@ -240,6 +230,13 @@ public class ClientRequest {
         this.acceptedLanguages = ImmutableSet.copyOf(acceptedLanguages);
         this.cookies = ImmutableSet.copyOf(cookies);
         this.headers = ImmutableMap.copyOf(headers);
+        this.compiled = CompiledRequest.compile(
+                this.entityBody,
+                this.contentType,
+                this.acceptedTypes,
+                this.acceptedLanguages,
+                this.cookies,
+                this.headers);
     }
 
 
@@ -253,7 +250,9 @@ public class ClientRequest {
 
         /**
          * Set the entity body for the request. It must agree with the
-         * content type set with {@link #contentType(MediaType)}.
+         * content type set with {@link #contentType(MediaType)}. Pass a
+         * {@link StreamingEntity} to send a large body without reading it
+         * into memory first.
          */
         public Builder entity(final Object body) {
             this.entityBody = Optional.of(body);
@@ -14,17 +14,37 @@
  */
 package crud.http;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import com.sun.jersey.api.client.ClientResponse;
 
 import rx.Observable;
 import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 
+/**
+ * Closes each response once its subscriber is finished with it: when the
+ * request completes or fails, or when the subscriber unsubscribes first,
+ * as {@link Observable#take(int)} and {@link Observable#timeout} do. A
+ * response that arrives after its subscriber has gone is closed at once,
+ * without being delivered.
+ */
 /*package*/ final class ClientResponseCloser
 implements Observable.Operator<ClientResponse, ClientResponse> {
 
     private static final ClientResponseCloser instance = new ClientResponseCloser();
 
+    /**
+     * The final state of a {@link ClosingSubscriber}, after which no
+     * response will be delivered.
+     */
+    private static final Object CLOSED = new Object();
+
+    private static final AtomicReferenceFieldUpdater<ClosingSubscriber, Object> states
+            = AtomicReferenceFieldUpdater.newUpdater(ClosingSubscriber.class, Object.class, "state");
+
 
     public static ClientResponseCloser instance() {
         return instance;
@@ -40,25 +60,44 @@ implements Observable.Operator<ClientResponse, ClientResponse> {
         // prevent instantiation
     }
 
+    private static void close(final ClientResponse response) {
+        RequestEvents.closed(response);
+        response.close();
+    }
+
 
-    private static final class ClosingSubscriber extends Subscriber<ClientResponse> {
+    /**
+     * Moves from null, waiting for a response, to the response itself,
+     * and finally to {@link #CLOSED}. Whichever of termination and
+     * unsubscription happens first makes the last move, and so closes the
+     * response exactly once, however they race.
+     */
+    private static final class ClosingSubscriber
+    extends Subscriber<ClientResponse>
+    implements Action0 {
         private final Subscriber<? super ClientResponse> delegate;
-        private volatile ClientResponse latestResponse = null;
+        /*package*/ volatile Object state = null;
 
         public ClosingSubscriber(final Subscriber<? super ClientResponse> delegate) {
             super(delegate);
             this.delegate = delegate;
             assert this.delegate != null;
+            // Shares the delegate's subscriptions, so called when it unsubscribes:
+            add(Subscriptions.create(this));
         }
 
         @Override
         public void onNext(final ClientResponse response) {
-            assert this.latestResponse == null; // only one response per request
             /* Save the response object for now, so the delegate can keep
              * using it if it needs to. Then close it when the delegate is all
              * finished.
              */
-            this.latestResponse = response;
+            if (!states.compareAndSet(this, null, response)) {
+                assert this.state == CLOSED : "only one response per request";
+                // No one is left to close it:
+                close(response);
+                return;
+            }
             this.delegate.onNext(response);
         }
 
@@ -80,14 +119,22 @@ implements Observable.Operator<ClientResponse, ClientResponse> {
             }
         }
 
+        /**
+         * Unsubscribed.
+         */
+        @Override
+        public void call() {
+            closeLatestResponse();
+        }
+
         private void closeLatestResponse() {
-            if (this.latestResponse != null) {
-                this.latestResponse.close();
-                /* If onCompleted() itself throws, onError() can still be
-                 * called. That could result in duplicate calls to close().
-                 * Clear the state so that won't happen.
-                 */
-                this.latestResponse = null;
+            if (this.state == CLOSED) {
+                // Common: unsubscribed after termination.
+                return;
+            }
+            final Object latest = states.getAndSet(this, CLOSED);
+            if (latest instanceof ClientResponse) {
+                close((ClientResponse) latest);
             }
         }
     }
@@ -0,0 +1,136 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.Locale;
+import java.util.Map;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MediaType;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.sun.jersey.api.client.PartialRequestBuilder;
+
+
+/**
+ * The contents of a {@link ClientRequest}, flattened into the arrays that
+ * Jersey's request builders accept, so that they can be copied into a new
+ * request without iterating over collections or allocating anything. A
+ * {@code ClientRequest} compiles itself once, when it's built, and the same
+ * compiled form is reused for every request sent with it. A provider's
+ * template and each request are compiled, and applied, separately.
+ */
+/*package*/ final class CompiledRequest {
+
+    private static final CompiledRequest emptyRequest = new CompiledRequest(
+            Optional.absent(),
+            Optional.<MediaType>absent(),
+            ImmutableSet.<MediaType>of(),
+            ImmutableSet.<Locale>of(),
+            ImmutableSet.<Cookie>of(),
+            ImmutableMap.<String, Object>of());
+
+    /** Null if there is no entity body. */
+    private final Object entityBody;
+    /** Null if there is no content type. */
+    private final MediaType contentType;
+    /** Null if there are no accepted types. */
+    private final MediaType[] acceptedTypes;
+    /** Null if there are no accepted languages. */
+    private final Locale[] acceptedLanguages;
+    private final Cookie[] cookies;
+    private final String[] headerNames;
+    private final Object[] headerValues;
+
+
+    public static CompiledRequest compile(
+            final Optional<Object> entityBody,
+            final Optional<MediaType> contentType,
+            final ImmutableSet<MediaType> acceptedTypes,
+            final ImmutableSet<Locale> acceptedLanguages,
+            final ImmutableSet<Cookie> cookies,
+            final ImmutableMap<String, Object> headers) {
+        if (!entityBody.isPresent()
+                && !contentType.isPresent()
+                && acceptedTypes.isEmpty()
+                && acceptedLanguages.isEmpty()
+                && cookies.isEmpty()
+                && headers.isEmpty()) {
+            return emptyRequest;
+        }
+        return new CompiledRequest(
+                entityBody,
+                contentType,
+                acceptedTypes,
+                acceptedLanguages,
+                cookies,
+                headers);
+    }
+
+    /**
+     * Add the contents of this request to the given Jersey request. The
+     * effect is the same as copying each element of the original
+     * {@link ClientRequest} individually.
+     */
+    public void applyTo(final PartialRequestBuilder<?> resource) {
+        if (this.acceptedTypes != null) {
+            resource.accept(this.acceptedTypes);
+        }
+        if (this.acceptedLanguages != null) {
+            resource.acceptLanguage(this.acceptedLanguages);
+        }
+        if (this.contentType != null) {
+            resource.type(this.contentType);
+        }
+        for (final Cookie cookie : this.cookies) {
+            resource.cookie(cookie);
+        }
+        for (int i = 0; i < this.headerNames.length; ++i) {
+            resource.header(this.headerNames[i], this.headerValues[i]);
+        }
+        if (this.entityBody != null) {
+            resource.entity(this.entityBody);
+        }
+    }
+
+    private CompiledRequest(
+            final Optional<Object> entityBody,
+            final Optional<MediaType> contentType,
+            final ImmutableSet<MediaType> acceptedTypes,
+            final ImmutableSet<Locale> acceptedLanguages,
+            final ImmutableSet<Cookie> cookies,
+            final ImmutableMap<String, Object> headers) {
+        this.entityBody = entityBody.orNull();
+        this.contentType = contentType.orNull();
+        this.acceptedTypes = acceptedTypes.isEmpty()
+                ? null
+                : acceptedTypes.toArray(new MediaType[acceptedTypes.size()]);
+        this.acceptedLanguages = acceptedLanguages.isEmpty()
+                ? null
+                : acceptedLanguages.toArray(new Locale[acceptedLanguages.size()]);
+        this.cookies = cookies.toArray(new Cookie[cookies.size()]);
+        this.headerNames = new String[headers.size()];
+        this.headerValues = new Object[headers.size()];
+        int i = 0;
+        for (final Map.Entry<String, Object> entry : headers.entrySet()) {
+            this.headerNames[i] = entry.getKey();
+            this.headerValues[i] = entry.getValue();
+            ++i;
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import crud.ReadableResource;
+import crud.ReadableResourceProvider;
+import crud.ResourceProvider;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+
+/**
+ * A {@link ResourceProvider} that reads typed values from the resources of
+ * an {@link HttpResourceProvider}, decoding each response on a
+ * {@link Scheduler} of its own rather than on the thread that delivered it.
+ *
+ * Decoding with {@code mapValue}, by contrast, runs on the transport's
+ * thread: with the Jersey transport, one of the threads that wait for
+ * responses, which can't wait for any others while an expensive decoder
+ * runs. Here, that thread only copies the response body into memory, and
+ * is then free; the copy is decoded on the scheduler, a computation pool
+ * by default.
+ *
+ * The provider counts the responses it has decoded, and the total time
+ * spent on the network, waiting for the scheduler, and decoding, so that
+ * slow decoding can be told apart from a slow service.
+ */
+public final class DecodingResourceProvider<T> implements ReadableResourceProvider<URI, T> {
+
+    private final HttpResourceProvider delegate;
+    private final Func1<? super ClientResponse, ? extends T> decoder;
+    private final Scheduler scheduler;
+    private final Ticker ticker;
+    private final MessageBodyWorkers workers;
+
+    private final AtomicLong decodedCount = new AtomicLong();
+    private final AtomicLong networkNanos = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+
+    /**
+     * Decode the entities of successful responses as the given type, with
+     * the transport's entity providers. Unsuccessful responses are
+     * reported as {@link UniformInterfaceException}s.
+     */
+    public static <T> Builder<T> newBuilder(final HttpResourceProvider delegate, final Class<T> type) {
+        return new Builder<T>(delegate, new EntityDecoder<T>(type));
+    }
+
+    /**
+     * Decode responses, of any status, with the given function. The
+     * responses it is given are copies in memory, so it may read them
+     * however it likes, and need not close them.
+     */
+    public static <T> Builder<T> newBuilder(
+            final HttpResourceProvider delegate,
+            final Func1<? super ClientResponse, ? extends T> decoder) {
+        return new Builder<T>(delegate, decoder);
+    }
+
+    @Override
+    public ReadableResource<T> get(final URI uri) {
+        return new DecodingResource<>(this, this.delegate.get(uri));
+    }
+
+    /**
+     * The number of responses that have been decoded, whether or not
+     * decoding succeeded.
+     */
+    public long getDecodedCount() {
+        return this.decodedCount.get();
+    }
+
+    /**
+     * The total time from subscription until each decoded response had
+     * been received and its body read into memory.
+     */
+    public long getNetworkTime(final TimeUnit unit) {
+        return unit.convert(this.networkNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The total time that the decoded responses waited for a thread of
+     * the scheduler.
+     */
+    public long getQueueTime(final TimeUnit unit) {
+        return unit.convert(this.queueNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The total time spent decoding responses.
+     */
+    public long getDecodeTime(final TimeUnit unit) {
+        return unit.convert(this.decodeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [delegate=" + this.delegate
+                + ", decoder=" + this.decoder
+                + ", decoded=" + getDecodedCount()
+                + ']';
+    }
+
+    /**
+     * Each subscription to the result subscribes to the given responses,
+     * buffers each on the thread that delivers it, and decodes it on the
+     * scheduler.
+     */
+    private Observable<T> decode(final Observable<ClientResponse> responses) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override
+            public Observable<T> call() {
+                final long startNanos = DecodingResourceProvider.this.ticker.read();
+                return responses
+                        .map(new Func1<ClientResponse, Buffered>() {
+                            @Override
+                            public Buffered call(final ClientResponse response) {
+                                return buffer(response, startNanos);
+                            }
+                        })
+                        .observeOn(DecodingResourceProvider.this.scheduler)
+                        .map(new Func1<Buffered, T>() {
+                            @Override
+                            public T call(final Buffered buffered) {
+                                return decode(buffered);
+                            }
+                        });
+            }
+        });
+    }
+
+    private Buffered buffer(final ClientResponse response, final long startNanos) {
+        final BufferedResponse copy;
+        try {
+            copy = BufferedResponse.buffer(response, this.workers);
+        } catch (final IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+        final long bufferedNanos = this.ticker.read();
+        this.networkNanos.addAndGet(bufferedNanos - startNanos);
+        return new Buffered(copy, bufferedNanos);
+    }
+
+    private T decode(final Buffered buffered) {
+        final long beginNanos = this.ticker.read();
+        this.queueNanos.addAndGet(beginNanos - buffered.bufferedNanos);
+        try {
+            return this.decoder.call(buffered.response.newResponse());
+        } finally {
+            this.decodedCount.incrementAndGet();
+            this.decodeNanos.addAndGet(this.ticker.read() - beginNanos);
+        }
+    }
+
+    private DecodingResourceProvider(final Builder<T> builder) {
+        this.delegate = builder.delegate;
+        this.decoder = builder.decoder;
+        this.scheduler = builder.scheduler;
+        this.ticker = builder.ticker;
+        this.workers = this.delegate.getMessageBodyWorkers();
+    }
+
+
+    public static final class Builder<T> {
+        private final HttpResourceProvider delegate;
+        private final Func1<? super ClientResponse, ? extends T> decoder;
+        private Scheduler scheduler = Schedulers.computation();
+        private Ticker ticker = Ticker.systemTicker();
+
+        /**
+         * Decode on the given scheduler. The default is
+         * {@link Schedulers#computation()}.
+         */
+        public Builder<T> scheduler(final Scheduler newScheduler) {
+            this.scheduler = Objects.requireNonNull(newScheduler);
+            return this;
+        }
+
+        /**
+         * Decode on the given executor, such as a
+         * {@link java.util.concurrent.ForkJoinPool}, rather than on a
+         * scheduler.
+         */
+        public Builder<T> executor(final Executor executor) {
+            return scheduler(Schedulers.from(executor));
+        }
+
+        /*package*/ Builder<T> ticker(final Ticker newTicker) {
+            this.ticker = Objects.requireNonNull(newTicker);
+            return this;
+        }
+
+        public DecodingResourceProvider<T> build() {
+            return new DecodingResourceProvider<>(this);
+        }
+
+        private Builder(
+                final HttpResourceProvider delegate,
+                final Func1<? super ClientResponse, ? extends T> decoder) {
+            this.delegate = Objects.requireNonNull(delegate);
+            this.decoder = Objects.requireNonNull(decoder);
+        }
+    }
+
+
+    private static final class Buffered {
+        public final BufferedResponse response;
+        public final long bufferedNanos;
+
+        public Buffered(final BufferedResponse response, final long bufferedNanos) {
+            this.response = response;
+            this.bufferedNanos = bufferedNanos;
+        }
+    }
+
+
+    private static final class EntityDecoder<T> implements Func1<ClientResponse, T> {
+        private final Class<T> type;
+
+        public EntityDecoder(final Class<T> type) {
+            this.type = Objects.requireNonNull(type);
+        }
+
+        @Override
+        public T call(final ClientResponse response) {
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                throw new UniformInterfaceException(response);
+            }
+            return response.getEntity(this.type);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + " [type=" + this.type.getName() + ']';
+        }
+    }
+
+
+    private static final class DecodingResource<T> implements ReadableResource<T> {
+        private final DecodingResourceProvider<T> provider;
+        private final HttpResource delegate;
+
+        public DecodingResource(final DecodingResourceProvider<T> provider, final HttpResource delegate) {
+            this.provider = provider;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Observable<T> get() {
+            return this.provider.decode(this.delegate.get());
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + " [delegate=" + this.delegate + ']';
+        }
+
+        // Every concrete Resource class should override equals() and hashCode().
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            final DecodingResource<?> other = (DecodingResource<?>) obj;
+            return this.provider.equals(other.provider)
+                && this.delegate.equals(other.delegate);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + this.provider.hashCode();
+            result = prime * result + this.delegate.hashCode();
+            return result;
+        }
+    }
+
+}
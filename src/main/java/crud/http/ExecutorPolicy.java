@@ -0,0 +1,250 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+import com.sun.jersey.api.client.Client;
+
+
+/**
+ * Determines the threads on which a {@link JerseyTransport} executes its
+ * requests. Jersey's asynchronous API runs each request on a thread from
+ * its {@link Client}'s {@link ExecutorService}, and that thread blocks on
+ * socket I/O until the response arrives, so the executor limits the number
+ * of requests that can be in flight at once.
+ *
+ * Each policy also keeps simple metrics over all of the requests that it
+ * has executed: see {@link #getInFlight()}, {@link #getPeakInFlight()},
+ * and {@link #getCompleted()}.
+ *
+ * @see HttpResourceProvider.Builder#executorPolicy(ExecutorPolicy)
+ */
+public final class ExecutorPolicy {
+
+    private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadFactory();
+
+    private final String description;
+    private final ExecutorService executor;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+
+
+    /**
+     * Execute at most the given number of requests at once. Further
+     * requests wait in an unbounded queue.
+     *
+     * @throws IllegalArgumentException If the number of threads is not
+     *              positive.
+     */
+    public static ExecutorPolicy fixedThreadPool(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("non-positive thread count " + threads);
+        }
+        return new ExecutorPolicy(
+                "fixedThreadPool(" + threads + ')',
+                Executors.newFixedThreadPool(threads));
+    }
+
+    /**
+     * Execute each request on a new or reused platform thread, with no
+     * limit on the number of threads. This is Jersey's default.
+     */
+    public static ExecutorPolicy cachedThreadPool() {
+        return new ExecutorPolicy("cachedThreadPool", Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Execute each request on its own virtual thread. Blocking I/O unmounts
+     * a virtual thread from its carrier, so tens of thousands of requests
+     * can be in flight on a few platform threads, each with a small stack.
+     * However, blocking while holding a monitor pins the carrier thread;
+     * to find where that happens, record the JFR event
+     * {@code jdk.VirtualThreadPinned}.
+     *
+     * @throws UnsupportedOperationException    If the JVM doesn't support
+     *              virtual threads, which need Java 21 or later.
+     *
+     * @see #isVirtualThreadPerRequestSupported()
+     */
+    public static ExecutorPolicy virtualThreadPerRequest() {
+        if (!isVirtualThreadPerRequestSupported()) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+        }
+        try {
+            final ExecutorService executor =
+                    (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            return new ExecutorPolicy("virtualThreadPerRequest", executor);
+        } catch (final InvocationTargetException ex) {
+            throw Throwables.propagate(ex.getCause());
+        } catch (final IllegalAccessException ex) {
+            throw new UnsupportedOperationException(ex);
+        }
+    }
+
+    public static boolean isVirtualThreadPerRequestSupported() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * Execute requests with the given executor, which the caller remains
+     * responsible for shutting down: applying another policy to the same
+     * client leaves it running.
+     */
+    public static ExecutorPolicy using(final ExecutorService executor) {
+        return new ExecutorPolicy(executor.toString(), executor);
+    }
+
+    /**
+     * The number of requests that are executing now.
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * The greatest number of requests that have executed at once.
+     */
+    public int getPeakInFlight() {
+        return this.peakInFlight.get();
+    }
+
+    /**
+     * The number of requests that have finished executing.
+     */
+    public long getCompleted() {
+        return this.completed.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [" + this.description
+                + ", inFlight=" + getInFlight()
+                + ", peakInFlight=" + getPeakInFlight()
+                + ", completed=" + getCompleted()
+                + ']';
+    }
+
+    /**
+     * Make the given client execute its asynchronous requests according to
+     * this policy, replacing its existing {@link ExecutorService}, unless
+     * the client already follows this policy.
+     *
+     * An executor that the client itself created, or that was set on it
+     * directly, is {@link ExecutorService#shutdown() shut down}: the
+     * requests it has already accepted finish, but it accepts no more, so
+     * that its threads don't outlive it. The executor of another policy is
+     * left running, since that policy may be shared by other clients, and
+     * its executor may belong to the caller.
+     */
+    /*package*/ void applyTo(final Client client) {
+        final ExecutorService replaced = client.getExecutorService();
+        if (replaced instanceof MeteredExecutorService) {
+            if (((MeteredExecutorService) replaced).getPolicy() != this) {
+                client.setExecutorService(new MeteredExecutorService());
+            }
+        } else {
+            client.setExecutorService(new MeteredExecutorService());
+            replaced.shutdown();
+        }
+    }
+
+    private static Method findVirtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private ExecutorPolicy(final String description, final ExecutorService executor) {
+        this.description = description;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+
+    /**
+     * Counts tasks in and out of the policy's executor.
+     */
+    private final class MeteredExecutorService extends AbstractExecutorService {
+        public ExecutorPolicy getPolicy() {
+            return ExecutorPolicy.this;
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final int current = inFlight.incrementAndGet();
+                    updatePeak(current);
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        private void updatePeak(final int current) {
+            int peak = peakInFlight.get();
+            while (current > peak && !peakInFlight.compareAndSet(peak, current)) {
+                peak = peakInFlight.get();
+            }
+        }
+    }
+
+}
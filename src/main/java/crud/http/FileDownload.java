@@ -0,0 +1,286 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+
+
+/**
+ * Writes the body of the response to a request into a file, and emits the
+ * number of bytes written so far as it goes, ending with the total.
+ *
+ * The body is copied through a single buffer, reused for the whole
+ * download, on the thread that delivers the response. A body that a
+ * transport already holds in a buffer of its own, as {@link NettyTransport}
+ * does, is written from there directly. Progress is only emitted when the
+ * subscriber has requested it; updates it has not asked for are skipped,
+ * but the total is always delivered, and the download itself never waits.
+ *
+ * A response that is not successful is not written: its subscriber gets a
+ * {@link UniformInterfaceException} instead. The response is closed when
+ * its body has been written, on error, or when the subscriber
+ * unsubscribes, which also stops the download.
+ */
+/*package*/ final class FileDownload implements Observable.OnSubscribe<Long> {
+
+    /*package*/ static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Observable<ClientResponse> responses;
+    private final Path path;
+    private final FileChannel channel;
+
+
+    /**
+     * Create or replace the given file, once a successful response has
+     * arrived.
+     *
+     * @param responses Must not close its response by itself; the
+     *                  download will close it.
+     */
+    public static FileDownload toPath(final Observable<ClientResponse> responses, final Path path) {
+        if (path == null) {
+            throw new NullPointerException("null path");
+        }
+        return new FileDownload(responses, path, null);
+    }
+
+    /**
+     * Write at the given channel's position, advancing it. The caller
+     * remains responsible for closing the channel.
+     *
+     * @param responses Must not close its response by itself; the
+     *                  download will close it.
+     */
+    public static FileDownload toChannel(final Observable<ClientResponse> responses, final FileChannel channel) {
+        if (channel == null) {
+            throw new NullPointerException("null channel");
+        }
+        return new FileDownload(responses, null, channel);
+    }
+
+    @Override
+    public void call(final Subscriber<? super Long> child) {
+        final Progress progress = new Progress(child);
+        child.setProducer(progress);
+        final ResponseSubscriber upstream = new ResponseSubscriber(child, progress);
+        // Not Subscriber(child): that would give the child's producer to the request.
+        child.add(upstream);
+        this.responses.unsafeSubscribe(upstream);
+    }
+
+    private FileDownload(
+            final Observable<ClientResponse> responses,
+            final Path path,
+            final FileChannel channel) {
+        this.responses = responses;
+        this.path = path;
+        this.channel = channel;
+    }
+
+
+    private final class ResponseSubscriber extends Subscriber<ClientResponse> {
+        private final Subscriber<? super Long> child;
+        private final Progress progress;
+        private boolean responded = false;
+
+        public ResponseSubscriber(final Subscriber<? super Long> child, final Progress progress) {
+            this.child = child;
+            this.progress = progress;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            this.responded = true;
+            try {
+                if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                    this.child.onError(new UniformInterfaceException(response));
+                    return;
+                }
+                final long total;
+                try {
+                    total = write(response);
+                } catch (final IOException | RuntimeException ex) {
+                    this.child.onError(ex);
+                    return;
+                }
+                if (total >= 0L) {
+                    this.progress.finish(total);
+                }
+            } finally {
+                RequestEvents.closed(response);
+                response.close();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (!this.responded) {
+                this.child.onError(new IllegalStateException("no response"));
+            }
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.child.onError(error);
+        }
+
+        /**
+         * @return  The number of bytes written, or -1 if the subscriber
+         *          unsubscribed first.
+         */
+        private long write(final ClientResponse response) throws IOException {
+            final FileChannel target = (FileDownload.this.path != null)
+                    ? FileChannel.open(
+                            FileDownload.this.path,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileDownload.this.channel;
+            try {
+                final InputStream body = response.getEntityInputStream();
+                if (body == null) {
+                    return 0L;
+                } else if (body instanceof FileTransferable) {
+                    return ((FileTransferable) body).transferTo(target);
+                } else {
+                    return copy(body, target);
+                }
+            } finally {
+                if (target != FileDownload.this.channel) {
+                    target.close();
+                }
+            }
+        }
+
+        private long copy(final InputStream body, final FileChannel target) throws IOException {
+            final byte[] bytes = new byte[BUFFER_SIZE];
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long total = 0L;
+            while (true) {
+                if (this.child.isUnsubscribed()) {
+                    return -1L;
+                }
+                int length = 0;
+                while (length < bytes.length) {
+                    final int count = body.read(bytes, length, bytes.length - length);
+                    if (count < 0) {
+                        break;
+                    }
+                    length += count;
+                }
+                if (length == 0) {
+                    return total;
+                }
+                buffer.clear();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                total += length;
+                if (length == bytes.length) {
+                    this.progress.update(total);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Emits progress updates only when they have been requested, and the
+     * total once it has been.
+     */
+    private static final class Progress implements Producer {
+        private final Subscriber<? super Long> child;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile long total = -1L;
+
+        public Progress(final Subscriber<? super Long> child) {
+            this.child = child;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0L) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = this.requested.get();
+                next = current + n;
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!this.requested.compareAndSet(current, next));
+            emitTotal();
+        }
+
+        /**
+         * Called from the downloading thread only.
+         */
+        public void update(final long bytesSoFar) {
+            if (claim()) {
+                this.child.onNext(bytesSoFar);
+            }
+        }
+
+        /**
+         * Called from the downloading thread, after any updates.
+         */
+        public void finish(final long bytes) {
+            this.total = bytes;
+            emitTotal();
+        }
+
+        private void emitTotal() {
+            final long bytes = this.total;
+            if (bytes >= 0L && this.requested.get() > 0L && this.finished.compareAndSet(false, true)) {
+                this.child.onNext(bytes);
+                this.child.onCompleted();
+            }
+        }
+
+        private boolean claim() {
+            long current;
+            do {
+                current = this.requested.get();
+                if (current == 0L) {
+                    return false;
+                } else if (current == Long.MAX_VALUE) {
+                    return true;
+                }
+            } while (!this.requested.compareAndSet(current, current - 1L));
+            return true;
+        }
+    }
+
+}
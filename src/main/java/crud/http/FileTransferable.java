@@ -0,0 +1,35 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An entity stream that can write its remaining bytes to a file itself,
+ * without first copying them into a caller's array: for example, because
+ * they are already in a buffer that the file system can read directly.
+ */
+/*package*/ interface FileTransferable {
+
+    /**
+     * Write all remaining bytes at the channel's position, advancing it.
+     *
+     * @return  The number of bytes written.
+     */
+    long transferTo(FileChannel target) throws IOException;
+
+}
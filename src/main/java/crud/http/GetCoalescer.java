@@ -0,0 +1,134 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Throwables;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func1;
+
+
+/**
+ * Allows concurrent {@code GET} requests for the same resource to share a
+ * single request to the server. The first subscriber for a given key sends
+ * the request; others that subscribe before it completes wait for the same
+ * response. The response body is read into memory as soon as it arrives,
+ * and then the response is closed, releasing its connection. Each
+ * subscriber receives its own copy of the buffered response, which it may
+ * read independently of the others.
+ *
+ * Unsubscribing does not cancel a shared request, since other subscribers
+ * may still be waiting for it.
+ */
+/*package*/ final class GetCoalescer {
+
+    private final ConcurrentMap<Object, Observable<BufferedResponse>> inFlight = new ConcurrentHashMap<>();
+    private final Func1<ClientResponse, BufferedResponse> bufferer;
+
+
+    public GetCoalescer(final MessageBodyWorkers workers) {
+        this.bufferer = new Func1<ClientResponse, BufferedResponse>() {
+            @Override
+            public BufferedResponse call(final ClientResponse response) {
+                try {
+                    return BufferedResponse.buffer(response, workers);
+                } catch (final IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param key       Identifies the resource being requested: requests
+     *          for equal keys will be coalesced.
+     * @param request   Sends the request when subscribed. Its responses
+     *          must be closed by {@link ClientResponseCloser}, as those from
+     *          {@link HttpResource} are.
+     */
+    public Observable<ClientResponse> coalesce(
+            final Object key,
+            final Observable<ClientResponse> request) {
+        final Observable.OnSubscribe<ClientResponse> subscribeAction = new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> subscriber) {
+                join(key, request).map(NewResponse.instance).unsafeSubscribe(subscriber);
+            }
+        };
+        return Observable.create(subscribeAction)
+                .lift(ClientResponseCloser.instance());
+    }
+
+    /**
+     * @return  The number of distinct requests currently in flight.
+     */
+    public int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+    private Observable<BufferedResponse> join(
+            final Object key,
+            final Observable<ClientResponse> request) {
+        final Observable<BufferedResponse> existing = this.inFlight.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final SharedRequest shared = new SharedRequest(key);
+        shared.response = request
+                .map(this.bufferer)
+                .finallyDo(shared)
+                .cache();
+        final Observable<BufferedResponse> raced = this.inFlight.putIfAbsent(key, shared.response);
+        return (raced != null) ? raced : shared.response;
+    }
+
+
+    /**
+     * Removes a shared request from the in-flight table once it terminates,
+     * unless another request has already replaced it.
+     */
+    private final class SharedRequest implements Action0 {
+        private final Object key;
+        private volatile Observable<BufferedResponse> response;
+
+        public SharedRequest(final Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void call() {
+            GetCoalescer.this.inFlight.remove(this.key, this.response);
+        }
+    }
+
+
+    private static final class NewResponse implements Func1<BufferedResponse, ClientResponse> {
+        public static final NewResponse instance = new NewResponse();
+
+        @Override
+        public ClientResponse call(final BufferedResponse buffered) {
+            return buffered.newResponse();
+        }
+    }
+
+}
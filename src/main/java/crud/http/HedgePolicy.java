@@ -0,0 +1,278 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+
+/**
+ * Sends a second, identical {@code GET} request if the first hasn't
+ * responded in time, and takes whichever response arrives first. The other
+ * request is unsubscribed, which cancels it and closes its response, if
+ * any. This cuts the latency of requests that happen to reach a slow
+ * server, at the cost of some extra load.
+ *
+ * The hedge is sent after a fixed delay or, once enough responses have
+ * been seen, after a given percentile of recent latencies, whichever is
+ * longer. To bound the extra load, hedges are limited to a fraction of all
+ * requests; beyond that, requests simply wait for their first response.
+ *
+ * An instance keeps the latency history and hedge budget of the provider
+ * that uses it, so it should not be shared among providers.
+ *
+ * @see HttpResourceProvider.Builder#hedgeGets(HedgePolicy)
+ */
+public final class HedgePolicy {
+
+    /**
+     * Until this many latencies have been recorded, only the fixed delay
+     * is used.
+     */
+    private static final int MIN_SAMPLES = 100;
+    private static final int SAMPLE_CAPACITY = 1024;
+    /**
+     * Recompute the percentile after this many new samples, rather than on
+     * every request.
+     */
+    private static final int RECOMPUTE_INTERVAL = 64;
+    /**
+     * The hedge budget is kept in thousandths of a hedge, and may
+     * accumulate up to this many whole hedges.
+     */
+    private static final long MAX_BURST = 10L;
+    private static final long CREDITS_PER_HEDGE = 1000L;
+
+    private final long minDelayMillis;
+    private final double percentile;
+    private final long creditsPerRequest;
+    private final Scheduler scheduler;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(SAMPLE_CAPACITY);
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicInteger samplesSinceRecompute = new AtomicInteger();
+    private volatile long percentileMillis = 0L;
+
+    private final AtomicLong credits = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * The time to wait, now, before sending a hedge.
+     */
+    public long getDelay(final TimeUnit unit) {
+        return unit.convert(currentDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The number of hedges that have been sent.
+     */
+    public long getHedgedCount() {
+        return this.hedged.get();
+    }
+
+    /**
+     * The number of hedges that were not sent, because too many had been
+     * sent already.
+     */
+    public long getSuppressedCount() {
+        return this.suppressed.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [delayMillis=" + currentDelayMillis()
+                + ", hedged=" + getHedgedCount()
+                + ", suppressed=" + getSuppressedCount()
+                + ']';
+    }
+
+    /**
+     * Each subscription to the result subscribes to the given request, and
+     * maybe later subscribes to it again.
+     */
+    /*package*/ Observable<ClientResponse> hedge(final Observable<ClientResponse> request) {
+        return Observable.defer(new Func0<Observable<ClientResponse>>() {
+            @Override
+            public Observable<ClientResponse> call() {
+                final long startMillis = HedgePolicy.this.scheduler.now();
+                addCredit();
+                final Observable<ClientResponse> hedge = Observable.timer(
+                        currentDelayMillis(),
+                        TimeUnit.MILLISECONDS,
+                        HedgePolicy.this.scheduler)
+                    .flatMap(new Func1<Long, Observable<ClientResponse>>() {
+                        @Override
+                        public Observable<ClientResponse> call(final Long ignored) {
+                            return tryTakeCredit() ? request : Observable.<ClientResponse>never();
+                        }
+                    });
+                return Observable.amb(request, hedge)
+                    .doOnNext(new Action1<ClientResponse>() {
+                        @Override
+                        public void call(final ClientResponse response) {
+                            recordLatency(HedgePolicy.this.scheduler.now() - startMillis);
+                        }
+                    });
+            }
+        });
+    }
+
+    private long currentDelayMillis() {
+        return Math.max(this.minDelayMillis, this.percentileMillis);
+    }
+
+    private void addCredit() {
+        final long max = MAX_BURST * CREDITS_PER_HEDGE;
+        long current;
+        do {
+            current = this.credits.get();
+            if (current >= max) {
+                return;
+            }
+        } while (!this.credits.compareAndSet(current, Math.min(max, current + this.creditsPerRequest)));
+    }
+
+    private boolean tryTakeCredit() {
+        long current;
+        do {
+            current = this.credits.get();
+            if (current < CREDITS_PER_HEDGE) {
+                this.suppressed.incrementAndGet();
+                return false;
+            }
+        } while (!this.credits.compareAndSet(current, current - CREDITS_PER_HEDGE));
+        this.hedged.incrementAndGet();
+        return true;
+    }
+
+    private void recordLatency(final long millis) {
+        if (this.percentile <= 0.0) {
+            return;
+        }
+        final long index = this.sampleCount.getAndIncrement();
+        this.latencies.set((int) (index % SAMPLE_CAPACITY), millis);
+        if (this.samplesSinceRecompute.incrementAndGet() >= RECOMPUTE_INTERVAL
+                && index + 1 >= MIN_SAMPLES) {
+            // Only the thread that resets the count recomputes:
+            final int since = this.samplesSinceRecompute.getAndSet(0);
+            if (since >= RECOMPUTE_INTERVAL) {
+                recomputePercentile((int) Math.min(index + 1, SAMPLE_CAPACITY));
+            }
+        }
+    }
+
+    private void recomputePercentile(final int count) {
+        final long[] sorted = new long[count];
+        for (int i = 0; i < count; ++i) {
+            sorted[i] = this.latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(this.percentile * count) - 1;
+        this.percentileMillis = sorted[Math.max(0, Math.min(rank, count - 1))];
+    }
+
+    private HedgePolicy(final Builder builder) {
+        this.minDelayMillis = builder.minDelayMillis;
+        this.percentile = builder.percentile;
+        this.creditsPerRequest = Math.round(builder.maxHedgeRate * CREDITS_PER_HEDGE);
+        this.scheduler = builder.scheduler;
+    }
+
+
+    public static final class Builder {
+        private long minDelayMillis = 50L;
+        private double percentile = 0.0;
+        private double maxHedgeRate = 0.05;
+        private Scheduler scheduler = Schedulers.computation();
+
+        /**
+         * Wait at least this long before sending a hedge. The default is
+         * 50 ms.
+         */
+        public Builder delay(final long delay, final TimeUnit unit) {
+            if (delay < 0L) {
+                throw new IllegalArgumentException("negative delay " + delay);
+            }
+            this.minDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Wait until this percentile of recent latencies, such as 0.95 for
+         * the 95th, before sending a hedge, unless the fixed
+         * {@link #delay(long, TimeUnit) delay} is longer. By default, only
+         * the fixed delay is used.
+         */
+        public Builder percentile(final double fraction) {
+            if (fraction <= 0.0 || fraction >= 1.0) {
+                throw new IllegalArgumentException("percentile " + fraction + " not in (0, 1)");
+            }
+            this.percentile = fraction;
+            return this;
+        }
+
+        /**
+         * Send hedges for at most this fraction of requests, over time.
+         * The default is 0.05.
+         */
+        public Builder maxHedgeRate(final double fraction) {
+            if (fraction < 0.0 || fraction > 1.0) {
+                throw new IllegalArgumentException("hedge rate " + fraction + " not in [0, 1]");
+            }
+            this.maxHedgeRate = fraction;
+            return this;
+        }
+
+        /**
+         * Wait on the given {@link Scheduler}, which also measures
+         * latency. The default is {@link Schedulers#computation()}.
+         */
+        public Builder scheduler(final Scheduler newScheduler) {
+            if (newScheduler == null) {
+                throw new NullPointerException("null scheduler");
+            }
+            this.scheduler = newScheduler;
+            return this;
+        }
+
+        public HedgePolicy build() {
+            return new HedgePolicy(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+}
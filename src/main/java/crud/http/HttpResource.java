@@ -14,10 +14,13 @@
  */
 package crud.http;
 
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.Objects;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
-import com.sun.jersey.api.client.AsyncWebResource;
 import com.sun.jersey.api.client.ClientResponse;
 
 import crud.DeletableResource;
@@ -27,12 +30,16 @@ import crud.UpdatableResource;
 import crud.WritableResource;
 import rx.Observable;
 import rx.Subscriber;
-import rx.subscriptions.Subscriptions;
 
 
 /**
  * A {@link Resource} based on Jersey, capable of all four CRUD actions:
  * reading, writing, updating, and deleting.
+ *
+ * Instances are lightweight: each holds only its {@link URI} and a
+ * reference to the {@link HttpResourceProvider} that created it, from which
+ * it obtains its configuration. The {@link HttpTransport.Endpoint} that
+ * sends its requests is not created until the first request is sent.
  */
 public class HttpResource
 implements ReadableResource<ClientResponse>,
@@ -40,25 +47,110 @@ implements ReadableResource<ClientResponse>,
            WritableResource<ClientRequest, ClientResponse>,
            UpdatableResource<ClientRequest, ClientResponse> {
 
-    private final AsyncWebResource resource;
-    private final ClientRequest requestTemplate;
+    private static final AtomicIntegerFieldUpdater<SendAction> sendCounts
+            = AtomicIntegerFieldUpdater.newUpdater(SendAction.class, "sendCount");
+
+    private final HttpResourceProvider provider;
+    private final URI uri;
 
-    private final Observable.OnSubscribe<ClientResponse> cachedOnGetAction;
-    private final Observable.OnSubscribe<ClientResponse> cachedOnDeleteAction;
+    /**
+     * Created lazily by {@link #getEndpoint()}. Not volatile: if threads
+     * race to initialize it, each will just create an equivalent instance.
+     */
+    private HttpTransport.Endpoint lazyEndpoint = null;
 
+    /**
+     * Looked up lazily by {@link #getMetrics()}, if the provider records
+     * metrics. Not volatile, for the same reason as {@link #lazyEndpoint}.
+     */
+    private RequestMetrics.Partition lazyMetrics = null;
 
+
+    /**
+     * Send an HTTP {@code GET} request. If the {@link HttpResourceProvider}
+     * that created this resource coalesces concurrent reads, and an equal
+     * request is already in flight, wait for its response instead. If it
+     * hedges reads, a slow request may be sent twice.
+     *
+     * @see HttpResourceProvider.Builder#coalesceConcurrentGets(boolean)
+     * @see HttpResourceProvider.Builder#hedgeGets(HedgePolicy)
+     */
     @Override
     public Observable<ClientResponse> get() {
-        final Observable<ClientResponse> obs = Observable.create(this.cachedOnGetAction)
-                .lift(ClientResponseCloser.instance());
+        Observable<ClientResponse> obs = send(RequestMethod.GET, ClientRequest.empty());
+        final HedgePolicy hedgePolicy = this.provider.getHedgePolicy();
+        if (hedgePolicy != null) {
+            obs = hedgePolicy.hedge(obs);
+        }
+        final GetCoalescer getCoalescer = this.provider.getGetCoalescer();
+        if (getCoalescer != null) {
+            return getCoalescer.coalesce(this, obs);
+        }
         return obs;
     }
 
+    /**
+     * Send an HTTP {@code GET} request, and emit the body of a successful
+     * response in chunks of the given size, reading each chunk only when
+     * the subscriber requests it. The last chunk may be smaller. This
+     * allows bodies too large to hold in memory to be processed as they
+     * arrive. A request that fails, or a response that is not successful,
+     * is reported as an error; it is not retried, hedged, or coalesced.
+     *
+     * The chunks are read on the thread that requests them. The response
+     * is closed when the body has been read, or when the subscriber
+     * unsubscribes.
+     *
+     * @throws IllegalArgumentException If the chunk size is not positive.
+     */
+    public Observable<ByteBuffer> getBody(final int chunkSize) {
+        return Observable.create(new ResponseBodyStream(
+                sendUnclosed(RequestMethod.GET, ClientRequest.empty()),
+                chunkSize));
+    }
+
+    /**
+     * Send an HTTP {@code GET} request, and write the body of a successful
+     * response into the given file, creating or replacing it. The file is
+     * not touched if the request fails. Emit the number of bytes written so
+     * far as the download proceeds, and finally the total. As with
+     * {@link #getBody(int)}, the request is not retried, hedged, or
+     * coalesced.
+     *
+     * The body is written on the thread that delivers the response, and
+     * without waiting for the subscriber: progress updates that it has not
+     * requested are skipped. Unsubscribing stops the download.
+     */
+    public Observable<Long> getInto(final Path file) {
+        return Observable.create(FileDownload.toPath(
+                sendUnclosed(RequestMethod.GET, ClientRequest.empty()),
+                file));
+    }
+
+    /**
+     * Send an HTTP {@code GET} request, as {@link #getInto(Path)} does, and
+     * write the body of a successful response at the given channel's
+     * position, advancing it. The caller remains responsible for closing
+     * the channel.
+     */
+    public Observable<Long> getInto(final FileChannel file) {
+        return Observable.create(FileDownload.toChannel(
+                sendUnclosed(RequestMethod.GET, ClientRequest.empty()),
+                file));
+    }
+
+    /**
+     * Send an HTTP {@code GET} request, as {@link #get()} does, but with the
+     * addition of the given conditional request headers, such as
+     * {@code If-None-Match}.
+     */
+    /*package*/ Observable<ClientResponse> getConditionally(final ClientRequest conditions) {
+        return send(RequestMethod.GET, conditions);
+    }
+
     @Override
     public Observable<ClientResponse> delete() {
-        final Observable<ClientResponse> obs = Observable.create(this.cachedOnDeleteAction)
-                .lift(ClientResponseCloser.instance());
-        return obs;
+        return send(RequestMethod.DELETE, ClientRequest.empty());
     }
 
     /**
@@ -72,20 +164,7 @@ implements ReadableResource<ClientResponse>,
      */
     @Override
     public Observable<ClientResponse> write(final ClientRequest resourceState) {
-        final Observable.OnSubscribe<ClientResponse> subscribeAction = new Observable.OnSubscribe<ClientResponse>() {
-            @Override
-            public void call(final Subscriber<? super ClientResponse> subscriber) {
-                final AsyncWebResource.Builder request = HttpResource.this.resource.getRequestBuilder();
-                HttpResource.this.requestTemplate.updateResource(request);
-                resourceState.updateResource(request);
-                // Don't pass resourceState to put(): already in request
-                final Future<ClientResponse> response = request.put(ResponseListener.adapt(subscriber));
-                subscriber.add(Subscriptions.from(response));
-            }
-        };
-        final Observable<ClientResponse> obs = Observable.create(subscribeAction)
-                .lift(ClientResponseCloser.instance());
-        return obs;
+        return send(RequestMethod.PUT, resourceState);
     }
 
     /**
@@ -99,30 +178,22 @@ implements ReadableResource<ClientResponse>,
      */
     @Override
     public Observable<ClientResponse> update(final ClientRequest update) {
-        final Observable.OnSubscribe<ClientResponse> subscribeAction = new Observable.OnSubscribe<ClientResponse>() {
-            @Override
-            public void call(final Subscriber<? super ClientResponse> subscriber) {
-                final AsyncWebResource.Builder request = HttpResource.this.resource.getRequestBuilder();
-                HttpResource.this.requestTemplate.updateResource(request);
-                update.updateResource(request);
-                // Don't pass resourceState to post(): already in request
-                final Future<ClientResponse> response = request.post(ResponseListener.adapt(subscriber));
-                subscriber.add(Subscriptions.from(response));
-            }
-        };
-        final Observable<ClientResponse> obs = Observable.create(subscribeAction)
-                .lift(ClientResponseCloser.instance());
-        return obs;
+        return send(RequestMethod.POST, update);
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName()
-                + " [resource=" + this.resource
-                + ", requestTemplate=" + this.requestTemplate
+                + " [uri=" + this.uri
+                + ", requestTemplate=" + this.provider.getRequestTemplate()
                 + ']';
     }
 
+    /**
+     * Two resources are equal if they have the same {@link URI} and would
+     * send the same requests to it: that is, if they come from providers
+     * with the same {@link HttpTransport} and the same request template.
+     */
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
@@ -135,10 +206,16 @@ implements ReadableResource<ClientResponse>,
             return false;
         }
         final HttpResource other = (HttpResource) obj;
-        if (!this.resource.equals(other.resource)) {
+        if (!this.uri.equals(other.uri)) {
             return false;
         }
-        if (!this.requestTemplate.equals(other.requestTemplate)) {
+        if (this.provider == other.provider) {
+            return true;
+        }
+        if (!this.provider.getTransport().equals(other.provider.getTransport())) {
+            return false;
+        }
+        if (!this.provider.getRequestTemplate().equals(other.provider.getRequestTemplate())) {
             return false;
         }
         return true;
@@ -148,37 +225,184 @@ implements ReadableResource<ClientResponse>,
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + this.resource.hashCode();
-        result = prime * result + this.requestTemplate.hashCode();
+        result = prime * result + this.uri.hashCode();
+        result = prime * result + this.provider.getRequestTemplate().hashCode();
         return result;
     }
 
-    /*package*/ HttpResource(
-            final AsyncWebResource resource,
-            final ClientRequest requestTemplate) {
-        this.resource = Objects.requireNonNull(resource);
-        this.requestTemplate = Objects.requireNonNull(requestTemplate);
-
-        this.cachedOnGetAction = new Observable.OnSubscribe<ClientResponse>() {
-            @Override
-            public void call(final Subscriber<? super ClientResponse> subscriber) {
-                final AsyncWebResource.Builder request = HttpResource.this.resource.getRequestBuilder();
-                HttpResource.this.requestTemplate.updateResource(request);
-                final Future<ClientResponse> response = request.get(ResponseListener.adapt(subscriber));
-                assert response != null;
-                subscriber.add(Subscriptions.from(response));
+    /*package*/ HttpResource(final HttpResourceProvider provider, final URI uri) {
+        this.provider = Objects.requireNonNull(provider);
+        this.uri = Objects.requireNonNull(uri);
+    }
+
+    private HttpTransport.Endpoint getEndpoint() {
+        HttpTransport.Endpoint endpoint = this.lazyEndpoint;
+        if (endpoint == null) {
+            endpoint = this.provider.getTransport().endpoint(this.uri);
+            this.lazyEndpoint = endpoint;
+        }
+        return endpoint;
+    }
+
+    private Observable<ClientResponse> send(final RequestMethod method, final ClientRequest request) {
+        final PooledResponses pooledResponses = this.provider.getPooledResponses();
+        final Observable<ClientResponse> unclosed = (pooledResponses != null)
+                ? sendUnclosed(method, request).map(pooledResponses)
+                : sendUnclosed(method, request);
+        final Observable<ClientResponse> obs = unclosed.lift(ClientResponseCloser.instance());
+        return this.provider.withRetries(method, obs);
+    }
+
+    /**
+     * Send a request, without retries, and leave it to the subscriber to
+     * close the response.
+     */
+    private Observable<ClientResponse> sendUnclosed(final RequestMethod method, final ClientRequest request) {
+        final SendAction action = new SendAction(method, request);
+        final Observable.OnSubscribe<ClientResponse> untraced = limit(action);
+        final RequestTracer tracer = this.provider.getTracer();
+        Observable<ClientResponse> obs = Observable.create((tracer != null)
+                ? new TracedAction(action, untraced, tracer)
+                : untraced);
+        final RequestMetrics.Partition metrics = getMetrics();
+        if (metrics != null) {
+            obs = obs.lift(metrics.series(method));
+        }
+        final ResponseLeakDetector leakDetector = this.provider.getLeakDetector();
+        if (leakDetector != null) {
+            obs = obs.lift(leakDetector.track(method, this.uri));
+        }
+        return obs;
+    }
+
+    /**
+     * Apply the provider's {@link Bulkhead}, if any, to the given action.
+     */
+    private Observable.OnSubscribe<ClientResponse> limit(final Observable.OnSubscribe<ClientResponse> action) {
+        final Bulkhead bulkhead = this.provider.getBulkhead();
+        return (bulkhead != null)
+                ? bulkhead.limit(this.uri, action)
+                : action;
+    }
+
+    /**
+     * @return  The metrics for this resource's partition, or null if the
+     *          provider doesn't record metrics.
+     */
+    private RequestMetrics.Partition getMetrics() {
+        RequestMetrics.Partition partition = this.lazyMetrics;
+        if (partition == null) {
+            final RequestMetrics metrics = this.provider.getMetrics();
+            if (metrics == null) {
+                return null;
+            }
+            partition = metrics.partition(this.uri);
+            this.lazyMetrics = partition;
+        }
+        return partition;
+    }
+
+
+    /**
+     * Sends a single request, with the given method, each time an
+     * {@link Observable} is subscribed. An instance is created for each
+     * call to a CRUD method, rather than for each resource, so that
+     * resources that are never used cost nothing.
+     */
+    private final class SendAction implements Observable.OnSubscribe<ClientResponse> {
+        private final RequestMethod method;
+        private final ClientRequest request;
+        /** Null if the request isn't traced. */
+        private final RequestTimeline timeline;
+        /**
+         * The action that counts the times this request has been sent, for
+         * {@link RequestEvents}: this one, or the untraced action from
+         * which a traced one was made.
+         */
+        private final SendAction counter;
+        /*package*/ volatile int sendCount = 0;
+
+        public SendAction(final RequestMethod method, final ClientRequest request) {
+            this.method = method;
+            this.request = Objects.requireNonNull(request);
+            this.timeline = null;
+            this.counter = this;
+        }
+
+        private SendAction(final SendAction untraced, final RequestTimeline timeline) {
+            this.method = untraced.method;
+            this.request = untraced.request;
+            this.timeline = Objects.requireNonNull(timeline);
+            this.counter = untraced;
+        }
+
+        /**
+         * A copy of this action that carries the given timeline to the
+         * transport.
+         */
+        public SendAction traced(final RequestTimeline newTimeline) {
+            return new SendAction(this, newTimeline);
+        }
+
+        @Override
+        public void call(final Subscriber<? super ClientResponse> subscriber) {
+            if (subscriber.isUnsubscribed()) {
+                // e.g. rejected by an operator before being sent
+                if (this.timeline != null) {
+                    this.timeline.finish();
+                }
+                return;
+            }
+            Subscriber<? super ClientResponse> observed = subscriber;
+            final RequestEvents events = RequestEvents.instance();
+            if (events.isEnabled()) {
+                final int attempt = sendCounts.incrementAndGet(this.counter);
+                observed = RequestEvents.observe(
+                        events.begin(this.method, HttpResource.this.uri, attempt),
+                        observed);
             }
-        };
-        this.cachedOnDeleteAction = new Observable.OnSubscribe<ClientResponse>() {
-            @Override
-            public void call(final Subscriber<? super ClientResponse> subscriber) {
-                final AsyncWebResource.Builder request = HttpResource.this.resource.getRequestBuilder();
-                HttpResource.this.requestTemplate.updateResource(request);
-                final Future<ClientResponse> response = request.delete(ResponseListener.adapt(subscriber));
-                assert response != null;
-                subscriber.add(Subscriptions.from(response));
+            if (this.timeline != null) {
+                // Outermost, so that the transport can find it:
+                observed = this.timeline.observe(observed);
             }
-        };
+            getEndpoint().send(
+                    this.method,
+                    HttpResource.this.provider.getRequestTemplate(),
+                    this.request,
+                    observed);
+        }
+    }
+
+
+    /**
+     * Asks the {@link RequestTracer} whether to trace each request when
+     * it's subscribed. If so, sends it with a {@link SendAction} of its
+     * own, which carries the request's {@link RequestTimeline} to the
+     * transport; otherwise, with the shared, untraced action.
+     */
+    private final class TracedAction implements Observable.OnSubscribe<ClientResponse> {
+        private final SendAction action;
+        private final Observable.OnSubscribe<ClientResponse> untraced;
+        private final RequestTracer tracer;
+
+        public TracedAction(
+                final SendAction action,
+                final Observable.OnSubscribe<ClientResponse> untraced,
+                final RequestTracer tracer) {
+            this.action = action;
+            this.untraced = untraced;
+            this.tracer = tracer;
+        }
+
+        @Override
+        public void call(final Subscriber<? super ClientResponse> subscriber) {
+            final RequestTimeline timeline = this.tracer.start(this.action.method, HttpResource.this.uri);
+            if (timeline == null) {
+                this.untraced.call(subscriber);
+            } else {
+                limit(this.action.traced(timeline)).call(subscriber);
+            }
+        }
     }
 
 }
@@ -15,23 +15,34 @@
 package crud.http;
 
 import java.net.URI;
+import java.util.Map;
 import java.util.Objects;
 
-import com.sun.jersey.api.client.AsyncWebResource;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.spi.MessageBodyWorkers;
 
 import crud.DeletableResourceProvider;
 import crud.ReadableResourceProvider;
 import crud.ResourceProvider;
 import crud.UpdatableResourceProvider;
 import crud.WritableResourceProvider;
+import crud.http.util.BackoffRetry;
+import crud.http.util.FailedResponseOperator;
+import rx.Observable;
+import rx.functions.Func1;
 
 
 /**
  * A {@link ResourceProvider} based on Jersey that provides
  * {@link HttpResource}s at given {@link URI}s. These resources are capable of
  * all four CRUD actions: reading, writing, updating, and deleting.
+ *
+ * A provider sends its requests via an {@link HttpTransport}. Those created
+ * from a Jersey {@link Client} use a {@link JerseyTransport}.
  */
 public final class HttpResourceProvider
 implements ReadableResourceProvider<URI, ClientResponse>,
@@ -39,8 +50,26 @@ implements ReadableResourceProvider<URI, ClientResponse>,
            WritableResourceProvider<URI, ClientRequest, ClientResponse>,
            UpdatableResourceProvider<URI, ClientRequest, ClientResponse> {
 
-    private final Client restClient;
+    private static final Func1<URI, URI> identity = new Func1<URI, URI>() {
+        @Override
+        public URI call(final URI uri) {
+            return uri;
+        }
+    };
+
+    private final HttpTransport transport;
     private final ClientRequest requestTemplate;
+    private final GetCoalescer getCoalescer;
+    private final LoadingCache<URI, HttpResource> internedResources;
+    private final Bulkhead bulkhead;
+    private final BackoffRetry retry;
+    private final FailedResponseOperator retriedResponses;
+    private final boolean retryUpdates;
+    private final HedgePolicy hedgePolicy;
+    private final PooledResponses pooledResponses;
+    private final RequestMetrics metrics;
+    private final RequestTracer tracer;
+    private final ResponseLeakDetector leakDetector;
 
 
     /**
@@ -48,7 +77,7 @@ implements ReadableResourceProvider<URI, ClientResponse>,
      * {@link Client}.
      */
     public static HttpResourceProvider forClient(final Client restClient) {
-        return new HttpResourceProvider(restClient, ClientRequest.empty());
+        return newBuilder(restClient).build();
     }
 
     /**
@@ -67,28 +96,480 @@ implements ReadableResourceProvider<URI, ClientResponse>,
     public static HttpResourceProvider forClientWithTemplate(
             final Client restClient,
             final ClientRequest requestTemplate) {
-        return new HttpResourceProvider(restClient, requestTemplate);
+        return newBuilder(restClient)
+                .requestTemplate(requestTemplate)
+                .build();
+    }
+
+    /**
+     * Begin configuring a new {@link ResourceProvider} backed by the given
+     * {@link Client}, for cases where {@link #forClient(Client)} and
+     * {@link #forClientWithTemplate(Client, ClientRequest)} don't offer
+     * enough options.
+     *
+     * @throws NullPointerException If the given client is null.
+     */
+    public static Builder newBuilder(final Client restClient) {
+        return newBuilder(JerseyTransport.forClient(restClient));
+    }
+
+    /**
+     * Begin configuring a new {@link ResourceProvider} that will send its
+     * requests via the given {@link HttpTransport}.
+     *
+     * @throws NullPointerException If the given transport is null.
+     */
+    public static Builder newBuilder(final HttpTransport transport) {
+        return new Builder(transport);
     }
 
+    /**
+     * @return  A resource for the given {@link URI}. If this provider
+     *          interns its resources, it may be the same instance returned
+     *          from an earlier call with an equal {@code URI}.
+     *
+     * @see Builder#internResources(long)
+     */
     @Override
     public HttpResource get(final URI uri) {
-        final AsyncWebResource resource = this.restClient.asyncResource(uri);
-        return new HttpResource(resource, this.requestTemplate);
+        if (this.internedResources != null) {
+            return this.internedResources.getUnchecked(uri);
+        }
+        return new HttpResource(this, uri);
+    }
+
+    /**
+     * {@code GET} each {@link URI} emitted by the given {@link Observable},
+     * with at most {@code maxInFlight} requests outstanding at once. Each
+     * outstanding request, and each response waiting for downstream demand
+     * or, in {@link BulkResponse.Order#REQUEST request order}, for earlier
+     * responses, occupies one of those slots; the source is not asked for
+     * another {@code URI} until a slot is free. The source must therefore
+     * support backpressure, as does, for example,
+     * {@link Observable#from(Iterable)}.
+     *
+     * @throws IllegalArgumentException If {@code maxInFlight} is not
+     *              positive.
+     *
+     * @see BulkResponse
+     */
+    public Observable<BulkResponse> getAll(
+            final Observable<URI> uris,
+            final int maxInFlight,
+            final BulkResponse.Order order) {
+        return uris.lift(new BulkRequestOperator<>(
+                identity,
+                new Func1<URI, Observable<ClientResponse>>() {
+                    @Override
+                    public Observable<ClientResponse> call(final URI uri) {
+                        return get(uri).get();
+                    }
+                },
+                getMessageBodyWorkers(),
+                maxInFlight,
+                order));
+    }
+
+    /**
+     * {@code PUT} each {@link ClientRequest} emitted by the given
+     * {@link Observable} to its {@link URI}, with at most
+     * {@code maxInFlight} requests outstanding at once.
+     *
+     * @throws IllegalArgumentException If {@code maxInFlight} is not
+     *              positive.
+     *
+     * @see #getAll(Observable, int, BulkResponse.Order)
+     */
+    public Observable<BulkResponse> writeAll(
+            final Observable<? extends Map.Entry<URI, ClientRequest>> requests,
+            final int maxInFlight,
+            final BulkResponse.Order order) {
+        return requests.lift(new BulkRequestOperator<Map.Entry<URI, ClientRequest>>(
+                new Func1<Map.Entry<URI, ClientRequest>, URI>() {
+                    @Override
+                    public URI call(final Map.Entry<URI, ClientRequest> request) {
+                        return request.getKey();
+                    }
+                },
+                new Func1<Map.Entry<URI, ClientRequest>, Observable<ClientResponse>>() {
+                    @Override
+                    public Observable<ClientResponse> call(final Map.Entry<URI, ClientRequest> request) {
+                        return get(request.getKey()).write(request.getValue());
+                    }
+                },
+                getMessageBodyWorkers(),
+                maxInFlight,
+                order));
+    }
+
+    /**
+     * {@code DELETE} each {@link URI} emitted by the given
+     * {@link Observable}, with at most {@code maxInFlight} requests
+     * outstanding at once.
+     *
+     * @throws IllegalArgumentException If {@code maxInFlight} is not
+     *              positive.
+     *
+     * @see #getAll(Observable, int, BulkResponse.Order)
+     */
+    public Observable<BulkResponse> deleteAll(
+            final Observable<URI> uris,
+            final int maxInFlight,
+            final BulkResponse.Order order) {
+        return uris.lift(new BulkRequestOperator<>(
+                identity,
+                new Func1<URI, Observable<ClientResponse>>() {
+                    @Override
+                    public Observable<ClientResponse> call(final URI uri) {
+                        return get(uri).delete();
+                    }
+                },
+                getMessageBodyWorkers(),
+                maxInFlight,
+                order));
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName()
-                + " [restClient=" + this.restClient
+                + " [transport=" + this.transport
                 + ", requestTemplate=" + this.requestTemplate
+                + ", coalesceGets=" + (this.getCoalescer != null)
+                + ", bulkhead=" + this.bulkhead
+                + ", retry=" + this.retry
+                + ", hedgePolicy=" + this.hedgePolicy
+                + ", metrics=" + this.metrics
+                + ", tracer=" + this.tracer
+                + ", leakDetector=" + this.leakDetector
                 + ']';
     }
 
-    private HttpResourceProvider(
-            final Client restClient,
-            final ClientRequest requestTemplate) {
-        this.restClient = Objects.requireNonNull(restClient);
-        this.requestTemplate = Objects.requireNonNull(requestTemplate);
+    /**
+     * @see HttpTransport#getMessageBodyWorkers()
+     */
+    /*package*/ MessageBodyWorkers getMessageBodyWorkers() {
+        return this.transport.getMessageBodyWorkers();
+    }
+
+    /*package*/ HttpTransport getTransport() {
+        return this.transport;
+    }
+
+    /*package*/ ClientRequest getRequestTemplate() {
+        return this.requestTemplate;
+    }
+
+    /**
+     * @return  The coalescer for {@code GET} requests, or null if they
+     *          should not be coalesced.
+     */
+    /*package*/ GetCoalescer getGetCoalescer() {
+        return this.getCoalescer;
+    }
+
+    /**
+     * @return  The limit on concurrent requests per host, or null if there
+     *          is none.
+     */
+    /*package*/ Bulkhead getBulkhead() {
+        return this.bulkhead;
+    }
+
+    /**
+     * @return  The policy for hedging {@code GET} requests, or null if
+     *          they should not be hedged.
+     */
+    /*package*/ HedgePolicy getHedgePolicy() {
+        return this.hedgePolicy;
+    }
+
+    /**
+     * @return  The function that makes responses read their bodies into
+     *          pooled arrays, or null if they should read them as usual.
+     */
+    /*package*/ PooledResponses getPooledResponses() {
+        return this.pooledResponses;
+    }
+
+    /**
+     * @return  The metrics that requests should record, or null if they
+     *          should record none.
+     */
+    /*package*/ RequestMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return  The tracer that samples requests, or null if they should
+     *          not be traced.
+     */
+    /*package*/ RequestTracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * @return  The detector that samples responses for leaks, or null if
+     *          they should not be tracked.
+     */
+    /*package*/ ResponseLeakDetector getLeakDetector() {
+        return this.leakDetector;
+    }
+
+    /**
+     * Apply this provider's retry policy, if any, to requests with the
+     * given method.
+     */
+    /*package*/ Observable<ClientResponse> withRetries(
+            final RequestMethod method,
+            final Observable<ClientResponse> responses) {
+        if (this.retry == null || (method == RequestMethod.POST && !this.retryUpdates)) {
+            return responses;
+        }
+        final Observable<ClientResponse> failures = (this.retriedResponses != null)
+                ? responses.lift(this.retriedResponses)
+                : responses;
+        return failures.retryWhen(this.retry);
+    }
+
+    private HttpResourceProvider(final Builder builder) {
+        this.transport = builder.transport;
+        this.requestTemplate = builder.requestTemplate;
+        this.bulkhead = builder.bulkhead;
+        this.retry = builder.retry;
+        this.retriedResponses = builder.retriedResponses;
+        this.retryUpdates = builder.retryUpdates;
+        this.hedgePolicy = builder.hedgePolicy;
+        this.metrics = builder.metrics;
+        this.tracer = builder.tracer;
+        this.leakDetector = builder.leakDetector;
+        final MessageBodyWorkers workers = this.transport.getMessageBodyWorkers();
+        this.pooledResponses = (builder.bufferPool != null && workers != null)
+                ? new PooledResponses(builder.bufferPool, workers)
+                : null;
+        this.getCoalescer = builder.coalesceGets
+                ? new GetCoalescer(this.transport.getMessageBodyWorkers())
+                : null;
+        if (builder.maxInternedResources > 0L) {
+            this.internedResources = CacheBuilder.newBuilder()
+                    .maximumSize(builder.maxInternedResources)
+                    .build(new CacheLoader<URI, HttpResource>() {
+                        @Override
+                        public HttpResource load(final URI uri) {
+                            return new HttpResource(HttpResourceProvider.this, uri);
+                        }
+                    });
+        } else {
+            this.internedResources = null;
+        }
+    }
+
+
+    public static final class Builder {
+        private final HttpTransport transport;
+        private ClientRequest requestTemplate = ClientRequest.empty();
+        private boolean coalesceGets = false;
+        private long maxInternedResources = 0L;
+        private ExecutorPolicy executorPolicy = null;
+        private Bulkhead bulkhead = null;
+        private BackoffRetry retry = null;
+        private FailedResponseOperator retriedResponses = null;
+        private boolean retryUpdates = false;
+        private HedgePolicy hedgePolicy = null;
+        private BufferPool bufferPool = null;
+        private RequestMetrics metrics = null;
+        private RequestTracer tracer = null;
+        private ResponseLeakDetector leakDetector = null;
+
+        /**
+         * Each request will include all of the elements of the given
+         * request. By default, the template is {@link ClientRequest#empty()}.
+         *
+         * @see HttpResourceProvider#forClientWithTemplate(Client, ClientRequest)
+         */
+        public Builder requestTemplate(final ClientRequest template) {
+            this.requestTemplate = Objects.requireNonNull(template);
+            return this;
+        }
+
+        /**
+         * If true, concurrent {@code GET} requests for the same
+         * {@link URI} will share a single request to the server, rather
+         * than each sending its own. The shared response body will be read
+         * into memory, and each subscriber will receive its own copy. This
+         * is off by default.
+         */
+        public Builder coalesceConcurrentGets(final boolean coalesce) {
+            this.coalesceGets = coalesce;
+            return this;
+        }
+
+        /**
+         * Keep up to the given number of recently used resources, and
+         * return them again from {@link HttpResourceProvider#get(URI)}
+         * rather than creating new ones. Resources themselves are cheap to
+         * create, so this won't make lookups faster. However, an interned
+         * resource keeps the Jersey resource that it creates when it sends
+         * its first request, so that it need not be created again for later
+         * lookups of the same hot {@link URI}. The default is zero: don't
+         * intern resources.
+         */
+        public Builder internResources(final long maxResources) {
+            if (maxResources < 0L) {
+                throw new IllegalArgumentException("negative size " + maxResources);
+            }
+            this.maxInternedResources = maxResources;
+            return this;
+        }
+
+        /**
+         * Execute requests according to the given policy, for example on
+         * virtual threads. By default, the client's executor is left alone.
+         *
+         * Jersey has no per-request executor, so when the provider is built,
+         * this replaces the {@link java.util.concurrent.ExecutorService} of
+         * the underlying Jersey {@link Client}, and shuts the old one down,
+         * unless it belongs to a policy: see
+         * {@link ExecutorPolicy#using(java.util.concurrent.ExecutorService)}.
+         * That affects every user of the client, including other providers:
+         * give the provider a client of its own, or the same policy, and
+         * build it before the client sends any requests, or those sent
+         * meanwhile may be rejected by the old executor.
+         *
+         * @throws IllegalStateException    If this provider doesn't use a
+         *              {@link JerseyTransport}. Other transports don't
+         *              block a thread for each request.
+         */
+        public Builder executorPolicy(final ExecutorPolicy policy) {
+            if (!(this.transport instanceof JerseyTransport)) {
+                throw new IllegalStateException(
+                        "executor policies apply only to JerseyTransport, not " + this.transport);
+            }
+            this.executorPolicy = Objects.requireNonNull(policy);
+            return this;
+        }
+
+        /**
+         * Limit the number of requests in flight to each host, so that a
+         * slow host can't hold up requests to the others. The given
+         * {@link Bulkhead} also reports how many requests are waiting and
+         * how many have been rejected. By default, there is no limit.
+         */
+        public Builder bulkhead(final Bulkhead newBulkhead) {
+            this.bulkhead = Objects.requireNonNull(newBulkhead);
+            return this;
+        }
+
+        /**
+         * Retry requests that fail with an exception, waiting between
+         * attempts according to the given {@link BackoffRetry}. Only
+         * {@code GET}, {@code PUT}, and {@code DELETE} requests are
+         * retried, unless {@link #retryUpdates(boolean)} says otherwise.
+         * By default, nothing is retried.
+         */
+        public Builder retry(final BackoffRetry backoff) {
+            this.retry = Objects.requireNonNull(backoff);
+            this.retriedResponses = null;
+            return this;
+        }
+
+        /**
+         * Retry requests that fail with an exception, or whose responses
+         * are failures according to the given
+         * {@link FailedResponseOperator}, as {@link #retry(BackoffRetry)}
+         * does. Failed responses become
+         * {@link com.sun.jersey.api.client.UniformInterfaceException}s: the
+         * {@code Retry-After} header of each, if any, sets the delay before
+         * the next attempt, and the one from the last attempt is reported to
+         * the subscriber.
+         */
+        public Builder retry(final FailedResponseOperator failedResponses, final BackoffRetry backoff) {
+            this.retry = Objects.requireNonNull(backoff);
+            this.retriedResponses = Objects.requireNonNull(failedResponses);
+            return this;
+        }
+
+        /**
+         * If true, retry {@code POST} requests too. Since {@code POST}
+         * isn't idempotent, a retry may repeat an update that the server
+         * had already applied. This is false by default.
+         */
+        public Builder retryUpdates(final boolean retry) {
+            this.retryUpdates = retry;
+            return this;
+        }
+
+        /**
+         * If a {@code GET} request hasn't responded within the delay given
+         * by the {@link HedgePolicy}, send another, and take whichever
+         * response arrives first. The policy keeps its own state, so give
+         * each provider its own. By default, requests are not hedged.
+         */
+        public Builder hedgeGets(final HedgePolicy policy) {
+            this.hedgePolicy = Objects.requireNonNull(policy);
+            return this;
+        }
+
+        /**
+         * Decode {@code byte[]} and {@code String} response entities from
+         * arrays borrowed from the given pool, rather than through the
+         * intermediate buffers of Jersey's providers. Each array is
+         * returned when its response is closed, as it is once the
+         * response has been delivered. Responses to {@code getBody} and
+         * {@code getInto} are streamed, and don't use the pool. By
+         * default, responses are decoded as usual.
+         *
+         * This doesn't affect the serialization of request entities, which
+         * is up to the transport; see, for example,
+         * {@link NettyTransport.Builder#bufferPool(BufferPool)}.
+         */
+        public Builder bufferPool(final BufferPool pool) {
+            this.bufferPool = Objects.requireNonNull(pool);
+            return this;
+        }
+
+        /**
+         * Record the latency, outcome, and concurrency of every request,
+         * including each retry and hedge, in the given
+         * {@link RequestMetrics}. Providers may share metrics. By default,
+         * nothing is recorded, and nothing is added to the path of a
+         * request.
+         */
+        public Builder metrics(final RequestMetrics newMetrics) {
+            this.metrics = Objects.requireNonNull(newMetrics);
+            return this;
+        }
+
+        /**
+         * Record a {@link RequestTimeline} for the requests that the given
+         * tracer samples, each retry and hedge separately, and send them
+         * with a W3C {@code traceparent} header. By default, requests are
+         * not traced.
+         */
+        public Builder tracer(final RequestTracer newTracer) {
+            this.tracer = Objects.requireNonNull(newTracer);
+            return this;
+        }
+
+        /**
+         * Track the responses that the given detector samples, to find
+         * those that are never closed. By default, responses are not
+         * tracked.
+         */
+        public Builder leakDetector(final ResponseLeakDetector detector) {
+            this.leakDetector = Objects.requireNonNull(detector);
+            return this;
+        }
+
+        public HttpResourceProvider build() {
+            if (this.executorPolicy != null) {
+                this.executorPolicy.applyTo(((JerseyTransport) this.transport).getClient());
+            }
+            return new HttpResourceProvider(this);
+        }
+
+        private Builder(final HttpTransport transport) {
+            this.transport = Objects.requireNonNull(transport);
+        }
     }
 
 }
@@ -0,0 +1,89 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Subscriber;
+
+
+/**
+ * The means by which {@link HttpResource}s send their requests and receive
+ * their responses. An {@link HttpResourceProvider} is built on a single
+ * transport, which all of its resources share. {@link JerseyTransport},
+ * based on the Jersey client's asynchronous API, is the default.
+ *
+ * Whatever the transport, requests are described by {@link ClientRequest}s
+ * and responses are delivered as Jersey {@link ClientResponse}s, so that
+ * applications see the same behavior regardless of the transport they
+ * choose.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface HttpTransport {
+
+    /**
+     * Prepare to send requests to the given {@link URI}. Each
+     * {@link HttpResource} calls this method lazily, before sending its first
+     * request, and keeps the result, so implementations may do any per-URI
+     * work here rather than for every request.
+     */
+    Endpoint endpoint(URI uri);
+
+    /**
+     * @return  The entity providers with which to decode the bodies of
+     *          {@link ClientResponse}s that have been copied into memory
+     *          from responses received by this transport, such as those
+     *          stored by a {@link CachingHttpResourceProvider}. May be null,
+     *          in which case such copies will only support
+     *          {@link ClientResponse#getEntityInputStream()}.
+     */
+    MessageBodyWorkers getMessageBodyWorkers();
+
+
+    /**
+     * Sends requests to a single {@link URI}.
+     */
+    public interface Endpoint {
+        /**
+         * Send a request, and deliver its response to the given
+         * {@link Subscriber}. Implementations must:
+         * <ul>
+         *  <li>Build the request from the given template, followed by the
+         *      given request, such that the latter's content type and
+         *      entity override the former's, and its other headers are
+         *      added to the former's.</li>
+         *  <li>Deliver exactly one {@link ClientResponse}, followed by
+         *      {@code onCompleted}, or else deliver {@code onError}.</li>
+         *  <li>Add to the subscriber a {@link rx.Subscription} that, when
+         *      unsubscribed, cancels the request if it's still
+         *      outstanding.</li>
+         *  <li>Not close the response; {@link HttpResource} arranges for
+         *      that.</li>
+         * </ul>
+         *
+         * This method should not block waiting for the response.
+         */
+        void send(
+                RequestMethod method,
+                ClientRequest template,
+                ClientRequest request,
+                Subscriber<? super ClientResponse> subscriber);
+    }
+
+}
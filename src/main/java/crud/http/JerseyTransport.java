@@ -0,0 +1,206 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * An {@link HttpTransport} based on the asynchronous API of a Jersey
+ * {@link Client}. Requests are executed by the {@link Client}'s
+ * {@link java.util.concurrent.ExecutorService}.
+ */
+public final class JerseyTransport implements HttpTransport {
+
+    private final Client restClient;
+
+
+    /**
+     * @throws NullPointerException If the given client is null.
+     */
+    public static JerseyTransport forClient(final Client restClient) {
+        return new JerseyTransport(restClient);
+    }
+
+    public Client getClient() {
+        return this.restClient;
+    }
+
+    @Override
+    public Endpoint endpoint(final URI uri) {
+        final AsyncWebResource resource = this.restClient.asyncResource(uri);
+        resource.addFilter(StreamingEntityFilter.instance);
+        resource.addFilter(TimelineFilter.instance);
+        return new JerseyEndpoint(resource);
+    }
+
+    @Override
+    public MessageBodyWorkers getMessageBodyWorkers() {
+        return this.restClient.getMessageBodyWorkers();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [restClient=" + this.restClient
+                + ']';
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final JerseyTransport other = (JerseyTransport) obj;
+        return this.restClient.equals(other.restClient);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.restClient.hashCode();
+    }
+
+    private JerseyTransport(final Client restClient) {
+        this.restClient = Objects.requireNonNull(restClient);
+    }
+
+
+    /**
+     * Replaces a {@link StreamingEntity} with an entity that Jersey can
+     * write without buffering it: a {@link File}, which Jersey sends with
+     * its length, or else a stream, sent with chunked transfer encoding.
+     * Without a length or chunking, Jersey's default connection handler
+     * would buffer the whole entity to find its length.
+     */
+    private static final class StreamingEntityFilter extends ClientFilter {
+        public static final StreamingEntityFilter instance = new StreamingEntityFilter();
+
+        @Override
+        public ClientResponse handle(final com.sun.jersey.api.client.ClientRequest request) {
+            final Object entity = request.getEntity();
+            if (entity instanceof StreamingEntity) {
+                final StreamingEntity streaming = (StreamingEntity) entity;
+                final File file = streaming.toFile();
+                if (file != null && file.length() < Integer.MAX_VALUE) {
+                    request.setEntity(file);
+                } else {
+                    request.setEntity(streaming.openStream());
+                    if (!request.getProperties().containsKey(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE)) {
+                        request.getProperties().put(
+                                ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE,
+                                StreamingEntity.CHUNK_SIZE);
+                    }
+                }
+            }
+            return getNext().handle(request);
+        }
+    }
+
+
+    /**
+     * Notes when one of the {@link Client}'s threads begins to execute a
+     * traced request. The request's {@link RequestTimeline} travels to
+     * that thread as the value of its {@code traceparent} header, the only
+     * per-request state that Jersey carries across, and is replaced here
+     * with the header's real value.
+     */
+    private static final class TimelineFilter extends ClientFilter {
+        public static final TimelineFilter instance = new TimelineFilter();
+
+        @Override
+        public ClientResponse handle(final com.sun.jersey.api.client.ClientRequest request) {
+            final Object traceParent = request.getHeaders().getFirst(RequestTimeline.TRACEPARENT);
+            if (traceParent instanceof RequestTimeline) {
+                final RequestTimeline timeline = (RequestTimeline) traceParent;
+                timeline.mark(RequestTimeline.Event.DISPATCH);
+                request.getHeaders().putSingle(RequestTimeline.TRACEPARENT, timeline.getTraceParent());
+            }
+            return getNext().handle(request);
+        }
+    }
+
+
+    private static final class JerseyEndpoint implements HttpTransport.Endpoint {
+        private final AsyncWebResource resource;
+
+        public JerseyEndpoint(final AsyncWebResource resource) {
+            this.resource = Objects.requireNonNull(resource);
+        }
+
+        @Override
+        public void send(
+                final RequestMethod method,
+                final ClientRequest template,
+                final ClientRequest request,
+                final Subscriber<? super ClientResponse> subscriber) {
+            final AsyncWebResource.Builder builder = this.resource.getRequestBuilder();
+            template.updateResource(builder);
+            request.updateResource(builder);
+            final RequestTimeline timeline = RequestTimeline.of(subscriber);
+            if (timeline != null) {
+                // Replaced with the header's text by TimelineFilter:
+                builder.header(RequestTimeline.TRACEPARENT, timeline);
+            }
+            // Don't pass the request to put() or post(): already in builder
+            final ResponseListener listener = ResponseListener.adapt(subscriber);
+            final Future<ClientResponse> response;
+            switch (method) {
+                case GET:
+                    response = builder.get(listener);
+                    break;
+                case PUT:
+                    response = builder.put(listener);
+                    break;
+                case POST:
+                    response = builder.post(listener);
+                    break;
+                case DELETE:
+                    response = builder.delete(listener);
+                    break;
+                default:
+                    throw new AssertionError("unexpected method " + method);
+            }
+            assert response != null;
+            subscriber.add(Subscriptions.from(response));
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName()
+                    + " [resource=" + this.resource
+                    + ']';
+        }
+    }
+
+}
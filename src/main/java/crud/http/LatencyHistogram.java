@@ -0,0 +1,95 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of durations, in nanoseconds, with log-linear
+ * buckets: each power of two is divided into {@link #SUB_BUCKETS} equal
+ * parts, so that any recorded value is known to within about 3%. Values
+ * of an hour or more share the last bucket.
+ *
+ * Recording is a single atomic increment, and allocates nothing, so it
+ * may be called on every request from any number of threads. Readers
+ * take a {@link RequestMetrics.Snapshot}, which may be slightly
+ * inconsistent with concurrent recordings, but never loses them.
+ */
+/*package*/ final class LatencyHistogram {
+
+    /*package*/ static final int SUB_BUCKET_BITS = 5;
+    /*package*/ static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /*package*/ static final long MAX_VALUE = 3600L * 1000L * 1000L * 1000L;
+    /*package*/ static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+
+    /**
+     * @param nanos A duration. Negative values, which can only come from
+     *              a misbehaving clock, are recorded as zero.
+     */
+    public void record(final long nanos) {
+        final long value = (nanos < 0L) ? 0L : Math.min(nanos, MAX_VALUE);
+        this.counts.incrementAndGet(indexOf(value));
+    }
+
+    public RequestMetrics.Snapshot snapshot() {
+        final long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            copy[i] = this.counts.get(i);
+        }
+        return new RequestMetrics.Snapshot(copy);
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} have a bucket each. Above that,
+     * the bucket is chosen by the position of the highest set bit, and the
+     * {@link #SUB_BUCKET_BITS} bits after it.
+     */
+    /*package*/ static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The smallest value that falls into the given bucket.
+     */
+    /*package*/ static long lowestValueAt(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    /**
+     * The largest value that falls into the given bucket.
+     */
+    /*package*/ static long highestValueAt(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        return lowestValueAt(index) + (1L << shift) - 1L;
+    }
+
+}
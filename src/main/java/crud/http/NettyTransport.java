@@ -0,0 +1,717 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.ws.rs.core.MediaType;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * A fully non-blocking {@link HttpTransport} based on Netty. Requests are
+ * written, and responses read, on a small group of event-loop threads,
+ * over keep-alive HTTP/1.1 connections pooled per origin, so that the
+ * number of requests in flight is limited by connections rather than by
+ * threads.
+ *
+ * Response bodies are not copied onto the heap: each
+ * {@link ClientResponse}'s entity stream reads directly from the pooled
+ * {@link ByteBuf} into which Netty received it, and closing the response,
+ * as {@link HttpResource} does when its {@link rx.Observable} completes or
+ * fails, releases the buffer back to the pool. Subscribers must therefore
+ * decode or copy the entity in {@code onNext}. Responses are aggregated in
+ * memory, up to a configurable maximum size, before they are delivered.
+ *
+ * Netty is an optional dependency of this library. Applications that use
+ * this class must depend on {@code io.netty:netty-codec-http} themselves.
+ */
+public final class NettyTransport implements HttpTransport, Closeable {
+
+    private static final int DEFAULT_MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+    private final EventLoopGroup eventLoops;
+    private final boolean ownsEventLoops;
+    private final MessageBodyWorkers workers;
+    /** Created when the first {@code https} connection is opened, if not given. */
+    private SslContext sslContext;
+    private final int maxContentLength;
+    /** Null if request entities are serialized into new arrays. */
+    private final BufferPool bufferPool;
+    private final AbstractChannelPoolMap<URI, ChannelPool> pools;
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a transport with default settings: a new event-loop group,
+     * unlimited connections per origin, and Jersey's default entity
+     * providers.
+     */
+    public static NettyTransport create() {
+        return newBuilder().build();
+    }
+
+    @Override
+    public Endpoint endpoint(final URI uri) {
+        final String scheme = uri.getScheme();
+        final int port;
+        if ("http".equalsIgnoreCase(scheme)) {
+            port = (uri.getPort() < 0) ? 80 : uri.getPort();
+        } else if ("https".equalsIgnoreCase(scheme)) {
+            port = (uri.getPort() < 0) ? 443 : uri.getPort();
+        } else {
+            throw new IllegalArgumentException("unsupported scheme in " + uri);
+        }
+        final URI origin;
+        try {
+            origin = new URI(scheme.toLowerCase(), null, uri.getHost(), port, null, null, null);
+        } catch (final URISyntaxException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+        return new NettyEndpoint(this.pools.get(origin), uri);
+    }
+
+    @Override
+    public MessageBodyWorkers getMessageBodyWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * Close all pooled connections, and, if this transport created its own
+     * event-loop group, shut it down.
+     */
+    @Override
+    public void close() {
+        this.pools.close();
+        if (this.ownsEventLoops) {
+            this.eventLoops.shutdownGracefully();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [eventLoops=" + this.eventLoops
+                + ", maxContentLength=" + this.maxContentLength
+                + ']';
+    }
+
+    private synchronized SslContext getSslContext() throws SSLException {
+        if (this.sslContext == null) {
+            this.sslContext = SslContextBuilder.forClient().build();
+        }
+        return this.sslContext;
+    }
+
+    private NettyTransport(final Builder builder) {
+        this.ownsEventLoops = builder.eventLoops == null;
+        this.eventLoops = this.ownsEventLoops ? new NioEventLoopGroup() : builder.eventLoops;
+        this.workers = (builder.workers == null)
+                ? Client.create().getMessageBodyWorkers()
+                : builder.workers;
+        this.sslContext = builder.sslContext;
+        this.maxContentLength = builder.maxContentLength;
+        this.bufferPool = builder.bufferPool;
+
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(this.eventLoops)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, Boolean.TRUE)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        final int maxConnectionsPerOrigin = builder.maxConnectionsPerOrigin;
+        this.pools = new AbstractChannelPoolMap<URI, ChannelPool>() {
+            @Override
+            protected ChannelPool newPool(final URI origin) {
+                return new FixedChannelPool(
+                        bootstrap.clone().remoteAddress(origin.getHost(), origin.getPort()),
+                        new PipelineInitializer(origin),
+                        ChannelHealthChecker.ACTIVE,
+                        null,
+                        -1L,
+                        maxConnectionsPerOrigin,
+                        Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    private static HttpMethod toNettyMethod(final RequestMethod method) {
+        switch (method) {
+            case GET:
+                return HttpMethod.GET;
+            case PUT:
+                return HttpMethod.PUT;
+            case POST:
+                return HttpMethod.POST;
+            case DELETE:
+                return HttpMethod.DELETE;
+            default:
+                throw new AssertionError("unexpected method " + method);
+        }
+    }
+
+
+    public static final class Builder {
+        private EventLoopGroup eventLoops = null;
+        private MessageBodyWorkers workers = null;
+        private SslContext sslContext = null;
+        private int maxConnectionsPerOrigin = Integer.MAX_VALUE;
+        private int maxContentLength = DEFAULT_MAX_CONTENT_LENGTH;
+        private BufferPool bufferPool = null;
+
+        /**
+         * Run on the given NIO event-loop group, which the caller remains
+         * responsible for shutting down. By default, the transport creates
+         * its own, with Netty's default number of threads, and shuts it
+         * down when it is {@link NettyTransport#close() closed}.
+         */
+        public Builder eventLoopGroup(final EventLoopGroup group) {
+            this.eventLoops = Objects.requireNonNull(group);
+            return this;
+        }
+
+        /**
+         * Serialize request entities, and allow responses to decode their
+         * entities, with the given Jersey entity providers. By default,
+         * those of a default Jersey {@link Client} are used.
+         */
+        public Builder messageBodyWorkers(final MessageBodyWorkers newWorkers) {
+            this.workers = Objects.requireNonNull(newWorkers);
+            return this;
+        }
+
+        /**
+         * Use the given context for {@code https} connections. By default,
+         * the JDK's default trust store is used. Whatever the context, the
+         * server's certificate must also match the host of the request
+         * URI, as it must with the Jersey and JDK transports.
+         */
+        public Builder sslContext(final SslContext context) {
+            this.sslContext = Objects.requireNonNull(context);
+            return this;
+        }
+
+        /**
+         * Open at most the given number of connections to any one origin.
+         * Requests beyond that wait for a connection to be released. By
+         * default, there is no limit.
+         *
+         * @throws IllegalArgumentException If the number is not positive.
+         */
+        public Builder maxConnectionsPerOrigin(final int max) {
+            Preconditions.checkArgument(max > 0, "max connections %s must be positive", max);
+            this.maxConnectionsPerOrigin = max;
+            return this;
+        }
+
+        /**
+         * Fail requests whose response bodies are longer than the given
+         * number of bytes. The default is 16 MB.
+         *
+         * @throws IllegalArgumentException If the length is negative.
+         */
+        public Builder maxContentLength(final int length) {
+            Preconditions.checkArgument(length >= 0, "max content length %s is negative", length);
+            this.maxContentLength = length;
+            return this;
+        }
+
+        /**
+         * Serialize request entities into arrays borrowed from the given
+         * pool, which are returned once the request has been written. By
+         * default, each entity is serialized into a new array. Byte-array
+         * entities are always sent as they are.
+         *
+         * @see HttpResourceProvider.Builder#bufferPool(BufferPool)
+         */
+        public Builder bufferPool(final BufferPool pool) {
+            this.bufferPool = Objects.requireNonNull(pool);
+            return this;
+        }
+
+        public NettyTransport build() {
+            return new NettyTransport(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    private final class PipelineInitializer extends AbstractChannelPoolHandler {
+        private final URI origin;
+
+        public PipelineInitializer(final URI origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public void channelCreated(final Channel channel) throws SSLException {
+            final ChannelPipeline pipeline = channel.pipeline();
+            if ("https".equals(this.origin.getScheme())) {
+                final SslHandler ssl = getSslContext().newHandler(
+                        channel.alloc(),
+                        this.origin.getHost(),
+                        this.origin.getPort());
+                verifyHostname(ssl.engine());
+                pipeline.addLast(ssl);
+            }
+            pipeline.addLast(new HttpClientCodec());
+            pipeline.addLast(new HttpObjectAggregator(maxContentLength));
+            pipeline.addLast(new ChunkedWriteHandler());
+            pipeline.addLast(new ResponseHandler());
+        }
+
+        /**
+         * Netty's client contexts trust any certificate signed by a trusted
+         * authority, whatever host it names, unless the engine is told to
+         * identify the endpoint itself.
+         */
+        private void verifyHostname(final SSLEngine engine) {
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+    }
+
+
+    private final class NettyEndpoint implements HttpTransport.Endpoint {
+        private final ChannelPool pool;
+        private final String path;
+        private final String host;
+
+        public NettyEndpoint(final ChannelPool pool, final URI uri) {
+            this.pool = pool;
+            final String rawPath = uri.getRawPath();
+            final String rawQuery = uri.getRawQuery();
+            final String pathOnly = (rawPath == null || rawPath.isEmpty()) ? "/" : rawPath;
+            this.path = (rawQuery == null) ? pathOnly : pathOnly + '?' + rawQuery;
+            this.host = (uri.getPort() < 0) ? uri.getHost() : uri.getHost() + ':' + uri.getPort();
+        }
+
+        @Override
+        public void send(
+                final RequestMethod method,
+                final ClientRequest template,
+                final ClientRequest request,
+                final Subscriber<? super ClientResponse> subscriber) {
+            final Optional<Object> entity = RequestEncoder.entity(template, request);
+            final StreamingEntity body = (entity.orNull() instanceof StreamingEntity)
+                    ? (StreamingEntity) entity.get()
+                    : null;
+            final RequestTimeline timeline = RequestTimeline.of(subscriber);
+            if (timeline != null) {
+                timeline.mark(RequestTimeline.Event.DISPATCH);
+            }
+            final HttpRequest httpRequest;
+            try {
+                httpRequest = (body == null)
+                        ? toHttpRequest(method, template, request, entity, timeline)
+                        : toStreamingRequest(method, template, request, body, timeline);
+            } catch (final IOException | RuntimeException ex) {
+                subscriber.onError(ex);
+                return;
+            }
+            final Exchange exchange = new Exchange(this.pool, httpRequest, body, subscriber);
+            subscriber.add(Subscriptions.create(exchange));
+            this.pool.acquire().addListener(exchange);
+        }
+
+        private HttpRequest toHttpRequest(
+                final RequestMethod method,
+                final ClientRequest template,
+                final ClientRequest request,
+                final Optional<Object> entity,
+                final RequestTimeline timeline) throws IOException {
+            final ByteBuf content;
+            if (!entity.isPresent()) {
+                content = Unpooled.EMPTY_BUFFER;
+            } else if (bufferPool != null && !(entity.get() instanceof byte[])) {
+                content = new PooledHeapByteBuf(bufferPool, RequestEncoder.serialize(
+                        workers,
+                        entity.get(),
+                        RequestEncoder.contentType(template, request),
+                        bufferPool));
+            } else {
+                content = Unpooled.wrappedBuffer(RequestEncoder.serialize(
+                        workers,
+                        entity.get(),
+                        RequestEncoder.contentType(template, request)));
+            }
+            final HttpRequest httpRequest = new DefaultFullHttpRequest(
+                    HttpVersion.HTTP_1_1,
+                    toNettyMethod(method),
+                    this.path,
+                    content,
+                    false);
+            setHeaders(httpRequest, template, request, timeline);
+            if (entity.isPresent()) {
+                setContentType(httpRequest);
+                HttpUtil.setContentLength(httpRequest, content.readableBytes());
+            }
+            return httpRequest;
+        }
+
+        /**
+         * Create only the head of a request whose body is written
+         * separately by the {@link Exchange}: with a Content-Length if the
+         * length of the body is known, or chunked otherwise.
+         */
+        private HttpRequest toStreamingRequest(
+                final RequestMethod method,
+                final ClientRequest template,
+                final ClientRequest request,
+                final StreamingEntity body,
+                final RequestTimeline timeline) throws IOException {
+            final HttpRequest httpRequest = new DefaultHttpRequest(
+                    HttpVersion.HTTP_1_1,
+                    toNettyMethod(method),
+                    this.path,
+                    false);
+            setHeaders(httpRequest, template, request, timeline);
+            setContentType(httpRequest);
+            final long length = body.length();
+            if (length >= 0) {
+                HttpUtil.setContentLength(httpRequest, length);
+            } else {
+                HttpUtil.setTransferEncodingChunked(httpRequest, true);
+            }
+            return httpRequest;
+        }
+
+        private void setHeaders(
+                final HttpRequest httpRequest,
+                final ClientRequest template,
+                final ClientRequest request,
+                final RequestTimeline timeline) {
+            httpRequest.headers().set(HttpHeaderNames.HOST, this.host);
+            for (final Map.Entry<String, String> header : RequestEncoder.headers(template, request).entrySet()) {
+                httpRequest.headers().set(header.getKey(), header.getValue());
+            }
+            if (timeline != null) {
+                httpRequest.headers().set(RequestTimeline.TRACEPARENT, timeline.getTraceParent());
+            }
+        }
+
+        private void setContentType(final HttpRequest httpRequest) {
+            if (!httpRequest.headers().contains(HttpHeaderNames.CONTENT_TYPE)) {
+                httpRequest.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName()
+                    + " [host=" + this.host
+                    + ", path=" + this.path
+                    + ']';
+        }
+    }
+
+
+    /**
+     * The state of a single request: it waits for a pooled connection,
+     * writes the request, and hands itself to the connection's
+     * {@link ResponseHandler} to await the response. Unsubscribing before
+     * the response arrives closes the connection.
+     *
+     * A {@link StreamingEntity} body is written after the request head.
+     * A file is handed to the socket as a {@link DefaultFileRegion}, so
+     * that the kernel copies it directly, unless the connection is
+     * encrypted; anything else is pulled by the {@link ChunkedWriteHandler}
+     * one buffer at a time, as fast as the connection can write.
+     */
+    private final class Exchange implements FutureListener<Channel>, Action0 {
+        private final ChannelPool pool;
+        private final HttpRequest request;
+        private final StreamingEntity body;
+        private final Subscriber<? super ClientResponse> subscriber;
+        private volatile Channel channel = null;
+        private volatile boolean done = false;
+
+        public Exchange(
+                final ChannelPool pool,
+                final HttpRequest request,
+                final StreamingEntity body,
+                final Subscriber<? super ClientResponse> subscriber) {
+            this.pool = pool;
+            this.request = request;
+            this.body = body;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Called when a connection has been acquired from the pool.
+         */
+        @Override
+        public void operationComplete(final Future<Channel> future) {
+            if (!future.isSuccess()) {
+                this.done = true;
+                ReferenceCountUtil.release(this.request);
+                this.subscriber.onError(future.cause());
+                return;
+            }
+            final Channel acquired = future.getNow();
+            if (this.subscriber.isUnsubscribed()) {
+                this.done = true;
+                ReferenceCountUtil.release(this.request);
+                this.pool.release(acquired);
+                return;
+            }
+            this.channel = acquired;
+            final RequestTimeline timeline = RequestTimeline.of(this.subscriber);
+            if (timeline != null) {
+                timeline.mark(RequestTimeline.Event.CONNECT);
+            }
+            final ResponseHandler handler = acquired.pipeline().get(ResponseHandler.class);
+            handler.begin(this);
+            if (this.body == null) {
+                acquired.writeAndFlush(this.request).addListener(handler);
+            } else {
+                acquired.write(this.request).addListener(handler);
+                writeBody(acquired).addListener(handler);
+            }
+        }
+
+        private ChannelFuture writeBody(final Channel acquired) {
+            final boolean plaintext = acquired.pipeline().get(SslHandler.class) == null;
+            if (plaintext) {
+                final StreamingEntity.FileRange range;
+                try {
+                    range = this.body.openFile();
+                } catch (final IOException ex) {
+                    return acquired.newFailedFuture(ex);
+                }
+                if (range != null) {
+                    acquired.write(new FileRangeRegion(range));
+                    return acquired.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                }
+            }
+            final long length;
+            try {
+                length = this.body.length();
+            } catch (final IOException ex) {
+                return acquired.newFailedFuture(ex);
+            }
+            final ObservableChunkedInput input = new ObservableChunkedInput(
+                    this.body.toObservable(),
+                    length,
+                    acquired.eventLoop(),
+                    acquired.pipeline().get(ChunkedWriteHandler.class));
+            return acquired.writeAndFlush(new HttpChunkedInput(input));
+        }
+
+        /**
+         * Called when the subscriber unsubscribes.
+         */
+        @Override
+        public void call() {
+            final Channel current = this.channel;
+            if (!this.done && current != null) {
+                current.close();
+            }
+        }
+
+        public void complete(final Channel current, final FullHttpResponse response) {
+            this.done = true;
+            final InBoundHeaders headers = new InBoundHeaders();
+            for (final Map.Entry<String, String> header : response.headers()) {
+                headers.add(header.getKey(), header.getValue());
+            }
+            final boolean keepAlive = HttpUtil.isKeepAlive(response);
+            if (!keepAlive) {
+                current.close();
+            }
+            this.pool.release(current);
+
+            if (this.subscriber.isUnsubscribed()) {
+                return;
+            }
+            final ClientResponse clientResponse = new ClientResponse(
+                    response.status().code(),
+                    headers,
+                    new ByteBufEntityStream(response.content().retain()),
+                    workers);
+            this.subscriber.onNext(clientResponse);
+            this.subscriber.onCompleted();
+        }
+
+        public void fail(final Channel current, final Throwable cause) {
+            this.done = true;
+            current.close();
+            this.pool.release(current);
+            this.subscriber.onError(cause);
+        }
+    }
+
+
+    /**
+     * A serialized request entity in a borrowed array, which is returned
+     * to its pool when Netty releases the buffer, after writing it.
+     */
+    private static final class PooledHeapByteBuf extends UnpooledHeapByteBuf {
+        private final BufferPool pool;
+
+        public PooledHeapByteBuf(final BufferPool pool, final BufferPool.PooledOutputStream entity) {
+            super(UnpooledByteBufAllocator.DEFAULT, entity.array(), entity.array().length);
+            this.pool = pool;
+            setIndex(0, entity.size());
+        }
+
+        @Override
+        protected void freeArray(final byte[] array) {
+            this.pool.release(array);
+        }
+    }
+
+
+    /**
+     * Transfers a range of a file, and releases it, rather than closing
+     * the file, when the transfer is done: a caller's channel stays open.
+     */
+    private static final class FileRangeRegion extends DefaultFileRegion {
+        private final StreamingEntity.FileRange range;
+
+        public FileRangeRegion(final StreamingEntity.FileRange range) {
+            super(range.channel, range.position, range.count);
+            this.range = range;
+        }
+
+        @Override
+        protected void deallocate() {
+            this.range.release();
+        }
+    }
+
+
+    /**
+     * Delivers responses read from a single connection to the
+     * {@link Exchange} that is using it, and fails that exchange if the
+     * connection fails or closes first.
+     */
+    private static final class ResponseHandler
+    extends SimpleChannelInboundHandler<FullHttpResponse>
+    implements ChannelFutureListener {
+        private volatile Exchange exchange = null;
+
+        public void begin(final Exchange newExchange) {
+            this.exchange = newExchange;
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpResponse response) {
+            final Exchange current = this.exchange;
+            if (current != null) {
+                this.exchange = null;
+                current.complete(ctx.channel(), response);
+            }
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            failExchange(ctx.channel(), new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            failExchange(ctx.channel(), cause);
+            ctx.close();
+        }
+
+        /**
+         * Called when a request has been written.
+         */
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            if (!future.isSuccess()) {
+                failExchange(future.channel(), future.cause());
+            }
+        }
+
+        private void failExchange(final Channel channel, final Throwable cause) {
+            final Exchange current = this.exchange;
+            if (current != null) {
+                this.exchange = null;
+                current.fail(channel, cause);
+            }
+        }
+    }
+
+}
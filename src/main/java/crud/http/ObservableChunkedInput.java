@@ -0,0 +1,167 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Feeds the buffers emitted by an {@link Observable} to a Netty
+ * {@link ChunkedWriteHandler}, which pulls them only as fast as the
+ * connection can write them. A couple of buffers are requested ahead, and
+ * one more each time one is written, so the buffers held in memory at once
+ * are bounded no matter how long the entity is.
+ */
+/*package*/ final class ObservableChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private static final int PREFETCH = 2;
+
+    private final long length;
+    private final EventLoop eventLoop;
+    private final ChunkedWriteHandler writer;
+    private final ChunkSubscriber subscriber = new ChunkSubscriber();
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private volatile boolean completed = false;
+    private volatile Throwable error = null;
+    private long progress = 0L;
+
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            ObservableChunkedInput.this.writer.resumeTransfer();
+        }
+    };
+
+
+    /**
+     * Subscribe to the given buffers right away, so that the first may be
+     * ready when the writer first asks for it.
+     *
+     * @param length    The total number of bytes, or -1 if unknown.
+     */
+    public ObservableChunkedInput(
+            final Observable<ByteBuffer> chunks,
+            final long length,
+            final EventLoop eventLoop,
+            final ChunkedWriteHandler writer) {
+        this.length = length;
+        this.eventLoop = eventLoop;
+        this.writer = writer;
+        chunks.subscribe(this.subscriber);
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        final Throwable failure = this.error;
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure != null) {
+            throw new Exception(failure);
+        }
+        return this.completed && this.queue.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        this.subscriber.unsubscribe();
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(final ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    /**
+     * @return  The next buffer, or null if none has arrived yet. The
+     *          writer will be resumed when one does.
+     */
+    @Override
+    public ByteBuf readChunk(final ByteBufAllocator allocator) {
+        final ByteBuffer next = this.queue.poll();
+        if (next == null) {
+            return null;
+        }
+        this.subscriber.requestOne();
+        this.progress += next.remaining();
+        return Unpooled.wrappedBuffer(next);
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public long progress() {
+        return this.progress;
+    }
+
+    /**
+     * Resume the writer later, never from within its own call to
+     * {@link #readChunk(ByteBufAllocator)}.
+     */
+    private void resumeWriter() {
+        this.eventLoop.execute(this.resume);
+    }
+
+
+    private final class ChunkSubscriber extends Subscriber<ByteBuffer> {
+        @Override
+        public void onStart() {
+            request(PREFETCH);
+        }
+
+        public void requestOne() {
+            request(1L);
+        }
+
+        @Override
+        public void onNext(final ByteBuffer chunk) {
+            if (chunk.hasRemaining()) {
+                ObservableChunkedInput.this.queue.add(chunk);
+                resumeWriter();
+            } else {
+                requestOne();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            ObservableChunkedInput.this.completed = true;
+            resumeWriter();
+        }
+
+        @Override
+        public void onError(final Throwable failure) {
+            ObservableChunkedInput.this.error = failure;
+            resumeWriter();
+        }
+    }
+
+}
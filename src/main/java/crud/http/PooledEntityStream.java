@@ -0,0 +1,149 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * A response entity that can be read in full into an array borrowed from a
+ * {@link BufferPool}, for decoders that need the whole body at once. It
+ * can also be read as an ordinary stream, in which case nothing is
+ * borrowed. Closing it, as {@link ClientResponseCloser} does, returns the
+ * array to the pool.
+ */
+/*package*/ final class PooledEntityStream extends FilterInputStream {
+
+    private final BufferPool pool;
+    /** Null until the body is read in full; then, the rest of it. */
+    private BufferPool.PooledOutputStream body = null;
+    private int position = 0;
+    private boolean closed = false;
+
+
+    public PooledEntityStream(final InputStream source, final BufferPool pool) {
+        super(source);
+        this.pool = pool;
+    }
+
+    /**
+     * Read the rest of the body, if it hasn't been read already.
+     *
+     * @return  The array holding the rest of the body, which starts at
+     *          {@link #offset()} and is {@link #length()} bytes long. It
+     *          is only valid until this stream is closed.
+     */
+    public synchronized byte[] readFully() throws IOException {
+        checkOpen();
+        if (this.body == null) {
+            this.body = new BufferPool.PooledOutputStream(this.pool);
+            this.body.readFrom(this.in);
+        }
+        return this.body.array();
+    }
+
+    public synchronized int offset() {
+        return this.position;
+    }
+
+    public synchronized int length() {
+        return (this.body != null) ? this.body.size() - this.position : 0;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        checkOpen();
+        if (this.body == null) {
+            return this.in.read();
+        }
+        return (this.position < this.body.size()) ? (this.body.array()[this.position++] & 0xFF) : -1;
+    }
+
+    @Override
+    public synchronized int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        checkOpen();
+        if (this.body == null) {
+            return this.in.read(bytes, offset, length);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        final int remaining = this.body.size() - this.position;
+        if (remaining == 0) {
+            return -1;
+        }
+        final int count = Math.min(length, remaining);
+        System.arraycopy(this.body.array(), this.position, bytes, offset, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(final long count) throws IOException {
+        checkOpen();
+        if (this.body == null) {
+            return this.in.skip(count);
+        }
+        final int skipped = (int) Math.min(Math.max(count, 0L), this.body.size() - this.position);
+        this.position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        checkOpen();
+        return (this.body == null) ? this.in.available() : this.body.size() - this.position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+        // not supported
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Return the borrowed array, if any, and close the underlying stream.
+     * Closing is idempotent.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.body != null) {
+            this.body.release();
+        }
+        this.in.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("entity stream closed");
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.core.util.ReaderWriter;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.functions.Func1;
+
+
+/**
+ * Replaces each response with one whose body is read through a
+ * {@link PooledEntityStream}, and whose {@code byte[]} and {@code String}
+ * entities are decoded straight from a pooled array. Jersey's own
+ * providers for those types copy the body through several intermediate
+ * buffers, which are garbage as soon as the entity is decoded; these
+ * allocate only the result. Entities of other types are decoded by the
+ * transport's providers, as usual.
+ *
+ * @see HttpResourceProvider.Builder#bufferPool(BufferPool)
+ */
+/*package*/ final class PooledResponses implements Func1<ClientResponse, ClientResponse> {
+
+    private final BufferPool pool;
+    private final MessageBodyWorkers workers;
+
+
+    public PooledResponses(final BufferPool pool, final MessageBodyWorkers workers) {
+        this.pool = pool;
+        this.workers = new PooledWorkers(workers);
+    }
+
+    @Override
+    public ClientResponse call(final ClientResponse response) {
+        final InputStream entity = response.getEntityInputStream();
+        final MultivaluedMap<String, String> headers = response.getHeaders();
+        final InBoundHeaders inBoundHeaders;
+        if (headers instanceof InBoundHeaders) {
+            inBoundHeaders = (InBoundHeaders) headers;
+        } else {
+            inBoundHeaders = new InBoundHeaders();
+            inBoundHeaders.putAll(headers);
+        }
+        final ClientResponse pooled = new ClientResponse(
+                response.getStatus(),
+                inBoundHeaders,
+                (entity != null) ? new PooledEntityStream(entity, this.pool) : null,
+                this.workers);
+        if (RequestEvents.instance().isEnabled()) {
+            // Carry the request's event to the response that will be closed:
+            pooled.getProperties().putAll(response.getProperties());
+        }
+        return pooled;
+    }
+
+
+    /**
+     * Delegates to the transport's providers, except for the types that
+     * can be decoded from a pooled array.
+     */
+    private static final class PooledWorkers implements MessageBodyWorkers {
+        private final MessageBodyWorkers delegate;
+
+        public PooledWorkers(final MessageBodyWorkers delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> MessageBodyReader<T> getMessageBodyReader(
+                final Class<T> type,
+                final Type genericType,
+                final Annotation[] annotations,
+                final MediaType mediaType) {
+            final MessageBodyReader<T> reader = this.delegate.getMessageBodyReader(
+                    type, genericType, annotations, mediaType);
+            if (reader == null) {
+                return null;
+            } else if (type == byte[].class) {
+                return (MessageBodyReader<T>) new ByteArrayReader((MessageBodyReader<byte[]>) reader);
+            } else if (type == String.class) {
+                return (MessageBodyReader<T>) new StringReader((MessageBodyReader<String>) reader);
+            } else {
+                return reader;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Map<MediaType, List<MessageBodyReader>> getReaders(final MediaType mediaType) {
+            return this.delegate.getReaders(mediaType);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Map<MediaType, List<MessageBodyWriter>> getWriters(final MediaType mediaType) {
+            return this.delegate.getWriters(mediaType);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public String readersToString(final Map<MediaType, List<MessageBodyReader>> readers) {
+            return this.delegate.readersToString(readers);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public String writersToString(final Map<MediaType, List<MessageBodyWriter>> writers) {
+            return this.delegate.writersToString(writers);
+        }
+
+        @Override
+        public <T> MessageBodyWriter<T> getMessageBodyWriter(
+                final Class<T> type,
+                final Type genericType,
+                final Annotation[] annotations,
+                final MediaType mediaType) {
+            return this.delegate.getMessageBodyWriter(type, genericType, annotations, mediaType);
+        }
+
+        @Override
+        public <T> List<MediaType> getMessageBodyWriterMediaTypes(
+                final Class<T> type,
+                final Type genericType,
+                final Annotation[] annotations) {
+            return this.delegate.getMessageBodyWriterMediaTypes(type, genericType, annotations);
+        }
+
+        @Override
+        public <T> MediaType getMessageBodyWriterMediaType(
+                final Class<T> type,
+                final Type genericType,
+                final Annotation[] annotations,
+                final List<MediaType> acceptableMediaTypes) {
+            return this.delegate.getMessageBodyWriterMediaType(
+                    type, genericType, annotations, acceptableMediaTypes);
+        }
+    }
+
+
+    /**
+     * Decodes from the pooled array if the entity is pooled, or else with
+     * the given reader.
+     */
+    private abstract static class PooledReader<T> implements MessageBodyReader<T> {
+        private final MessageBodyReader<T> fallback;
+
+        protected PooledReader(final MessageBodyReader<T> fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean isReadable(
+                final Class<?> type,
+                final Type genericType,
+                final Annotation[] annotations,
+                final MediaType mediaType) {
+            return this.fallback.isReadable(type, genericType, annotations, mediaType);
+        }
+
+        @Override
+        public T readFrom(
+                final Class<T> type,
+                final Type genericType,
+                final Annotation[] annotations,
+                final MediaType mediaType,
+                final MultivaluedMap<String, String> httpHeaders,
+                final InputStream entityStream) throws IOException, WebApplicationException {
+            if (!(entityStream instanceof PooledEntityStream)) {
+                return this.fallback.readFrom(type, genericType, annotations, mediaType, httpHeaders, entityStream);
+            }
+            final PooledEntityStream pooled = (PooledEntityStream) entityStream;
+            final byte[] body = pooled.readFully();
+            return decode(body, pooled.offset(), pooled.length(), mediaType);
+        }
+
+        protected abstract T decode(byte[] body, int offset, int length, MediaType mediaType);
+    }
+
+
+    private static final class ByteArrayReader extends PooledReader<byte[]> {
+        public ByteArrayReader(final MessageBodyReader<byte[]> fallback) {
+            super(fallback);
+        }
+
+        @Override
+        protected byte[] decode(final byte[] body, final int offset, final int length, final MediaType mediaType) {
+            return Arrays.copyOfRange(body, offset, offset + length);
+        }
+    }
+
+
+    private static final class StringReader extends PooledReader<String> {
+        public StringReader(final MessageBodyReader<String> fallback) {
+            super(fallback);
+        }
+
+        @Override
+        protected String decode(final byte[] body, final int offset, final int length, final MediaType mediaType) {
+            return new String(body, offset, length, ReaderWriter.getCharset(mediaType));
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import com.google.common.base.Optional;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.core.header.OutBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+
+/**
+ * Renders a {@link ClientRequest}, layered over a request template, into
+ * header strings and entity bytes, for {@link HttpTransport}s that don't
+ * send their requests with Jersey's own client. Values are formatted, and
+ * the request overrides the template, in the same way as with
+ * {@link JerseyTransport}, so that every transport puts the same request on
+ * the wire.
+ */
+/*package*/ final class RequestEncoder {
+
+    private static final Annotation[] noAnnotations = new Annotation[0];
+
+
+    /**
+     * The request headers, in the order that Jersey would add them, with
+     * multiple values of the same header joined by commas. The
+     * Content-Type header is included if either request has one.
+     */
+    public static Map<String, String> headers(
+            final ClientRequest template,
+            final ClientRequest request) {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        for (final MediaType type : template.getAcceptedMediaTypes()) {
+            addHeader(headers, "Accept", type);
+        }
+        for (final MediaType type : request.getAcceptedMediaTypes()) {
+            addHeader(headers, "Accept", type);
+        }
+        for (final Locale language : template.getAcceptedLanguages()) {
+            addHeader(headers, "Accept-Language", language);
+        }
+        for (final Locale language : request.getAcceptedLanguages()) {
+            addHeader(headers, "Accept-Language", language);
+        }
+        for (final Cookie cookie : template.getCookies()) {
+            addHeader(headers, "Cookie", cookie);
+        }
+        for (final Cookie cookie : request.getCookies()) {
+            addHeader(headers, "Cookie", cookie);
+        }
+        for (final Map.Entry<String, Object> header : template.getHeaders().entrySet()) {
+            addHeader(headers, header.getKey(), header.getValue());
+        }
+        for (final Map.Entry<String, Object> header : request.getHeaders().entrySet()) {
+            addHeader(headers, header.getKey(), header.getValue());
+        }
+        final Optional<MediaType> contentType = contentType(template, request);
+        if (contentType.isPresent()) {
+            headers.put("Content-Type", headerValue(contentType.get()));
+        }
+        return headers;
+    }
+
+    /**
+     * The content type of the request if it has one, or else of the
+     * template.
+     */
+    public static Optional<MediaType> contentType(
+            final ClientRequest template,
+            final ClientRequest request) {
+        return request.getContentType().or(template.getContentType());
+    }
+
+    /**
+     * The entity of the request if it has one, or else of the template.
+     */
+    public static Optional<Object> entity(
+            final ClientRequest template,
+            final ClientRequest request) {
+        return request.getEntity().or(template.getEntity());
+    }
+
+    /**
+     * Serialize the given entity with the Jersey entity provider for its
+     * type and the given content type. Byte arrays are returned as they are.
+     *
+     * @throws ClientHandlerException   If there is no provider for the
+     *              entity.
+     * @throws IOException  If the provider fails to serialize the entity.
+     */
+    public static byte[] serialize(
+            final MessageBodyWorkers workers,
+            final Object entity,
+            final Optional<MediaType> contentType) throws IOException {
+        if (entity instanceof byte[]) {
+            return (byte[]) entity;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(workers, entity, contentType, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Serialize the given entity, as {@link #serialize(MessageBodyWorkers, Object, Optional)}
+     * does, into arrays borrowed from the given pool. The caller must
+     * release the result.
+     */
+    public static BufferPool.PooledOutputStream serialize(
+            final MessageBodyWorkers workers,
+            final Object entity,
+            final Optional<MediaType> contentType,
+            final BufferPool pool) throws IOException {
+        final BufferPool.PooledOutputStream out = new BufferPool.PooledOutputStream(pool);
+        boolean serialized = false;
+        try {
+            writeTo(workers, entity, contentType, out);
+            serialized = true;
+        } finally {
+            if (!serialized) {
+                out.release();
+            }
+        }
+        return out;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void writeTo(
+            final MessageBodyWorkers workers,
+            final Object entity,
+            final Optional<MediaType> contentType,
+            final OutputStream out) throws IOException {
+        final Class<?> type = entity.getClass();
+        final MediaType mediaType = contentType.or(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        final MessageBodyWriter writer = workers.getMessageBodyWriter(
+                type, type, noAnnotations, mediaType);
+        if (writer == null) {
+            throw new ClientHandlerException(
+                    "No message body writer for " + type + " and content type " + mediaType);
+        }
+        writer.writeTo(entity, type, type, noAnnotations, mediaType, new OutBoundHeaders(), out);
+    }
+
+    private static void addHeader(
+            final Map<String, String> headers,
+            final String name,
+            final Object value) {
+        final String formatted = headerValue(value);
+        final String previous = headers.put(name, formatted);
+        if (previous != null) {
+            headers.put(name, previous + ',' + formatted);
+        }
+    }
+
+    private static String headerValue(final Object value) {
+        return com.sun.jersey.api.client.ClientRequest.getHeaderValue(value);
+    }
+
+    private RequestEncoder() {
+        // prevent instantiation
+    }
+
+}
@@ -0,0 +1,165 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Map;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import crud.http.util.FailedResponseOperator;
+import rx.Subscriber;
+
+
+/**
+ * Reports each request to a profiler, if one is listening: in practice,
+ * to Java Flight Recorder, through the {@code FlightRecorderEvents} class
+ * compiled from {@code src/main/java11}. That class is loaded if it's
+ * present and the JVM supports it; otherwise, and whenever no recording
+ * wants the events, {@link #isEnabled()} is false and requests are sent
+ * as if this class didn't exist.
+ *
+ * A request's event begins when {@link HttpResource} sends it, and ends
+ * when its response is closed, or when it fails.
+ */
+/*package*/ abstract class RequestEvents {
+
+    private static final String EVENTS_CLASS = "crud.http.FlightRecorderEvents";
+
+    /**
+     * The key under which a response's {@link Recorder} is kept in its
+     * {@link ClientResponse#getProperties() properties} until it's closed.
+     */
+    private static final String RECORDER_PROPERTY = Recorder.class.getName();
+
+    private static final RequestEvents instance = load();
+
+
+    public static RequestEvents instance() {
+        return instance;
+    }
+
+    /**
+     * Whether any events should be recorded now. This must be cheap, as
+     * it's checked for every request.
+     */
+    public abstract boolean isEnabled();
+
+    /**
+     * Begin the event for a request that's about to be sent.
+     *
+     * @param attempt   1 the first time this request is sent, and more
+     *                  when it's retried or hedged.
+     */
+    public abstract Recorder begin(RequestMethod method, URI uri, int attempt);
+
+    /**
+     * Wrap the subscriber that will be given to the transport, so that
+     * the request's event can follow its response, or end with its
+     * failure.
+     */
+    public static Subscriber<ClientResponse> observe(
+            final Recorder recorder,
+            final Subscriber<? super ClientResponse> subscriber) {
+        return new Observer(recorder, subscriber);
+    }
+
+    /**
+     * End the event of the given response, which is being closed, if it
+     * has one.
+     */
+    public static void closed(final ClientResponse response) {
+        if (!instance.isEnabled()) {
+            // The response's event, if any, is no longer wanted.
+            return;
+        }
+        final Map<String, Object> properties = response.getProperties();
+        final Recorder recorder = (Recorder) properties.remove(RECORDER_PROPERTY);
+        if (recorder != null) {
+            recorder.closed(response, properties.containsKey(FailedResponseOperator.FAILED_PROPERTY));
+        }
+    }
+
+    private static RequestEvents load() {
+        try {
+            return (RequestEvents) Class.forName(EVENTS_CLASS).getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            // Not built with the java11 profile, or running on an older JVM.
+            return new Disabled();
+        }
+    }
+
+
+    /**
+     * Records the outcome of a single request.
+     */
+    /*package*/ interface Recorder {
+        /**
+         * The request failed without a response.
+         */
+        void failed(Throwable error);
+
+        /**
+         * The response is being closed.
+         *
+         * @param classifiedFailed  Whether a {@link FailedResponseOperator}
+         *                          turned the response into an error.
+         */
+        void closed(ClientResponse response, boolean classifiedFailed);
+    }
+
+
+    private static final class Disabled extends RequestEvents {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public Recorder begin(final RequestMethod method, final URI uri, final int attempt) {
+            throw new IllegalStateException("events are disabled");
+        }
+    }
+
+
+    private static final class Observer extends Subscriber<ClientResponse> {
+        private final Recorder recorder;
+        private final Subscriber<? super ClientResponse> delegate;
+
+        public Observer(final Recorder recorder, final Subscriber<? super ClientResponse> delegate) {
+            super(delegate);
+            this.recorder = recorder;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            response.getProperties().put(RECORDER_PROPERTY, this.recorder);
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.recorder.failed(error);
+            this.delegate.onError(error);
+        }
+    }
+
+}
@@ -0,0 +1,647 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.ws.rs.core.Response;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * Records the latency, outcome, and concurrency of the requests sent to
+ * each host, or to each other partition of the {@link URI} space,
+ * separately for each {@link RequestMethod}. Latency is measured from
+ * subscription, including any time spent waiting for a {@link Bulkhead},
+ * until the response arrives; each retry is measured as a request of its
+ * own. Requests that fail with an exception are counted, but their
+ * latency is not recorded, so that timeouts don't distort it.
+ *
+ * Recording is lock-free, and allocates nothing beyond the subscriber
+ * that observes each request. Providers without metrics don't pay even
+ * that. The results can be read with the accessors here, or, after
+ * {@link #exportTo(MBeanServer, String)}, over JMX.
+ *
+ * @see HttpResourceProvider.Builder#metrics(RequestMetrics)
+ */
+public final class RequestMetrics {
+
+    private static final RequestMethod[] methods = RequestMethod.values();
+
+    /**
+     * Indexed by the hundreds digit of a status, so that counting a
+     * response needn't look up its {@link ClientResponse#getStatusInfo()}.
+     */
+    private static final Response.Status.Family[] families = {
+        Response.Status.Family.OTHER,
+        Response.Status.Family.INFORMATIONAL,
+        Response.Status.Family.SUCCESSFUL,
+        Response.Status.Family.REDIRECTION,
+        Response.Status.Family.CLIENT_ERROR,
+        Response.Status.Family.SERVER_ERROR,
+    };
+
+    private final Func1<? super URI, String> partitioner;
+    private final Ticker ticker;
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * The server and name to which new series are exported, or null if
+     * they are not exported. Guarded by {@code this}.
+     */
+    private MBeanServer server = null;
+    private String name = null;
+
+
+    /**
+     * Record requests to each host, identified by the scheme, host, and
+     * port of their {@link URI}s.
+     */
+    public static RequestMetrics perHost() {
+        return partitionedBy(Bulkhead.byHost);
+    }
+
+    /**
+     * Record requests to each partition of the {@link URI} space, as
+     * identified by the given function.
+     *
+     * @see Bulkhead#partitionedBy(Func1, int, int)
+     */
+    public static RequestMetrics partitionedBy(final Func1<? super URI, String> partitioner) {
+        return partitionedBy(partitioner, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    /*package*/ static RequestMetrics partitionedBy(
+            final Func1<? super URI, String> partitioner,
+            final Ticker ticker) {
+        return new RequestMetrics(partitioner, ticker);
+    }
+
+    /**
+     * The partition to which requests to the given {@link URI} belong.
+     */
+    public String partitionOf(final URI uri) {
+        return this.partitioner.call(uri);
+    }
+
+    /**
+     * The partitions to which requests have been sent so far.
+     */
+    public Set<String> getPartitions() {
+        return ImmutableSet.copyOf(this.partitions.keySet());
+    }
+
+    /**
+     * The number of requests, of any method, in flight now in the given
+     * partition: those that have been subscribed, but have neither
+     * received a response, nor failed, nor been unsubscribed.
+     */
+    public int getInFlight(final String partition) {
+        final Partition part = this.partitions.get(partition);
+        if (part == null) {
+            return 0;
+        }
+        int total = 0;
+        for (final RequestMethod method : methods) {
+            final Series series = part.existingSeries(method);
+            if (series != null) {
+                total += series.inFlight.get();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The latencies of the responses to requests with the given method in
+     * the given partition, so far.
+     */
+    public Snapshot getLatency(final String partition, final RequestMethod method) {
+        final Series series = existingSeries(partition, method);
+        return (series == null) ? Snapshot.empty : series.latency.snapshot();
+    }
+
+    /**
+     * The number of responses with statuses in the given family to
+     * requests with the given method in the given partition.
+     */
+    public long getResponseCount(
+            final String partition,
+            final RequestMethod method,
+            final Response.Status.Family family) {
+        final Series series = existingSeries(partition, method);
+        return (series == null) ? 0L : series.statuses.get(family.ordinal());
+    }
+
+    /**
+     * The number of requests with the given method in the given partition
+     * that failed with an exception rather than a response.
+     */
+    public long getErrorCount(final String partition, final RequestMethod method) {
+        final Series series = existingSeries(partition, method);
+        return (series == null) ? 0L : series.errors.get();
+    }
+
+    /**
+     * Register an MXBean for each partition and method, now and as new
+     * ones appear, with the given server. Their names have the domain
+     * {@code crud.http}, type {@code RequestMetrics}, the given name, and
+     * the partition and method; for example:
+     *
+     * <pre><code>
+     *  crud.http:type=RequestMetrics,name=catalog,partition="http://example.com",method=GET
+     * </code></pre>
+     *
+     * @throws IllegalStateException    If these metrics are already
+     *              exported.
+     * @throws JMException  If the server rejects a registration.
+     *
+     * @see java.lang.management.ManagementFactory#getPlatformMBeanServer()
+     * @see SeriesMXBean
+     */
+    public synchronized void exportTo(final MBeanServer newServer, final String newName)
+    throws JMException {
+        if (this.server != null) {
+            throw new IllegalStateException("already exported as " + this.name);
+        }
+        this.server = Objects.requireNonNull(newServer);
+        this.name = Objects.requireNonNull(newName);
+        for (final Partition partition : this.partitions.values()) {
+            for (final RequestMethod method : methods) {
+                final Series series = partition.existingSeries(method);
+                if (series != null) {
+                    register(series);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unregister the MXBeans registered by
+     * {@link #exportTo(MBeanServer, String)}, and stop registering new
+     * ones. Metrics continue to be recorded. If these metrics aren't
+     * exported, do nothing.
+     */
+    public synchronized void unexport() throws JMException {
+        if (this.server == null) {
+            return;
+        }
+        try {
+            for (final Partition partition : this.partitions.values()) {
+                for (final RequestMethod method : methods) {
+                    final Series series = partition.existingSeries(method);
+                    if (series != null) {
+                        try {
+                            this.server.unregisterMBean(objectName(series));
+                        } catch (final InstanceNotFoundException ex) {
+                            // Someone else unregistered it; that's fine.
+                        }
+                    }
+                }
+            }
+        } finally {
+            this.server = null;
+            this.name = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [partitions=" + this.partitions.keySet()
+                + ']';
+    }
+
+    /**
+     * The metrics for requests to the given {@link URI}, created if
+     * necessary. Resources look this up once, and keep it.
+     */
+    /*package*/ Partition partition(final URI uri) {
+        final String key = partitionOf(uri);
+        final Partition existing = this.partitions.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final Partition created = new Partition(key);
+        final Partition raced = this.partitions.putIfAbsent(key, created);
+        return (raced != null) ? raced : created;
+    }
+
+    private Series existingSeries(final String partition, final RequestMethod method) {
+        final Partition part = this.partitions.get(partition);
+        return (part == null) ? null : part.existingSeries(method);
+    }
+
+    /**
+     * Called with the lock held, for each series that exists when these
+     * metrics are exported, and for each created afterward.
+     */
+    private void register(final Series series) throws JMException {
+        assert Thread.holdsLock(this);
+        try {
+            this.server.registerMBean(
+                    new StandardMBean(series, SeriesMXBean.class, true),
+                    objectName(series));
+        } catch (final InstanceAlreadyExistsException ex) {
+            /* Another RequestMetrics was exported with the same name. Keep
+             * its bean rather than failing the request that created this
+             * series.
+             */
+        }
+    }
+
+    private ObjectName objectName(final Series series) throws MalformedObjectNameException {
+        return new ObjectName("crud.http:type=RequestMetrics"
+                + ",name=" + ObjectName.quote(this.name)
+                + ",partition=" + ObjectName.quote(series.partition)
+                + ",method=" + series.method);
+    }
+
+    private static Response.Status.Family familyOf(final int status) {
+        final int hundreds = status / 100;
+        return (hundreds >= 0 && hundreds < families.length)
+                ? families[hundreds]
+                : Response.Status.Family.OTHER;
+    }
+
+    private RequestMetrics(final Func1<? super URI, String> partitioner, final Ticker ticker) {
+        this.partitioner = Objects.requireNonNull(partitioner);
+        this.ticker = Objects.requireNonNull(ticker);
+    }
+
+
+    /**
+     * The latencies recorded in one series, as of the time the snapshot
+     * was taken. Each is known to within about 3%; percentiles and the
+     * maximum are reported at the top of that range.
+     */
+    public static final class Snapshot {
+        private static final Snapshot empty = new Snapshot(new long[LatencyHistogram.BUCKET_COUNT]);
+
+        private final long[] counts;
+        private final long totalCount;
+
+        /*package*/ Snapshot(final long[] counts) {
+            this.counts = counts;
+            long total = 0L;
+            for (final long count : counts) {
+                total += count;
+            }
+            this.totalCount = total;
+        }
+
+        /**
+         * The number of latencies recorded.
+         */
+        public long getCount() {
+            return this.totalCount;
+        }
+
+        /**
+         * The latency below which the given percentage of those recorded
+         * fall; for example, 99.9 for the 99.9th percentile. If none have
+         * been recorded, zero.
+         *
+         * @throws IllegalArgumentException If the percentile is not between
+         *              0 and 100.
+         */
+        public long getPercentile(final double percentile, final TimeUnit unit) {
+            if (percentile < 0.0 || percentile > 100.0) {
+                throw new IllegalArgumentException("percentile out of range " + percentile);
+            }
+            if (this.totalCount == 0L) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * this.totalCount));
+            long seen = 0L;
+            for (int i = 0; i < this.counts.length; ++i) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return unit.convert(LatencyHistogram.highestValueAt(i), TimeUnit.NANOSECONDS);
+                }
+            }
+            return getMax(unit);
+        }
+
+        /**
+         * The greatest latency recorded, or zero if none have been.
+         */
+        public long getMax(final TimeUnit unit) {
+            for (int i = this.counts.length - 1; i >= 0; --i) {
+                if (this.counts[i] != 0L) {
+                    return unit.convert(LatencyHistogram.highestValueAt(i), TimeUnit.NANOSECONDS);
+                }
+            }
+            return 0L;
+        }
+
+        /**
+         * The mean latency, in fractions of the given unit, or zero if none
+         * have been recorded.
+         */
+        public double getMean(final TimeUnit unit) {
+            if (this.totalCount == 0L) {
+                return 0.0;
+            }
+            double sum = 0.0;
+            for (int i = 0; i < this.counts.length; ++i) {
+                if (this.counts[i] != 0L) {
+                    final double midpoint = (LatencyHistogram.lowestValueAt(i)
+                            + LatencyHistogram.highestValueAt(i)) / 2.0;
+                    sum += midpoint * this.counts[i];
+                }
+            }
+            return sum / this.totalCount / unit.toNanos(1L);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName()
+                    + " [count=" + this.totalCount
+                    + ", p50=" + getPercentile(50.0, TimeUnit.MICROSECONDS)
+                    + "us, p99=" + getPercentile(99.0, TimeUnit.MICROSECONDS)
+                    + "us, max=" + getMax(TimeUnit.MICROSECONDS)
+                    + "us]";
+        }
+    }
+
+
+    /**
+     * The view of one partition and method that
+     * {@link RequestMetrics#exportTo(MBeanServer, String)} registers over
+     * JMX. Latencies are in milliseconds.
+     */
+    public interface SeriesMXBean {
+        String getPartition();
+        String getMethod();
+        int getInFlight();
+        long getResponseCount();
+        long getSuccessCount();
+        long getClientErrorCount();
+        long getServerErrorCount();
+        long getErrorCount();
+        double getMeanMillis();
+        double getMedianMillis();
+        double getP99Millis();
+        double getP999Millis();
+        double getMaxMillis();
+    }
+
+
+    /*package*/ final class Partition {
+        private final String key;
+        private final AtomicReferenceArray<Series> series = new AtomicReferenceArray<>(methods.length);
+
+        public Partition(final String key) {
+            this.key = key;
+        }
+
+        /**
+         * The operator that records requests with the given method.
+         */
+        public Series series(final RequestMethod method) {
+            final Series existing = existingSeries(method);
+            return (existing != null) ? existing : createSeries(method);
+        }
+
+        public Series existingSeries(final RequestMethod method) {
+            return this.series.get(method.ordinal());
+        }
+
+        private Series createSeries(final RequestMethod method) {
+            synchronized (RequestMetrics.this) {
+                final Series existing = existingSeries(method);
+                if (existing != null) {
+                    return existing;
+                }
+                final Series created = new Series(this.key, method);
+                this.series.set(method.ordinal(), created);
+                if (RequestMetrics.this.server != null) {
+                    try {
+                        register(created);
+                    } catch (final JMException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                return created;
+            }
+        }
+    }
+
+
+    /*package*/ final class Series
+    implements Observable.Operator<ClientResponse, ClientResponse>, SeriesMXBean {
+        private final String partition;
+        private final RequestMethod method;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLongArray statuses = new AtomicLongArray(Response.Status.Family.values().length);
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        public Series(final String partition, final RequestMethod method) {
+            this.partition = partition;
+            this.method = method;
+        }
+
+        @Override
+        public Subscriber<? super ClientResponse> call(
+                final Subscriber<? super ClientResponse> subscriber) {
+            return new Measurement(this, subscriber, RequestMetrics.this.ticker.read());
+        }
+
+        @Override
+        public String getPartition() {
+            return this.partition;
+        }
+
+        @Override
+        public String getMethod() {
+            return this.method.name();
+        }
+
+        @Override
+        public int getInFlight() {
+            return this.inFlight.get();
+        }
+
+        @Override
+        public long getResponseCount() {
+            long total = 0L;
+            for (int i = 0; i < this.statuses.length(); ++i) {
+                total += this.statuses.get(i);
+            }
+            return total;
+        }
+
+        @Override
+        public long getSuccessCount() {
+            return this.statuses.get(Response.Status.Family.SUCCESSFUL.ordinal());
+        }
+
+        @Override
+        public long getClientErrorCount() {
+            return this.statuses.get(Response.Status.Family.CLIENT_ERROR.ordinal());
+        }
+
+        @Override
+        public long getServerErrorCount() {
+            return this.statuses.get(Response.Status.Family.SERVER_ERROR.ordinal());
+        }
+
+        @Override
+        public long getErrorCount() {
+            return this.errors.get();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return this.latency.snapshot().getMean(TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public double getMedianMillis() {
+            return millis(this.latency.snapshot().getPercentile(50.0, TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public double getP99Millis() {
+            return millis(this.latency.snapshot().getPercentile(99.0, TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public double getP999Millis() {
+            return millis(this.latency.snapshot().getPercentile(99.9, TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return millis(this.latency.snapshot().getMax(TimeUnit.NANOSECONDS));
+        }
+
+        private double millis(final long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+        }
+
+        /*package*/ void responded(final ClientResponse response, final long endNanos, final long startNanos) {
+            this.latency.record(endNanos - startNanos);
+            this.statuses.incrementAndGet(familyOf(response.getStatus()).ordinal());
+        }
+
+        /*package*/ void failed() {
+            this.errors.incrementAndGet();
+        }
+
+        /*package*/ long now() {
+            return RequestMetrics.this.ticker.read();
+        }
+    }
+
+
+    /**
+     * Observes a single request. It is in flight from its creation, at
+     * subscription, until the first of a response, an error, completion,
+     * or unsubscription.
+     */
+    private static final class Measurement extends Subscriber<ClientResponse> implements Action0 {
+        private static final AtomicIntegerFieldUpdater<Measurement> finishedUpdater
+                = AtomicIntegerFieldUpdater.newUpdater(Measurement.class, "finished");
+
+        private final Series series;
+        private final Subscriber<? super ClientResponse> delegate;
+        private final long startNanos;
+        private volatile int finished = 0;
+
+        public Measurement(
+                final Series series,
+                final Subscriber<? super ClientResponse> delegate,
+                final long startNanos) {
+            super(delegate);
+            this.series = series;
+            this.delegate = delegate;
+            this.startNanos = startNanos;
+            series.inFlight.incrementAndGet();
+            add(Subscriptions.create(this));
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            if (finish()) {
+                this.series.responded(response, this.series.now(), this.startNanos);
+            }
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            finish();
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            if (finish()) {
+                this.series.failed();
+            }
+            this.delegate.onError(error);
+        }
+
+        /**
+         * Called on unsubscription.
+         */
+        @Override
+        public void call() {
+            finish();
+        }
+
+        /**
+         * @return  true the first time it's called.
+         */
+        private boolean finish() {
+            if (finishedUpdater.compareAndSet(this, 0, 1)) {
+                this.series.inFlight.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Optional;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * The stages of a single request sampled by a {@link RequestTracer}, and
+ * the time from subscription at which each was reached, so that the time
+ * spent on a slow request can be attributed to queuing, connecting,
+ * waiting for the server, or transferring the body.
+ *
+ * A timeline is finished, and handed to the tracer's {@link Exporter},
+ * when its response is closed, as {@link HttpResource} does once the
+ * response has been delivered; or when the request fails, or is
+ * unsubscribed before a response arrives.
+ */
+public final class RequestTimeline {
+
+    /**
+     * The name of the W3C Trace Context header that carries
+     * {@link #getTraceParent()}.
+     */
+    public static final String TRACEPARENT = "traceparent";
+
+    /**
+     * The stages of a request, in the order in which they're reached. Not
+     * every transport can observe every stage.
+     */
+    public enum Event {
+        /** The request's {@code Observable} was subscribed. */
+        SUBSCRIBE,
+        /**
+         * The transport began to execute the request: with
+         * {@link JerseyTransport}, when one of the {@code Client}'s
+         * threads picked it up.
+         */
+        DISPATCH,
+        /** A connection was ready for the request; not seen by all transports. */
+        CONNECT,
+        /** The status and headers of the response arrived. */
+        HEADERS,
+        /** The last byte of the response body was read. */
+        BODY,
+        /** The response was closed. */
+        CLOSE,
+    }
+
+    /**
+     * Receives finished timelines, one at a time, on the
+     * {@link RequestTracer}'s own thread, so that exporting never delays a
+     * request.
+     */
+    public interface Exporter extends Closeable {
+        void export(RequestTimeline timeline) throws IOException;
+
+        /**
+         * Called after each batch of timelines has been exported.
+         */
+        void flush() throws IOException;
+    }
+
+
+    private static final Event[] events = Event.values();
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    private final RequestTracer tracer;
+    private final RequestMethod method;
+    private final URI uri;
+    private final String traceParent;
+    private final long startMillis;
+    private final long startNanos;
+    /** Nanoseconds since {@link #startNanos}, or -1 if not yet reached. */
+    private final AtomicLongArray elapsed = new AtomicLongArray(events.length);
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile int status = 0;
+    private volatile Throwable error = null;
+
+
+    /**
+     * @return  The timeline of the request to be sent to the given
+     *          subscriber, or null if it isn't being traced. Transports
+     *          call this to add {@link #TRACEPARENT} to the request and to
+     *          report the events they see.
+     */
+    /*package*/ static RequestTimeline of(final Subscriber<?> subscriber) {
+        return (subscriber instanceof Observer) ? ((Observer) subscriber).timeline : null;
+    }
+
+    /**
+     * The W3C {@code traceparent} of this request, with a new trace ID and
+     * span ID, and the sampled flag set.
+     */
+    public String getTraceParent() {
+        return this.traceParent;
+    }
+
+    public RequestMethod getMethod() {
+        return this.method;
+    }
+
+    public URI getUri() {
+        return this.uri;
+    }
+
+    /**
+     * The wall-clock time at which the request was subscribed, in
+     * milliseconds since the epoch.
+     */
+    public long getStartTimeMillis() {
+        return this.startMillis;
+    }
+
+    /**
+     * Whether the request reached the given stage before its timeline
+     * was finished.
+     */
+    public boolean hasReached(final Event event) {
+        return this.elapsed.get(event.ordinal()) >= 0L;
+    }
+
+    /**
+     * The time from subscription until the given stage, or -1 if the
+     * request never reached it.
+     */
+    public long getElapsed(final Event event, final TimeUnit unit) {
+        final long nanos = this.elapsed.get(event.ordinal());
+        return (nanos < 0L) ? -1L : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The status of the response, or zero if there was none.
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * The reason that the request failed, if it did.
+     */
+    public Optional<Throwable> getError() {
+        return Optional.fromNullable(this.error);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(getClass().getSimpleName())
+                .append(" [").append(this.method)
+                .append(' ').append(this.uri)
+                .append(", traceparent=").append(this.traceParent)
+                .append(", status=").append(this.status);
+        for (final Event event : events) {
+            if (hasReached(event)) {
+                buf.append(", ").append(event).append('=')
+                   .append(getElapsed(event, TimeUnit.MICROSECONDS)).append("us");
+            }
+        }
+        return buf.append(']').toString();
+    }
+
+    /**
+     * Note that the request reached the given stage now. Only the first
+     * report of each stage counts.
+     */
+    /*package*/ void mark(final Event event) {
+        this.elapsed.compareAndSet(event.ordinal(), -1L, System.nanoTime() - this.startNanos);
+    }
+
+    /**
+     * Wrap the subscriber that will be given to the transport, so that the
+     * transport can find this timeline, and so that the response and its
+     * body are timed.
+     */
+    /*package*/ Subscriber<ClientResponse> observe(final Subscriber<? super ClientResponse> subscriber) {
+        return new Observer(this, subscriber);
+    }
+
+    /**
+     * Hand this timeline to the tracer for export, unless that has
+     * already been done.
+     */
+    /*package*/ void finish() {
+        if (this.finished.compareAndSet(false, true)) {
+            this.tracer.finished(this);
+        }
+    }
+
+    /*package*/ RequestTimeline(final RequestTracer tracer, final RequestMethod method, final URI uri) {
+        this.tracer = Objects.requireNonNull(tracer);
+        this.method = Objects.requireNonNull(method);
+        this.uri = Objects.requireNonNull(uri);
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        for (int i = 1; i < events.length; ++i) {
+            this.elapsed.set(i, -1L);
+        }
+        // SUBSCRIBE is zero.
+        this.traceParent = newTraceParent();
+    }
+
+    /**
+     * Version 00, random trace and span IDs, and the sampled flag.
+     */
+    private static String newTraceParent() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final char[] buf = new char[55];
+        buf[0] = '0';
+        buf[1] = '0';
+        buf[2] = '-';
+        appendHex(buf, 3, nonZero(random));
+        appendHex(buf, 19, random.nextLong());
+        buf[35] = '-';
+        appendHex(buf, 36, nonZero(random));
+        buf[52] = '-';
+        buf[53] = '0';
+        buf[54] = '1';
+        return new String(buf);
+    }
+
+    /**
+     * All-zero trace and span IDs are invalid.
+     */
+    private static long nonZero(final ThreadLocalRandom random) {
+        long value;
+        do {
+            value = random.nextLong();
+        } while (value == 0L);
+        return value;
+    }
+
+    private static void appendHex(final char[] buf, final int offset, final long value) {
+        for (int i = 0; i < 16; ++i) {
+            buf[offset + i] = hexDigits[(int) (value >>> (60 - 4 * i)) & 0xF];
+        }
+    }
+
+
+    /**
+     * Notes the arrival of the response, or the failure of the request,
+     * and wraps the response body so that reaching its end, and closing
+     * it, are noted too. If the subscriber unsubscribes before either,
+     * the timeline is finished then.
+     */
+    private static final class Observer extends Subscriber<ClientResponse> implements Action0 {
+        private final RequestTimeline timeline;
+        private final Subscriber<? super ClientResponse> delegate;
+
+        public Observer(final RequestTimeline timeline, final Subscriber<? super ClientResponse> delegate) {
+            super(delegate);
+            this.timeline = timeline;
+            this.delegate = delegate;
+            add(Subscriptions.create(this));
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            this.timeline.mark(Event.HEADERS);
+            this.timeline.status = response.getStatus();
+            final InputStream body = response.getEntityInputStream();
+            if (body == null) {
+                this.timeline.mark(Event.BODY);
+            } else {
+                response.setEntityInputStream(new TimedStream(this.timeline, body));
+            }
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable failure) {
+            this.timeline.error = failure;
+            this.timeline.finish();
+            this.delegate.onError(failure);
+        }
+
+        /**
+         * Called on unsubscription. Once there's a response, the timeline
+         * waits for it to be closed instead.
+         */
+        @Override
+        public void call() {
+            if (this.timeline.status == 0) {
+                this.timeline.finish();
+            }
+        }
+    }
+
+
+    private static final class TimedStream extends FilterInputStream {
+        private final RequestTimeline timeline;
+
+        public TimedStream(final RequestTimeline timeline, final InputStream body) {
+            super(body);
+            this.timeline = timeline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result < 0) {
+                this.timeline.mark(Event.BODY);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] buf, final int offset, final int length) throws IOException {
+            final int result = super.read(buf, offset, length);
+            if (result < 0) {
+                this.timeline.mark(Event.BODY);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.timeline.mark(Event.CLOSE);
+                this.timeline.finish();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+
+/**
+ * Samples requests, records a {@link RequestTimeline} for each, adds its
+ * W3C {@code traceparent} header to the request, and exports it
+ * asynchronously once it's finished. Requests that aren't sampled are
+ * sent as usual, with no header, and cost only the sampling decision.
+ *
+ * Finished timelines wait in a bounded queue for the tracer's own daemon
+ * thread to export them. If the queue is full, because the
+ * {@link RequestTimeline.Exporter} can't keep up, timelines are dropped
+ * and counted rather than slowing requests down.
+ *
+ * @see HttpResourceProvider.Builder#tracer(RequestTracer)
+ * @see TimelineRingBuffer
+ * @see TimelineFileExporter
+ */
+public final class RequestTracer implements Closeable {
+
+    private final double sampleRate;
+    private final RequestTimeline.Exporter exporter;
+    private final BlockingQueue<RequestTimeline> queue;
+    private final Thread exportThread;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong exportFailureCount = new AtomicLong();
+    private volatile boolean closed = false;
+
+
+    /**
+     * Begin configuring a tracer that exports its timelines to the given
+     * exporter. The tracer owns the exporter from then on, and closes it
+     * when it's closed itself.
+     */
+    public static Builder newBuilder(final RequestTimeline.Exporter exporter) {
+        return new Builder(exporter);
+    }
+
+    /**
+     * The number of finished timelines that were discarded because the
+     * export queue was full.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * The number of timelines that the exporter failed to export.
+     */
+    public long getExportFailureCount() {
+        return this.exportFailureCount.get();
+    }
+
+    /**
+     * Stop sampling new requests, export the timelines already finished,
+     * and close the exporter. Timelines that finish later are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        Uninterruptibles.joinUninterruptibly(this.exportThread);
+        this.exporter.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [sampleRate=" + this.sampleRate
+                + ", exporter=" + this.exporter
+                + ", dropped=" + getDroppedCount()
+                + ']';
+    }
+
+    /**
+     * Decide whether to trace a request that's just been subscribed.
+     *
+     * @return  The new request's timeline, or null if it isn't sampled.
+     */
+    /*package*/ RequestTimeline start(final RequestMethod method, final URI uri) {
+        if (this.closed || ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+            return null;
+        }
+        return new RequestTimeline(this, method, uri);
+    }
+
+    /*package*/ void finished(final RequestTimeline timeline) {
+        if (this.closed || !this.queue.offer(timeline)) {
+            this.droppedCount.incrementAndGet();
+        }
+    }
+
+    private RequestTracer(final Builder builder) {
+        this.sampleRate = builder.sampleRate;
+        this.exporter = builder.exporter;
+        this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+        this.exportThread = new Thread(new ExportLoop(), "crud-http-tracer");
+        this.exportThread.setDaemon(true);
+        this.exportThread.start();
+    }
+
+
+    public static final class Builder {
+        private final RequestTimeline.Exporter exporter;
+        private double sampleRate = 0.01;
+        private int queueCapacity = 1024;
+
+        /**
+         * Trace the given fraction of requests, from 0.0, none, to 1.0, all.
+         * The default is 0.01.
+         */
+        public Builder sampleRate(final double rate) {
+            if (!(rate >= 0.0 && rate <= 1.0)) {
+                throw new IllegalArgumentException("sample rate out of range " + rate);
+            }
+            this.sampleRate = rate;
+            return this;
+        }
+
+        /**
+         * Keep up to the given number of finished timelines waiting for
+         * export. The default is 1024.
+         */
+        public Builder queueCapacity(final int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("non-positive capacity " + capacity);
+            }
+            this.queueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Create the tracer, and start its export thread.
+         */
+        public RequestTracer build() {
+            return new RequestTracer(this);
+        }
+
+        private Builder(final RequestTimeline.Exporter exporter) {
+            this.exporter = Objects.requireNonNull(exporter);
+        }
+    }
+
+
+    /**
+     * Exports timelines in batches, as they arrive, flushing after each,
+     * until the tracer is closed. The thread isn't interrupted to stop it,
+     * because that would close the channel of an exporter that writes to
+     * a file; instead, it polls, and notices within {@link #POLL_MILLIS}.
+     */
+    private final class ExportLoop implements Runnable {
+        private static final long POLL_MILLIS = 100L;
+
+        private final List<RequestTimeline> batch = new ArrayList<>();
+
+        @Override
+        public void run() {
+            final BlockingQueue<RequestTimeline> pending = RequestTracer.this.queue;
+            try {
+                while (!RequestTracer.this.closed) {
+                    final RequestTimeline first = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        this.batch.add(first);
+                        pending.drainTo(this.batch);
+                        exportBatch();
+                    }
+                }
+            } catch (final InterruptedException ex) {
+                // Someone else wants the thread to stop; finish up.
+            }
+            pending.drainTo(this.batch);
+            exportBatch();
+        }
+
+        private void exportBatch() {
+            final RequestTimeline.Exporter exporter = RequestTracer.this.exporter;
+            for (final RequestTimeline timeline : this.batch) {
+                try {
+                    exporter.export(timeline);
+                } catch (final IOException | RuntimeException ex) {
+                    RequestTracer.this.exportFailureCount.incrementAndGet();
+                }
+            }
+            this.batch.clear();
+            try {
+                exporter.flush();
+            } catch (final IOException | RuntimeException ex) {
+                RequestTracer.this.exportFailureCount.incrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * Emits the body of the response to a request as a sequence of
+ * {@link ByteBuffer}s, reading each chunk from the network only when the
+ * subscriber has requested it. Nothing is read ahead of demand, so a
+ * download needs no more memory than the chunk size times the number of
+ * chunks the subscriber has requested and not yet let go of.
+ *
+ * The chunks are read on the thread that requests them, which at first is
+ * the one that delivers the response. A response that is not successful
+ * is not streamed: its subscriber gets a {@link UniformInterfaceException}
+ * instead. The response is closed when its body has been read, on error,
+ * or when the subscriber unsubscribes.
+ */
+/*package*/ final class ResponseBodyStream implements Observable.OnSubscribe<ByteBuffer> {
+
+    private final Observable<ClientResponse> responses;
+    private final int chunkSize;
+
+
+    /**
+     * @param responses Must not close its response by itself; the stream
+     *                  will close it.
+     */
+    public ResponseBodyStream(final Observable<ClientResponse> responses, final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("non-positive chunk size " + chunkSize);
+        }
+        this.responses = responses;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void call(final Subscriber<? super ByteBuffer> child) {
+        final ResponseSubscriber upstream = new ResponseSubscriber(child);
+        // Not Subscriber(child): that would give the child's producer to the request.
+        child.add(upstream);
+        this.responses.unsafeSubscribe(upstream);
+    }
+
+
+    private final class ResponseSubscriber extends Subscriber<ClientResponse> {
+        private final Subscriber<? super ByteBuffer> child;
+        private boolean responded = false;
+
+        public ResponseSubscriber(final Subscriber<? super ByteBuffer> child) {
+            this.child = child;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            this.responded = true;
+            final BodyProducer producer = new BodyProducer(this.child, response);
+            this.child.add(Subscriptions.create(producer));
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                try {
+                    this.child.onError(new UniformInterfaceException(response));
+                } finally {
+                    producer.call();
+                }
+                return;
+            }
+            this.child.setProducer(producer);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (!this.responded) {
+                this.child.onError(new IllegalStateException("no response"));
+            }
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.child.onError(error);
+        }
+    }
+
+
+    /**
+     * Reads chunks on request, and closes the response, as an
+     * {@link Action0}, when done.
+     */
+    private final class BodyProducer implements Producer, Action0 {
+        private final Subscriber<? super ByteBuffer> child;
+        private final ClientResponse response;
+        private final InputStream body;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        public BodyProducer(final Subscriber<? super ByteBuffer> child, final ClientResponse response) {
+            this.child = child;
+            this.response = response;
+            final InputStream entity = response.getEntityInputStream();
+            this.body = (entity != null) ? entity : new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0L) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = this.requested.get();
+                next = current + n;
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!this.requested.compareAndSet(current, next));
+            drain();
+        }
+
+        /**
+         * Close the response.
+         */
+        @Override
+        public void call() {
+            if (this.closed.compareAndSet(false, true)) {
+                RequestEvents.closed(this.response);
+                this.response.close();
+            }
+        }
+
+        private void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                // Another thread is reading; it will see the new demand.
+                return;
+            }
+            int missed = 1;
+            do {
+                while (this.requested.get() > 0L) {
+                    if (this.child.isUnsubscribed() || this.closed.get()) {
+                        return;
+                    }
+                    final ByteBuffer chunk;
+                    try {
+                        chunk = readChunk();
+                    } catch (final IOException | RuntimeException ex) {
+                        if (!this.child.isUnsubscribed()) {
+                            call();
+                            this.child.onError(ex);
+                        }
+                        return;
+                    }
+                    if (chunk == null) {
+                        call();
+                        this.child.onCompleted();
+                        return;
+                    }
+                    if (this.requested.get() != Long.MAX_VALUE) {
+                        this.requested.decrementAndGet();
+                    }
+                    this.child.onNext(chunk);
+                }
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Fill a new buffer, unless the body ends first.
+         *
+         * @return  The chunk, ready to read, or null at the end of the body.
+         */
+        private ByteBuffer readChunk() throws IOException {
+            final byte[] bytes = new byte[ResponseBodyStream.this.chunkSize];
+            int length = 0;
+            while (length < bytes.length) {
+                final int count = this.body.read(bytes, length, bytes.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return (length == 0) ? null : ByteBuffer.wrap(bytes, 0, length);
+        }
+    }
+
+}
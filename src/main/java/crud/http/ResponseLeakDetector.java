@@ -0,0 +1,259 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Finds responses whose entity streams are garbage collected without
+ * having been closed, and so never returned their connections to the
+ * transport's pool. For a sample of requests, it remembers where each was
+ * subscribed, and wraps its response's entity stream so that closing the
+ * stream, directly or through {@link ClientResponse#close()}, forgets it.
+ * Any stream still remembered when the garbage collector finds it
+ * unreachable is counted as a leak, and where its request was subscribed
+ * is kept to be reported by {@link #getLastLeak()}.
+ *
+ * Responses from {@link HttpResource} are closed by the library itself
+ * once their subscribers are finished with them, so leaks are rare; this
+ * is a way to find the ones that remain, in production, at a cost paid
+ * only by the sampled requests. Leaks are noticed only after a garbage
+ * collection, and not until this object is next used.
+ *
+ * @see HttpResourceProvider.Builder#leakDetector(ResponseLeakDetector)
+ */
+public final class ResponseLeakDetector {
+
+    private final double sampleRate;
+    private final ReferenceQueue<InputStream> collected = new ReferenceQueue<>();
+    /**
+     * Holds the references until their streams are closed or collected,
+     * since one that is no longer reachable is never enqueued.
+     */
+    private final Set<Leak> outstanding = Sets.newConcurrentHashSet();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicReference<Throwable> lastLeak = new AtomicReference<>();
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * The number of sampled responses that were collected without having
+     * been closed.
+     */
+    public long getLeakCount() {
+        expunge();
+        return this.leaks.get();
+    }
+
+    /**
+     * Where the request of the most recently detected leaked response was
+     * subscribed, if any leak has been detected.
+     */
+    public Optional<Throwable> getLastLeak() {
+        expunge();
+        return Optional.fromNullable(this.lastLeak.get());
+    }
+
+    /**
+     * The number of sampled responses that haven't yet been closed or
+     * found to have leaked.
+     */
+    public int getTrackedCount() {
+        expunge();
+        return this.outstanding.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [sampleRate=" + this.sampleRate
+                + ", leaks=" + getLeakCount()
+                + ']';
+    }
+
+    /**
+     * @return  An operator that samples each subscription to a request
+     *          with the given method and URI, and tracks the response of
+     *          each one sampled.
+     */
+    /*package*/ Observable.Operator<ClientResponse, ClientResponse> track(
+            final RequestMethod method,
+            final URI uri) {
+        return new Observable.Operator<ClientResponse, ClientResponse>() {
+            @Override
+            public Subscriber<? super ClientResponse> call(final Subscriber<? super ClientResponse> subscriber) {
+                if (ThreadLocalRandom.current().nextDouble() >= ResponseLeakDetector.this.sampleRate) {
+                    return subscriber;
+                }
+                // Captured now, while the subscribing thread's stack is interesting:
+                final Throwable site = new Throwable(
+                        "response to " + method + ' ' + uri + " was subscribed here and never closed");
+                return new TrackingSubscriber(subscriber, site);
+            }
+        };
+    }
+
+    private ResponseLeakDetector(final Builder builder) {
+        this.sampleRate = builder.sampleRate;
+    }
+
+    private void expunge() {
+        for (Leak leak = (Leak) this.collected.poll(); leak != null; leak = (Leak) this.collected.poll()) {
+            if (this.outstanding.remove(leak)) {
+                this.leaks.incrementAndGet();
+                this.lastLeak.set(leak.site);
+            }
+        }
+    }
+
+    private InputStream trackedStream(final InputStream entity, final Throwable site) {
+        expunge();
+        final TrackedStream tracked = (entity instanceof FileTransferable)
+                ? new TransferableTrackedStream(entity)
+                : new TrackedStream(entity);
+        tracked.leak = new Leak(tracked, this.collected, site);
+        this.outstanding.add(tracked.leak);
+        return tracked;
+    }
+
+    private void untrack(final Leak leak) {
+        if (this.outstanding.remove(leak)) {
+            leak.clear();
+        }
+    }
+
+
+    public static final class Builder {
+        private double sampleRate = 1.0 / 128;
+
+        /**
+         * Track the given fraction of responses, from 0.0, none, to 1.0,
+         * all. The default is 1/128.
+         */
+        public Builder sampleRate(final double rate) {
+            if (!(rate >= 0.0 && rate <= 1.0)) {
+                throw new IllegalArgumentException("sample rate out of range " + rate);
+            }
+            this.sampleRate = rate;
+            return this;
+        }
+
+        public ResponseLeakDetector build() {
+            return new ResponseLeakDetector(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    private final class TrackingSubscriber extends Subscriber<ClientResponse> {
+        private final Subscriber<? super ClientResponse> delegate;
+        private final Throwable site;
+
+        public TrackingSubscriber(final Subscriber<? super ClientResponse> delegate, final Throwable site) {
+            super(delegate);
+            this.delegate = delegate;
+            this.site = site;
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            final InputStream entity = response.getEntityInputStream();
+            if (entity != null) {
+                response.setEntityInputStream(trackedStream(entity, this.site));
+            }
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.delegate.onError(error);
+        }
+    }
+
+
+    private class TrackedStream extends FilterInputStream {
+        /** Set once, right after construction. */
+        public Leak leak = null;
+
+        public TrackedStream(final InputStream entity) {
+            super(entity);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                untrack(this.leak);
+            }
+        }
+    }
+
+
+    /**
+     * Keeps {@link FileDownload}'s direct path to the file open to tracked
+     * streams.
+     */
+    private final class TransferableTrackedStream extends TrackedStream implements FileTransferable {
+        public TransferableTrackedStream(final InputStream entity) {
+            super(entity);
+        }
+
+        @Override
+        public long transferTo(final FileChannel target) throws IOException {
+            return ((FileTransferable) this.in).transferTo(target);
+        }
+    }
+
+
+    private static final class Leak extends WeakReference<InputStream> {
+        public final Throwable site;
+
+        public Leak(final InputStream stream, final ReferenceQueue<InputStream> queue, final Throwable site) {
+            super(stream, queue);
+            this.site = site;
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * A request entity that is sent as it's read, rather than serialized into
+ * memory first, so that uploading even a very large body takes little heap.
+ * Pass one to {@link ClientRequest.Builder#entity(Object)}.
+ *
+ * A file is sent with its length in a {@code Content-Length} header, and,
+ * where the transport allows it, directly from the file system to the
+ * socket, without passing through the heap at all. An
+ * {@link Observable} of {@link ByteBuffer}s is sent with chunked transfer
+ * encoding, unless its length is given, and is only asked for more buffers
+ * as earlier ones are written.
+ *
+ * Entities from files may be sent any number of times, for example if a
+ * request is retried. Those from {@code Observable}s may be sent again if
+ * subscribing again produces the same buffers.
+ */
+public final class StreamingEntity {
+
+    /**
+     * The size of the buffers in which transports that can't send a file
+     * directly read it.
+     */
+    /*package*/ static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+    private final Observable<ByteBuffer> chunks;
+
+
+    /**
+     * Send the contents of the given file, as it is when the request is
+     * sent.
+     */
+    public static StreamingEntity fromPath(final Path file) {
+        return new StreamingEntity(Objects.requireNonNull(file), null, 0L, -1L, null);
+    }
+
+    /**
+     * Send {@code count} bytes of the given channel, starting at the given
+     * position. The channel's own position is neither used nor changed, so
+     * it may be shared. The caller remains responsible for closing it.
+     *
+     * @throws IllegalArgumentException If the position or count is
+     *              negative.
+     */
+    public static StreamingEntity fromChannel(
+            final FileChannel channel,
+            final long position,
+            final long count) {
+        if (position < 0L || count < 0L) {
+            throw new IllegalArgumentException("negative position " + position + " or count " + count);
+        }
+        return new StreamingEntity(null, Objects.requireNonNull(channel), position, count, null);
+    }
+
+    /**
+     * Send the buffers emitted by the given {@link Observable}, in order,
+     * with chunked transfer encoding.
+     */
+    public static StreamingEntity fromObservable(final Observable<ByteBuffer> chunks) {
+        return new StreamingEntity(null, null, 0L, -1L, Objects.requireNonNull(chunks));
+    }
+
+    /**
+     * Send the buffers emitted by the given {@link Observable}, in order,
+     * which together must contain exactly {@code length} bytes.
+     *
+     * @throws IllegalArgumentException If the length is negative.
+     */
+    public static StreamingEntity fromObservable(final Observable<ByteBuffer> chunks, final long length) {
+        if (length < 0L) {
+            throw new IllegalArgumentException("negative length " + length);
+        }
+        return new StreamingEntity(null, null, 0L, length, Objects.requireNonNull(chunks));
+    }
+
+    @Override
+    public String toString() {
+        final Object source = (this.path != null) ? this.path
+                : (this.channel != null) ? this.channel
+                : this.chunks;
+        return getClass().getSimpleName()
+                + " [source=" + source
+                + ", count=" + this.count
+                + ']';
+    }
+
+    /**
+     * @return  The number of bytes that will be sent, or -1 if it's not
+     *          known in advance.
+     *
+     * @throws IOException  If the size of the file can't be read.
+     */
+    /*package*/ long length() throws IOException {
+        return (this.path != null) ? Files.size(this.path) : this.count;
+    }
+
+    /**
+     * @return  The file to send, if this entity is a file that Jersey can
+     *          send by itself, or null.
+     */
+    /*package*/ File toFile() {
+        return (this.path != null && this.path.getFileSystem() == FileSystems.getDefault())
+                ? this.path.toFile()
+                : null;
+    }
+
+    /**
+     * @return  The path of the file to send, if this entity was created
+     *          from one, or null.
+     */
+    /*package*/ Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Open the file channel to send, and the range to send from it.
+     * The caller must {@link FileRange#release() release} the range.
+     *
+     * @return  The range, or null if this entity doesn't come from a file.
+     */
+    /*package*/ FileRange openFile() throws IOException {
+        if (this.path != null) {
+            final FileChannel opened = FileChannel.open(this.path, StandardOpenOption.READ);
+            return new FileRange(opened, 0L, opened.size(), true);
+        } else if (this.channel != null) {
+            return new FileRange(this.channel, this.position, this.count, false);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * The entity as chunks, read from the file, if any, only as they're
+     * requested.
+     */
+    /*package*/ Observable<ByteBuffer> toObservable() {
+        if (this.chunks != null) {
+            return this.chunks;
+        }
+        return Observable.create(new Observable.OnSubscribe<ByteBuffer>() {
+            @Override
+            public void call(final Subscriber<? super ByteBuffer> subscriber) {
+                final FileRange range;
+                try {
+                    range = openFile();
+                } catch (final IOException ex) {
+                    subscriber.onError(ex);
+                    return;
+                }
+                subscriber.setProducer(new FileProducer(range, subscriber));
+            }
+        });
+    }
+
+    /**
+     * The entity as a blocking stream, which subscribes to the chunks when
+     * it's first read, and asks for each chunk only when the one before
+     * has been read.
+     */
+    /*package*/ InputStream openStream() {
+        return new ChunkInputStream(toObservable());
+    }
+
+    private StreamingEntity(
+            final Path path,
+            final FileChannel channel,
+            final long position,
+            final long count,
+            final Observable<ByteBuffer> chunks) {
+        this.path = path;
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+        this.chunks = chunks;
+    }
+
+
+    /*package*/ static final class FileRange {
+        public final FileChannel channel;
+        public final long position;
+        public final long count;
+        private final boolean owned;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public FileRange(final FileChannel channel, final long position, final long count, final boolean owned) {
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+            this.owned = owned;
+        }
+
+        /**
+         * Close the channel if it was opened for this range. Only the first
+         * call has any effect.
+         */
+        public void release() {
+            if (this.owned && this.released.compareAndSet(false, true)) {
+                try {
+                    this.channel.close();
+                } catch (final IOException ignored) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads a file range in chunks, on the thread that requests them.
+     * Releases the range when the file has been read, or fails, or when
+     * the subscriber unsubscribes, even if it has no chunk outstanding.
+     */
+    private static final class FileProducer implements Producer, Action0 {
+        private final FileRange range;
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long offset = 0L;
+
+        public FileProducer(final FileRange range, final Subscriber<? super ByteBuffer> subscriber) {
+            this.range = range;
+            this.subscriber = subscriber;
+            subscriber.add(Subscriptions.create(this));
+        }
+
+        /**
+         * Unsubscribed.
+         */
+        @Override
+        public void call() {
+            this.range.release();
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0L) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = this.requested.get();
+                next = (current + n < 0L) ? Long.MAX_VALUE : current + n;
+            } while (!this.requested.compareAndSet(current, next));
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (this.requested.get() > 0L) {
+                    if (this.subscriber.isUnsubscribed()) {
+                        this.range.release();
+                        return;
+                    }
+                    if (this.offset >= this.range.count) {
+                        this.range.release();
+                        this.subscriber.onCompleted();
+                        return;
+                    }
+                    final ByteBuffer chunk;
+                    try {
+                        chunk = readChunk();
+                    } catch (final IOException ex) {
+                        this.range.release();
+                        this.subscriber.onError(ex);
+                        return;
+                    }
+                    if (this.requested.get() != Long.MAX_VALUE) {
+                        this.requested.decrementAndGet();
+                    }
+                    this.subscriber.onNext(chunk);
+                }
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private ByteBuffer readChunk() throws IOException {
+            final int size = (int) Math.min(CHUNK_SIZE, this.range.count - this.offset);
+            final ByteBuffer chunk = ByteBuffer.allocate(size);
+            while (chunk.hasRemaining()) {
+                final int read = this.range.channel.read(chunk, this.range.position + this.offset + chunk.position());
+                if (read < 0) {
+                    throw new IOException("file ended " + (this.range.count - this.offset - chunk.position())
+                            + " bytes early");
+                }
+            }
+            this.offset += size;
+            chunk.flip();
+            return chunk;
+        }
+    }
+
+
+    /**
+     * Adapts an {@link Observable} of buffers to a blocking
+     * {@link InputStream}, for transports that write entities from a
+     * stream. Only one buffer is requested at a time.
+     */
+    private static final class ChunkInputStream extends InputStream {
+        /** Marks the end of the chunks in the queue. */
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final Observable<ByteBuffer> chunks;
+        /**
+         * Unbounded, so that an Observable that ignores backpressure
+         * can't fail, but it holds at most one buffer from one that
+         * doesn't.
+         */
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private ChunkSubscriber subscriber = null;
+        private ByteBuffer current = null;
+        private boolean ended = false;
+
+        public ChunkInputStream(final Observable<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int count = read(single, 0, 1);
+            return (count < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            final ByteBuffer chunk = currentChunk();
+            if (chunk == null) {
+                return -1;
+            }
+            final int count = Math.min(length, chunk.remaining());
+            chunk.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (this.subscriber != null) {
+                this.subscriber.unsubscribe();
+            }
+            this.ended = true;
+        }
+
+        /**
+         * @return  A buffer with bytes remaining, or null at the end.
+         */
+        private ByteBuffer currentChunk() throws IOException {
+            if (this.subscriber == null) {
+                this.subscriber = new ChunkSubscriber(this.queue);
+                this.chunks.subscribe(this.subscriber);
+            }
+            while (!this.ended && (this.current == null || !this.current.hasRemaining())) {
+                final Object next;
+                try {
+                    next = this.queue.take();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for entity", ex);
+                }
+                if (next == END) {
+                    this.ended = true;
+                } else if (next instanceof Throwable) {
+                    this.ended = true;
+                    throw new IOException("entity failed", (Throwable) next);
+                } else {
+                    this.current = (ByteBuffer) next;
+                    this.subscriber.requestOne();
+                }
+            }
+            return this.ended ? null : this.current;
+        }
+    }
+
+
+    private static final class ChunkSubscriber extends Subscriber<ByteBuffer> {
+        private final BlockingQueue<Object> queue;
+
+        public ChunkSubscriber(final BlockingQueue<Object> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void onStart() {
+            request(1L);
+        }
+
+        public void requestOne() {
+            request(1L);
+        }
+
+        @Override
+        public void onNext(final ByteBuffer chunk) {
+            this.queue.add(chunk);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.queue.add(ChunkInputStream.END);
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.queue.add(error);
+        }
+    }
+
+}
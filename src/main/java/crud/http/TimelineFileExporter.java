@@ -0,0 +1,127 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+
+
+/**
+ * Appends each {@link RequestTimeline} to a file, as one line of JSON,
+ * with the time of each stage in microseconds from subscription; stages
+ * that weren't reached are omitted. For example:
+ *
+ * <pre><code>
+ *  {"traceparent":"00-...-01","method":"GET","uri":"http://example.com/a",
+ *   "start":1412000000000,"status":200,"SUBSCRIBE":0,"DISPATCH":41,
+ *   "HEADERS":1830,"BODY":1902,"CLOSE":1910}
+ * </code></pre>
+ *
+ * (without the line breaks).
+ */
+public final class TimelineFileExporter implements RequestTimeline.Exporter {
+
+    private final Path file;
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(256);
+
+
+    /**
+     * Open the given file for appending, creating it if necessary.
+     */
+    public static TimelineFileExporter appendTo(final Path file) throws IOException {
+        return new TimelineFileExporter(file);
+    }
+
+    @Override
+    public void export(final RequestTimeline timeline) throws IOException {
+        final StringBuilder buf = this.line;
+        buf.setLength(0);
+        buf.append("{\"traceparent\":\"").append(timeline.getTraceParent())
+           .append("\",\"method\":\"").append(timeline.getMethod())
+           .append("\",\"uri\":");
+        appendString(buf, timeline.getUri().toString());
+        buf.append(",\"start\":").append(timeline.getStartTimeMillis());
+        if (timeline.getStatus() != 0) {
+            buf.append(",\"status\":").append(timeline.getStatus());
+        }
+        final Optional<Throwable> error = timeline.getError();
+        if (error.isPresent()) {
+            buf.append(",\"error\":");
+            appendString(buf, error.get().toString());
+        }
+        for (final RequestTimeline.Event event : RequestTimeline.Event.values()) {
+            if (timeline.hasReached(event)) {
+                buf.append(",\"").append(event).append("\":")
+                   .append(timeline.getElapsed(event, TimeUnit.MICROSECONDS));
+            }
+        }
+        buf.append("}\n");
+        this.writer.append(buf);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [file=" + this.file
+                + ']';
+    }
+
+    private static void appendString(final StringBuilder buf, final String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    private TimelineFileExporter(final Path file) throws IOException {
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND),
+                StandardCharsets.UTF_8));
+    }
+
+}
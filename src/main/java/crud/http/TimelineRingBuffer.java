@@ -0,0 +1,84 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the most recent {@link RequestTimeline}s in memory, overwriting
+ * the oldest, so that an application can show them on a diagnostic page
+ * or dump them when something goes wrong.
+ */
+public final class TimelineRingBuffer implements RequestTimeline.Exporter {
+
+    private final RequestTimeline[] timelines;
+    /** The total number ever exported; the next is stored at this index, modulo the capacity. */
+    private long count = 0L;
+
+
+    /**
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public static TimelineRingBuffer withCapacity(final int capacity) {
+        return new TimelineRingBuffer(capacity);
+    }
+
+    /**
+     * The timelines currently held, from oldest to newest.
+     */
+    public synchronized List<RequestTimeline> getRecent() {
+        final int capacity = this.timelines.length;
+        final int size = (int) Math.min(this.count, capacity);
+        final List<RequestTimeline> recent = new ArrayList<>(size);
+        for (long i = this.count - size; i < this.count; ++i) {
+            recent.add(this.timelines[(int) (i % capacity)]);
+        }
+        return recent;
+    }
+
+    @Override
+    public synchronized void export(final RequestTimeline timeline) {
+        this.timelines[(int) (this.count % this.timelines.length)] = timeline;
+        ++this.count;
+    }
+
+    @Override
+    public void flush() {
+        // nothing to do
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName()
+                + " [capacity=" + this.timelines.length
+                + ", exported=" + this.count
+                + ']';
+    }
+
+    private TimelineRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("non-positive capacity " + capacity);
+        }
+        this.timelines = new RequestTimeline[capacity];
+    }
+
+}
@@ -2,8 +2,13 @@
  * This package contains implementations of the interfaces in the package
  * {@link crud} in terms of the Jersey HTTP
  * library.
- * Resources are asynchronous, and use the
+ * Resources are asynchronous. They send their requests via a pluggable
+ * {@link crud.http.HttpTransport}; the default,
+ * {@link crud.http.JerseyTransport}, uses the
  * {@link java.util.concurrent.ExecutorService} from the
- * {@link com.sun.jersey.api.client.Client} itself.
+ * {@link com.sun.jersey.api.client.Client} itself. On Java 11 and later,
+ * {@code crud.http.JdkHttpTransport} sends them with the JDK's own HTTP/2
+ * client instead, and {@link crud.http.NettyTransport} sends them on Netty
+ * event loops.
  */
 package crud.http;
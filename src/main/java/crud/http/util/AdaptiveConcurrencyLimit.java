@@ -0,0 +1,381 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * Limits the number of requests in flight, as a static bulkhead does, but
+ * adjusts the limit continuously according to the latency it observes,
+ * using an algorithm derived from TCP Vegas. The shortest round-trip time
+ * seen recently is taken as the latency of an unloaded server. When
+ * requests take longer than that, the excess is attributed to queueing, and
+ * the limit shrinks; when they don't, and the limit is in use, it grows.
+ * Requests that fail also shrink the limit. As in Vegas, only requests
+ * sent after the last change are taken into account, so the limit changes
+ * at most about once per round trip.
+ *
+ * Apply a limit to a request with
+ * {@link rx.Observable#compose(rx.Observable.Transformer)}. Requests beyond
+ * the limit fail immediately with a {@link RejectedExecutionException},
+ * without being subscribed. The round-trip time of a request is measured
+ * from subscription to its first {@link ClientResponse}. An instance
+ * limits a single server; use {@link #perHost(Builder)} to limit each host
+ * separately.
+ *
+ * @see AdmissionControl
+ */
+public final class AdaptiveConcurrencyLimit extends AdmissionControl {
+
+    /**
+     * Remeasure the no-load latency after this many times the limit in
+     * samples, so that a lasting change in the server's latency is
+     * eventually accepted as its new baseline. The limit is halved until
+     * the next sample, to let the server's queue drain.
+     */
+    private static final int PROBE_MULTIPLIER = 30;
+
+    private final Ticker ticker;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile int limit;
+
+    // Guarded by this:
+    private double estimatedLimit;
+    private double limitBeforeProbe = 0.0;
+    private long noLoadRttNanos = Long.MAX_VALUE;
+    private long lastChangeNanos;
+    private long samplesUntilProbe;
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a registry of limits, one for each host, all with the
+     * given settings.
+     */
+    public static PerHost perHost(final Builder settings) {
+        return new PerHost(settings);
+    }
+
+    /**
+     * The number of requests that may be in flight at once now.
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * The number of requests that have been rejected because the limit
+     * had been reached.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    @Override
+    protected Subscriber<? super ClientResponse> admit(final Subscriber<? super ClientResponse> child) {
+        final int startInFlight = tryAcquire();
+        if (startInFlight < 0) {
+            this.rejected.incrementAndGet();
+            throw new RejectedExecutionException("concurrency limit " + this.limit + " reached");
+        }
+        return new MeasuringSubscriber(child, startInFlight, this.ticker.read());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [limit=" + this.limit
+                + ", inFlight=" + getInFlight()
+                + ", rejected=" + getRejectedCount()
+                + ']';
+    }
+
+    /**
+     * @return  The number of requests in flight, including this one, or
+     *          -1 if the limit has been reached.
+     */
+    private int tryAcquire() {
+        int current;
+        do {
+            current = this.inFlight.get();
+            if (current >= this.limit) {
+                return -1;
+            }
+        } while (!this.inFlight.compareAndSet(current, current + 1));
+        return current + 1;
+    }
+
+    private synchronized void onSample(final long startNanos, final long endNanos, final int startInFlight) {
+        if (startNanos < this.lastChangeNanos) {
+            // Measures the old limit, not the current one.
+            return;
+        }
+        final long rttNanos = Math.max(endNanos - startNanos, 1L);
+        if (rttNanos < this.noLoadRttNanos) {
+            this.noLoadRttNanos = rttNanos;
+        }
+        if (this.limitBeforeProbe > 0.0) {
+            // This sample, taken at reduced load, is the new baseline.
+            setLimit(this.limitBeforeProbe, endNanos);
+            this.limitBeforeProbe = 0.0;
+            return;
+        }
+        if (--this.samplesUntilProbe <= 0L) {
+            // Drain the server's queue to remeasure its unloaded latency.
+            this.limitBeforeProbe = this.estimatedLimit;
+            this.noLoadRttNanos = Long.MAX_VALUE;
+            this.samplesUntilProbe = PROBE_MULTIPLIER * (long) this.limit;
+            setLimit(this.estimatedLimit / 2.0, endNanos);
+            return;
+        }
+
+        final double current = this.estimatedLimit;
+        final double queueSize = Math.ceil(current * (1.0 - (double) this.noLoadRttNanos / rttNanos));
+        final double step = stepSize(current);
+        final double alpha = 3.0 * step;
+        final double beta = 6.0 * step;
+
+        final double next;
+        if (queueSize <= step) {
+            next = current + beta;
+        } else if (queueSize < alpha) {
+            next = current + step;
+        } else if (queueSize > beta) {
+            next = current - step;
+        } else {
+            return;
+        }
+        if (next > current && 2 * startInFlight < current) {
+            // Don't grow a limit that isn't being used.
+            return;
+        }
+        setLimit(next, endNanos);
+    }
+
+    private synchronized void onFailure(final long startNanos, final long endNanos) {
+        if (startNanos < this.lastChangeNanos) {
+            // Already accounted for by the last change.
+            return;
+        }
+        setLimit(this.estimatedLimit - stepSize(this.estimatedLimit), endNanos);
+    }
+
+    private void setLimit(final double newLimit, final long nowNanos) {
+        this.estimatedLimit = Math.min(Math.max(newLimit, this.minLimit), this.maxLimit);
+        this.limit = (int) this.estimatedLimit;
+        this.lastChangeNanos = nowNanos;
+    }
+
+    private static double stepSize(final double currentLimit) {
+        return Math.max(1.0, Math.log10(currentLimit));
+    }
+
+    private AdaptiveConcurrencyLimit(final Builder builder) {
+        this.ticker = builder.ticker;
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.estimatedLimit = builder.initialLimit;
+        this.limit = builder.initialLimit;
+        this.samplesUntilProbe = PROBE_MULTIPLIER * (long) builder.initialLimit;
+        this.lastChangeNanos = this.ticker.read();
+    }
+
+
+    public static final class Builder {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 1000;
+        private Ticker ticker = Ticker.systemTicker();
+
+        /**
+         * The limit before any latency has been observed. The default is
+         * 20.
+         */
+        public Builder initialLimit(final int limit) {
+            this.initialLimit = limit;
+            return this;
+        }
+
+        /**
+         * The limit will not fall below this. The default is 1.
+         */
+        public Builder minLimit(final int limit) {
+            this.minLimit = limit;
+            return this;
+        }
+
+        /**
+         * The limit will not rise above this. The default is 1000.
+         */
+        public Builder maxLimit(final int limit) {
+            this.maxLimit = limit;
+            return this;
+        }
+
+        @VisibleForTesting
+        /*package*/ Builder ticker(final Ticker newTicker) {
+            this.ticker = newTicker;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException If the minimum limit is not
+         *              positive, or the initial limit is not between the
+         *              minimum and maximum.
+         */
+        public AdaptiveConcurrencyLimit build() {
+            if (this.minLimit <= 0) {
+                throw new IllegalArgumentException("non-positive min limit " + this.minLimit);
+            }
+            if (this.initialLimit < this.minLimit || this.initialLimit > this.maxLimit) {
+                throw new IllegalArgumentException("initial limit " + this.initialLimit
+                        + " not in [" + this.minLimit + ", " + this.maxLimit + ']');
+            }
+            return new AdaptiveConcurrencyLimit(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    /**
+     * A separate {@link AdaptiveConcurrencyLimit} for each host.
+     */
+    public static final class PerHost {
+        private final Builder settings;
+        private final ConcurrentMap<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+        /**
+         * The limit for the host of the given {@link URI}.
+         */
+        public AdaptiveConcurrencyLimit forUri(final URI uri) {
+            final int port = uri.getPort();
+            return forHost((port < 0) ? uri.getHost() : uri.getHost() + ':' + port);
+        }
+
+        /**
+         * The limit for the given host, which should include the port
+         * if it's not the default.
+         */
+        public AdaptiveConcurrencyLimit forHost(final String host) {
+            final AdaptiveConcurrencyLimit existing = this.limits.get(host);
+            if (existing != null) {
+                return existing;
+            }
+            final AdaptiveConcurrencyLimit created = this.settings.build();
+            final AdaptiveConcurrencyLimit raced = this.limits.putIfAbsent(host, created);
+            return (raced != null) ? raced : created;
+        }
+
+        public Set<String> getHosts() {
+            return ImmutableSet.copyOf(this.limits.keySet());
+        }
+
+        private PerHost(final Builder settings) {
+            // Fail now if the settings are invalid:
+            settings.build();
+            this.settings = settings;
+        }
+    }
+
+
+    /**
+     * Holds a slot from subscription until the first response, error,
+     * completion, or unsubscription, and reports the round-trip time.
+     */
+    private final class MeasuringSubscriber extends Subscriber<ClientResponse> {
+        private final Subscriber<? super ClientResponse> delegate;
+        private final int startInFlight;
+        private final long startNanos;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        public MeasuringSubscriber(
+                final Subscriber<? super ClientResponse> delegate,
+                final int startInFlight,
+                final long startNanos) {
+            super(delegate);
+            this.delegate = delegate;
+            this.startInFlight = startInFlight;
+            this.startNanos = startNanos;
+            add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    finish();
+                }
+            }));
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            if (finish()) {
+                onSample(this.startNanos, ticker.read(), this.startInFlight);
+            }
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            finish();
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            if (finish()) {
+                onFailure(this.startNanos, ticker.read());
+            }
+            this.delegate.onError(error);
+        }
+
+        private boolean finish() {
+            if (this.finished.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Decides, each time a request is subscribed, whether it should be sent.
+ * A request that is admitted is subscribed through the subscriber that
+ * {@link #admit(Subscriber)} returns. A request that is rejected fails
+ * with a {@link RejectedExecutionException}, and is never subscribed at
+ * all, so that nothing upstream of this transformer, such as a
+ * {@link crud.http.Bulkhead} or the transport, sees it.
+ *
+ * Apply an instance with {@link Observable#compose(Observable.Transformer)}.
+ * It can't be lifted, as an {@link Observable.Operator} always subscribes
+ * upstream, even for a request it fails.
+ */
+public abstract class AdmissionControl
+implements Observable.Transformer<ClientResponse, ClientResponse> {
+
+    @Override
+    public final Observable<? extends ClientResponse> call(final Observable<? extends ClientResponse> request) {
+        return Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> child) {
+                final Subscriber<? super ClientResponse> admitted;
+                try {
+                    admitted = admit(child);
+                } catch (final RejectedExecutionException ex) {
+                    child.onError(ex);
+                    return;
+                }
+                request.unsafeSubscribe(admitted);
+            }
+        });
+    }
+
+    /**
+     * Admit a request that's being subscribed, or reject it.
+     *
+     * @return  The subscriber through which to subscribe to the request.
+     *
+     * @throws RejectedExecutionException   If the request should fail
+     *          without being sent.
+     */
+    protected abstract Subscriber<? super ClientResponse> admit(Subscriber<? super ClientResponse> child);
+
+    /*package*/ AdmissionControl() {
+        // subclassed only in this package
+    }
+
+}
@@ -0,0 +1,225 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.core.header.reader.HttpHeaderReader;
+
+import rx.Notification;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+
+/**
+ * Retries failed requests after a delay that grows exponentially, with
+ * "decorrelated jitter": each delay is chosen at random between the base
+ * delay and three times the previous delay, and capped. The randomness
+ * keeps clients that failed together from retrying together. If the
+ * failure is a {@link UniformInterfaceException} whose response has a
+ * {@code Retry-After} header, the server's delay is used instead; if the
+ * server asks for more than the maximum delay, the failure is not retried.
+ *
+ * Pass an instance to {@link Observable#retryWhen(Func1)}. Instances are
+ * immutable, and may be shared among any number of {@link Observable}s.
+ * The delays are scheduled on a {@link Scheduler}; no thread is blocked.
+ * To retry responses with error statuses, lift a
+ * {@link FailedResponseOperator} before retrying:
+ *
+ * <pre>
+ * resource.get()
+ *         .lift(FailedResponseOperator.serverErrors())
+ *         .retryWhen(BackoffRetry.newBuilder().build());
+ * </pre>
+ *
+ * Retrying is safe only for idempotent requests. To retry all
+ * {@code GET}, {@code PUT}, and {@code DELETE} requests from a provider,
+ * but not {@code POST}, see
+ * {@code HttpResourceProvider.Builder#retry(FailedResponseOperator, BackoffRetry)}.
+ */
+public final class BackoffRetry
+implements Func1<Observable<? extends Notification<?>>, Observable<?>> {
+
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Scheduler scheduler;
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @Override
+    public Observable<?> call(final Observable<? extends Notification<?>> failures) {
+        // One Backoff for each subscription to the retried Observable:
+        return failures.flatMap(new Backoff());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [maxRetries=" + this.maxRetries
+                + ", baseDelayMillis=" + this.baseDelayMillis
+                + ", maxDelayMillis=" + this.maxDelayMillis
+                + ']';
+    }
+
+    /**
+     * @return  The delay, in milliseconds, requested by the server in the
+     *          given failed response, or -1 if there is none.
+     */
+    private long retryAfterMillis(final UniformInterfaceException failure) {
+        final ClientResponse response = failure.getResponse();
+        final String retryAfter = response.getHeaders().getFirst(RETRY_AFTER_HEADER);
+        if (retryAfter == null) {
+            return -1L;
+        }
+        final String trimmed = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed));
+        } catch (final NumberFormatException notSeconds) {
+            try {
+                final Date date = HttpHeaderReader.readDate(trimmed);
+                return Math.max(0L, date.getTime() - this.scheduler.now());
+            } catch (final ParseException notDate) {
+                return -1L;
+            }
+        }
+    }
+
+    private BackoffRetry(final Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.baseDelayMillis = builder.baseDelayMillis;
+        this.maxDelayMillis = builder.maxDelayMillis;
+        this.scheduler = builder.scheduler;
+    }
+
+
+    public static final class Builder {
+        private int maxRetries = 3;
+        private long baseDelayMillis = 100L;
+        private long maxDelayMillis = TimeUnit.SECONDS.toMillis(10);
+        private Scheduler scheduler = Schedulers.computation();
+
+        /**
+         * Give up after this many retries. The default is 3.
+         */
+        public Builder maxRetries(final int retries) {
+            if (retries < 0) {
+                throw new IllegalArgumentException("negative retries " + retries);
+            }
+            this.maxRetries = retries;
+            return this;
+        }
+
+        /**
+         * Wait at least this long before retrying. The default is 100 ms.
+         */
+        public Builder baseDelay(final long delay, final TimeUnit unit) {
+            if (delay <= 0L) {
+                throw new IllegalArgumentException("non-positive delay " + delay);
+            }
+            this.baseDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Never wait longer than this before retrying, and don't retry if
+         * the server asks for a longer wait. The default is 10 seconds.
+         */
+        public Builder maxDelay(final long delay, final TimeUnit unit) {
+            if (delay <= 0L) {
+                throw new IllegalArgumentException("non-positive delay " + delay);
+            }
+            this.maxDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Wait on the given {@link Scheduler}. The default is
+         * {@link Schedulers#computation()}.
+         */
+        public Builder scheduler(final Scheduler newScheduler) {
+            if (newScheduler == null) {
+                throw new NullPointerException("null scheduler");
+            }
+            this.scheduler = newScheduler;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException If the maximum delay is less
+         *              than the base delay.
+         */
+        public BackoffRetry build() {
+            if (this.maxDelayMillis < this.baseDelayMillis) {
+                throw new IllegalArgumentException("max delay " + this.maxDelayMillis
+                        + " ms < base delay " + this.baseDelayMillis + " ms");
+            }
+            return new BackoffRetry(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    /**
+     * Decides, for each failure of a single subscription, whether and when
+     * to retry. Failures arrive one at a time, so its state needs no
+     * synchronization.
+     */
+    private final class Backoff implements Func1<Notification<?>, Observable<?>> {
+        private int retries = 0;
+        private long lastDelayMillis = BackoffRetry.this.baseDelayMillis;
+
+        @Override
+        public Observable<?> call(final Notification<?> notification) {
+            final Throwable failure = notification.getThrowable();
+            if (++this.retries > BackoffRetry.this.maxRetries) {
+                return Observable.error(failure);
+            }
+
+            long delayMillis = -1L;
+            if (failure instanceof UniformInterfaceException) {
+                delayMillis = retryAfterMillis((UniformInterfaceException) failure);
+                if (delayMillis > BackoffRetry.this.maxDelayMillis) {
+                    return Observable.error(failure);
+                }
+            }
+            if (delayMillis < 0L) {
+                final long base = BackoffRetry.this.baseDelayMillis;
+                final long upper = Math.max(base + 1L, 3L * this.lastDelayMillis);
+                delayMillis = Math.min(
+                        BackoffRetry.this.maxDelayMillis,
+                        ThreadLocalRandom.current().nextLong(base, upper));
+                this.lastDelayMillis = delayMillis;
+            }
+            return Observable.timer(delayMillis, TimeUnit.MILLISECONDS, BackoffRetry.this.scheduler);
+        }
+    }
+
+}
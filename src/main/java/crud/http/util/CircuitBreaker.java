@@ -0,0 +1,468 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * Stops sending requests to a server that is failing, so that callers fail
+ * fast instead of waiting for it, and it has a chance to recover.
+ *
+ * While the breaker is {@link State#CLOSED closed}, requests pass through,
+ * and their outcomes are counted over a sliding window of time. When enough
+ * of them have failed, the breaker {@link State#OPEN opens}: requests then
+ * fail immediately with a {@link RejectedExecutionException}, without being
+ * subscribed. After a while, the breaker becomes
+ * {@link State#HALF_OPEN half open}, and lets a few probe requests through.
+ * If they all succeed, it closes again; if any fails, it opens again.
+ *
+ * A request fails if it ends with {@link Subscriber#onError(Throwable)}. To
+ * count error responses as failures too, lift a
+ * {@link FailedResponseOperator} before applying the breaker, with
+ * {@link Observable#compose(Observable.Transformer)}. An instance tracks a
+ * single server; use {@link #perHost(Builder)} to track each host separately.
+ *
+ * @see AdmissionControl
+ */
+public final class CircuitBreaker extends AdmissionControl {
+
+    public static enum State {
+        /**
+         * Requests are sent, and their failures counted.
+         */
+        CLOSED,
+        /**
+         * Requests fail without being sent.
+         */
+        OPEN,
+        /**
+         * A limited number of requests are sent to find out whether the
+         * server has recovered.
+         */
+        HALF_OPEN,
+    }
+
+    private final Ticker ticker;
+    private final double failureRateThreshold;
+    private final int minimumRequests;
+    private final int bucketCount;
+    private final long bucketNanos;
+    private final long openNanos;
+    private final int halfOpenProbes;
+
+    /**
+     * Replaced on every transition, so that the outcomes of requests
+     * admitted in an earlier phase don't affect the current one.
+     */
+    private final AtomicReference<Phase> phase;
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a registry of breakers, one for each host, all with the given
+     * settings.
+     */
+    public static PerHost perHost(final Builder settings) {
+        return new PerHost(settings);
+    }
+
+    public State getState() {
+        return this.phase.get().state;
+    }
+
+    /**
+     * The number of requests that failed without being sent, because the
+     * breaker was open, or half open with all of its probes in flight.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    @Override
+    protected Subscriber<? super ClientResponse> admit(final Subscriber<? super ClientResponse> child) {
+        final long now = this.ticker.read();
+        Phase current = this.phase.get();
+        if (current.state == State.OPEN && now - current.sinceNanos >= this.openNanos) {
+            final Phase halfOpen = new Phase(State.HALF_OPEN, now);
+            current = this.phase.compareAndSet(current, halfOpen) ? halfOpen : this.phase.get();
+        }
+        if (current.tryAdmit(this.halfOpenProbes)) {
+            return new OutcomeSubscriber(child, current);
+        }
+
+        this.rejected.incrementAndGet();
+        throw new RejectedExecutionException("circuit breaker " + current.state);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [state=" + getState()
+                + ", rejected=" + getRejectedCount()
+                + ']';
+    }
+
+    private void onSuccess(final Phase admittedIn) {
+        if (admittedIn.state == State.CLOSED) {
+            admittedIn.window.record(this.ticker.read(), false);
+        } else if (admittedIn.state == State.HALF_OPEN
+                && admittedIn.probesSucceeded.incrementAndGet() >= this.halfOpenProbes) {
+            this.phase.compareAndSet(admittedIn, newClosedPhase(this.ticker.read()));
+        }
+    }
+
+    private void onFailure(final Phase admittedIn) {
+        final long now = this.ticker.read();
+        if (admittedIn.state == State.CLOSED) {
+            admittedIn.window.record(now, true);
+            if (admittedIn.window.isTripped(now)) {
+                this.phase.compareAndSet(admittedIn, new Phase(State.OPEN, now));
+            }
+        } else if (admittedIn.state == State.HALF_OPEN) {
+            this.phase.compareAndSet(admittedIn, new Phase(State.OPEN, now));
+        }
+    }
+
+    private void onAbandoned(final Phase admittedIn) {
+        if (admittedIn.state == State.HALF_OPEN) {
+            // Let another request probe in its place.
+            admittedIn.probesStarted.decrementAndGet();
+        }
+    }
+
+    private Phase newClosedPhase(final long nowNanos) {
+        return new Phase(nowNanos, new SlidingWindow());
+    }
+
+    private CircuitBreaker(final Builder builder) {
+        this.ticker = builder.ticker;
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.minimumRequests = builder.minimumRequests;
+        this.bucketCount = builder.bucketCount;
+        this.bucketNanos = Math.max(1L, builder.windowNanos / builder.bucketCount);
+        this.openNanos = builder.openNanos;
+        this.halfOpenProbes = builder.halfOpenProbes;
+        this.phase = new AtomicReference<>(newClosedPhase(this.ticker.read()));
+    }
+
+
+    public static final class Builder {
+        private double failureRateThreshold = 0.5;
+        private int minimumRequests = 20;
+        private long windowNanos = TimeUnit.SECONDS.toNanos(10);
+        private int bucketCount = 10;
+        private long openNanos = TimeUnit.SECONDS.toNanos(30);
+        private int halfOpenProbes = 3;
+        private Ticker ticker = Ticker.systemTicker();
+
+        /**
+         * Open the breaker when at least this fraction of the requests in
+         * the window have failed. The default is 0.5.
+         */
+        public Builder failureRateThreshold(final double rate) {
+            this.failureRateThreshold = rate;
+            return this;
+        }
+
+        /**
+         * Don't open the breaker until the window contains at least this
+         * many requests. The default is 20.
+         */
+        public Builder minimumRequests(final int count) {
+            this.minimumRequests = count;
+            return this;
+        }
+
+        /**
+         * Count the outcomes of requests over this much time. The window
+         * slides in steps of one tenth of this duration. The default is 10
+         * seconds.
+         */
+        public Builder slidingWindow(final long duration, final TimeUnit unit) {
+            this.windowNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Stay open this long before letting probes through. The default
+         * is 30 seconds.
+         */
+        public Builder openDuration(final long duration, final TimeUnit unit) {
+            this.openNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Send at most this many probes at once while half open, and close
+         * the breaker after this many have succeeded. The default is 3.
+         */
+        public Builder halfOpenProbes(final int count) {
+            this.halfOpenProbes = count;
+            return this;
+        }
+
+        @VisibleForTesting
+        /*package*/ Builder ticker(final Ticker newTicker) {
+            this.ticker = newTicker;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException If the failure rate isn't in
+         *              (0, 1], or any count or duration isn't positive.
+         */
+        public CircuitBreaker build() {
+            if (this.failureRateThreshold <= 0.0 || this.failureRateThreshold > 1.0) {
+                throw new IllegalArgumentException("failure rate " + this.failureRateThreshold + " not in (0, 1]");
+            }
+            if (this.minimumRequests <= 0) {
+                throw new IllegalArgumentException("non-positive minimum requests " + this.minimumRequests);
+            }
+            if (this.halfOpenProbes <= 0) {
+                throw new IllegalArgumentException("non-positive half-open probes " + this.halfOpenProbes);
+            }
+            if (this.windowNanos <= 0L || this.openNanos <= 0L) {
+                throw new IllegalArgumentException("non-positive duration");
+            }
+            return new CircuitBreaker(this);
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    /**
+     * A separate {@link CircuitBreaker} for each host.
+     */
+    public static final class PerHost {
+        private final Builder settings;
+        private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+        /**
+         * The breaker for the host of the given {@link URI}.
+         */
+        public CircuitBreaker forUri(final URI uri) {
+            final int port = uri.getPort();
+            return forHost((port < 0) ? uri.getHost() : uri.getHost() + ':' + port);
+        }
+
+        /**
+         * The breaker for the given host, which should include the port if
+         * it's not the default.
+         */
+        public CircuitBreaker forHost(final String host) {
+            final CircuitBreaker existing = this.breakers.get(host);
+            if (existing != null) {
+                return existing;
+            }
+            final CircuitBreaker created = this.settings.build();
+            final CircuitBreaker raced = this.breakers.putIfAbsent(host, created);
+            return (raced != null) ? raced : created;
+        }
+
+        public Set<String> getHosts() {
+            return ImmutableSet.copyOf(this.breakers.keySet());
+        }
+
+        private PerHost(final Builder settings) {
+            // Fail now if the settings are invalid:
+            settings.build();
+            this.settings = settings;
+        }
+    }
+
+
+    private final class Phase {
+        public final State state;
+        public final long sinceNanos;
+        /** Only when closed. */
+        public final SlidingWindow window;
+        /** Only when half open. */
+        public final AtomicInteger probesStarted = new AtomicInteger();
+        public final AtomicInteger probesSucceeded = new AtomicInteger();
+
+        public Phase(final State state, final long sinceNanos) {
+            this.state = state;
+            this.sinceNanos = sinceNanos;
+            this.window = null;
+        }
+
+        public Phase(final long sinceNanos, final SlidingWindow window) {
+            this.state = State.CLOSED;
+            this.sinceNanos = sinceNanos;
+            this.window = window;
+        }
+
+        public boolean tryAdmit(final int maxProbes) {
+            switch (this.state) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    int started;
+                    do {
+                        started = this.probesStarted.get();
+                        if (started >= maxProbes) {
+                            return false;
+                        }
+                    } while (!this.probesStarted.compareAndSet(started, started + 1));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+
+    /**
+     * Counts successes and failures in a ring of buckets, each covering a
+     * fixed slice of time. A bucket from an earlier turn of the ring is
+     * replaced, by CAS, the first time it's needed again.
+     */
+    private final class SlidingWindow {
+        private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(bucketCount);
+
+        public void record(final long nowNanos, final boolean failed) {
+            final Bucket bucket = bucketFor(nowNanos / bucketNanos);
+            bucket.total.incrementAndGet();
+            if (failed) {
+                bucket.failures.incrementAndGet();
+            }
+        }
+
+        public boolean isTripped(final long nowNanos) {
+            final long currentEpoch = nowNanos / bucketNanos;
+            long total = 0L;
+            long failures = 0L;
+            for (int i = 0; i < this.buckets.length(); ++i) {
+                final Bucket bucket = this.buckets.get(i);
+                if (bucket != null && currentEpoch - bucket.epoch < bucketCount) {
+                    total += bucket.total.get();
+                    failures += bucket.failures.get();
+                }
+            }
+            return total >= minimumRequests
+                && failures >= failureRateThreshold * total;
+        }
+
+        private Bucket bucketFor(final long epoch) {
+            final int index = (int) (epoch % bucketCount);
+            while (true) {
+                final Bucket existing = this.buckets.get(index);
+                if (existing != null && existing.epoch >= epoch) {
+                    // A racing thread may be ahead by a whole turn of the
+                    // ring; count in its bucket rather than lose the outcome.
+                    return existing;
+                }
+                final Bucket created = new Bucket(epoch);
+                if (this.buckets.compareAndSet(index, existing, created)) {
+                    return created;
+                }
+            }
+        }
+    }
+
+
+    private static final class Bucket {
+        public final long epoch;
+        public final AtomicInteger total = new AtomicInteger();
+        public final AtomicInteger failures = new AtomicInteger();
+
+        public Bucket(final long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+
+    /**
+     * Reports the outcome of a request once: success on its first response
+     * or completion, failure on error, or neither if it's unsubscribed
+     * first.
+     */
+    private final class OutcomeSubscriber extends Subscriber<ClientResponse> {
+        private final Subscriber<? super ClientResponse> delegate;
+        private final Phase admittedIn;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        public OutcomeSubscriber(final Subscriber<? super ClientResponse> delegate, final Phase admittedIn) {
+            super(delegate);
+            this.delegate = delegate;
+            this.admittedIn = admittedIn;
+            add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    if (finish()) {
+                        onAbandoned(OutcomeSubscriber.this.admittedIn);
+                    }
+                }
+            }));
+        }
+
+        @Override
+        public void onNext(final ClientResponse response) {
+            if (finish()) {
+                onSuccess(this.admittedIn);
+            }
+            this.delegate.onNext(response);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (finish()) {
+                onSuccess(this.admittedIn);
+            }
+            this.delegate.onCompleted();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            if (finish()) {
+                onFailure(this.admittedIn);
+            }
+            this.delegate.onError(error);
+        }
+
+        private boolean finish() {
+            return this.finished.compareAndSet(false, true);
+        }
+    }
+
+}
@@ -16,10 +16,6 @@ package crud.http.util;
 
 import javax.ws.rs.core.Response;
 
-import com.google.common.collect.ContiguousSet;
-import com.google.common.collect.DiscreteDomain;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Range;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
 
@@ -52,29 +48,34 @@ import rx.Subscriber;
 public final class FailedResponseOperator
 implements Observable.Operator<ClientResponse, ClientResponse> {
 
-    private static final int MIN_STATUS_CODE = 100;
-    private static final int MAX_STATUS_CODE = 599;
+    /**
+     * The key of the {@link ClientResponse#getProperties() property} set,
+     * to {@link Boolean#TRUE}, on each response that an instance of this
+     * class turns into an error, so that whoever closes the response can
+     * tell.
+     */
+    public static final String FAILED_PROPERTY = FailedResponseOperator.class.getName() + ".failed";
+
     private static final int MIN_SUCCESS_STATUS_CODE = 200;
     private static final int MAX_SUCCESS_STATUS_CODE = 299;
-    private static final int MIN_SERVER_ERROR_STATUS_CODE = 500;
-    private static final int MAX_SERVER_ERROR_STATUS_CODE = 599;
 
-    private static FailedResponseOperator serverErrors = null;
-    private static FailedResponseOperator nonSuccessResponses = null;
+    private static final FailedResponseOperator serverErrors = new FailedResponseOperator(
+            ResponseClassifier.newBuilder()
+                .add(ResponseClassifier.Category.FAILED, Response.Status.Family.SERVER_ERROR)
+                .build());
+    private static final FailedResponseOperator nonSuccessResponses = new FailedResponseOperator(
+            ResponseClassifier.newBuilder()
+                .addRange(ResponseClassifier.Category.FAILED, 100, MIN_SUCCESS_STATUS_CODE - 1)
+                .addRange(ResponseClassifier.Category.FAILED, MAX_SUCCESS_STATUS_CODE + 1, 599)
+                .build());
 
-    private final ImmutableSet<Integer> failedStatuses;
+    private final ResponseClassifier classifier;
 
 
     /**
      * Treat all 500-range responses as errors.
      */
     public static FailedResponseOperator serverErrors() {
-        if (serverErrors == null) {
-            // Don't delegate to fromStatusCodes(): it does extraneous checking
-            serverErrors = new FailedResponseOperator(ContiguousSet.create(
-                    Range.closed(MIN_SERVER_ERROR_STATUS_CODE, MAX_SERVER_ERROR_STATUS_CODE),
-                    DiscreteDomain.integers()));
-        }
         return serverErrors;
     }
 
@@ -82,52 +83,50 @@ implements Observable.Operator<ClientResponse, ClientResponse> {
      * Treat all non-200-range responses as errors.
      */
     public static FailedResponseOperator nonSuccessResponses() {
-        if (nonSuccessResponses == null) {
-            final ImmutableSet<Integer> prefix = ContiguousSet.create(
-                    Range.closedOpen(MIN_STATUS_CODE, MIN_SUCCESS_STATUS_CODE),
-                    DiscreteDomain.integers());
-            final ImmutableSet<Integer> suffix = ContiguousSet.create(
-                    Range.openClosed(MAX_SUCCESS_STATUS_CODE, MAX_STATUS_CODE),
-                    DiscreteDomain.integers());
-            final ImmutableSet<Integer> all = ImmutableSet.<Integer>builder()
-                    .addAll(prefix)
-                    .addAll(suffix)
-                    .build();
-            // Don't delegate to fromStatusCodes(): it does extraneous checking
-            nonSuccessResponses = new FailedResponseOperator(all);
-        }
         return nonSuccessResponses;
     }
 
+    /**
+     * Treat responses that the given classifier considers
+     * {@link ResponseClassifier.Category#FAILED failed} as errors.
+     */
+    public static FailedResponseOperator fromClassifier(final ResponseClassifier classifier) {
+        if (classifier == null) {
+            throw new NullPointerException("null classifier");
+        }
+        return new FailedResponseOperator(classifier);
+    }
+
     public static FailedResponseOperator fromClientResponseStatuses(final Iterable<ClientResponse.Status> statuses) {
-        final ImmutableSet.Builder<Integer> statusCodes = new ImmutableSet.Builder<>();
+        final ResponseClassifier.Builder classifier = ResponseClassifier.newBuilder();
         for (final ClientResponse.Status status : statuses) {
-            statusCodes.add(status.getStatusCode());
+            classifier.add(ResponseClassifier.Category.FAILED, status.getStatusCode());
         }
-        // Don't delegate to fromStatusCodes(): it does extraneous checking
-        return new FailedResponseOperator(statusCodes.build());
+        return new FailedResponseOperator(classifier.build());
     }
 
     public static FailedResponseOperator fromResponseStatuses(final Iterable<Response.Status> statuses) {
-        final ImmutableSet.Builder<Integer> statusCodes = new ImmutableSet.Builder<>();
+        final ResponseClassifier.Builder classifier = ResponseClassifier.newBuilder();
         for (final Response.Status status : statuses) {
-            statusCodes.add(status.getStatusCode());
+            classifier.add(ResponseClassifier.Category.FAILED, status.getStatusCode());
         }
-        // Don't delegate to fromStatusCodes(): it does extraneous checking
-        return new FailedResponseOperator(statusCodes.build());
+        return new FailedResponseOperator(classifier.build());
     }
 
+    /**
+     * @throws IllegalArgumentException If any status is not between 100
+     *              and 599.
+     */
     public static FailedResponseOperator fromStatusCodes(final Iterable<Integer> statuses) {
+        final ResponseClassifier.Builder classifier = ResponseClassifier.newBuilder();
         for (final Integer status : statuses) {
-            if (status < MIN_STATUS_CODE || status > MAX_STATUS_CODE) {
-                throw new IllegalArgumentException("HTTP status code out of range: " + status);
-            }
+            classifier.add(ResponseClassifier.Category.FAILED, status);
         }
-        return new FailedResponseOperator(statuses);
+        return new FailedResponseOperator(classifier.build());
     }
 
-    private FailedResponseOperator(final Iterable<Integer> failedStatuses) {
-        this.failedStatuses = ImmutableSet.copyOf(failedStatuses);
+    private FailedResponseOperator(final ResponseClassifier classifier) {
+        this.classifier = classifier;
     }
 
     @Override
@@ -149,8 +148,9 @@ implements Observable.Operator<ClientResponse, ClientResponse> {
             if (this.errorOccurred) {
                 return;
             }
-            if (FailedResponseOperator.this.failedStatuses.contains(response.getStatus())) {
+            if (FailedResponseOperator.this.classifier.is(response, ResponseClassifier.Category.FAILED)) {
                 this.errorOccurred = true;
+                response.getProperties().put(FAILED_PROPERTY, Boolean.TRUE);
                 this.delegate.onError(new UniformInterfaceException(response));
             } else {
                 this.delegate.onNext(response);
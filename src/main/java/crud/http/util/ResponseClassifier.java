@@ -0,0 +1,387 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.ws.rs.core.Response;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.sun.jersey.api.client.ClientResponse;
+
+
+/**
+ * Sorts {@link ClientResponse}s into {@link Category categories} according
+ * to their status codes and, optionally, their headers. The statuses are
+ * compiled into a flat table, indexed by status code, of the categories of
+ * each, so that classifying a response costs an array lookup, without
+ * boxing or allocation, plus a check of each header rule, if any.
+ *
+ * A response may belong to several categories at once: for example, a
+ * {@code 503} is typically both {@link Category#FAILED failed} and
+ * {@link Category#RETRYABLE retryable}. {@link #classify(ClientResponse)}
+ * finds all of them at once, and returns them as a bit mask, which
+ * {@link Category#in(int)} tests.
+ *
+ * Instances are immutable, and so may be shared freely among threads.
+ *
+ * @see FailedResponseOperator#fromClassifier(ResponseClassifier)
+ */
+public final class ResponseClassifier {
+
+    public static enum Category {
+        SUCCESS,
+        FAILED,
+        /**
+         * The request may succeed if it's sent again, perhaps after a
+         * delay.
+         */
+        RETRYABLE,
+        /**
+         * The response may be cached, unless its headers say otherwise.
+         */
+        CACHEABLE,
+        ;
+
+        private final int mask = 1 << ordinal();
+
+        /**
+         * @return  True if the given result of
+         *          {@link ResponseClassifier#classify(ClientResponse)}
+         *          includes this category.
+         */
+        public boolean in(final int categories) {
+            return (categories & this.mask) != 0;
+        }
+    }
+
+    /**
+     * Statuses range from 100 to 599; the table has room for 0 to 599, so
+     * that the status indexes it directly.
+     */
+    private static final int TABLE_SIZE = 600;
+
+    /**
+     * The set of categories for each possible bit mask, so that
+     * {@link #categoriesOf(ClientResponse)} needn't allocate.
+     */
+    private static final ImmutableSet<Category>[] categorySets = createCategorySets();
+
+    private static final ResponseClassifier standard = newBuilder()
+            .add(Category.SUCCESS, Response.Status.Family.SUCCESSFUL)
+            .add(Category.FAILED, Response.Status.Family.CLIENT_ERROR)
+            .add(Category.FAILED, Response.Status.Family.SERVER_ERROR)
+            // Request Timeout, Too Many Requests, Bad Gateway, Service
+            // Unavailable, Gateway Timeout:
+            .add(Category.RETRYABLE, 408, 429, 502, 503, 504)
+            // Cacheable by default, according to RFC 7231 section 6.1:
+            .add(Category.CACHEABLE, 200, 203, 204, 206, 300, 301, 404, 405, 410, 414, 501)
+            .build();
+
+    private final byte[] table;
+    private final HeaderRule[] headerRules;
+
+
+    /**
+     * Successful (200-range) responses are {@link Category#SUCCESS}; 400-
+     * and 500-range responses are {@link Category#FAILED}; those that
+     * signal a timeout or overload (408, 429, 502, 503, and 504) are
+     * {@link Category#RETRYABLE}; and those that HTTP allows caching by
+     * default are {@link Category#CACHEABLE}.
+     */
+    public static ResponseClassifier standard() {
+        return standard;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return  A bit mask of the categories of the given response. Test it
+     *          with {@link Category#in(int)}.
+     */
+    public int classify(final ClientResponse response) {
+        int categories = classify(response.getStatus());
+        for (final HeaderRule rule : this.headerRules) {
+            if (!rule.category.in(categories) && rule.matches(response)) {
+                categories |= rule.category.mask;
+            }
+        }
+        return categories;
+    }
+
+    /**
+     * @return  A bit mask of the categories of a response with the given
+     *          status, ignoring any header rules. Test it with
+     *          {@link Category#in(int)}.
+     */
+    public int classify(final int status) {
+        return (status >= 0 && status < TABLE_SIZE) ? this.table[status] : 0;
+    }
+
+    public boolean is(final ClientResponse response, final Category category) {
+        return category.in(classify(response));
+    }
+
+    public Set<Category> categoriesOf(final ClientResponse response) {
+        return categorySets[classify(response)];
+    }
+
+    /**
+     * @return  A classifier that puts a response into every category into
+     *          which either this or the other classifier would put it.
+     */
+    public ResponseClassifier union(final ResponseClassifier other) {
+        final Builder builder = new Builder();
+        builder.addAll(this);
+        builder.addAll(other);
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(getClass().getSimpleName()).append(" [");
+        for (final Category category : Category.values()) {
+            buf.append(category).append('=').append(statusesIn(category)).append(", ");
+        }
+        return buf.append("headerRules=").append(Arrays.toString(this.headerRules)).append(']').toString();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ResponseClassifier other = (ResponseClassifier) obj;
+        return Arrays.equals(this.table, other.table)
+            && Arrays.equals(this.headerRules, other.headerRules);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(this.table) + Arrays.hashCode(this.headerRules);
+    }
+
+    private String statusesIn(final Category category) {
+        final StringBuilder buf = new StringBuilder("[");
+        int start = -1;
+        for (int status = 0; status <= TABLE_SIZE; ++status) {
+            final boolean included = status < TABLE_SIZE && category.in(this.table[status]);
+            if (included && start < 0) {
+                start = status;
+            } else if (!included && start >= 0) {
+                if (buf.length() > 1) {
+                    buf.append(", ");
+                }
+                buf.append(start);
+                if (status - 1 > start) {
+                    buf.append('-').append(status - 1);
+                }
+                start = -1;
+            }
+        }
+        return buf.append(']').toString();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static ImmutableSet<Category>[] createCategorySets() {
+        final Category[] categories = Category.values();
+        final ImmutableSet<Category>[] sets = new ImmutableSet[1 << categories.length];
+        for (int mask = 0; mask < sets.length; ++mask) {
+            final EnumSet<Category> set = EnumSet.noneOf(Category.class);
+            for (final Category category : categories) {
+                if (category.in(mask)) {
+                    set.add(category);
+                }
+            }
+            sets[mask] = Sets.immutableEnumSet(set);
+        }
+        return sets;
+    }
+
+    private ResponseClassifier(final Builder builder) {
+        this.table = builder.table.clone();
+        this.headerRules = builder.headerRules.toArray(new HeaderRule[builder.headerRules.size()]);
+    }
+
+
+    public static final class Builder {
+        private final byte[] table = new byte[TABLE_SIZE];
+        private final List<HeaderRule> headerRules = new ArrayList<>();
+
+        /**
+         * Put responses with the given statuses into the given category.
+         *
+         * @throws IllegalArgumentException If any status is not between
+         *              100 and 599.
+         */
+        public Builder add(final Category category, final int... statuses) {
+            for (final int status : statuses) {
+                checkStatus(status);
+            }
+            for (final int status : statuses) {
+                this.table[status] |= category.mask;
+            }
+            return this;
+        }
+
+        /**
+         * Put responses with statuses from {@code first} to {@code last},
+         * inclusive, into the given category.
+         *
+         * @throws IllegalArgumentException If either status is not between
+         *              100 and 599, or {@code last} is less than
+         *              {@code first}.
+         */
+        public Builder addRange(final Category category, final int first, final int last) {
+            checkStatus(first);
+            checkStatus(last);
+            if (last < first) {
+                throw new IllegalArgumentException("empty range " + first + '-' + last);
+            }
+            for (int status = first; status <= last; ++status) {
+                this.table[status] |= category.mask;
+            }
+            return this;
+        }
+
+        /**
+         * Put responses with statuses in the given family, such as
+         * {@link Response.Status.Family#SERVER_ERROR}, into the given
+         * category.
+         *
+         * @throws IllegalArgumentException If the family is
+         *              {@link Response.Status.Family#OTHER}.
+         */
+        public Builder add(final Category category, final Response.Status.Family family) {
+            switch (family) {
+                case INFORMATIONAL: return addRange(category, 100, 199);
+                case SUCCESSFUL:    return addRange(category, 200, 299);
+                case REDIRECTION:   return addRange(category, 300, 399);
+                case CLIENT_ERROR:  return addRange(category, 400, 499);
+                case SERVER_ERROR:  return addRange(category, 500, 599);
+                default:
+                    throw new IllegalArgumentException("no status range for " + family);
+            }
+        }
+
+        /**
+         * Put responses into the given category, whatever their status, if
+         * they have the given header, and its first value satisfies the
+         * given predicate. Header rules are checked, in the order they
+         * were added, after the status table, and only for categories that
+         * the status didn't already imply.
+         */
+        public Builder addHeaderRule(
+                final Category category,
+                final String headerName,
+                final Predicate<? super String> valuePredicate) {
+            this.headerRules.add(new HeaderRule(category, headerName, valuePredicate));
+            return this;
+        }
+
+        /**
+         * Include all of the statuses and header rules of the given
+         * classifier.
+         */
+        public Builder addAll(final ResponseClassifier other) {
+            for (int status = 0; status < TABLE_SIZE; ++status) {
+                this.table[status] |= other.table[status];
+            }
+            for (final HeaderRule rule : other.headerRules) {
+                if (!this.headerRules.contains(rule)) {
+                    this.headerRules.add(rule);
+                }
+            }
+            return this;
+        }
+
+        public ResponseClassifier build() {
+            return new ResponseClassifier(this);
+        }
+
+        private static void checkStatus(final int status) {
+            if (status < 100 || status >= TABLE_SIZE) {
+                throw new IllegalArgumentException("HTTP status code out of range: " + status);
+            }
+        }
+
+        private Builder() {
+            // use factory method
+        }
+    }
+
+
+    private static final class HeaderRule {
+        public final Category category;
+        private final String headerName;
+        private final Predicate<? super String> valuePredicate;
+
+        public HeaderRule(
+                final Category category,
+                final String headerName,
+                final Predicate<? super String> valuePredicate) {
+            if (category == null || headerName == null || valuePredicate == null) {
+                throw new NullPointerException();
+            }
+            this.category = category;
+            this.headerName = headerName;
+            this.valuePredicate = valuePredicate;
+        }
+
+        public boolean matches(final ClientResponse response) {
+            final String value = response.getHeaders().getFirst(this.headerName);
+            return value != null && this.valuePredicate.apply(value);
+        }
+
+        @Override
+        public String toString() {
+            return this.category + " if " + this.headerName + ' ' + this.valuePredicate;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final HeaderRule other = (HeaderRule) obj;
+            return this.category == other.category
+                && this.headerName.equalsIgnoreCase(other.headerName)
+                && this.valuePredicate.equals(other.valuePredicate);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.category.hashCode();
+            result = 31 * result + this.headerName.toLowerCase().hashCode();
+            result = 31 * result + this.valuePredicate.hashCode();
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+
+import jdk.jfr.EventType;
+
+
+/**
+ * Records each request as an {@link HttpRequestEvent}. {@link RequestEvents}
+ * loads this class by name, so that the core library can be compiled for,
+ * and run on, JVMs without Flight Recorder.
+ */
+/*package*/ final class FlightRecorderEvents extends RequestEvents {
+
+    private final EventType eventType = EventType.getEventType(HttpRequestEvent.class);
+
+
+    @Override
+    public boolean isEnabled() {
+        return this.eventType.isEnabled();
+    }
+
+    @Override
+    public Recorder begin(final RequestMethod method, final URI uri, final int attempt) {
+        return new HttpRequestEvent(method, uri, attempt);
+    }
+
+}
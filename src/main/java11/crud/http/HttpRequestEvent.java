@@ -0,0 +1,108 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.net.URI;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * A Java Flight Recorder event covering one HTTP request, from the time
+ * {@link HttpResource} sends it until its response is closed, or until it
+ * fails without a response. The event is committed by whichever thread
+ * ends it, which is often not the thread that began it.
+ *
+ * Stack traces are off by default, as the sending thread's stack is
+ * rarely interesting and costly to capture for every request; turn them on
+ * for a recording with the setting {@code crud.http.Request#stackTrace=true}.
+ */
+@Name(HttpRequestEvent.NAME)
+@Label("HTTP Request")
+@Category({ "Crud HTTP" })
+@Description("An HTTP request, from sending it until its response is closed")
+@StackTrace(false)
+/*package*/ final class HttpRequestEvent extends Event implements RequestEvents.Recorder {
+
+    public static final String NAME = "crud.http.Request";
+
+    @Label("Method")
+    private String method;
+
+    @Label("Host")
+    private String host;
+
+    @Label("URI")
+    private String uri;
+
+    @Label("Attempt")
+    @Description("1 the first time a request is sent, and more when it is retried or hedged")
+    private int attempt;
+
+    @Label("Retried")
+    private boolean retried;
+
+    @Label("Status")
+    @Description("The response status code, or 0 if there was no response")
+    private int status;
+
+    @Label("Response Bytes")
+    @Description("The response's Content-Length, or -1 if it didn't declare one")
+    @DataAmount
+    private long responseBytes = -1;
+
+    @Label("Failed")
+    @Description("Whether the request failed, or its response was classified as a failure")
+    private boolean failed;
+
+    @Label("Error")
+    private String error;
+
+
+    public HttpRequestEvent(final RequestMethod method, final URI uri, final int attempt) {
+        this.method = method.name();
+        this.host = uri.getAuthority();
+        this.uri = uri.toString();
+        this.attempt = attempt;
+        this.retried = attempt > 1;
+        begin();
+    }
+
+    @Override
+    public void failed(final Throwable failure) {
+        this.failed = true;
+        this.error = failure.toString();
+        end();
+        commit();
+    }
+
+    @Override
+    public void closed(final ClientResponse response, final boolean classifiedFailed) {
+        this.status = response.getStatus();
+        this.responseBytes = response.getLength();
+        this.failed = classifiedFailed;
+        end();
+        commit();
+    }
+
+}
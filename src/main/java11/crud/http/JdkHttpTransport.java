@@ -0,0 +1,359 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+
+import javax.ws.rs.core.MediaType;
+
+import com.google.common.base.Optional;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+
+/**
+ * An {@link HttpTransport} based on the JDK's own
+ * {@link java.net.http.HttpClient}, available from Java 11. Unlike the
+ * Jersey 1 client, it supports HTTP/2, so that many concurrent requests to
+ * the same origin can be multiplexed over a few connections instead of each
+ * occupying its own. Responses are delivered from the client's
+ * asynchronous {@link HttpClient#sendAsync sendAsync} completion, without
+ * holding a thread per request.
+ *
+ * Requests and responses behave as they do with {@link JerseyTransport}:
+ * headers, cookies, and accepted types and languages are copied from the
+ * {@link ClientRequest}s, entity bodies are serialized by the Jersey entity
+ * providers, and responses are Jersey {@link ClientResponse}s that can
+ * decode themselves with the same providers.
+ */
+public final class JdkHttpTransport implements HttpTransport {
+
+    private final HttpClient httpClient;
+    private final MessageBodyWorkers workers;
+
+
+    /**
+     * Create a transport with a new {@link HttpClient} that prefers HTTP/2,
+     * and with Jersey's default entity providers.
+     */
+    public static JdkHttpTransport create() {
+        return create(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .build());
+    }
+
+    /**
+     * Create a transport around the given {@link HttpClient}, with Jersey's
+     * default entity providers.
+     */
+    public static JdkHttpTransport create(final HttpClient httpClient) {
+        return create(httpClient, Client.create().getMessageBodyWorkers());
+    }
+
+    /**
+     * Create a transport around the given {@link HttpClient}, which will
+     * serialize request entities, and allow responses to decode their
+     * entities, with the given Jersey entity providers.
+     */
+    public static JdkHttpTransport create(
+            final HttpClient httpClient,
+            final MessageBodyWorkers workers) {
+        return new JdkHttpTransport(httpClient, workers);
+    }
+
+    public HttpClient getHttpClient() {
+        return this.httpClient;
+    }
+
+    @Override
+    public Endpoint endpoint(final URI uri) {
+        return new JdkEndpoint(uri);
+    }
+
+    @Override
+    public MessageBodyWorkers getMessageBodyWorkers() {
+        return this.workers;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [httpClient=" + this.httpClient
+                + ']';
+    }
+
+    private JdkHttpTransport(final HttpClient httpClient, final MessageBodyWorkers workers) {
+        this.httpClient = Objects.requireNonNull(httpClient);
+        this.workers = Objects.requireNonNull(workers);
+    }
+
+    private HttpRequest buildRequest(
+            final URI uri,
+            final RequestMethod method,
+            final ClientRequest template,
+            final ClientRequest request,
+            final RequestTimeline timeline) throws IOException {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+
+        for (final Map.Entry<String, String> header : RequestEncoder.headers(template, request).entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        if (timeline != null) {
+            builder.header(RequestTimeline.TRACEPARENT, timeline.getTraceParent());
+        }
+        final Optional<Object> entity = RequestEncoder.entity(template, request);
+        final HttpRequest.BodyPublisher body = entity.isPresent()
+                ? publisherFor(entity.get(), RequestEncoder.contentType(template, request))
+                : HttpRequest.BodyPublishers.noBody();
+
+        switch (method) {
+            case GET:
+                return builder.GET().build();
+            case PUT:
+                return builder.PUT(body).build();
+            case POST:
+                return builder.POST(body).build();
+            case DELETE:
+                return builder.method("DELETE", body).build();
+            default:
+                throw new AssertionError("unexpected method " + method);
+        }
+    }
+
+    /**
+     * Stream bodies that are already bytes, files, or streams directly.
+     * Serialize anything else with the same Jersey entity provider that
+     * {@link JerseyTransport} would use.
+     */
+    private HttpRequest.BodyPublisher publisherFor(
+            final Object entity,
+            final Optional<MediaType> contentType) throws IOException {
+        if (entity instanceof Path) {
+            return HttpRequest.BodyPublishers.ofFile((Path) entity);
+        }
+        if (entity instanceof File) {
+            return HttpRequest.BodyPublishers.ofFile(((File) entity).toPath());
+        }
+        if (entity instanceof StreamingEntity) {
+            return publisherFor((StreamingEntity) entity);
+        }
+        if (entity instanceof InputStream) {
+            final InputStream stream = (InputStream) entity;
+            return HttpRequest.BodyPublishers.ofInputStream(() -> stream);
+        }
+        return HttpRequest.BodyPublishers.ofByteArray(
+                RequestEncoder.serialize(this.workers, entity, contentType));
+    }
+
+    /**
+     * The client reads files itself; anything else is pulled from the
+     * entity's buffers as the client asks for them.
+     */
+    private static HttpRequest.BodyPublisher publisherFor(final StreamingEntity entity) throws IOException {
+        final Path path = entity.getPath();
+        if (path != null) {
+            return HttpRequest.BodyPublishers.ofFile(path);
+        }
+        final long length = entity.length();
+        if (length == 0) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        final Flow.Publisher<ByteBuffer> publisher = new ChunkPublisher(entity.toObservable());
+        return (length > 0)
+                ? HttpRequest.BodyPublishers.fromPublisher(publisher, length)
+                : HttpRequest.BodyPublishers.fromPublisher(publisher);
+    }
+
+    private ClientResponse toClientResponse(final HttpResponse<InputStream> response) {
+        final InBoundHeaders headers = new InBoundHeaders();
+        final HttpHeaders responseHeaders = response.headers();
+        for (final Map.Entry<String, List<String>> header : responseHeaders.map().entrySet()) {
+            if (header.getKey().startsWith(":")) {
+                continue;   // HTTP/2 pseudo-header
+            }
+            headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        return new ClientResponse(response.statusCode(), headers, response.body(), this.workers);
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+
+    private final class JdkEndpoint implements Endpoint {
+        private final URI uri;
+
+        public JdkEndpoint(final URI uri) {
+            this.uri = Objects.requireNonNull(uri);
+        }
+
+        @Override
+        public void send(
+                final RequestMethod method,
+                final ClientRequest template,
+                final ClientRequest request,
+                final Subscriber<? super ClientResponse> subscriber) {
+            final RequestTimeline timeline = RequestTimeline.of(subscriber);
+            if (timeline != null) {
+                timeline.mark(RequestTimeline.Event.DISPATCH);
+            }
+            final HttpRequest httpRequest;
+            try {
+                httpRequest = buildRequest(this.uri, method, template, request, timeline);
+            } catch (final IOException | RuntimeException ex) {
+                subscriber.onError(ex);
+                return;
+            }
+            final CompletableFuture<HttpResponse<InputStream>> future = httpClient.sendAsync(
+                    httpRequest,
+                    HttpResponse.BodyHandlers.ofInputStream());
+            subscriber.add(Subscriptions.from(future));
+            future.whenComplete((response, error) -> {
+                if (error != null) {
+                    subscriber.onError(unwrap(error));
+                } else {
+                    subscriber.onNext(toClientResponse(response));
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName()
+                    + " [uri=" + this.uri
+                    + ']';
+        }
+    }
+
+
+    /**
+     * Adapts an {@link Observable} of buffers to a {@link Flow.Publisher},
+     * passing the client's requests through as backpressure.
+     */
+    private static final class ChunkPublisher implements Flow.Publisher<ByteBuffer> {
+        private final Observable<ByteBuffer> chunks;
+
+        public ChunkPublisher(final Observable<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> downstream) {
+            final ChunkSubscriber upstream = new ChunkSubscriber(downstream);
+            downstream.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(final long n) {
+                    if (n <= 0) {
+                        upstream.unsubscribe();
+                        downstream.onError(new IllegalArgumentException("non-positive request " + n));
+                    } else {
+                        upstream.requestMore(n);
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    upstream.unsubscribe();
+                }
+            });
+            this.chunks.subscribe(upstream);
+        }
+    }
+
+
+    /**
+     * Requests only what the client has asked for. The client may ask
+     * before the Observable has set its producer, so requests are held
+     * until it does.
+     */
+    private static final class ChunkSubscriber extends Subscriber<ByteBuffer> {
+        private final Flow.Subscriber<? super ByteBuffer> downstream;
+        private Producer producer = null;
+        private long pending = 0L;
+
+        public ChunkSubscriber(final Flow.Subscriber<? super ByteBuffer> downstream) {
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void setProducer(final Producer newProducer) {
+            final long n;
+            synchronized (this) {
+                this.producer = newProducer;
+                n = this.pending;
+                this.pending = 0L;
+            }
+            if (n > 0) {
+                newProducer.request(n);
+            }
+        }
+
+        public void requestMore(final long n) {
+            final Producer current;
+            synchronized (this) {
+                current = this.producer;
+                if (current == null) {
+                    this.pending = (this.pending + n < 0) ? Long.MAX_VALUE : this.pending + n;
+                    return;
+                }
+            }
+            current.request(n);
+        }
+
+        @Override
+        public void onNext(final ByteBuffer chunk) {
+            this.downstream.onNext(chunk);
+        }
+
+        @Override
+        public void onCompleted() {
+            this.downstream.onComplete();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            this.downstream.onError(error);
+        }
+    }
+
+}
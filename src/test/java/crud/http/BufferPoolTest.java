@@ -0,0 +1,183 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import rx.functions.Func1;
+
+
+public class BufferPoolTest {
+
+    private final BufferPool pool = BufferPool.newBuilder()
+            .minSize(1024)
+            .maxSize(64 * 1024)
+            .leakDetection(true)
+            .build();
+
+
+    @Test
+    public void reusesReleasedArrayOfSameClass() {
+        // given:
+        final byte[] first = this.pool.acquire(3000);
+        assertEquals(4096, first.length);
+
+        // when:
+        this.pool.release(first);
+        final byte[] second = this.pool.acquire(2049);
+
+        // then:
+        assertSame(first, second);
+        assertEquals(1L, this.pool.getAllocatedCount());
+    }
+
+    @Test
+    public void doesNotPoolOversizeArrays() {
+        // given:
+        final byte[] first = this.pool.acquire(100 * 1000);
+        assertEquals(100 * 1000, first.length);
+
+        // when:
+        this.pool.release(first);
+        final byte[] second = this.pool.acquire(100 * 1000);
+
+        // then:
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void overflowIsSharedAmongThreads() throws InterruptedException {
+        // given:
+        final BufferPool sharedOnly = BufferPool.newBuilder()
+                .threadLocalCapacity(0)
+                .build();
+        final byte[] released = sharedOnly.acquire(100);
+        sharedOnly.release(released);
+
+        // when:
+        final AtomicReference<byte[]> acquired = new AtomicReference<>();
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                acquired.set(sharedOnly.acquire(100));
+            }
+        };
+        other.start();
+        other.join();
+
+        // then:
+        assertSame(released, acquired.get());
+    }
+
+    @Test
+    public void releasingArrayTwiceFails() {
+        // given:
+        final byte[] array = this.pool.acquire(100);
+        this.pool.release(array);
+
+        // when:
+        try {
+            this.pool.release(array);
+            fail("released twice");
+        } catch (final IllegalStateException expected) {
+            // then:
+            assertEquals(0L, this.pool.getLeakCount());
+        }
+    }
+
+    @Test
+    public void detectsArrayThatIsNeverReleased() throws InterruptedException {
+        // given:
+        this.pool.acquire(100);
+
+        // when:
+        for (int i = 0; i < 100 && this.pool.getLeakCount() == 0L; ++i) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+
+        // then:
+        assertEquals(1L, this.pool.getLeakCount());
+        assertTrue(this.pool.getLastLeak().isPresent());
+    }
+
+    @Test
+    public void responseBodiesAreDecodedFromPoolAndReturned() throws IOException {
+        // given:
+        final String body = "héllo, pool";
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+        final BufferPool sharedOnly = BufferPool.newBuilder()
+                .threadLocalCapacity(0)
+                .leakDetection(true)
+                .build();
+        final HttpResource resource = HttpResourceProvider.newBuilder(Client.create())
+                .bufferPool(sharedOnly)
+                .build()
+                .get(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/text"));
+        final Func1<ClientResponse, String> decode = new Func1<ClientResponse, String>() {
+            @Override
+            public String call(final ClientResponse response) {
+                return response.getEntity(String.class);
+            }
+        };
+
+        try {
+            // when:
+            final String first = resource.get().map(decode).toBlocking().single();
+            final String second = resource.get().map(decode).toBlocking().single();
+
+            // then:
+            assertEquals(body, first);
+            assertEquals(body, second);
+            assertEquals(1L, sharedOnly.getAllocatedCount());
+            assertFalse(sharedOnly.getLastLeak().isPresent());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
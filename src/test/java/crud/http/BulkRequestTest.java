@@ -0,0 +1,185 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+
+public class BulkRequestTest {
+
+    private static final int MAX_IN_FLIGHT = 3;
+
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.transport).build();
+    private final List<URI> uris = createUris(10);
+
+
+    @Test
+    public void limitsRequestsInFlight() {
+        // when:
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.COMPLETION)
+                .subscribe(new TestSubscriber<BulkResponse>());
+
+        // then:
+        assertEquals(MAX_IN_FLIGHT, this.transport.getSentCount());
+
+        // when:
+        this.transport.respond(0, 200);
+
+        // then:
+        assertEquals(MAX_IN_FLIGHT + 1, this.transport.getSentCount());
+    }
+
+    @Test
+    public void completionOrderDeliversResponsesAsTheyArrive() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.COMPLETION)
+                .subscribe(subscriber);
+
+        // when:
+        this.transport.respond(2, 200);
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(this.uris.get(2), subscriber.getOnNextEvents().get(0).getUri());
+    }
+
+    @Test
+    public void requestOrderHoldsEarlyResponses() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.REQUEST)
+                .subscribe(subscriber);
+
+        // when:
+        this.transport.respond(2, 200);
+        this.transport.respond(0, 200);
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        // Slot of response 2 still occupied, so only one new request:
+        assertEquals(MAX_IN_FLIGHT + 1, this.transport.getSentCount());
+
+        // when:
+        this.transport.respond(1, 200);
+
+        // then:
+        assertEquals(3, subscriber.getOnNextEvents().size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i, subscriber.getOnNextEvents().get(i).getIndex());
+        }
+    }
+
+    @Test
+    public void failedRequestDoesNotStopOthers() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        this.provider.deleteAll(Observable.from(this.uris.subList(0, 2)), MAX_IN_FLIGHT, BulkResponse.Order.REQUEST)
+                .subscribe(subscriber);
+        final IllegalStateException failure = new IllegalStateException("oops");
+
+        // when:
+        this.transport.fail(0, failure);
+        this.transport.respond(1, 204);
+
+        // then:
+        subscriber.assertNoErrors();
+        subscriber.assertTerminalEvent();
+        final List<BulkResponse> responses = subscriber.getOnNextEvents();
+        assertEquals(2, responses.size());
+        assertEquals(failure, responses.get(0).getError().get());
+        assertEquals(204, responses.get(1).getResponse().get().getStatus());
+    }
+
+    @Test
+    public void slowSubscriberStopsNewRequests() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        subscriber.requestMore(1);
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.COMPLETION)
+                .subscribe(subscriber);
+
+        // when:
+        for (int i = 0; i < MAX_IN_FLIGHT; ++i) {
+            this.transport.respond(i, 200);
+        }
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        // Only the delivered response freed a slot:
+        assertEquals(MAX_IN_FLIGHT + 1, this.transport.getSentCount());
+    }
+
+    @Test
+    public void allResponsesDelivered() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.REQUEST)
+                .subscribe(subscriber);
+
+        // when:
+        for (int i = 0; i < this.uris.size(); ++i) {
+            this.transport.respond(i, 200);
+        }
+
+        // then:
+        subscriber.assertNoErrors();
+        subscriber.assertTerminalEvent();
+        assertEquals(this.uris.size(), subscriber.getOnNextEvents().size());
+    }
+
+    @Test
+    public void unsubscribingCancelsRequestsInFlight() {
+        // given:
+        final TestSubscriber<BulkResponse> subscriber = new TestSubscriber<>();
+        this.provider.getAll(Observable.from(this.uris), MAX_IN_FLIGHT, BulkResponse.Order.COMPLETION)
+                .subscribe(subscriber);
+
+        // when:
+        subscriber.unsubscribe();
+
+        // then:
+        assertTrue(this.transport.getSentCount() > 0);
+        for (int i = 0; i < this.transport.getSentCount(); ++i) {
+            assertTrue(this.transport.getSent(i).isUnsubscribed());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxInFlightMustBePositive() {
+        // when:
+        this.provider.getAll(Observable.from(this.uris), 0, BulkResponse.Order.COMPLETION);
+    }
+
+    private static List<URI> createUris(final int count) {
+        final List<URI> uris = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            uris.add(URI.create("http://localhost/resource/" + i));
+        }
+        return uris;
+    }
+
+}
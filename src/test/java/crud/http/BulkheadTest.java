@@ -0,0 +1,190 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.observers.TestSubscriber;
+
+
+public class BulkheadTest {
+
+    private static final URI slowUri = URI.create("http://slow.example.com/resource");
+    private static final URI otherSlowUri = URI.create("http://slow.example.com/other");
+    private static final URI healthyUri = URI.create("http://healthy.example.com/resource");
+
+    private final PendingTransport transport = new PendingTransport();
+
+
+    @Test
+    public void limitsRequestsInFlightPerHost() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(2, 10);
+        final HttpResourceProvider provider = createProvider(bulkhead);
+
+        // when:
+        for (int i = 0; i < 3; ++i) {
+            provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+        }
+        provider.get(healthyUri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // then:
+        assertEquals(3, this.transport.getSentCount());
+        assertEquals(healthyUri, this.transport.getSentUri(2));
+        final String slowPartition = bulkhead.partitionOf(slowUri);
+        assertEquals(2, bulkhead.getInFlight(slowPartition));
+        assertEquals(1, bulkhead.getQueueDepth(slowPartition));
+    }
+
+    @Test
+    public void queuedRequestStartsWhenSlotIsFree() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(1, 10);
+        final HttpResourceProvider provider = createProvider(bulkhead);
+        final TestSubscriber<ClientResponse> queued = new TestSubscriber<>();
+        provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+        provider.get(otherSlowUri).get().subscribe(queued);
+
+        // when:
+        this.transport.respond(0, 200);
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+        assertEquals(otherSlowUri, this.transport.getSentUri(1));
+        assertEquals(0, bulkhead.getQueueDepth(bulkhead.partitionOf(slowUri)));
+
+        // when:
+        this.transport.respond(1, 200);
+
+        // then:
+        queued.assertTerminalEvent();
+        assertEquals(0, bulkhead.getInFlight(bulkhead.partitionOf(slowUri)));
+    }
+
+    @Test
+    public void failsFastWhenQueueIsFull() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(1, 0);
+        final HttpResourceProvider provider = createProvider(bulkhead);
+        final TestSubscriber<ClientResponse> rejected = new TestSubscriber<>();
+        provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        provider.get(slowUri).get().subscribe(rejected);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+        assertEquals(1, rejected.getOnErrorEvents().size());
+        assertTrue(rejected.getOnErrorEvents().get(0) instanceof RejectedExecutionException);
+        assertEquals(1L, bulkhead.getRejectedCount(bulkhead.partitionOf(slowUri)));
+    }
+
+    @Test
+    public void unsubscribingFreesSlot() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(1, 10);
+        final HttpResourceProvider provider = createProvider(bulkhead);
+        final Subscription first = provider.get(slowUri).get()
+                .subscribe(new TestSubscriber<ClientResponse>());
+        provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        first.unsubscribe();
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+        assertEquals(1, bulkhead.getInFlight(bulkhead.partitionOf(slowUri)));
+    }
+
+    @Test
+    public void unsubscribingWhileQueuedLeavesQueue() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(1, 10);
+        final HttpResourceProvider provider = createProvider(bulkhead);
+        provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+        final Subscription queued = provider.get(slowUri).get()
+                .subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        queued.unsubscribe();
+        this.transport.respond(0, 200);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+        final String partition = bulkhead.partitionOf(slowUri);
+        assertEquals(0, bulkhead.getQueueDepth(partition));
+        assertEquals(0, bulkhead.getInFlight(partition));
+    }
+
+    @Test
+    public void unsubscribedRequestDoesNotCount() {
+        // given:
+        final Bulkhead bulkhead = Bulkhead.perHost(3, 1);
+        final String partition = bulkhead.partitionOf(slowUri);
+        final AtomicInteger sent = new AtomicInteger();
+        final Observable.OnSubscribe<ClientResponse> limited = bulkhead.limit(
+                slowUri,
+                new Observable.OnSubscribe<ClientResponse>() {
+                    @Override
+                    public void call(final Subscriber<? super ClientResponse> subscriber) {
+                        sent.incrementAndGet();
+                    }
+                });
+
+        // when:
+        for (int i = 0; i < 5; ++i) {
+            final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+            subscriber.unsubscribe();
+            limited.call(subscriber);
+        }
+
+        // then:
+        assertEquals(0, sent.get());
+        assertEquals(0, bulkhead.getInFlight(partition));
+        assertEquals(0, bulkhead.getQueueDepth(partition));
+
+        // and when:
+        final HttpResourceProvider provider = createProvider(bulkhead);
+        final TestSubscriber<ClientResponse> rejected = new TestSubscriber<>();
+        for (int i = 0; i < 4; ++i) {
+            provider.get(slowUri).get().subscribe(new TestSubscriber<ClientResponse>());
+        }
+        provider.get(slowUri).get().subscribe(rejected);
+
+        // then:
+        assertEquals(3, bulkhead.getInFlight(partition));
+        assertEquals(1, bulkhead.getQueueDepth(partition));
+        assertEquals(1, rejected.getOnErrorEvents().size());
+    }
+
+    private HttpResourceProvider createProvider(final Bulkhead bulkhead) {
+        return HttpResourceProvider.newBuilder(this.transport)
+                .bulkhead(bulkhead)
+                .build();
+    }
+
+}
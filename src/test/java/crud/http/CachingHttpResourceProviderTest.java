@@ -0,0 +1,205 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.CharStreams;
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.ITypeListener;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+
+public class CachingHttpResourceProviderTest {
+
+    private static final URI uri = URI.create("http://localhost/cached");
+    private static final String expectedBody = "Hello, cache";
+
+    private final Client mockClient = mock(Client.class);
+    private final AsyncWebResource mockResource = mock(AsyncWebResource.class);
+    private final AsyncWebResource.Builder mockResourceBuilder = mock(AsyncWebResource.Builder.class);
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    private CachingHttpResourceProvider provider;
+
+
+    @Before
+    public void setup() {
+        when(this.mockClient.asyncResource(uri)).thenReturn(this.mockResource);
+        when(this.mockResource.getRequestBuilder()).thenReturn(this.mockResourceBuilder);
+        this.provider = CachingHttpResourceProvider.wrap(
+                HttpResourceProvider.forClient(this.mockClient),
+                1024 * 1024,
+                new Ticker() {
+                    @Override
+                    public long read() {
+                        return CachingHttpResourceProviderTest.this.nanoTime.get();
+                    }
+                });
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void freshResponseServedWithoutNetwork() throws IOException {
+        // given:
+        when(this.mockResourceBuilder.get(any(ITypeListener.class))).thenAnswer(new ListenerInvokingAnswer(
+                createResponse(200, expectedBody, "Cache-Control", "max-age=60")));
+        final CachingHttpResource resource = this.provider.get(uri);
+
+        // when:
+        resource.get().toBlocking().single();
+        advanceSeconds(59);
+        final ClientResponse secondResponse = resource.get().toBlocking().single();
+
+        // then:
+        verify(this.mockResourceBuilder, times(1)).get(any(ITypeListener.class));
+        assertEquals(200, secondResponse.getStatus());
+        assertEquals(expectedBody, bodyOf(secondResponse));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void staleResponseRevalidatedWithETag() throws IOException {
+        // given:
+        final String etag = "\"v1\"";
+        when(this.mockResourceBuilder.get(any(ITypeListener.class)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "max-age=10", "ETag", etag)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(304, "", "ETag", etag)));
+        final CachingHttpResource resource = this.provider.get(uri);
+
+        // when:
+        resource.get().toBlocking().single();
+        advanceSeconds(11);
+        final ClientResponse revalidatedResponse = resource.get().toBlocking().single();
+
+        // then:
+        verify(this.mockResourceBuilder, times(2)).get(any(ITypeListener.class));
+        verify(this.mockResourceBuilder).header("If-None-Match", etag);
+        assertEquals(200, revalidatedResponse.getStatus());
+        assertEquals(expectedBody, bodyOf(revalidatedResponse));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void revalidatedResponseIsFreshAgain() {
+        // given:
+        final String lastModified = "Wed, 01 Oct 2014 00:00:00 GMT";
+        when(this.mockResourceBuilder.get(any(ITypeListener.class)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "max-age=10", "Last-Modified", lastModified)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(304, "", "Cache-Control", "max-age=10")));
+        final CachingHttpResource resource = this.provider.get(uri);
+
+        // when:
+        resource.get().toBlocking().single();
+        advanceSeconds(11);
+        resource.get().toBlocking().single();
+        advanceSeconds(5);
+        resource.get().toBlocking().single();
+
+        // then:
+        verify(this.mockResourceBuilder, times(2)).get(any(ITypeListener.class));
+        verify(this.mockResourceBuilder).header("If-Modified-Since", lastModified);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void noStoreResponseNotCached() {
+        // given:
+        when(this.mockResourceBuilder.get(any(ITypeListener.class)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "no-store, max-age=60")))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "no-store, max-age=60")));
+        final CachingHttpResource resource = this.provider.get(uri);
+
+        // when:
+        resource.get().toBlocking().single();
+        resource.get().toBlocking().single();
+
+        // then:
+        verify(this.mockResourceBuilder, times(2)).get(any(ITypeListener.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void writeInvalidatesEntry() {
+        // given:
+        when(this.mockResourceBuilder.get(any(ITypeListener.class)))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "max-age=60")))
+            .thenAnswer(new ListenerInvokingAnswer(
+                    createResponse(200, expectedBody, "Cache-Control", "max-age=60")));
+        when(this.mockResourceBuilder.put(any(ITypeListener.class))).thenAnswer(new ListenerInvokingAnswer(
+                createResponse(204, "")));
+        final CachingHttpResource resource = this.provider.get(uri);
+
+        // when:
+        resource.get().toBlocking().single();
+        resource.write(ClientRequest.empty()).toBlocking().single();
+        resource.get().toBlocking().single();
+
+        // then:
+        verify(this.mockResourceBuilder, times(2)).get(any(ITypeListener.class));
+    }
+
+    private void advanceSeconds(final long seconds) {
+        this.nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private static ClientResponse createResponse(
+            final int status,
+            final String body,
+            final String... headerNamesAndValues) {
+        final InBoundHeaders headers = new InBoundHeaders();
+        for (int i = 0; i < headerNamesAndValues.length; i += 2) {
+            headers.add(headerNamesAndValues[i], headerNamesAndValues[i + 1]);
+        }
+        return new ClientResponse(
+                status,
+                headers,
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                null);
+    }
+
+    private static String bodyOf(final ClientResponse response) throws IOException {
+        return CharStreams.toString(new InputStreamReader(
+                response.getEntityInputStream(),
+                StandardCharsets.UTF_8));
+    }
+
+}
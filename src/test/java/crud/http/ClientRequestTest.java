@@ -16,7 +16,9 @@ package crud.http;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
+import java.util.Arrays;
 import java.util.Locale;
 
 import javax.ws.rs.core.Cookie;
@@ -63,4 +65,45 @@ public class ClientRequestTest {
         verify(mockResourceBuilder).header(expectedHeaderName, expectedHeaderValue);
     }
 
+    @Test
+    public void emptyRequestUpdatesNothing() {
+        // given:
+        final AsyncWebResource.Builder mockResourceBuilder = mock(AsyncWebResource.Builder.class);
+
+        // when:
+        ClientRequest.empty().updateResource(mockResourceBuilder);
+        ClientRequest.newBuilder().build().updateResource(mockResourceBuilder);
+
+        // then:
+        verifyZeroInteractions(mockResourceBuilder);
+    }
+
+    @Test
+    public void repeatedUpdatesAreIdentical() {
+        // given:
+        final AsyncWebResource.Builder firstBuilder = mock(AsyncWebResource.Builder.class);
+        final AsyncWebResource.Builder secondBuilder = mock(AsyncWebResource.Builder.class);
+        final MediaType expectedAcceptType = MediaType.APPLICATION_JSON_TYPE;
+        final Locale expectedLanguage = Locale.JAPANESE;
+
+        final ClientRequest request = ClientRequest.newBuilder()
+                .acceptedMediaType(expectedAcceptType)
+                .acceptedLanguage(expectedLanguage)
+                .header("A", "1")
+                .header("B", "2")
+                .build();
+
+        // when:
+        request.updateResource(firstBuilder);
+        request.updateResource(secondBuilder);
+
+        // then:
+        for (final AsyncWebResource.Builder builder : Arrays.asList(firstBuilder, secondBuilder)) {
+            verify(builder).accept(expectedAcceptType);
+            verify(builder).acceptLanguage(expectedLanguage);
+            verify(builder).header("A", "1");
+            verify(builder).header("B", "2");
+        }
+    }
+
 }
@@ -0,0 +1,180 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.observers.TestSubscriber;
+
+
+public class ClientResponseCloserTest {
+
+    private static final int RACES = 2000;
+
+    private ClosingStream body = new ClosingStream(new byte[0]);
+    private ClientResponse response = newResponse();
+    private final ExecutorService threads = Executors.newFixedThreadPool(3);
+
+
+    @After
+    public void teardown() {
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    public void unsubscribingAfterResponseClosesIt() {
+        // given:
+        final Observable<ClientResponse> neverCompletes = Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> subscriber) {
+                subscriber.onNext(ClientResponseCloserTest.this.response);
+            }
+        });
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+
+        // when:
+        neverCompletes.lift(ClientResponseCloser.instance()).take(1).subscribe(subscriber);
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(1, this.body.getCloseCount());
+    }
+
+    @Test
+    public void responseAfterUnsubscribeIsClosedAndNotDelivered() {
+        // given:
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        final Subscriber<? super ClientResponse> closing = ClientResponseCloser.instance().call(subscriber);
+        subscriber.unsubscribe();
+
+        // when:
+        closing.onNext(this.response);
+
+        // then:
+        assertTrue(subscriber.getOnNextEvents().isEmpty());
+        assertEquals(1, this.body.getCloseCount());
+    }
+
+    @Test
+    public void racingTerminationAndUnsubscribeCloseOnce() throws Exception {
+        for (int i = 0; i < RACES; ++i) {
+            // given:
+            this.body = new ClosingStream(new byte[0]);
+            this.response = newResponse();
+            final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+            final Subscriber<? super ClientResponse> closing = ClientResponseCloser.instance().call(subscriber);
+            closing.onNext(this.response);
+
+            // when:
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    closing.onCompleted();
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    closing.onError(new IOException("reset"));
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    subscriber.unsubscribe();
+                }
+            });
+
+            // then:
+            assertEquals("race " + i, 1, this.body.getCloseCount());
+        }
+    }
+
+    @Test
+    public void racingResponseAndUnsubscribeCloseOnce() throws Exception {
+        for (int i = 0; i < RACES; ++i) {
+            // given:
+            this.body = new ClosingStream(new byte[0]);
+            this.response = newResponse();
+            final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+            final Subscriber<? super ClientResponse> closing = ClientResponseCloser.instance().call(subscriber);
+
+            // when:
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    closing.onNext(ClientResponseCloserTest.this.response);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    subscriber.unsubscribe();
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    closing.onCompleted();
+                }
+            });
+
+            // then:
+            assertEquals("race " + i, 1, this.body.getCloseCount());
+        }
+    }
+
+    private ClientResponse newResponse() {
+        return new ClientResponse(200, new InBoundHeaders(), this.body, null);
+    }
+
+    /**
+     * Run the given actions on separate threads, released at once, and
+     * wait for all of them to finish.
+     */
+    private void race(final Runnable... actions) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(actions.length);
+        final CountDownLatch done = new CountDownLatch(actions.length);
+        for (final Runnable action : actions) {
+            this.threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        action.run();
+                    } catch (final Exception ex) {
+                        throw new AssertionError(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+}
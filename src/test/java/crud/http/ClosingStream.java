@@ -0,0 +1,62 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A response body in memory that records how much of it has been read,
+ * and how many times it has been closed, so that a test can check that
+ * the library released a response. Safe to read on one thread and check
+ * on another.
+ */
+public final class ClosingStream extends ByteArrayInputStream {
+
+    private final int length;
+    private final AtomicInteger closeCount = new AtomicInteger();
+
+
+    public ClosingStream(final byte[] body) {
+        super(body);
+        this.length = body.length;
+    }
+
+    public ClosingStream(final String body) {
+        this(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized int getBytesRead() {
+        return this.length - available();
+    }
+
+    public boolean isClosed() {
+        return getCloseCount() > 0;
+    }
+
+    public int getCloseCount() {
+        return this.closeCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closeCount.incrementAndGet();
+        super.close();
+    }
+
+}
@@ -0,0 +1,144 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteStreams;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+
+public class DecodingResourceProviderTest {
+
+    private static final URI uri = URI.create("http://example.com/asset");
+
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResourceProvider delegate = HttpResourceProvider.newBuilder(this.transport).build();
+    private final TestScheduler scheduler = new TestScheduler();
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final DecodingResourceProvider<String> provider = DecodingResourceProvider
+            .newBuilder(this.delegate, new SlowDecoder())
+            .scheduler(this.scheduler)
+            .ticker(new Ticker() {
+                @Override
+                public long read() {
+                    return DecodingResourceProviderTest.this.nanoTime.get();
+                }
+            })
+            .build();
+
+
+    @Test
+    public void bodyIsReadOnResponseThreadAndDecodedOnScheduler() {
+        // given:
+        final ClosingStream body = new ClosingStream("hello");
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        this.provider.get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 200, body);
+
+        // then:
+        assertTrue(body.isClosed());
+        assertEquals(Collections.emptyList(), subscriber.getOnNextEvents());
+        assertEquals(0, this.provider.getDecodedCount());
+
+        // when:
+        this.scheduler.triggerActions();
+
+        // then:
+        assertEquals(Collections.singletonList("hello"), subscriber.getOnNextEvents());
+        subscriber.assertTerminalEvent();
+        subscriber.assertNoErrors();
+        assertEquals(1, this.provider.getDecodedCount());
+    }
+
+    @Test
+    public void timesNetworkQueueAndDecodeSeparately() {
+        // given:
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        this.provider.get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(30));
+        this.transport.respond(0, 200, new ClosingStream("hello"));
+        this.nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+        this.scheduler.triggerActions();
+
+        // then:
+        assertEquals(30, this.provider.getNetworkTime(TimeUnit.MILLISECONDS));
+        assertEquals(5, this.provider.getQueueTime(TimeUnit.MILLISECONDS));
+        assertEquals(SlowDecoder.DECODE_MILLIS, this.provider.getDecodeTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unsuccessfulResponseIsErrorForTypedDecoding() {
+        // given:
+        final DecodingResourceProvider<String> typed = DecodingResourceProvider
+                .newBuilder(this.delegate, String.class)
+                .scheduler(this.scheduler)
+                .build();
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        typed.get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 404, new ClosingStream("missing"));
+        this.scheduler.triggerActions();
+
+        // then:
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+        assertTrue(subscriber.getOnErrorEvents().get(0) instanceof UniformInterfaceException);
+        assertEquals(1, typed.getDecodedCount());
+    }
+
+
+    /**
+     * Reads the body as a string, advancing the test's clock as it goes.
+     */
+    private final class SlowDecoder implements Func1<ClientResponse, String> {
+        public static final long DECODE_MILLIS = 12;
+
+        @Override
+        public String call(final ClientResponse response) {
+            try (InputStream entity = response.getEntityInputStream()) {
+                final byte[] bytes = ByteStreams.toByteArray(entity);
+                DecodingResourceProviderTest.this.nanoTime.addAndGet(
+                        TimeUnit.MILLISECONDS.toNanos(DECODE_MILLIS));
+                return new String(bytes, StandardCharsets.UTF_8);
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+    }
+
+}
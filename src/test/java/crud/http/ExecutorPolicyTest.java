@@ -0,0 +1,246 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import rx.Observable;
+
+
+public class ExecutorPolicyTest {
+
+    private static final int POOL_SIZE = 4;
+    private static final int BEYOND_POOL_SIZE = 1000;
+    private static final String REQUIRE_VIRTUAL_THREADS = "crud.http.test.requireVirtualThreads";
+
+    private final Client client = Client.create();
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger serverInFlight = new AtomicInteger();
+    private final AtomicInteger serverPeakInFlight = new AtomicInteger();
+    private volatile CountDownLatch allArrived = new CountDownLatch(0);
+    private HttpServer server;
+    private URI uri;
+
+
+    @Before
+    public void setup() throws IOException {
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                BEYOND_POOL_SIZE);
+        this.server.setExecutor(this.serverExecutor);
+        this.server.createContext("/", new SlowHandler());
+        this.server.start();
+        this.uri = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/resource");
+    }
+
+    @After
+    public void teardown() {
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+        this.client.destroy();
+    }
+
+    @Test
+    public void fixedThreadPoolLimitsRequestsInFlight() throws InterruptedException {
+        // given:
+        final ExecutorPolicy policy = ExecutorPolicy.fixedThreadPool(POOL_SIZE);
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.client)
+                .executorPolicy(policy)
+                .build();
+
+        // when:
+        final int count = getConcurrently(provider, 4 * POOL_SIZE);
+
+        // then:
+        assertEquals(4 * POOL_SIZE, count);
+        assertTrue(policy.getPeakInFlight() <= POOL_SIZE);
+        assertTrue(this.serverPeakInFlight.get() <= POOL_SIZE);
+        // Tasks finish just after they deliver their responses:
+        awaitCompleted(policy, 4 * POOL_SIZE);
+        assertEquals(4 * POOL_SIZE, policy.getCompleted());
+        assertEquals(0, policy.getInFlight());
+    }
+
+    @Test
+    public void replacedExecutorIsShutDown() {
+        // given:
+        final ExecutorService original = Executors.newCachedThreadPool();
+        this.client.setExecutorService(original);
+
+        // when:
+        HttpResourceProvider.newBuilder(this.client)
+                .executorPolicy(ExecutorPolicy.fixedThreadPool(POOL_SIZE))
+                .build();
+
+        // then:
+        assertTrue(original.isShutdown());
+        assertNotSame(original, this.client.getExecutorService());
+    }
+
+    @Test
+    public void sharedPolicyKeepsItsExecutor() {
+        // given:
+        final ExecutorPolicy policy = ExecutorPolicy.fixedThreadPool(POOL_SIZE);
+        HttpResourceProvider.newBuilder(this.client)
+                .executorPolicy(policy)
+                .build();
+
+        // when:
+        final HttpResourceProvider second = HttpResourceProvider.newBuilder(this.client)
+                .executorPolicy(policy)
+                .build();
+
+        // then:
+        assertFalse(this.client.getExecutorService().isShutdown());
+        assertEquals(1, getConcurrently(second, 1));
+    }
+
+    @Test
+    public void callerExecutorIsNotShutDown() {
+        // given:
+        final ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            HttpResourceProvider.newBuilder(this.client)
+                    .executorPolicy(ExecutorPolicy.using(callers))
+                    .build();
+
+            // when:
+            HttpResourceProvider.newBuilder(this.client)
+                    .executorPolicy(ExecutorPolicy.fixedThreadPool(POOL_SIZE))
+                    .build();
+
+            // then:
+            assertFalse(callers.isShutdown());
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void virtualThreadsExceedThreadPoolLimit() {
+        if (Boolean.getBoolean(REQUIRE_VIRTUAL_THREADS)) {
+            // Set by the java21 build profile, so that this test can't be
+            // silently skipped where it matters:
+            assertTrue(ExecutorPolicy.isVirtualThreadPerRequestSupported());
+        } else {
+            assumeTrue(ExecutorPolicy.isVirtualThreadPerRequestSupported());
+        }
+
+        // given:
+        final ExecutorPolicy policy = ExecutorPolicy.virtualThreadPerRequest();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.client)
+                .executorPolicy(policy)
+                .build();
+        // Server holds every response until all requests have arrived:
+        this.allArrived = new CountDownLatch(BEYOND_POOL_SIZE);
+
+        // when:
+        final int count = getConcurrently(provider, BEYOND_POOL_SIZE);
+
+        // then:
+        assertEquals(BEYOND_POOL_SIZE, count);
+        assertEquals(BEYOND_POOL_SIZE, this.serverPeakInFlight.get());
+        assertEquals(BEYOND_POOL_SIZE, policy.getPeakInFlight());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void virtualThreadsUnsupportedBeforeJava21() {
+        assumeFalse(ExecutorPolicy.isVirtualThreadPerRequestSupported());
+
+        // when:
+        ExecutorPolicy.virtualThreadPerRequest();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void policyRequiresJerseyTransport() {
+        // when:
+        HttpResourceProvider.newBuilder(mock(HttpTransport.class))
+                .executorPolicy(ExecutorPolicy.cachedThreadPool());
+    }
+
+    private static void awaitCompleted(final ExecutorPolicy policy, final long count)
+    throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (policy.getCompleted() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1L);
+        }
+    }
+
+    private int getConcurrently(final HttpResourceProvider provider, final int count) {
+        final List<Observable<ClientResponse>> responses = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            responses.add(provider.get(this.uri).get());
+        }
+        return Observable.merge(responses).count().toBlocking().single();
+    }
+
+
+    private final class SlowHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final int current = serverInFlight.incrementAndGet();
+            int peak = serverPeakInFlight.get();
+            while (current > peak && !serverPeakInFlight.compareAndSet(peak, current)) {
+                peak = serverPeakInFlight.get();
+            }
+            try {
+                allArrived.countDown();
+                if (!allArrived.await(30, TimeUnit.SECONDS)) {
+                    throw new IOException("not all requests arrived");
+                }
+                Thread.sleep(20L);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                serverInFlight.decrementAndGet();
+            }
+            final byte[] body = "ok".getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+}
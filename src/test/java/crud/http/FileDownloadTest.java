@@ -0,0 +1,152 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import rx.observers.TestSubscriber;
+
+
+public class FileDownloadTest {
+
+    private static final URI uri = URI.create("http://example.com/blob");
+    private static final int BODY_LENGTH = 3 * FileDownload.BUFFER_SIZE + 100;
+
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResource resource = HttpResourceProvider.newBuilder(this.transport)
+            .build()
+            .get(uri);
+    private final byte[] bytes = new byte[BODY_LENGTH];
+    private Path directory;
+    private Path file;
+
+
+    @Before
+    public void setup() throws IOException {
+        new Random(1L).nextBytes(this.bytes);
+        this.directory = Files.createTempDirectory("download");
+        this.file = this.directory.resolve("blob.bin");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(this.file);
+        Files.delete(this.directory);
+    }
+
+    @Test
+    public void writesBodyAndEmitsProgress() throws IOException {
+        // given:
+        final ClosingStream body = new ClosingStream(this.bytes);
+        final TestSubscriber<Long> subscriber = new TestSubscriber<>();
+        this.resource.getInto(this.file).subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 200, body);
+
+        // then:
+        final long chunk = FileDownload.BUFFER_SIZE;
+        assertEquals(
+                Arrays.asList(chunk, 2 * chunk, 3 * chunk, (long) BODY_LENGTH),
+                subscriber.getOnNextEvents());
+        subscriber.assertTerminalEvent();
+        subscriber.assertNoErrors();
+        assertArrayEquals(this.bytes, Files.readAllBytes(this.file));
+        assertTrue(body.isClosed());
+    }
+
+    @Test
+    public void skipsUnrequestedProgressButNotTotal() {
+        // given:
+        final TestSubscriber<Long> subscriber = new TestSubscriber<Long>() {
+            @Override
+            public void onStart() {
+                requestMore(1);
+            }
+        };
+        this.resource.getInto(this.file).subscribe(subscriber);
+        this.transport.respond(0, 200, new ClosingStream(this.bytes));
+        assertEquals(Arrays.asList((long) FileDownload.BUFFER_SIZE), subscriber.getOnNextEvents());
+        assertTrue(subscriber.getOnCompletedEvents().isEmpty());
+
+        // when:
+        subscriber.requestMore(1);
+
+        // then:
+        assertEquals((long) BODY_LENGTH, (long) subscriber.getOnNextEvents().get(1));
+        subscriber.assertTerminalEvent();
+    }
+
+    @Test
+    public void unsuccessfulResponseLeavesFileAlone() {
+        // given:
+        final ClosingStream body = new ClosingStream(this.bytes);
+        final TestSubscriber<Long> subscriber = new TestSubscriber<>();
+        this.resource.getInto(this.file).subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 404, body);
+
+        // then:
+        assertTrue(subscriber.getOnErrorEvents().get(0) instanceof UniformInterfaceException);
+        assertFalse(Files.exists(this.file));
+        assertTrue(body.isClosed());
+    }
+
+    @Test
+    public void writesTransportBufferAtChannelPosition() throws IOException {
+        // given:
+        final ByteBuf buffer = Unpooled.directBuffer(BODY_LENGTH).writeBytes(this.bytes);
+        final TestSubscriber<Long> subscriber = new TestSubscriber<>();
+
+        // when:
+        try (final FileChannel channel = FileChannel.open(
+                this.file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.position(10L);
+            this.resource.getInto(channel).subscribe(subscriber);
+            this.transport.respond(0, 200, new ByteBufEntityStream(buffer));
+
+            // then:
+            assertEquals(10L + BODY_LENGTH, channel.position());
+        }
+        assertEquals(Arrays.asList((long) BODY_LENGTH), subscriber.getOnNextEvents());
+        final byte[] written = Files.readAllBytes(this.file);
+        assertArrayEquals(this.bytes, Arrays.copyOfRange(written, 10, written.length));
+        assertEquals(0, buffer.refCnt());
+    }
+
+}
@@ -0,0 +1,151 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.ITypeListener;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import rx.observers.TestSubscriber;
+
+
+public class GetCoalescerTest {
+
+    private static final URI uri = URI.create("http://localhost/hot");
+    private static final String expectedBody = "Hello, everyone";
+
+    private final Client mockClient = mock(Client.class);
+    private final AsyncWebResource mockResource = mock(AsyncWebResource.class);
+    private final AsyncWebResource.Builder mockResourceBuilder = mock(AsyncWebResource.Builder.class);
+    private final PendingAnswer pendingAnswer = new PendingAnswer();
+
+    private HttpResourceProvider provider;
+
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        when(this.mockClient.asyncResource(uri)).thenReturn(this.mockResource);
+        when(this.mockResource.getRequestBuilder()).thenReturn(this.mockResourceBuilder);
+        when(this.mockResourceBuilder.get(any(ITypeListener.class))).thenAnswer(this.pendingAnswer);
+        this.provider = HttpResourceProvider.newBuilder(this.mockClient)
+                .coalesceConcurrentGets(true)
+                .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void concurrentGetsShareOneRequest() throws IOException {
+        // given:
+        final TestSubscriber<ClientResponse> first = new TestSubscriber<>();
+        final TestSubscriber<ClientResponse> second = new TestSubscriber<>();
+        final ClientResponse mockResponse = createResponse();
+
+        // when:
+        this.provider.get(uri).get().subscribe(first);
+        this.provider.get(uri).get().subscribe(second);
+        this.pendingAnswer.complete(mockResponse);
+
+        // then:
+        verify(this.mockResourceBuilder, times(1)).get(any(ITypeListener.class));
+        first.assertTerminalEvent();
+        second.assertTerminalEvent();
+        assertEquals(expectedBody, bodyOf(first.getOnNextEvents()));
+        assertEquals(expectedBody, bodyOf(second.getOnNextEvents()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sequentialGetsSendSeparateRequests() {
+        // when:
+        final TestSubscriber<ClientResponse> first = new TestSubscriber<>();
+        this.provider.get(uri).get().subscribe(first);
+        this.pendingAnswer.complete(createResponse());
+        first.assertTerminalEvent();
+
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // then:
+        verify(this.mockResourceBuilder, times(2)).get(any(ITypeListener.class));
+    }
+
+    private static ClientResponse createResponse() {
+        return new ClientResponse(
+                200,
+                new InBoundHeaders(),
+                new ByteArrayInputStream(expectedBody.getBytes(StandardCharsets.UTF_8)),
+                null);
+    }
+
+    private static String bodyOf(final List<ClientResponse> responses) throws IOException {
+        assertEquals(1, responses.size());
+        return CharStreams.toString(new InputStreamReader(
+                responses.get(0).getEntityInputStream(),
+                StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Captures the {@link ITypeListener} passed to the mock request
+     * builder, so that the test can decide when the response arrives.
+     */
+    private static final class PendingAnswer implements Answer<Future<ClientResponse>> {
+        private final AtomicReference<ITypeListener<ClientResponse>> listener = new AtomicReference<>();
+        private final AtomicReference<SettableFuture<ClientResponse>> future = new AtomicReference<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Future<ClientResponse> answer(final InvocationOnMock invocation) {
+            this.listener.set((ITypeListener<ClientResponse>) invocation.getArguments()[0]);
+            this.future.set(SettableFuture.<ClientResponse>create());
+            return this.future.get();
+        }
+
+        public void complete(final ClientResponse response) {
+            this.future.get().set(response);
+            try {
+                this.listener.get().onComplete(this.future.get());
+            } catch (final InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+}
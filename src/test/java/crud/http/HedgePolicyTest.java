@@ -0,0 +1,142 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+
+public class HedgePolicyTest {
+
+    private static final URI uri = URI.create("http://example.com/resource");
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private final PendingTransport transport = new PendingTransport();
+
+
+    @Test
+    public void sendsHedgeAfterDelayAndTakesFirstResponse() {
+        // given:
+        final HedgePolicy policy = newPolicy()
+                .delay(50, TimeUnit.MILLISECONDS)
+                .maxHedgeRate(1.0)
+                .build();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        createProvider(policy).get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.scheduler.advanceTimeBy(49, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+
+        // when:
+        this.scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        this.transport.respond(1, 200);
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        subscriber.assertTerminalEvent();
+        // The slow request was abandoned:
+        assertTrue(this.transport.getSent(0).isUnsubscribed());
+        assertEquals(1L, policy.getHedgedCount());
+    }
+
+    @Test
+    public void doesNotHedgeFastRequests() {
+        // given:
+        final HedgePolicy policy = newPolicy()
+                .delay(50, TimeUnit.MILLISECONDS)
+                .maxHedgeRate(1.0)
+                .build();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        createProvider(policy).get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS);
+        this.transport.respond(0, 200);
+        this.scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(0L, policy.getHedgedCount());
+    }
+
+    @Test
+    public void capsHedgeRate() {
+        // given:
+        final HedgePolicy policy = newPolicy()
+                .delay(50, TimeUnit.MILLISECONDS)
+                .maxHedgeRate(0.5)
+                .build();
+        final HttpResourceProvider provider = createProvider(policy);
+
+        // when:
+        for (int i = 0; i < 4; ++i) {
+            provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+        }
+        this.scheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(6, this.transport.getSentCount());
+        assertEquals(2L, policy.getHedgedCount());
+        assertEquals(2L, policy.getSuppressedCount());
+    }
+
+    @Test
+    public void delayTracksPercentileOfLatency() {
+        // given:
+        final HedgePolicy policy = newPolicy()
+                .delay(10, TimeUnit.MILLISECONDS)
+                .percentile(0.9)
+                .maxHedgeRate(0.0)
+                .build();
+        final HttpResourceProvider provider = createProvider(policy);
+
+        // when:
+        for (int i = 0; i < 128; ++i) {
+            provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+            this.scheduler.advanceTimeBy(30, TimeUnit.MILLISECONDS);
+            this.transport.respond(i, 200);
+        }
+
+        // then:
+        assertEquals(30L, policy.getDelay(TimeUnit.MILLISECONDS));
+        assertEquals(128, this.transport.getSentCount());
+    }
+
+    private HedgePolicy.Builder newPolicy() {
+        return HedgePolicy.newBuilder().scheduler(this.scheduler);
+    }
+
+    private HttpResourceProvider createProvider(final HedgePolicy policy) {
+        return HttpResourceProvider.newBuilder(this.transport)
+                .hedgeGets(policy)
+                .build();
+    }
+
+}
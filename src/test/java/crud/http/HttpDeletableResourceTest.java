@@ -29,6 +29,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.InputStream;
+import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -36,6 +37,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.async.ITypeListener;
 import com.sun.jersey.core.header.InBoundHeaders;
@@ -46,6 +48,9 @@ import rx.Observer;
 
 public class HttpDeletableResourceTest extends DeletableResourceTest<ClientResponse> {
 
+    private static final URI uri = URI.create("http://localhost/resource");
+
+    private final Client mockClient = mock(Client.class);
     private final AsyncWebResource mockResource = mock(AsyncWebResource.class);
     private final AsyncWebResource.Builder mockResourceBuilder = mock(AsyncWebResource.Builder.class);
 
@@ -60,6 +65,7 @@ public class HttpDeletableResourceTest extends DeletableResourceTest<ClientRespo
     @Before
     @SuppressWarnings("unchecked")
     public void setup() {
+        when(this.mockClient.asyncResource(uri)).thenReturn(this.mockResource);
         when(this.mockResource.getRequestBuilder()).thenReturn(this.mockResourceBuilder);
         when(this.mockResourceBuilder.delete(any(ITypeListener.class))).thenAnswer(invokeListener());
     }
@@ -81,7 +87,7 @@ public class HttpDeletableResourceTest extends DeletableResourceTest<ClientRespo
     public void templateRequestCopied() {
         // given:
         final ClientRequest mockRequestTemplate = mock(ClientRequest.class);
-        final HttpResource resource = new HttpResource(this.mockResource, mockRequestTemplate);
+        final HttpResource resource = HttpResourceProvider.forClientWithTemplate(this.mockClient, mockRequestTemplate).get(uri);
 
         // when:
         resource.delete().subscribe();
@@ -222,7 +228,7 @@ public class HttpDeletableResourceTest extends DeletableResourceTest<ClientRespo
 
     @Override
     protected HttpResource createDefaultResource() {
-        return new HttpResource(this.mockResource, ClientRequest.empty());
+        return HttpResourceProvider.forClient(this.mockClient).get(uri);
     }
 
     private static ClientResponse createResponse() {
@@ -0,0 +1,124 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Subscriber;
+
+
+public class HttpResourceProviderTest {
+
+    private static final URI uri = URI.create("http://localhost/resource");
+
+    private final Client mockClient = mock(Client.class);
+
+
+    @Test
+    public void getDoesNotCreateJerseyResource() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.forClient(this.mockClient);
+
+        // when:
+        provider.get(uri);
+
+        // then:
+        verify(this.mockClient, never()).asyncResource(any(URI.class));
+    }
+
+    @Test
+    public void resourcesWithSameUriAreEqual() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.forClient(this.mockClient);
+
+        // when:
+        final HttpResource first = provider.get(uri);
+        final HttpResource second = provider.get(URI.create(uri.toString()));
+
+        // then:
+        assertNotSame(first, second);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void internedResourcesAreReused() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.mockClient)
+                .internResources(16)
+                .build();
+
+        // when:
+        final HttpResource first = provider.get(uri);
+        final HttpResource second = provider.get(URI.create(uri.toString()));
+
+        // then:
+        assertSame(first, second);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeInternSizeRejected() {
+        HttpResourceProvider.newBuilder(this.mockClient).internResources(-1);
+    }
+
+    @Test
+    public void customTransportSendsRequests() {
+        // given:
+        final HttpTransport mockTransport = mock(HttpTransport.class);
+        final HttpTransport.Endpoint mockEndpoint = mock(HttpTransport.Endpoint.class);
+        when(mockTransport.endpoint(uri)).thenReturn(mockEndpoint);
+        final ClientRequest template = ClientRequest.newBuilder().header("X-Template", "yes").build();
+        final ClientRequest request = ClientRequest.newBuilder().entity("body").build();
+        final HttpResource resource = HttpResourceProvider.newBuilder(mockTransport)
+                .requestTemplate(template)
+                .build()
+                .get(uri);
+
+        // when:
+        resource.write(request).subscribe();
+        resource.delete().subscribe();
+
+        // then:
+        verify(mockTransport, times(1)).endpoint(uri);
+        verify(mockEndpoint).send(
+                eq(RequestMethod.PUT),
+                eq(template),
+                eq(request),
+                Matchers.<Subscriber<? super ClientResponse>>any());
+        verify(mockEndpoint).send(
+                eq(RequestMethod.DELETE),
+                eq(template),
+                eq(ClientRequest.empty()),
+                Matchers.<Subscriber<? super ClientResponse>>any());
+    }
+
+}
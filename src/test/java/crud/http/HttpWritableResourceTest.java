@@ -29,6 +29,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.InputStream;
+import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -37,6 +38,7 @@ import org.junit.Test;
 import org.mockito.Matchers;
 
 import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.async.ITypeListener;
 import com.sun.jersey.core.header.InBoundHeaders;
@@ -47,6 +49,9 @@ import rx.Observer;
 
 public class HttpWritableResourceTest extends WritableResourceTest<ClientRequest, ClientResponse> {
 
+    private static final URI uri = URI.create("http://localhost/resource");
+
+    private final Client mockClient = mock(Client.class);
     private final AsyncWebResource mockResource = mock(AsyncWebResource.class);
     private final AsyncWebResource.Builder mockResourceBuilder = mock(AsyncWebResource.Builder.class);
 
@@ -61,6 +66,7 @@ public class HttpWritableResourceTest extends WritableResourceTest<ClientRequest
     @Before
     @SuppressWarnings("unchecked")
     public void setup() {
+        when(this.mockClient.asyncResource(uri)).thenReturn(this.mockResource);
         when(this.mockResource.getRequestBuilder()).thenReturn(this.mockResourceBuilder);
         when(this.mockResourceBuilder.put(Matchers.any(ITypeListener.class))).thenAnswer(invokeListener());
     }
@@ -84,7 +90,7 @@ public class HttpWritableResourceTest extends WritableResourceTest<ClientRequest
         // given:
         final ClientRequest mockRequestTemplate = createDefaultResourceState();
         final ClientRequest mockRequest = createDefaultResourceState();
-        final HttpResource resource = new HttpResource(this.mockResource, mockRequestTemplate);
+        final HttpResource resource = HttpResourceProvider.forClientWithTemplate(this.mockClient, mockRequestTemplate).get(uri);
 
         // when:
         resource.write(mockRequest).subscribe();
@@ -232,7 +238,7 @@ public class HttpWritableResourceTest extends WritableResourceTest<ClientRequest
 
     @Override
     protected HttpResource createDefaultResource() {
-        return new HttpResource(this.mockResource, ClientRequest.empty());
+        return HttpResourceProvider.forClient(this.mockClient).get(uri);
     }
 
     @Override
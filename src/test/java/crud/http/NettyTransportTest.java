@@ -0,0 +1,330 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLHandshakeException;
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.sun.jersey.api.client.ClientResponse;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.CharsetUtil;
+
+import rx.functions.Func1;
+
+
+public class NettyTransportTest {
+
+    private static final char[] KEY_STORE_PASSWORD = "changeit".toCharArray();
+
+    private final EventLoopGroup serverLoops = new NioEventLoopGroup(1);
+    private final AtomicInteger connections = new AtomicInteger();
+    private Channel serverChannel;
+    private URI uri;
+    private NettyTransport transport;
+    private HttpResourceProvider provider;
+
+
+    @Before
+    public void setup() throws InterruptedException {
+        this.serverChannel = startServer(null);
+        this.uri = URI.create("http://127.0.0.1:" + portOf(this.serverChannel) + "/resource?q=1");
+        this.transport = NettyTransport.create();
+        this.provider = HttpResourceProvider.newBuilder(this.transport)
+                .requestTemplate(ClientRequest.newBuilder()
+                        .header("X-Template", "t")
+                        .build())
+                .build();
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        this.transport.close();
+        this.serverChannel.close().sync();
+        this.serverLoops.shutdownGracefully();
+    }
+
+    @Test
+    public void getSendsTemplateHeadersAndReadsBody() {
+        // when:
+        final String response = this.provider.get(this.uri).get()
+                .map(readBody)
+                .toBlocking().single();
+
+        // then:
+        assertEquals("200 GET /resource?q=1 t ", response);
+    }
+
+    @Test
+    public void putSendsEntity() {
+        // given:
+        final ClientRequest request = ClientRequest.newBuilder()
+                .entity("hello", MediaType.TEXT_PLAIN_TYPE)
+                .build();
+
+        // when:
+        final String response = this.provider.get(this.uri).write(request)
+                .map(readBody)
+                .toBlocking().single();
+
+        // then:
+        assertEquals("200 PUT /resource?q=1 t hello", response);
+    }
+
+    @Test
+    public void pooledEntityIsReturnedAfterWrite() {
+        // given:
+        final BufferPool pool = BufferPool.newBuilder()
+                .threadLocalCapacity(0)
+                .leakDetection(true)
+                .build();
+        final ClientRequest request = ClientRequest.newBuilder()
+                .entity("hello", MediaType.TEXT_PLAIN_TYPE)
+                .build();
+
+        try (final NettyTransport pooledTransport = NettyTransport.newBuilder().bufferPool(pool).build()) {
+            final HttpResource resource = HttpResourceProvider.newBuilder(pooledTransport).build().get(this.uri);
+
+            // when:
+            final String first = resource.write(request).map(readBody).toBlocking().single();
+            final String second = resource.write(request).map(readBody).toBlocking().single();
+
+            // then:
+            assertEquals("200 PUT /resource?q=1 null hello", first);
+            assertEquals(first, second);
+            assertEquals(1L, pool.getAllocatedCount());
+        }
+    }
+
+    @Test
+    public void bodyIsReleasedWhenResponseCompletes() throws InterruptedException {
+        // given:
+        final AtomicReference<ByteBuf> body = new AtomicReference<>();
+
+        // when:
+        this.provider.get(this.uri).get()
+                .map(new Func1<ClientResponse, Integer>() {
+                    @Override
+                    public Integer call(final ClientResponse response) {
+                        final ByteBufEntityStream stream =
+                                (ByteBufEntityStream) response.getEntityInputStream();
+                        body.set(stream.getBuffer());
+                        assertTrue(body.get().refCnt() > 0);
+                        return response.getStatus();
+                    }
+                })
+                .toBlocking().single();
+
+        // then:
+        // Netty and the closer release it after onCompleted reaches us:
+        awaitReleased(body.get());
+        assertEquals(0, body.get().refCnt());
+    }
+
+    @Test
+    public void connectionIsReused() {
+        // given:
+        final HttpResource resource = this.provider.get(this.uri);
+
+        // when:
+        resource.get().map(readBody).toBlocking().single();
+        resource.get().map(readBody).toBlocking().single();
+        resource.delete().map(readBody).toBlocking().single();
+
+        // then:
+        assertEquals(1, this.connections.get());
+    }
+
+    @Test
+    public void httpsAcceptsCertificateForHost() throws Exception {
+        // given:
+        final Channel server = startServer(serverContext("right-host.p12"));
+        final URI httpsUri = URI.create("https://127.0.0.1:" + portOf(server) + "/resource");
+
+        try (final NettyTransport httpsTransport = NettyTransport.newBuilder()
+                .sslContext(clientContext())
+                .build()) {
+            final HttpResource resource = HttpResourceProvider.newBuilder(httpsTransport).build().get(httpsUri);
+
+            // when:
+            final String response = resource.get().map(readBody).toBlocking().single();
+
+            // then:
+            assertEquals("200 GET /resource null ", response);
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    @Test
+    public void httpsRejectsCertificateForAnotherHost() throws Exception {
+        // given:
+        final Channel server = startServer(serverContext("wrong-host.p12"));
+        final URI httpsUri = URI.create("https://127.0.0.1:" + portOf(server) + "/resource");
+
+        try (final NettyTransport httpsTransport = NettyTransport.newBuilder()
+                .sslContext(clientContext())
+                .build()) {
+            final HttpResource resource = HttpResourceProvider.newBuilder(httpsTransport).build().get(httpsUri);
+
+            // when:
+            try {
+                resource.get().map(readBody).toBlocking().single();
+                fail("certificate for wrong.invalid accepted for 127.0.0.1");
+            } catch (final RuntimeException ex) {
+                // then:
+                assertTrue(
+                        String.valueOf(ex),
+                        Iterables.any(Throwables.getCausalChain(ex), Predicates.instanceOf(SSLHandshakeException.class)));
+            }
+        } finally {
+            server.close().sync();
+        }
+    }
+
+
+    /**
+     * Start an echo server on an ephemeral port, speaking TLS if the given
+     * context isn't null.
+     */
+    private Channel startServer(final SslContext ssl) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(this.serverLoops)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel channel) {
+                        NettyTransportTest.this.connections.incrementAndGet();
+                        if (ssl != null) {
+                            channel.pipeline().addLast(ssl.newHandler(channel.alloc()));
+                        }
+                        channel.pipeline().addLast(
+                                new HttpServerCodec(),
+                                new HttpObjectAggregator(1024 * 1024),
+                                new EchoHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    private static int portOf(final Channel server) {
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    private static SslContext serverContext(final String keyStoreName)
+    throws IOException, GeneralSecurityException {
+        final KeyManagerFactory keyManagers =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(loadKeyStore(keyStoreName), KEY_STORE_PASSWORD);
+        return SslContextBuilder.forServer(keyManagers).build();
+    }
+
+    /**
+     * Trust both test certificates, so that only the host name can fail.
+     */
+    private static SslContext clientContext() throws IOException, GeneralSecurityException {
+        return SslContextBuilder.forClient()
+                .trustManager(
+                        (X509Certificate) loadKeyStore("right-host.p12").getCertificate("server"),
+                        (X509Certificate) loadKeyStore("wrong-host.p12").getCertificate("server"))
+                .build();
+    }
+
+    private static KeyStore loadKeyStore(final String name) throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (final InputStream in = NettyTransportTest.class.getResourceAsStream(name)) {
+            keyStore.load(in, KEY_STORE_PASSWORD);
+        }
+        return keyStore;
+    }
+
+    private static void awaitReleased(final ByteBuf buffer) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (buffer.refCnt() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1L);
+        }
+    }
+
+    private static final Func1<ClientResponse, String> readBody = new Func1<ClientResponse, String>() {
+        @Override
+        public String call(final ClientResponse response) {
+            return response.getStatus() + " " + response.getEntity(String.class);
+        }
+    };
+
+
+    /**
+     * Responds with the method, URI, one request header, and the request
+     * body.
+     */
+    private static final class EchoHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest request) {
+            final String echo = request.method()
+                    + " " + request.uri()
+                    + " " + request.headers().get("X-Template")
+                    + " " + request.content().toString(CharsetUtil.UTF_8);
+            final FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer(echo, CharsetUtil.UTF_8));
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            ctx.writeAndFlush(response);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+import rx.Subscriber;
+
+
+/**
+ * An {@link HttpTransport} that records each request it's asked to send,
+ * and sends nothing, so that a test can decide when, and how, each one
+ * completes.
+ */
+public final class PendingTransport implements HttpTransport {
+
+    private final List<URI> uris = new CopyOnWriteArrayList<>();
+    private final List<Subscriber<? super ClientResponse>> sent = new CopyOnWriteArrayList<>();
+
+
+    @Override
+    public Endpoint endpoint(final URI uri) {
+        return new Endpoint() {
+            @Override
+            public void send(
+                    final RequestMethod method,
+                    final ClientRequest template,
+                    final ClientRequest request,
+                    final Subscriber<? super ClientResponse> subscriber) {
+                PendingTransport.this.uris.add(uri);
+                PendingTransport.this.sent.add(subscriber);
+            }
+        };
+    }
+
+    @Override
+    public MessageBodyWorkers getMessageBodyWorkers() {
+        return null;
+    }
+
+    public int getSentCount() {
+        return this.sent.size();
+    }
+
+    public Subscriber<? super ClientResponse> getSent(final int index) {
+        return this.sent.get(index);
+    }
+
+    public URI getSentUri(final int index) {
+        return this.uris.get(index);
+    }
+
+    public void respond(final int index, final int status) {
+        respond(index, status, new ByteArrayInputStream(new byte[0]));
+    }
+
+    public void respond(final int index, final int status, final InputStream body) {
+        respond(index, new ClientResponse(status, new InBoundHeaders(), body, null));
+    }
+
+    public void respond(final int index, final ClientResponse response) {
+        final Subscriber<? super ClientResponse> subscriber = this.sent.get(index);
+        subscriber.onNext(response);
+        subscriber.onCompleted();
+    }
+
+    public void fail(final int index, final Throwable error) {
+        this.sent.get(index).onError(error);
+    }
+
+}
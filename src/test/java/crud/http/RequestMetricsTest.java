@@ -0,0 +1,159 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Subscription;
+import rx.observers.TestSubscriber;
+
+
+public class RequestMetricsTest {
+
+    private static final URI uri = URI.create("http://example.com/thing");
+    private static final URI otherHostUri = URI.create("http://example.org:8080/thing");
+    private static final String host = "http://example.com";
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final RequestMetrics metrics = RequestMetrics.partitionedBy(
+            Bulkhead.byHost,
+            new Ticker() {
+                @Override
+                public long read() {
+                    return RequestMetricsTest.this.nanoTime.get();
+                }
+            });
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.transport)
+            .metrics(this.metrics)
+            .build();
+
+
+    @Test
+    public void recordsLatencyAndStatusPerHostAndMethod() {
+        // given:
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+        this.provider.get(otherHostUri).delete().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        this.transport.respond(0, 200);
+        this.nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(90));
+        this.transport.respond(1, 503);
+        this.transport.respond(2, 204);
+
+        // then:
+        assertEquals(
+                ImmutableSet.of(host, "http://example.org:8080"),
+                this.metrics.getPartitions());
+        final RequestMetrics.Snapshot latency = this.metrics.getLatency(host, RequestMethod.GET);
+        assertEquals(2, latency.getCount());
+        assertApproximately(10, latency.getPercentile(50.0, TimeUnit.MILLISECONDS));
+        assertApproximately(100, latency.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(1, this.metrics.getResponseCount(host, RequestMethod.GET, Response.Status.Family.SUCCESSFUL));
+        assertEquals(1, this.metrics.getResponseCount(host, RequestMethod.GET, Response.Status.Family.SERVER_ERROR));
+        assertEquals(0, this.metrics.getLatency(host, RequestMethod.DELETE).getCount());
+        assertEquals(1, this.metrics.getLatency("http://example.org:8080", RequestMethod.DELETE).getCount());
+    }
+
+    @Test
+    public void tracksRequestsInFlight() {
+        // given:
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+        final Subscription cancelled = this.provider.get(uri).write(ClientRequest.empty())
+                .subscribe(new TestSubscriber<ClientResponse>());
+        this.provider.get(uri).update(ClientRequest.empty()).subscribe(new TestSubscriber<ClientResponse>());
+        assertEquals(3, this.metrics.getInFlight(host));
+
+        // when:
+        this.transport.respond(0, 200);
+        cancelled.unsubscribe();
+        this.transport.fail(2, new IOException("connection reset"));
+
+        // then:
+        assertEquals(0, this.metrics.getInFlight(host));
+        assertEquals(1, this.metrics.getErrorCount(host, RequestMethod.POST));
+        assertEquals(0, this.metrics.getLatency(host, RequestMethod.POST).getCount());
+        assertEquals(0, this.metrics.getLatency(host, RequestMethod.PUT).getCount());
+    }
+
+    @Test
+    public void exportsSeriesOverJmx() throws JMException {
+        // given:
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+        this.transport.respond(0, 404);
+        final ObjectName name = new ObjectName(
+                "crud.http:type=RequestMetrics,name=\"test\",partition=\"" + host + "\",method=GET");
+
+        // when:
+        this.metrics.exportTo(server, "test");
+        try {
+            // then:
+            assertEquals(1L, server.getAttribute(name, "ClientErrorCount"));
+            assertEquals(0, server.getAttribute(name, "InFlight"));
+
+            // and when:
+            this.provider.get(uri).delete().subscribe(new TestSubscriber<ClientResponse>());
+
+            // then:
+            assertTrue(server.isRegistered(new ObjectName(
+                    "crud.http:type=RequestMetrics,name=\"test\",partition=\"" + host + "\",method=DELETE")));
+        } finally {
+            this.metrics.unexport();
+        }
+        assertTrue(!server.isRegistered(name));
+    }
+
+    @Test
+    public void histogramBucketsContainTheirValues() {
+        final long[] values = { 0L, 31L, 32L, 33L, 1000L, 123456789L, LatencyHistogram.MAX_VALUE };
+        for (final long value : values) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(value + " below bucket", LatencyHistogram.lowestValueAt(index) <= value);
+            assertTrue(value + " above bucket", LatencyHistogram.highestValueAt(index) >= value);
+            assertTrue(value + " imprecise",
+                    LatencyHistogram.highestValueAt(index) - LatencyHistogram.lowestValueAt(index)
+                    <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE));
+    }
+
+    private static void assertApproximately(final long expected, final long actual) {
+        assertTrue(
+                "expected about " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= expected / LatencyHistogram.SUB_BUCKETS);
+    }
+
+}
@@ -0,0 +1,215 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+
+public class RequestTracerTest {
+
+    private static final String TRACEPARENT_PATTERN = "00-[0-9a-f]{32}-[0-9a-f]{16}-01";
+
+    private final TimelineRingBuffer ringBuffer = TimelineRingBuffer.withCapacity(8);
+    private HttpServer server;
+    private URI uri;
+
+
+    @Before
+    public void setup() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", new EchoTraceParentHandler());
+        this.server.start();
+        this.uri = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/traced");
+    }
+
+    @After
+    public void teardown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void jerseySendsTraceParentAndRecordsTimeline() throws IOException {
+        // given:
+        final RequestTracer tracer = RequestTracer.newBuilder(this.ringBuffer).sampleRate(1.0).build();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(Client.create())
+                .tracer(tracer)
+                .build();
+
+        // when:
+        final String traceParent = getString(provider);
+        tracer.close();
+
+        // then:
+        assertTrue(traceParent, traceParent.matches(TRACEPARENT_PATTERN));
+        final RequestTimeline timeline = onlyTimeline();
+        assertEquals(traceParent, timeline.getTraceParent());
+        assertEquals(RequestMethod.GET, timeline.getMethod());
+        assertEquals(200, timeline.getStatus());
+        assertTrue(timeline.hasReached(RequestTimeline.Event.DISPATCH));
+        assertFalse(timeline.hasReached(RequestTimeline.Event.CONNECT));
+        assertTrue(timeline.hasReached(RequestTimeline.Event.HEADERS));
+        assertTrue(timeline.hasReached(RequestTimeline.Event.BODY));
+        assertTrue(timeline.hasReached(RequestTimeline.Event.CLOSE));
+    }
+
+    @Test
+    public void nettyReportsConnection() throws IOException {
+        final RequestTracer tracer = RequestTracer.newBuilder(this.ringBuffer).sampleRate(1.0).build();
+        try (final NettyTransport transport = NettyTransport.create()) {
+            // given:
+            final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport)
+                    .tracer(tracer)
+                    .build();
+
+            // when:
+            final String traceParent = getString(provider);
+            tracer.close();
+
+            // then:
+            assertTrue(traceParent, traceParent.matches(TRACEPARENT_PATTERN));
+            final RequestTimeline timeline = onlyTimeline();
+            assertTrue(timeline.hasReached(RequestTimeline.Event.CONNECT));
+            assertTrue(timeline.getElapsed(RequestTimeline.Event.CONNECT, TimeUnit.NANOSECONDS)
+                    <= timeline.getElapsed(RequestTimeline.Event.HEADERS, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Test
+    public void unsampledRequestHasNoTraceParent() throws IOException {
+        // given:
+        final RequestTracer tracer = RequestTracer.newBuilder(this.ringBuffer).sampleRate(0.0).build();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(Client.create())
+                .tracer(tracer)
+                .build();
+
+        // when:
+        final String traceParent = getString(provider);
+        tracer.close();
+
+        // then:
+        assertEquals("none", traceParent);
+        assertTrue(this.ringBuffer.getRecent().isEmpty());
+    }
+
+    @Test
+    public void failedRequestIsExportedWithError() throws IOException {
+        // given:
+        final PendingTransport transport = new PendingTransport();
+        final RequestTracer tracer = RequestTracer.newBuilder(this.ringBuffer).sampleRate(1.0).build();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport)
+                .tracer(tracer)
+                .build();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(this.uri).get().subscribe(subscriber);
+
+        // when:
+        transport.fail(0, new IOException("connection refused"));
+        tracer.close();
+
+        // then:
+        final RequestTimeline timeline = onlyTimeline();
+        assertEquals("connection refused", timeline.getError().get().getMessage());
+        assertEquals(0, timeline.getStatus());
+        assertFalse(timeline.hasReached(RequestTimeline.Event.HEADERS));
+    }
+
+    @Test
+    public void fileExporterWritesJsonLines() throws IOException {
+        // given:
+        final Path file = Files.createTempFile("timelines", ".json");
+        try {
+            final PendingTransport transport = new PendingTransport();
+            final RequestTracer tracer = RequestTracer.newBuilder(TimelineFileExporter.appendTo(file))
+                    .sampleRate(1.0)
+                    .build();
+            final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport)
+                    .tracer(tracer)
+                    .build();
+            provider.get(this.uri).delete().subscribe(new TestSubscriber<ClientResponse>());
+
+            // when:
+            transport.respond(0, 404);
+            tracer.close();
+
+            // then:
+            final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            final String line = lines.get(0);
+            assertTrue(line, line.matches("\\{\"traceparent\":\"" + TRACEPARENT_PATTERN + "\",\"method\":\"DELETE\","
+                    + "\"uri\":\"" + Pattern.quote(this.uri.toString()) + "\",\"start\":\\d+,\"status\":404,"
+                    + "\"SUBSCRIBE\":0,\"HEADERS\":\\d+,\"CLOSE\":\\d+\\}"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private String getString(final HttpResourceProvider provider) {
+        return provider.get(this.uri).get()
+                .map(new Func1<ClientResponse, String>() {
+                    @Override
+                    public String call(final ClientResponse response) {
+                        return response.getEntity(String.class);
+                    }
+                })
+                .toBlocking()
+                .single();
+    }
+
+    private RequestTimeline onlyTimeline() {
+        final List<RequestTimeline> timelines = this.ringBuffer.getRecent();
+        assertEquals(1, timelines.size());
+        return timelines.get(0);
+    }
+
+
+    private static final class EchoTraceParentHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String traceParent = exchange.getRequestHeaders().getFirst(RequestTimeline.TRACEPARENT);
+            final byte[] body = ((traceParent == null) ? "none" : traceParent).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+}
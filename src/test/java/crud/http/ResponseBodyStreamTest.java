@@ -0,0 +1,110 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+import rx.observers.TestSubscriber;
+
+
+public class ResponseBodyStreamTest {
+
+    private static final URI uri = URI.create("http://example.com/export");
+
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResource resource = HttpResourceProvider.newBuilder(this.transport)
+            .build()
+            .get(uri);
+
+
+    @Test
+    public void readsOnlyRequestedChunks() {
+        // given:
+        final ClosingStream body = new ClosingStream(new byte[10000]);
+        final TestSubscriber<ByteBuffer> subscriber = new TestSubscriber<ByteBuffer>() {
+            @Override
+            public void onStart() {
+                requestMore(1);
+            }
+        };
+        this.resource.getBody(4096).subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 200, body);
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(4096, subscriber.getOnNextEvents().get(0).remaining());
+        assertEquals(4096, body.getBytesRead());
+        assertFalse(body.isClosed());
+
+        // when:
+        subscriber.requestMore(5);
+
+        // then:
+        assertEquals(3, subscriber.getOnNextEvents().size());
+        assertEquals(10000 - 2 * 4096, subscriber.getOnNextEvents().get(2).remaining());
+        subscriber.assertTerminalEvent();
+        subscriber.assertNoErrors();
+        assertTrue(body.isClosed());
+    }
+
+    @Test
+    public void unsubscribingClosesResponse() {
+        // given:
+        final ClosingStream body = new ClosingStream(new byte[10000]);
+        final TestSubscriber<ByteBuffer> subscriber = new TestSubscriber<ByteBuffer>() {
+            @Override
+            public void onStart() {
+                requestMore(1);
+            }
+        };
+        this.resource.getBody(1024).subscribe(subscriber);
+        this.transport.respond(0, 200, body);
+
+        // when:
+        subscriber.unsubscribe();
+
+        // then:
+        assertTrue(body.isClosed());
+        assertEquals(1024, body.getBytesRead());
+    }
+
+    @Test
+    public void unsuccessfulResponseIsError() {
+        // given:
+        final ClosingStream body = new ClosingStream(new byte[10]);
+        final TestSubscriber<ByteBuffer> subscriber = new TestSubscriber<>();
+        this.resource.getBody(1024).subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, 404, body);
+
+        // then:
+        assertEquals(0, subscriber.getOnNextEvents().size());
+        assertTrue(subscriber.getOnErrorEvents().get(0) instanceof UniformInterfaceException);
+        assertTrue(body.isClosed());
+    }
+
+}
@@ -0,0 +1,116 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import rx.Subscriber;
+import rx.observers.TestSubscriber;
+
+
+public class ResponseLeakDetectorTest {
+
+    private static final URI uri = URI.create("http://example.com/resource");
+
+    private final ResponseLeakDetector detector = ResponseLeakDetector.newBuilder()
+            .sampleRate(1.0)
+            .build();
+
+
+    @Test
+    public void detectsResponseThatIsNeverClosed() throws InterruptedException {
+        // given:
+        leakResponse();
+
+        // when:
+        for (int i = 0; i < 100 && this.detector.getLeakCount() == 0L; ++i) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+
+        // then:
+        assertEquals(1L, this.detector.getLeakCount());
+        assertEquals(0, this.detector.getTrackedCount());
+        final Throwable site = this.detector.getLastLeak().get();
+        assertTrue(site.getMessage(), site.getMessage().contains("GET " + uri));
+        assertTrue(subscribedFrom(site, "leakResponse"));
+    }
+
+    @Test
+    public void responseClosedByResourceIsNotTracked() {
+        // given:
+        final PendingTransport transport = new PendingTransport();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport)
+                .leakDetector(this.detector)
+                .build();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(uri).get().take(1).subscribe(subscriber);
+
+        // when:
+        transport.getSent(0).onNext(newResponse());
+
+        // then:
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(0, this.detector.getTrackedCount());
+        assertEquals(0L, this.detector.getLeakCount());
+        assertFalse(this.detector.getLastLeak().isPresent());
+    }
+
+    @Test
+    public void unsampledResponseIsNotTracked() {
+        // given:
+        final ResponseLeakDetector never = ResponseLeakDetector.newBuilder().sampleRate(0.0).build();
+        final Subscriber<? super ClientResponse> tracking = never.track(RequestMethod.GET, uri)
+                .call(new TestSubscriber<ClientResponse>());
+
+        // when:
+        tracking.onNext(newResponse());
+
+        // then:
+        assertEquals(0, never.getTrackedCount());
+    }
+
+    private void leakResponse() {
+        final Subscriber<? super ClientResponse> tracking = this.detector.track(RequestMethod.GET, uri)
+                .call(new TestSubscriber<ClientResponse>());
+        tracking.onNext(newResponse());
+        assertEquals(1, this.detector.getTrackedCount());
+    }
+
+    private static boolean subscribedFrom(final Throwable site, final String methodName) {
+        for (final StackTraceElement frame : site.getStackTrace()) {
+            if (frame.getClassName().equals(ResponseLeakDetectorTest.class.getName())
+                    && frame.getMethodName().equals(methodName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ClientResponse newResponse() {
+        return new ClientResponse(200, new InBoundHeaders(), new ByteArrayInputStream(new byte[1]), null);
+    }
+
+}
@@ -0,0 +1,244 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+
+public class StreamingEntityTest {
+
+    private static final int CHUNK_COUNT = 40;
+    private static final int CHUNK_LENGTH = 8 * 1024;
+    private static final byte[] CHUNK = new byte[CHUNK_LENGTH];
+
+    private final AtomicInteger emitted = new AtomicInteger();
+    private HttpServer server;
+    private URI uri;
+    private Path file;
+
+
+    @Before
+    public void setup() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", new CountingHandler());
+        this.server.start();
+        this.uri = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/upload");
+        this.file = Files.createTempFile("upload", ".bin");
+        Files.write(this.file, new byte[CHUNK_COUNT * CHUNK_LENGTH]);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        this.server.stop(0);
+        Files.delete(this.file);
+    }
+
+    @Test
+    public void jerseySendsFileWithLength() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.forClient(Client.create());
+
+        // when:
+        final String response = upload(provider, StreamingEntity.fromPath(this.file));
+
+        // then:
+        assertEquals(CHUNK_COUNT * CHUNK_LENGTH + " length", response);
+    }
+
+    @Test
+    public void jerseySendsObservableChunked() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.forClient(Client.create());
+
+        // when:
+        final String response = upload(provider, StreamingEntity.fromObservable(chunks()));
+
+        // then:
+        assertEquals(CHUNK_COUNT * CHUNK_LENGTH + " chunked", response);
+        assertEquals(CHUNK_COUNT, this.emitted.get());
+    }
+
+    @Test
+    public void nettySendsFileWithLength() {
+        try (final NettyTransport transport = NettyTransport.create()) {
+            // given:
+            final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport).build();
+
+            // when:
+            final String response = upload(provider, StreamingEntity.fromPath(this.file));
+
+            // then:
+            assertEquals(CHUNK_COUNT * CHUNK_LENGTH + " length", response);
+        }
+    }
+
+    @Test
+    public void nettySendsObservableChunked() {
+        try (final NettyTransport transport = NettyTransport.create()) {
+            // given:
+            final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport).build();
+
+            // when:
+            final String response = upload(provider, StreamingEntity.fromObservable(chunks()));
+
+            // then:
+            assertEquals(CHUNK_COUNT * CHUNK_LENGTH + " chunked", response);
+            assertEquals(CHUNK_COUNT, this.emitted.get());
+        }
+    }
+
+    @Test
+    public void streamRequestsChunksAsTheyAreRead() throws IOException {
+        // given:
+        final StreamingEntity entity = StreamingEntity.fromObservable(chunks());
+
+        // when:
+        try (final InputStream stream = entity.openStream()) {
+            for (int i = 0; i < CHUNK_LENGTH; ++i) {
+                stream.read();
+            }
+
+            // then:
+            assertTrue("emitted " + this.emitted.get(), this.emitted.get() <= 2);
+        }
+    }
+
+    @Test
+    public void unsubscribingMidFileClosesIt() throws IOException {
+        final Path openFiles = Paths.get("/proc/self/fd");
+        assumeTrue(Files.isDirectory(openFiles));
+        // given:
+        final StreamingEntity entity = StreamingEntity.fromPath(this.file);
+        final TestSubscriber<ByteBuffer> subscriber = new TestSubscriber<ByteBuffer>() {
+            @Override
+            public void onStart() {
+                request(1L);
+            }
+        };
+        entity.toObservable().subscribe(subscriber);
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertTrue(isOpen(openFiles, this.file));
+
+        // when:
+        subscriber.unsubscribe();
+
+        // then:
+        assertFalse(isOpen(openFiles, this.file));
+    }
+
+    private static boolean isOpen(final Path openFiles, final Path file) throws IOException {
+        final Path target = file.toRealPath();
+        try (final DirectoryStream<Path> descriptors = Files.newDirectoryStream(openFiles)) {
+            for (final Path descriptor : descriptors) {
+                try {
+                    if (Files.readSymbolicLink(descriptor).equals(target)) {
+                        return true;
+                    }
+                } catch (final IOException closedMeanwhile) {
+                    // e.g. the descriptor of the directory stream itself
+                }
+            }
+        }
+        return false;
+    }
+
+    private String upload(final HttpResourceProvider provider, final StreamingEntity entity) {
+        final ClientRequest request = ClientRequest.newBuilder()
+                .entity(entity)
+                .build();
+        return provider.get(this.uri).write(request)
+                .map(new Func1<ClientResponse, String>() {
+                    @Override
+                    public String call(final ClientResponse response) {
+                        return response.getEntity(String.class);
+                    }
+                })
+                .toBlocking().single();
+    }
+
+    private Observable<ByteBuffer> chunks() {
+        return Observable.range(0, CHUNK_COUNT)
+                .map(new Func1<Integer, ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call(final Integer index) {
+                        return ByteBuffer.wrap(CHUNK);
+                    }
+                })
+                .doOnNext(new Action1<ByteBuffer>() {
+                    @Override
+                    public void call(final ByteBuffer chunk) {
+                        StreamingEntityTest.this.emitted.incrementAndGet();
+                    }
+                });
+    }
+
+
+    /**
+     * Responds with the number of bytes in the request body, and whether
+     * it was sent with a length or chunked.
+     */
+    private static final class CountingHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String framing = (exchange.getRequestHeaders().getFirst("Content-Length") != null)
+                    ? "length"
+                    : "chunked";
+            long count = 0;
+            try (final InputStream body = exchange.getRequestBody()) {
+                final byte[] buffer = new byte[4096];
+                for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+                    count += read;
+                }
+            }
+            final byte[] response = (count + " " + framing).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+    }
+
+}
@@ -28,6 +28,7 @@ import crud.fluent.FluentReadableResourceProvider;
 import crud.fluent.FluentWritableResourceProvider;
 import crud.http.ClientRequest;
 import crud.http.HttpResourceProvider;
+import crud.http.util.BackoffRetry;
 import crud.http.util.FailedResponseOperator;
 import rx.functions.Func1;
 
@@ -62,11 +63,13 @@ class ExampleApplicationContext {
 
     /**
      * A provider of resources that can read and write JSON-encoded
-     * {@link Asset}s from the web service.
+     * {@link Asset}s from the web service. Server errors on GET and PUT are
+     * retried up to 3 times, backing off between attempts.
      */
-    private final HttpResourceProvider restResource = HttpResourceProvider.forClientWithTemplate(
-            this.restClient,
-            this.templateRequest);
+    private final HttpResourceProvider restResource = HttpResourceProvider.newBuilder(this.restClient)
+            .requestTemplate(this.templateRequest)
+            .retry(FailedResponseOperator.serverErrors(), BackoffRetry.newBuilder().maxRetries(3).build())
+            .build();
 
     /**
      * Provides the {@link URI} at which an {@link Asset} of a given ID can
@@ -124,10 +127,9 @@ class ExampleApplicationContext {
      * </ol>
      */
     public final AssetResourceProvider assetProvider = AssetResourceProvider.create(
-            // Retry all server errors on GET up to 3 times:
-            FluentReadableResourceProvider.from(restResource).lift(FailedResponseOperator.serverErrors()).retry(3),
-            // Retry all server errors on PUT up to 3 times:
-            FluentWritableResourceProvider.from(restResource).lift(FailedResponseOperator.serverErrors()).retry(3),
+            // The provider itself retries server errors:
+            FluentReadableResourceProvider.from(restResource),
+            FluentWritableResourceProvider.from(restResource),
             urlBuilder,
             assetDecoder,
             assetEncoder,
@@ -0,0 +1,264 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.sun.jersey.api.client.ClientResponse;
+
+import crud.http.Bulkhead;
+import crud.http.HttpResourceProvider;
+import crud.http.PendingTransport;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+
+public class AdaptiveConcurrencyLimitTest {
+
+    /**
+     * The simulated server handles this many requests at once without
+     * slowing down. Beyond that, its requests share its capacity, and each
+     * takes proportionally longer.
+     */
+    private static final int serverCapacity = 50;
+    private static final long serviceTimeMillis = 10L;
+    private static final int clientCount = 400;
+    private static final long retryDelayMillis = 1L;
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private final Scheduler.Worker worker = this.scheduler.createWorker();
+    private final ClientResponse response = mock(ClientResponse.class);
+    private int serverInFlight = 0;
+    private long serverCompleted = 0L;
+
+
+    @Test
+    public void limitConvergesToServerCapacity() {
+        // given:
+        final AdaptiveConcurrencyLimit limit = createLimit();
+
+        // when:
+        for (int i = 0; i < clientCount; ++i) {
+            sendRepeatedly(limit);
+        }
+        this.scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        int minLimit = Integer.MAX_VALUE;
+        int maxLimit = 0;
+        long limitSum = 0L;
+        final long completedBefore = this.serverCompleted;
+        for (int i = 0; i < 1000; ++i) {
+            this.scheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS);
+            final int current = limit.getLimit();
+            minLimit = Math.min(minLimit, current);
+            maxLimit = Math.max(maxLimit, current);
+            limitSum += current;
+        }
+
+        // then:
+        // Without a limit, the server would see all clients at once:
+        final double averageLimit = limitSum / 1000.0;
+        assertTrue("average " + averageLimit, averageLimit >= serverCapacity);
+        assertTrue("average " + averageLimit, averageLimit <= 1.5 * serverCapacity);
+        // Brief dips while remeasuring the unloaded latency are expected:
+        assertTrue("min " + minLimit, minLimit >= serverCapacity / 2 - 1);
+        assertTrue("max " + maxLimit, maxLimit <= 2 * serverCapacity);
+        // ...and the server stays close to fully utilized:
+        final double throughputPerSec = (this.serverCompleted - completedBefore) / 5.0;
+        final double capacityPerSec = serverCapacity * 1000.0 / serviceTimeMillis;
+        assertTrue("throughput " + throughputPerSec, throughputPerSec >= 0.8 * capacityPerSec);
+    }
+
+    @Test
+    public void limitGrowsWhenLatencyIsFlat() {
+        // given:
+        final AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.newBuilder()
+                .initialLimit(4)
+                .maxLimit(30)
+                .ticker(new SchedulerTicker())
+                .build();
+
+        // when:
+        for (int i = 0; i < 40; ++i) {
+            sendRepeatedly(limit);
+        }
+        this.scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        // then:
+        // The server doesn't slow down below its capacity of 50:
+        assertEquals(30, limit.getLimit());
+    }
+
+    @Test
+    public void rejectsRequestsBeyondLimitWithoutSending() {
+        // given:
+        final AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.newBuilder()
+                .initialLimit(2)
+                .ticker(new SchedulerTicker())
+                .build();
+        final TestSubscriber<ClientResponse> first = new TestSubscriber<>();
+        final TestSubscriber<ClientResponse> second = new TestSubscriber<>();
+        final TestSubscriber<ClientResponse> third = new TestSubscriber<>();
+
+        // when:
+        serverRequest().compose(limit).subscribe(first);
+        serverRequest().compose(limit).subscribe(second);
+        serverRequest().compose(limit).subscribe(third);
+
+        // then:
+        assertEquals(2, this.serverInFlight);
+        assertEquals(2, limit.getInFlight());
+        assertEquals(1L, limit.getRejectedCount());
+        assertEquals(1, third.getOnErrorEvents().size());
+        assertTrue(third.getOnErrorEvents().get(0) instanceof RejectedExecutionException);
+
+        // when:
+        this.scheduler.advanceTimeBy(serviceTimeMillis, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(0, limit.getInFlight());
+        first.assertReceivedOnNext(Collections.singletonList(this.response));
+        second.assertTerminalEvent();
+    }
+
+    @Test
+    public void rejectedRequestIsNotSeenByBulkhead() {
+        // given:
+        final AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.newBuilder()
+                .initialLimit(1)
+                .ticker(new SchedulerTicker())
+                .build();
+        final Bulkhead bulkhead = Bulkhead.perHost(3, 1);
+        final PendingTransport transport = new PendingTransport();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(transport)
+                .bulkhead(bulkhead)
+                .build();
+        final URI uri = URI.create("http://example.com/resource");
+        provider.get(uri).get().compose(limit).subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        for (int i = 0; i < 5; ++i) {
+            provider.get(uri).get().compose(limit).subscribe(new TestSubscriber<ClientResponse>());
+        }
+
+        // then:
+        assertEquals(5L, limit.getRejectedCount());
+        assertEquals(1, transport.getSentCount());
+        final String partition = bulkhead.partitionOf(uri);
+        assertEquals(1, bulkhead.getInFlight(partition));
+        assertEquals(0, bulkhead.getQueueDepth(partition));
+    }
+
+    @Test
+    public void unsubscribingReleasesSlot() {
+        // given:
+        final AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.newBuilder()
+                .initialLimit(1)
+                .ticker(new SchedulerTicker())
+                .build();
+
+        // when:
+        serverRequest().compose(limit).subscribe(new TestSubscriber<ClientResponse>()).unsubscribe();
+        final TestSubscriber<ClientResponse> next = new TestSubscriber<>();
+        serverRequest().compose(limit).subscribe(next);
+
+        // then:
+        assertEquals(0L, limit.getRejectedCount());
+        assertEquals(1, limit.getInFlight());
+        assertEquals(1.0, limit.getLimit(), 0.0);
+    }
+
+    private AdaptiveConcurrencyLimit createLimit() {
+        return AdaptiveConcurrencyLimit.newBuilder()
+                .ticker(new SchedulerTicker())
+                .build();
+    }
+
+    /**
+     * A closed-loop client: sends a new request as soon as the last one
+     * completes, or after a short delay if it was rejected.
+     */
+    private void sendRepeatedly(final AdaptiveConcurrencyLimit limit) {
+        serverRequest().compose(limit).subscribe(new Subscriber<ClientResponse>() {
+            @Override
+            public void onNext(final ClientResponse ignored) {
+                // wait for completion
+            }
+
+            @Override
+            public void onCompleted() {
+                sendRepeatedly(limit);
+            }
+
+            @Override
+            public void onError(final Throwable rejected) {
+                AdaptiveConcurrencyLimitTest.this.worker.schedule(new Action0() {
+                    @Override
+                    public void call() {
+                        sendRepeatedly(limit);
+                    }
+                }, retryDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Responds after the service time, stretched in proportion to the
+     * number of requests beyond the server's capacity.
+     */
+    private Observable<ClientResponse> serverRequest() {
+        return Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> subscriber) {
+                final AdaptiveConcurrencyLimitTest test = AdaptiveConcurrencyLimitTest.this;
+                ++test.serverInFlight;
+                final double load = Math.max(1.0, (double) test.serverInFlight / serverCapacity);
+                final long latencyMicros = (long) (serviceTimeMillis * 1000L * load);
+                test.worker.schedule(new Action0() {
+                    @Override
+                    public void call() {
+                        --test.serverInFlight;
+                        ++test.serverCompleted;
+                        subscriber.onNext(test.response);
+                        subscriber.onCompleted();
+                    }
+                }, latencyMicros, TimeUnit.MICROSECONDS);
+            }
+        });
+    }
+
+
+    private final class SchedulerTicker extends Ticker {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(
+                    AdaptiveConcurrencyLimitTest.this.scheduler.now());
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import crud.http.ClientRequest;
+import crud.http.HttpResourceProvider;
+import crud.http.PendingTransport;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+
+public class BackoffRetryTest {
+
+    private static final URI uri = URI.create("http://example.com/resource");
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private final PendingTransport transport = new PendingTransport();
+    private final BackoffRetry retry = BackoffRetry.newBuilder()
+            .maxRetries(2)
+            .baseDelay(100, TimeUnit.MILLISECONDS)
+            .maxDelay(10, TimeUnit.SECONDS)
+            .scheduler(this.scheduler)
+            .build();
+
+
+    @Test
+    public void retriesAfterBackingOff() {
+        // given:
+        final HttpResourceProvider provider = createProvider();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.transport.fail(0, new IOException("connection reset"));
+        this.scheduler.advanceTimeBy(99, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+
+        // when:
+        // The first delay is at most 3x the base delay:
+        this.scheduler.advanceTimeBy(201, TimeUnit.MILLISECONDS);
+        this.transport.respond(1, 200);
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnNextEvents().size());
+        assertEquals(200, subscriber.getOnNextEvents().get(0).getStatus());
+        subscriber.assertTerminalEvent();
+        assertEquals(0, subscriber.getOnErrorEvents().size());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() {
+        // given:
+        final HttpResourceProvider provider = createProvider();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(uri).delete().subscribe(subscriber);
+
+        // when:
+        for (int i = 0; i < 3; ++i) {
+            this.transport.respond(i, 503);
+            this.scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        }
+
+        // then:
+        assertEquals(3, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+        final Throwable error = subscriber.getOnErrorEvents().get(0);
+        assertTrue(error instanceof UniformInterfaceException);
+        assertEquals(503, ((UniformInterfaceException) error).getResponse().getStatus());
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        // given:
+        final HttpResourceProvider provider = createProvider();
+        provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.transport.respond(0, responseWithRetryAfter("5"));
+        this.scheduler.advanceTimeBy(4999, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+
+        // when:
+        this.scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+    }
+
+    @Test
+    public void doesNotRetryWhenServerAsksForLongerThanMaxDelay() {
+        // given:
+        final HttpResourceProvider provider = createProvider();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(uri).get().subscribe(subscriber);
+
+        // when:
+        this.transport.respond(0, responseWithRetryAfter("3600"));
+        this.scheduler.advanceTimeBy(1, TimeUnit.HOURS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+    }
+
+    @Test
+    public void doesNotRetryUpdatesByDefault() {
+        // given:
+        final HttpResourceProvider provider = createProvider();
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        provider.get(uri).update(ClientRequest.empty()).subscribe(subscriber);
+
+        // when:
+        this.transport.fail(0, new IOException("connection reset"));
+        this.scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+
+        // then:
+        assertEquals(1, this.transport.getSentCount());
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+    }
+
+    @Test
+    public void retriesUpdatesWhenAllowed() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.transport)
+                .retry(this.retry)
+                .retryUpdates(true)
+                .build();
+        provider.get(uri).update(ClientRequest.empty()).subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.transport.fail(0, new IOException("connection reset"));
+        this.scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+
+        // then:
+        assertEquals(2, this.transport.getSentCount());
+    }
+
+    private HttpResourceProvider createProvider() {
+        return HttpResourceProvider.newBuilder(this.transport)
+                .retry(FailedResponseOperator.serverErrors(), this.retry)
+                .build();
+    }
+
+    private static ClientResponse responseWithRetryAfter(final String retryAfter) {
+        final InBoundHeaders headers = new InBoundHeaders();
+        headers.putSingle("Retry-After", retryAfter);
+        return new ClientResponse(
+                503,
+                headers,
+                new ByteArrayInputStream(new byte[0]),
+                null);
+    }
+
+}
@@ -0,0 +1,234 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.sun.jersey.api.client.ClientResponse;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+
+public class CircuitBreakerTest {
+
+    private final ClientResponse response = mock(ClientResponse.class);
+    private final AtomicLong nowNanos = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+    private final AtomicInteger sentCount = new AtomicInteger();
+
+
+    @Test
+    public void opensWhenFailureRateReached() {
+        // given:
+        final CircuitBreaker breaker = createBreaker();
+
+        // when:
+        for (int i = 0; i < 5; ++i) {
+            send(breaker, succeeding());
+            send(breaker, failing());
+        }
+
+        // then:
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void staysClosedBelowMinimumRequests() {
+        // given:
+        final CircuitBreaker breaker = createBreaker();
+
+        // when:
+        for (int i = 0; i < 9; ++i) {
+            send(breaker, failing());
+        }
+
+        // then:
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failuresExpireFromWindow() {
+        // given:
+        final CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 9; ++i) {
+            send(breaker, failing());
+        }
+
+        // when:
+        advance(11, TimeUnit.SECONDS);
+        send(breaker, failing());
+
+        // then:
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void openBreakerFailsFastWithoutSending() {
+        // given:
+        final CircuitBreaker breaker = createOpenBreaker();
+        final int sentBefore = this.sentCount.get();
+
+        // when:
+        final TestSubscriber<ClientResponse> subscriber = send(breaker, succeeding());
+
+        // then:
+        assertEquals(sentBefore, this.sentCount.get());
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+        assertTrue(subscriber.getOnErrorEvents().get(0) instanceof RejectedExecutionException);
+        assertEquals(1L, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void halfOpenBreakerLimitsProbesAndClosesOnSuccess() {
+        // given:
+        final CircuitBreaker breaker = createOpenBreaker();
+        advance(30, TimeUnit.SECONDS);
+        final PublishSubject<ClientResponse> server = PublishSubject.create();
+
+        // when:
+        send(breaker, server);
+        send(breaker, server);
+        final TestSubscriber<ClientResponse> third = send(breaker, server);
+
+        // then:
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1, third.getOnErrorEvents().size());
+
+        // when:
+        server.onNext(this.response);
+        server.onCompleted();
+
+        // then:
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeReopensBreaker() {
+        // given:
+        final CircuitBreaker breaker = createOpenBreaker();
+        advance(30, TimeUnit.SECONDS);
+
+        // when:
+        send(breaker, failing());
+
+        // then:
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        final int sentBefore = this.sentCount.get();
+        send(breaker, succeeding());
+        assertEquals(sentBefore, this.sentCount.get());
+    }
+
+    @Test
+    public void unsubscribedProbeFreesItsPlace() {
+        // given:
+        final CircuitBreaker breaker = createOpenBreaker();
+        advance(30, TimeUnit.SECONDS);
+        final PublishSubject<ClientResponse> server = PublishSubject.create();
+        send(breaker, server);
+
+        // when:
+        send(breaker, server).unsubscribe();
+        final TestSubscriber<ClientResponse> replacement = send(breaker, server);
+
+        // then:
+        assertEquals(0, replacement.getOnErrorEvents().size());
+    }
+
+    @Test
+    public void perHostBreakersAreIndependent() {
+        // given:
+        final CircuitBreaker.PerHost breakers = CircuitBreaker.perHost(
+                CircuitBreaker.newBuilder());
+        final URI uri = URI.create("http://example.com/resource");
+
+        // when:
+        final CircuitBreaker first = breakers.forUri(uri);
+        final CircuitBreaker second = breakers.forUri(uri.resolve("/other"));
+        final CircuitBreaker other = breakers.forHost("other.example.com");
+
+        // then:
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(2, breakers.getHosts().size());
+    }
+
+    private CircuitBreaker createBreaker() {
+        return CircuitBreaker.newBuilder()
+                .minimumRequests(10)
+                .failureRateThreshold(0.5)
+                .slidingWindow(10, TimeUnit.SECONDS)
+                .openDuration(30, TimeUnit.SECONDS)
+                .halfOpenProbes(2)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return CircuitBreakerTest.this.nowNanos.get();
+                    }
+                })
+                .build();
+    }
+
+    private CircuitBreaker createOpenBreaker() {
+        final CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 10; ++i) {
+            send(breaker, failing());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private TestSubscriber<ClientResponse> send(
+            final CircuitBreaker breaker,
+            final Observable<ClientResponse> server) {
+        final TestSubscriber<ClientResponse> subscriber = new TestSubscriber<>();
+        Observable.create(new Observable.OnSubscribe<ClientResponse>() {
+            @Override
+            public void call(final Subscriber<? super ClientResponse> sub) {
+                CircuitBreakerTest.this.sentCount.incrementAndGet();
+                server.subscribe(sub);
+            }
+        }).compose(breaker).subscribe(subscriber);
+        return subscriber;
+    }
+
+    private Observable<ClientResponse> succeeding() {
+        return Observable.just(this.response);
+    }
+
+    private static Observable<ClientResponse> failing() {
+        return Observable.error(new IOException("connection refused"));
+    }
+
+    private void advance(final long duration, final TimeUnit unit) {
+        this.nowNanos.addAndGet(unit.toNanos(duration));
+    }
+
+}
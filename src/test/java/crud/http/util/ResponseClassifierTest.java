@@ -0,0 +1,144 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import crud.http.util.ResponseClassifier.Category;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+
+public class ResponseClassifierTest {
+
+    @Test
+    public void standardClassifierTagsAllCategoriesAtOnce() {
+        // given:
+        final ResponseClassifier classifier = ResponseClassifier.standard();
+
+        // when:
+        final int unavailable = classifier.classify(response(503));
+        final int ok = classifier.classify(response(200));
+
+        // then:
+        assertTrue(Category.FAILED.in(unavailable));
+        assertTrue(Category.RETRYABLE.in(unavailable));
+        assertFalse(Category.SUCCESS.in(unavailable));
+        assertFalse(Category.CACHEABLE.in(unavailable));
+        assertEquals(EnumSet.of(Category.SUCCESS, Category.CACHEABLE), classifier.categoriesOf(response(200)));
+        assertTrue(Category.SUCCESS.in(ok));
+    }
+
+    @Test
+    public void statusesOutOfRangeHaveNoCategory() {
+        // given:
+        final ResponseClassifier classifier = ResponseClassifier.standard();
+
+        // then:
+        assertEquals(0, classifier.classify(42));
+        assertEquals(0, classifier.classify(600));
+        assertEquals(0, classifier.classify(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidStatus() {
+        ResponseClassifier.newBuilder().add(Category.FAILED, 600);
+    }
+
+    @Test
+    public void headerRuleAddsCategory() {
+        // given:
+        final ResponseClassifier classifier = ResponseClassifier.newBuilder()
+                .add(Category.FAILED, 429)
+                .addHeaderRule(Category.RETRYABLE, "Retry-After", Predicates.<String>alwaysTrue())
+                .build();
+        final ClientResponse withHeader = response(429);
+        withHeader.getHeaders().putSingle("Retry-After", "5");
+
+        // then:
+        assertEquals(
+                EnumSet.of(Category.FAILED, Category.RETRYABLE),
+                classifier.categoriesOf(withHeader));
+        assertEquals(Collections.singleton(Category.FAILED), classifier.categoriesOf(response(429)));
+    }
+
+    @Test
+    public void unionCombinesCategories() {
+        // given:
+        final ResponseClassifier failed = ResponseClassifier.newBuilder()
+                .add(Category.FAILED, Response.Status.Family.SERVER_ERROR)
+                .build();
+        final ResponseClassifier retryable = ResponseClassifier.newBuilder()
+                .add(Category.RETRYABLE, 503)
+                .build();
+
+        // when:
+        final ResponseClassifier union = failed.union(retryable);
+
+        // then:
+        assertTrue(union.is(response(503), Category.RETRYABLE));
+        assertTrue(union.is(response(500), Category.FAILED));
+        assertFalse(union.is(response(500), Category.RETRYABLE));
+        assertEquals(union, retryable.union(failed));
+    }
+
+    @Test
+    public void failedResponseOperatorUsesClassifier() {
+        // given:
+        final FailedResponseOperator operator = FailedResponseOperator.fromClassifier(
+                ResponseClassifier.newBuilder().add(Category.FAILED, 404).build());
+        final TestSubscriber<ClientResponse> notFound = new TestSubscriber<>();
+        final TestSubscriber<ClientResponse> serverError = new TestSubscriber<>();
+
+        // when:
+        Observable.just(response(404)).lift(operator).subscribe(notFound);
+        Observable.just(response(500)).lift(operator).subscribe(serverError);
+
+        // then:
+        assertTrue(notFound.getOnErrorEvents().get(0) instanceof UniformInterfaceException);
+        assertEquals(1, serverError.getOnNextEvents().size());
+    }
+
+    @Test
+    public void failedResponseSingletonsAreShared() {
+        assertSame(FailedResponseOperator.serverErrors(), FailedResponseOperator.serverErrors());
+        assertSame(FailedResponseOperator.nonSuccessResponses(), FailedResponseOperator.nonSuccessResponses());
+    }
+
+    private static ClientResponse response(final int status) {
+        return new ClientResponse(
+                status,
+                new InBoundHeaders(),
+                new ByteArrayInputStream(new byte[0]),
+                null);
+    }
+
+}
@@ -0,0 +1,171 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+import crud.http.util.FailedResponseOperator;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+
+public class FlightRecorderEventsTest {
+
+    private static final URI uri = URI.create("http://example.com:8080/resource");
+
+    private final PendingTransport transport = new PendingTransport();
+    private final HttpResourceProvider provider = HttpResourceProvider.newBuilder(this.transport).build();
+    private Recording recording;
+
+
+    @Before
+    public void setup() {
+        this.recording = new Recording();
+        this.recording.enable(HttpRequestEvent.NAME);
+        this.recording.start();
+    }
+
+    @After
+    public void teardown() {
+        this.recording.close();
+    }
+
+    @Test
+    public void closedResponseIsRecorded() throws IOException {
+        // given:
+        final InBoundHeaders headers = new InBoundHeaders();
+        headers.putSingle("Content-Length", "5");
+        final ClientResponse response = new ClientResponse(
+                200,
+                headers,
+                new ByteArrayInputStream("hello".getBytes()),
+                null);
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.transport.respond(0, response);
+
+        // then:
+        final RecordedEvent event = onlyEvent();
+        assertEquals("GET", event.getString("method"));
+        assertEquals("example.com:8080", event.getString("host"));
+        assertEquals(200, event.getInt("status"));
+        assertEquals(5L, event.getLong("responseBytes"));
+        assertEquals(1, event.getInt("attempt"));
+        assertFalse(event.getBoolean("retried"));
+        assertFalse(event.getBoolean("failed"));
+        assertTrue(event.getDuration().toNanos() > 0);
+    }
+
+    @Test
+    public void classifiedFailureIsRecorded() throws IOException {
+        // given:
+        this.provider.get(uri).get()
+                .lift(FailedResponseOperator.serverErrors())
+                .subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.transport.respond(0, 503);
+
+        // then:
+        final RecordedEvent event = onlyEvent();
+        assertEquals(503, event.getInt("status"));
+        assertTrue(event.getBoolean("failed"));
+    }
+
+    @Test
+    public void retriedFailureIsRecorded() throws IOException {
+        // given:
+        final Observable<ClientResponse> response = this.provider.get(uri).delete();
+        response.subscribe(new TestSubscriber<ClientResponse>());
+        this.transport.fail(0, new IOException("connection reset"));
+
+        // when:
+        response.subscribe(new TestSubscriber<ClientResponse>());
+        this.transport.respond(1, 204);
+
+        // then:
+        final List<RecordedEvent> events = stopAndRead();
+        assertEquals(2, events.size());
+        final RecordedEvent first = events.get(0);
+        assertEquals("DELETE", first.getString("method"));
+        assertEquals(1, first.getInt("attempt"));
+        assertTrue(first.getBoolean("failed"));
+        assertEquals("java.io.IOException: connection reset", first.getString("error"));
+        assertEquals(0, first.getInt("status"));
+        final RecordedEvent second = events.get(1);
+        assertEquals(2, second.getInt("attempt"));
+        assertTrue(second.getBoolean("retried"));
+        assertEquals(204, second.getInt("status"));
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() throws IOException {
+        // given:
+        this.recording.disable(HttpRequestEvent.NAME);
+        this.provider.get(uri).get().subscribe(new TestSubscriber<ClientResponse>());
+
+        // when:
+        this.transport.respond(0, 200);
+
+        // then:
+        assertTrue(stopAndRead().isEmpty());
+    }
+
+    private RecordedEvent onlyEvent() throws IOException {
+        final List<RecordedEvent> events = stopAndRead();
+        assertEquals(1, events.size());
+        return events.get(0);
+    }
+
+    private List<RecordedEvent> stopAndRead() throws IOException {
+        this.recording.stop();
+        final Path file = Files.createTempFile("requests", ".jfr");
+        try {
+            this.recording.dump(file);
+            final List<RecordedEvent> events = new ArrayList<>();
+            for (final RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals(HttpRequestEvent.NAME)) {
+                    events.add(event);
+                }
+            }
+            events.sort((a, b) -> Integer.compare(a.getInt("attempt"), b.getInt("attempt")));
+            return events;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
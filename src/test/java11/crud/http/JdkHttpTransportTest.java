@@ -0,0 +1,134 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import rx.functions.Func1;
+
+
+public class JdkHttpTransportTest {
+
+    private static final Func1<ClientResponse, String> readBody = new Func1<ClientResponse, String>() {
+        @Override
+        public String call(final ClientResponse response) {
+            return response.getStatus() + " " + response.getEntity(String.class);
+        }
+    };
+
+    private HttpServer server;
+    private URI uri;
+
+
+    @Before
+    public void setup() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", new EchoHandler());
+        this.server.start();
+        this.uri = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/resource");
+    }
+
+    @After
+    public void teardown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void getSendsTemplateAndRequestHeaders() {
+        // given:
+        final ClientRequest template = ClientRequest.newBuilder()
+                .header("X-Template", "t")
+                .build();
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(JdkHttpTransport.create())
+                .requestTemplate(template)
+                .build();
+        final ClientRequest request = ClientRequest.newBuilder()
+                .header("X-Request", "r")
+                .build();
+
+        // when:
+        final String response = provider.get(this.uri).getConditionally(request)
+                .map(readBody)
+                .toBlocking().single();
+
+        // then:
+        assertEquals("200 GET t r ", response);
+    }
+
+    @Test
+    public void putSendsEntity() {
+        // given:
+        final HttpResourceProvider provider = HttpResourceProvider.newBuilder(JdkHttpTransport.create())
+                .build();
+        final ClientRequest request = ClientRequest.newBuilder()
+                .entity("hello", MediaType.TEXT_PLAIN_TYPE)
+                .build();
+
+        // when:
+        final String response = provider.get(this.uri).write(request)
+                .map(readBody)
+                .toBlocking().single();
+
+        // then:
+        assertEquals("200 PUT null null hello", response);
+    }
+
+
+    /**
+     * Responds with the method, two request headers, and the request body.
+     */
+    private static final class EchoHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                final byte[] buffer = new byte[1024];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    requestBody.write(buffer, 0, n);
+                }
+            }
+            final String echo = exchange.getRequestMethod()
+                    + ' ' + exchange.getRequestHeaders().getFirst("X-Template")
+                    + ' ' + exchange.getRequestHeaders().getFirst("X-Request")
+                    + ' ' + new String(requestBody.toByteArray(), StandardCharsets.UTF_8);
+            final byte[] responseBody = echo.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, responseBody.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(responseBody);
+            }
+        }
+    }
+
+}